@@ -12,6 +12,7 @@
 package htsjdk.samtools;
 
 import htsjdk.samtools.SAMFileHeader.SortOrder;
+import htsjdk.samtools.cram.ContainerSizePolicy;
 import htsjdk.samtools.cram.CramContext;
 import htsjdk.samtools.cram.CramLossyOptions;
 import htsjdk.samtools.cram.CramSerilization;
@@ -42,7 +43,7 @@ public class CRAMContainerStreamWriter {
 	protected static final Version cramVersion = CramVersions.CRAM_v3;
 
 	private int minSingeRefRecords = 1000;
-	protected int containerSize = 10000;
+	protected ContainerSizePolicy sizePolicy = ContainerSizePolicy.defaults();
 	protected static final int REF_SEQ_INDEX_NOT_INITIALIZED = -3;
 
 	protected final SAMFileHeader samFileHeader;
@@ -57,6 +58,8 @@ public class CRAMContainerStreamWriter {
 	protected CramLossyOptions lossyOptions = CramLossyOptions.lossless();
 	private CramContext context;
 	private Set<Integer> refIdSet = new HashSet<Integer>();
+	private long containerBytes = 0;
+	private long containerBases = 0;
 
 	public CRAMContainerStreamWriter(final OutputStream outputStream, final OutputStream indexStream,
 			final ReferenceSource source, final SAMFileHeader samFileHeader, final String cramId,
@@ -114,10 +117,14 @@ public class CRAMContainerStreamWriter {
 			} catch (IllegalAccessException e) {
 				throw new RuntimeException(e);
 			}
+			containerBytes = 0;
+			containerBases = 0;
 		}
 
 		samRecords.add(alignment);
 		refIdSet.add(alignment.getReferenceIndex());
+		containerBytes += estimateSize(alignment);
+		containerBases += alignment.getReadLength();
 	}
 
 	/**
@@ -180,7 +187,7 @@ public class CRAMContainerStreamWriter {
 		}
 
 		if (samFileHeader.getSortOrder() != SAMFileHeader.SortOrder.coordinate) {
-			return samRecords.size() >= containerSize;
+			return isContainerFull();
 		}
 
 		boolean newRef = !refIdSet.contains(nextRecord.getReferenceIndex());
@@ -195,7 +202,19 @@ public class CRAMContainerStreamWriter {
 			return samRecords.size() >= minSingeRefRecords;
 		}
 
-		return samRecords.size() >= containerSize;
+		return isContainerFull();
+	}
+
+	private boolean isContainerFull() {
+		return sizePolicy.isFull(samRecords.size(), containerBytes, containerBases);
+	}
+
+	/**
+	 * Approximate size of the record in BAM encoding, without tags.
+	 */
+	private static long estimateSize(final SAMRecord record) {
+		final int readLength = record.getReadLength();
+		return 36 + record.getReadNameLength() + 1 + 4 * record.getCigarLength() + (readLength + 1) / 2 + readLength;
 	}
 
 	/**
@@ -225,7 +244,9 @@ public class CRAMContainerStreamWriter {
 				}
 			}
 		}
+		long time = System.nanoTime();
 		Container container = CramSerilization.convert(samRecords, context);
+		sizePolicy.recordTask(containerBytes, System.nanoTime() - time);
 		container.offset = offset;
 		offset += ContainerIO.writeContainer(cramVersion, container, outputStream);
 		if (indexer != null) {
@@ -266,4 +287,11 @@ public class CRAMContainerStreamWriter {
 	public void setMinSingeRefRecords(int minSingeRefRecords) {
 		this.minSingeRefRecords = minSingeRefRecords;
 	}
+
+	/**
+	 * Set the policy deciding when a container is complete.
+	 */
+	public void setContainerSizePolicy(ContainerSizePolicy sizePolicy) {
+		this.sizePolicy = sizePolicy;
+	}
 }
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2012 - 2018 EMBL - European Bioinformatics Institute
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package htsjdk.samtools.cram;
+
+/**
+ * Decides when a container has enough data. A container is full once it has
+ * reached any of the record, byte or base budgets, so that short reads are cut
+ * by the number of records while long reads are cut by bases or bytes before
+ * the container grows too large for the heap.
+ * <p>
+ * In auto-tune mode the record budget is not used and the byte budget follows
+ * the observed processing speed, so that each container takes about the target
+ * time to convert. The configured byte and base budgets still apply as upper
+ * limits. Auto-tuned policies are thread safe and are meant to be shared
+ * between the code cutting containers and the code converting them.
+ */
+public class ContainerSizePolicy {
+	public static final int DEFAULT_MAX_RECORDS = 10000;
+	public static final long DEFAULT_MAX_BYTES = 64 * 1024 * 1024;
+	public static final long DEFAULT_MAX_BASES = 20 * 1000 * 1000;
+	private static final long MIN_AUTO_TUNED_BYTES = 64 * 1024;
+	private static final long INITIAL_AUTO_TUNED_BYTES = 1024 * 1024;
+	// weight of the latest observation in the average processing speed:
+	private static final double SMOOTHING = 0.25;
+
+	private int maxRecords = DEFAULT_MAX_RECORDS;
+	private long maxBytes = DEFAULT_MAX_BYTES;
+	private long maxBases = DEFAULT_MAX_BASES;
+	private long targetNanos = 0;
+	private double nanosPerByte = 0;
+	private volatile long autoTunedBytes = 0;
+
+	public static final ContainerSizePolicy defaults() {
+		return new ContainerSizePolicy();
+	}
+
+	/**
+	 * @param records
+	 *            number of records in the container
+	 * @param bytes
+	 *            size of the records in bytes, for example as BAM records
+	 * @param bases
+	 *            number of read bases in the container
+	 * @return true if the container should not take any more records
+	 */
+	public boolean isFull(int records, long bytes, long bases) {
+		if (maxBases > 0 && bases >= maxBases)
+			return true;
+		if (isAutoTuned())
+			return bytes >= getByteBudget();
+		if (maxRecords > 0 && records >= maxRecords)
+			return true;
+		return maxBytes > 0 && bytes >= maxBytes;
+	}
+
+	/**
+	 * Report how long it took to process a container, used in auto-tune mode
+	 * only.
+	 * 
+	 * @param bytes
+	 *            size of the container records in bytes
+	 * @param nanos
+	 *            time taken to process the container
+	 */
+	public synchronized void recordTask(long bytes, long nanos) {
+		if (!isAutoTuned() || bytes <= 0 || nanos <= 0)
+			return;
+		double observed = (double) nanos / bytes;
+		nanosPerByte = nanosPerByte == 0 ? observed : nanosPerByte * (1 - SMOOTHING) + observed * SMOOTHING;
+		long budget = (long) (targetNanos / nanosPerByte);
+		if (maxBytes > 0)
+			budget = Math.min(budget, maxBytes);
+		autoTunedBytes = Math.max(MIN_AUTO_TUNED_BYTES, budget);
+	}
+
+	/**
+	 * @return the current byte budget, which changes over time in auto-tune
+	 *         mode
+	 */
+	public long getByteBudget() {
+		if (!isAutoTuned())
+			return maxBytes;
+		if (autoTunedBytes > 0)
+			return autoTunedBytes;
+		return maxBytes > 0 ? Math.min(maxBytes, INITIAL_AUTO_TUNED_BYTES) : INITIAL_AUTO_TUNED_BYTES;
+	}
+
+	public boolean isAutoTuned() {
+		return targetNanos > 0;
+	}
+
+	public ContainerSizePolicy setMaxRecords(int maxRecords) {
+		this.maxRecords = maxRecords;
+		return this;
+	}
+
+	public ContainerSizePolicy setMaxBytes(long maxBytes) {
+		this.maxBytes = maxBytes;
+		return this;
+	}
+
+	public ContainerSizePolicy setMaxBases(long maxBases) {
+		this.maxBases = maxBases;
+		return this;
+	}
+
+	/**
+	 * Turn on auto-tune mode.
+	 * 
+	 * @param targetNanos
+	 *            the time each container should take to process, 0 to turn
+	 *            auto-tune off
+	 */
+	public ContainerSizePolicy setTargetNanos(long targetNanos) {
+		this.targetNanos = targetNanos;
+		return this;
+	}
+
+	public int getMaxRecords() {
+		return maxRecords;
+	}
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	public long getMaxBases() {
+		return maxBases;
+	}
+
+	public long getTargetNanos() {
+		return targetNanos;
+	}
+
+	@Override
+	public String toString() {
+		if (isAutoTuned())
+			return String.format("target %dms, bytes %d/%d, bases %d", targetNanos / 1000000, getByteBudget(),
+					maxBytes, maxBases);
+		return String.format("records %d, bytes %d, bases %d", maxRecords, maxBytes, maxBases);
+	}
+}
@@ -49,6 +49,8 @@ public class CramContext {
 		sam2cramFactory.captureAllTags = lossyOptions.isCaptureAllTags();
 		sam2cramFactory.captureTags.addAll(lossyOptions.getCaptureTags());
 		sam2cramFactory.ignoreTags.addAll(lossyOptions.getIgnoreTags());
+		sam2cramFactory.preserveReadNames = lossyOptions.isPreserveReadNames();
 		containerFactory = new ContainerFactory(samFileHeader, RECORDS_PER_SLICE);
+		containerFactory.setPreserveReadNames(lossyOptions.isPreserveReadNames());
 	}
 }
@@ -118,6 +118,19 @@ public class CramLossyOptions {
 		return ignoreTags;
 	}
 
+	/**
+	 * Quality score preservation as chosen on the command line of the
+	 * converters: all scores if lossless, otherwise the ones selected by the
+	 * spec, or none without a spec.
+	 */
+	public static QualityScorePreservation qualityScorePreservation(boolean lossless, String spec) {
+		if (lossless)
+			return QualityScorePreservation.lossless();
+		if (spec == null || spec.length() == 0)
+			return QualityScorePreservation.dropAll();
+		return QualityScorePreservation.lossyFromSpec(spec);
+	}
+
 	public static Set<String> tagsNamesToSet(String tags) {
 		Set<String> set = new TreeSet<String>();
 		if (tags == null || tags.length() == 0)
@@ -15,35 +15,58 @@
  ******************************************************************************/
 package htsjdk.samtools.cram.encoding.reader;
 
-import java.io.EOFException;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
-import htsjdk.samtools.cram.structure.ReadTag;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.cram.io.BitInputStream;
+import htsjdk.samtools.cram.io.DefaultBitInputStream;
+import htsjdk.samtools.cram.structure.CompressionHeader;
+import htsjdk.samtools.cram.structure.EncodingKey;
+import htsjdk.samtools.cram.structure.Slice;
 import htsjdk.samtools.cram.structure.SubstitutionMatrix;
+import htsjdk.samtools.util.Log;
 import net.sf.cram.common.Utils;
+import net.sf.cram.ref.ReferenceRegion;
+import net.sf.cram.ref.ReferenceSource;
 
 public abstract class AbstractFastqReader extends AbstractReader {
+	private static final Log log = Log.getInstance(AbstractFastqReader.class);
 	private ReadFeatureBuffer rfBuf = new ReadFeatureBuffer();
 	public boolean reverseNegativeReads = true;
 	public boolean appendSegmentIndexToReadNames = true;
 
-	public byte[] referenceSequence;
+	public ReferenceSource referenceSource;
+	private SliceReference sliceReference = new SliceReference();
 	public int flags;
 	public int compressionFlags;
 	public int mateFlags;
 	public int readLength;
 	public int prevAlStart;
+	// valid up to readNameLength, generated names reuse the same array:
 	public byte[] readName;
+	public int readNameLength;
 
 	public static final int maxReadBufferLength = 1024 * 1024;
 	public byte[] bases = new byte[maxReadBufferLength];
 	public byte[] scores = new byte[maxReadBufferLength];
-	private Map<Integer, Integer> nameCache = new HashMap<Integer, Integer>();
+	// index of the first mate plus one for records named after it:
+	private int[] mateNameSources = new int[1024];
+	private byte[] generatedName = new byte[20];
 	public long counterOffset = 0;
 
+	private ByteSeriesReader baseReader;
+	private ByteSeriesReader qualityScoreReader;
+	// tag value readers for each entry of the tag id dictionary:
+	private DataReader<byte[]>[][] tagValueReaders;
+
 	public int defaultQS = '?';
 
 	public int ignoreReadsWithFlags = 256 | 2048;
@@ -70,6 +93,89 @@ public abstract class AbstractFastqReader extends AbstractReader {
 
 	protected abstract byte[] refSeqChanged(int seqID);
 
+	/**
+	 * Prepare to read the records of a slice: load the part of the reference
+	 * spanned by the slice, check its MD5 and set up the data series readers.
+	 * The records are then read with {@link #read()}.
+	 * 
+	 * @param slice
+	 *            the slice to read
+	 * @param compressionHeader
+	 *            the compression header of the container
+	 * @param samFileHeader
+	 *            the header of the CRAM file
+	 * @throws IOException
+	 *             as per java IO contract
+	 */
+	public void startSlice(Slice slice, CompressionHeader compressionHeader, SAMFileHeader samFileHeader)
+			throws IOException {
+		if (slice.sequenceId != SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX && slice.sequenceId != -2) {
+			SAMSequenceRecord sequence = samFileHeader.getSequence(slice.sequenceId);
+
+			if (sequence == null)
+				throw new RuntimeException("Null sequence for id: " + slice.sequenceId);
+
+			// only the part of the reference spanned by the slice:
+			sliceReference.reset(sequence, slice.alignmentStart, slice.alignmentStart + slice.alignmentSpan - 1);
+			ReferenceRegion region = sliceReference.getRegion(referenceSource, slice.alignmentStart);
+
+			if (!validateRefMD5(slice, region)) {
+				log.error(String.format(
+						"Reference sequence MD5 mismatch for slice: seq id %d, start %d, span %d, expected MD5 %s",
+						slice.sequenceId, slice.alignmentStart, slice.alignmentSpan,
+						String.format("%032x", new BigInteger(1, slice.refMD5))));
+				throw new RuntimeException("Reference checksum mismatch.");
+			}
+		}
+
+		Map<Integer, InputStream> inputMap = new HashMap<Integer, InputStream>();
+		for (Integer exId : slice.external.keySet())
+			inputMap.put(exId, new ByteArrayInputStream(slice.external.get(exId).getRawContent()));
+
+		prevAlStart = slice.alignmentStart;
+		substitutionMatrix = compressionHeader.substitutionMatrix;
+		recordCounter = 0;
+		try {
+			buildReaders(new DefaultBitInputStream(new ByteArrayInputStream(slice.coreBlock.getRawContent())),
+					inputMap, compressionHeader, slice.sequenceId);
+		} catch (IllegalArgumentException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static boolean validateRefMD5(Slice s, ReferenceRegion region) {
+		if (region.md5Matches(s.refMD5, s.alignmentStart, s.alignmentSpan))
+			return true;
+		// same as Slice.validateRefMD5(), accept a span one base shorter:
+		if (region.md5Matches(s.refMD5, s.alignmentStart, s.alignmentSpan - 1)) {
+			log.warn(String.format("Reference MD5 matches partially for slice %d:%d-%d", s.sequenceId,
+					s.alignmentStart, s.alignmentStart + s.alignmentSpan - 1));
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Set up the data series readers for a slice.
+	 * 
+	 * @param coreStream
+	 *            the core block of the slice
+	 * @param inputMap
+	 *            the external blocks of the slice by content id
+	 * @param header
+	 *            the compression header of the container
+	 * @param sequenceId
+	 *            the reference sequence id of the slice
+	 */
+	public void buildReaders(BitInputStream coreStream, Map<Integer, InputStream> inputMap, CompressionHeader header,
+			int sequenceId) {
+		new DataReaderFactory().buildReader(this, coreStream, inputMap, header, sequenceId);
+		baseReader = new ByteSeriesReader(baseCodec, header, EncodingKey.BA_Base, inputMap);
+		qualityScoreReader = new ByteSeriesReader(qualityScoreCodec, header, EncodingKey.QS_QualityScore, inputMap);
+
+		tagValueReaders = TagValueReaders.build(this);
+	}
+
 	public void read() throws IOException {
 		int seqId = refId;
 		readName = null;
@@ -103,52 +209,50 @@ public abstract class AbstractFastqReader extends AbstractReader {
 				insertSizeCodec.readData();
 				detachedCount++;
 			} else if ((compressionFlags & CramFlags.HAS_MATE_DOWNSTREAM_FLAG) != 0) {
-				int distance = distanceToNextFragmentCodec.readData();
-				nameCache.put(recordCounter + distance + 1, recordCounter);
+				int mate = recordCounter + distanceToNextFragmentCodec.readData() + 1;
+				if (mate >= mateNameSources.length)
+					mateNameSources = Arrays.copyOf(mateNameSources, Math.max(mate + 1, mateNameSources.length * 2));
+				mateNameSources[mate] = recordCounter + 1;
 			}
 
 			if (readName == null) {
-				// check cache:
-				if (nameCache.containsKey(recordCounter)) {
-					int order = nameCache.remove(recordCounter);
-					readName = Long.toString(order + counterOffset).getBytes();
-				} else
-					readName = Long.toString(recordCounter + counterOffset).getBytes();
-			}
-
-			Integer tagIdList = tagIdListCodec.readData();
-			byte[][] ids = tagIdDictionary[tagIdList];
-			if (ids.length > 0) {
-				for (int i = 0; i < ids.length; i++) {
-					int id = ReadTag.name3BytesToInt(ids[i]);
-					DataReader<byte[]> dataReader = tagValueCodecs.get(id);
-					try {
-						dataReader.readData();
-					} catch (EOFException e) {
-						throw e;
-					}
+				int order = recordCounter;
+				if (recordCounter < mateNameSources.length && mateNameSources[recordCounter] > 0) {
+					order = mateNameSources[recordCounter] - 1;
+					mateNameSources[recordCounter] = 0;
 				}
-			}
+				readName = generatedName;
+				readNameLength = formatNumber(order + counterOffset, generatedName);
+			} else
+				readNameLength = readName.length;
+
+			DataReader<byte[]>[] tagReaders = tagValueReaders[tagIdListCodec.readData()];
+			for (int i = 0; i < tagReaders.length; i++)
+				tagReaders[i].readData();
 
 			if ((flags & CramFlags.SEGMENT_UNMAPPED_FLAG) == 0) {
-				byte[] refBases = referenceSequence;
-				if (seqId != refId)
-					refBases = refSeqChanged(seqId);
 				rfBuf.readReadFeatures(this);
-				rfBuf.restoreReadBases(readLength, prevAlStart, refBases, substitutionMatrix, bases);
+				byte[] refBases;
+				int refAlStart;
+				if (seqId == refId) {
+					ReferenceRegion region = sliceReference.getRegion(referenceSource, prevAlStart
+							+ rfBuf.getReferenceLength(readLength) - 1);
+					refBases = region.array;
+					refAlStart = prevAlStart - (int) region.alignmentStart + 1;
+				} else {
+					refBases = refSeqChanged(seqId);
+					refAlStart = prevAlStart;
+				}
+				rfBuf.restoreReadBases(readLength, refAlStart, refBases, substitutionMatrix, bases);
 
 				mappingScoreCodec.readData();
-			} else {
-				for (int i=0; i<readLength; i++)
-					bases[i] = baseCodec.readData();
+			} else
+				baseReader.readInto(bases, 0, readLength);
 
-			}
-
-			Arrays.fill(scores, 0, readLength, (byte) (defaultQS - 33));
-			if ((compressionFlags & CramFlags.FORCE_PRESERVE_QS_FLAG) != 0) {
-				for (int i=0; i<readLength; i++)
-					scores[i] = qualityScoreCodec.readData();
-			} else {
+			if ((compressionFlags & CramFlags.FORCE_PRESERVE_QS_FLAG) != 0)
+				qualityScoreReader.readInto(scores, 0, readLength);
+			else {
+				Arrays.fill(scores, 0, readLength, (byte) (defaultQS - 33));
 				if ((flags & CramFlags.SEGMENT_UNMAPPED_FLAG) == 0) {
 					rfBuf.restoreQualityScores(readLength, prevAlStart, scores);
 				}
@@ -174,11 +278,30 @@ public abstract class AbstractFastqReader extends AbstractReader {
 		} catch (Exception e) {
 			System.err.printf("Failed at record %d. \n", recordCounter);
 			if (readName != null)
-				System.err.println("read name: " + new String(readName));
+				System.err.println("read name: " + new String(readName, 0, readNameLength));
 			throw new RuntimeException(e);
 		}
 	}
 
+	/**
+	 * Write the decimal representation of a number into the buffer.
+	 * 
+	 * @return the number of bytes written
+	 */
+	static int formatNumber(long number, byte[] dest) {
+		int length = 0;
+		do {
+			dest[length++] = (byte) ('0' + number % 10);
+			number /= 10;
+		} while (number > 0);
+		for (int i = 0, j = length - 1; i < j; i++, j--) {
+			byte b = dest[i];
+			dest[i] = dest[j];
+			dest[j] = b;
+		}
+		return length;
+	}
+
 	/**
 	 * Write the read. The read here is basically a fastq read with an addition
 	 * of SAM bit flags. Specific implementations should take care of further
@@ -192,7 +315,7 @@ public abstract class AbstractFastqReader extends AbstractReader {
 	 * </ul>
 	 * 
 	 * @param name
-	 *            read name
+	 *            read name, valid up to {@link #readNameLength}
 	 * @param flags
 	 *            SAM bit flags
 	 * @param bases
@@ -89,10 +89,14 @@ public class BAMRecordView {
 	}
 
 	public void setReadName(byte[] readName) {
-		writeUByte((short) (readName.length + 1), READ_NAME_LEN);
-		System.arraycopy(readName, 0, buf, start + READ_NAME, readName.length);
-		buf[start + READ_NAME + readName.length] = 0;
-		CIGAR = READ_NAME + readName.length + 1;
+		setReadName(readName, 0, readName.length);
+	}
+
+	public void setReadName(byte[] readName, int offset, int length) {
+		writeUByte((short) (length + 1), READ_NAME_LEN);
+		System.arraycopy(readName, offset, buf, start + READ_NAME, length);
+		buf[start + READ_NAME + length] = 0;
+		CIGAR = READ_NAME + length + 1;
 	}
 
 	public void setMappingScore(int score) {
@@ -199,15 +203,24 @@ public class BAMRecordView {
 		}
 	}
 
+	/**
+	 * Add a tag after the quality scores or the previous tag.
+	 * 
+	 * @param id
+	 *            the tag name and value type as in
+	 *            {@link htsjdk.samtools.cram.structure.ReadTag#name3BytesToInt(byte[])}
+	 * @param data
+	 *            the tag value in BAM format
+	 */
 	public void addTag(int id, byte[] data, int offset, int len) {
 		if (TAGS < 0)
 			throw new RuntimeException("Premature addition of tag.");
 		if (END < 0)
 			END = TAGS;
 
-		buf[start + END++] = (byte) (id & 0xFF);
-		buf[start + END++] = (byte) ((id >> 8) & 0xFF);
 		buf[start + END++] = (byte) ((id >> 16) & 0xFF);
+		buf[start + END++] = (byte) ((id >> 8) & 0xFF);
+		buf[start + END++] = (byte) (id & 0xFF);
 		System.arraycopy(data, offset, buf, start + END, len);
 		END += len;
 	}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2012 - 2018 EMBL - European Bioinformatics Institute
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package htsjdk.samtools.cram.encoding.reader;
+
+import htsjdk.samtools.cram.io.ITF8;
+import htsjdk.samtools.cram.io.InputStreamUtils;
+import htsjdk.samtools.cram.structure.CompressionHeader;
+import htsjdk.samtools.cram.structure.EncodingID;
+import htsjdk.samtools.cram.structure.EncodingKey;
+import htsjdk.samtools.cram.structure.EncodingParams;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+/**
+ * Reads a run of values of a byte data series, such as bases or quality
+ * scores, into an array. A series stored in an external block is copied from
+ * the block in one go, other encodings fall back to the {@link DataReader} one
+ * value at a time.
+ */
+class ByteSeriesReader {
+	private final DataReader<Byte> reader;
+	private final InputStream external;
+
+	/**
+	 * @param reader
+	 *            the reader built for the series by {@link DataReaderFactory}
+	 * @param header
+	 *            the compression header of the container
+	 * @param key
+	 *            the data series
+	 * @param inputMap
+	 *            the external block streams of the slice, the same ones the
+	 *            reader was built with
+	 */
+	ByteSeriesReader(DataReader<Byte> reader, CompressionHeader header, EncodingKey key,
+			Map<Integer, InputStream> inputMap) {
+		this.reader = reader;
+		EncodingParams params = header.encodingMap.get(key);
+		if (params != null && params.id == EncodingID.EXTERNAL)
+			external = inputMap.get(ITF8.readUnsignedITF8(params.params));
+		else
+			external = null;
+	}
+
+	void readInto(byte[] dest, int offset, int length) throws IOException {
+		if (external != null) {
+			InputStreamUtils.readFully(external, dest, offset, length);
+			return;
+		}
+		for (int i = offset; i < offset + length; i++)
+			dest[i] = reader.readData();
+	}
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2012 - 2018 EMBL - European Bioinformatics Institute
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package htsjdk.samtools.cram.encoding.reader;
+
+import htsjdk.samtools.util.Log;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Pairs up fastq records by read name and writes the mates to the streams for
+ * their template index at the same time, so that the streams stay in step.
+ * Reads waiting for their mates are kept in a {@link MateCollationTable} and
+ * spilled to disk through a {@link MateSpill} when it is full. Records must
+ * start with '@' followed by the read name.
+ */
+public class FastqCollator {
+	private static final Log log = Log.getInstance(FastqCollator.class);
+	// the collation table is a direct buffer of this many bytes; direct memory
+	// is limited by -XX:MaxDirectMemorySize, which defaults to the maximum heap
+	// size, so raise that too when setting a larger value:
+	private static final long cacheMemory = Long.parseLong(System.getProperty("fastq-dumper.cache-memory",
+			Long.toString(Math.min(256L * 1024 * 1024, Runtime.getRuntime().maxMemory() / 4))));
+	private static final int spillRunMemory = Integer.parseInt(System.getProperty(
+			"fastq-dumper.spill-run-memory", Integer.toString(64 * 1024 * 1024)));
+	private static final int spillCompression = Integer.parseInt(System.getProperty(
+			"fastq-dumper.spill-compression", "0"));
+
+	// reads waiting for their mates, evicted to the spill when full:
+	private MateCollationTable mates;
+	private MateSpill spill;
+	// set when the reads evicted from now on cannot have mates:
+	private boolean evictUnpaired = false;
+	private OutputStream[] streams;
+
+	private byte[] prefix;
+	private long counter;
+
+	private byte[] mateRecord = new byte[1024];
+
+	/**
+	 * @param streams
+	 *            output streams by template index, reads without mates go to
+	 *            the first one
+	 * @param spillFilePrefix
+	 *            prefix for the names of temporary files holding reads whose
+	 *            mates were too far away to be kept in memory
+	 * @param counter
+	 *            the first read number for names replaced with a prefix
+	 */
+	public FastqCollator(OutputStream[] streams, String spillFilePrefix, long counter) {
+		this.streams = streams;
+		this.counter = counter;
+		mates = new MateCollationTable(cacheMemory) {
+
+			@Override
+			protected void evicted(byte[] record, int offset, int length, int nameLength, int templateIndex) {
+				try {
+					if (evictUnpaired) {
+						writeUnpaired(record, offset, length, nameLength);
+						FastqCollator.this.counter++;
+					} else
+						spill.add(record, offset, length, nameLength, templateIndex);
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		};
+		spill = new MateSpill(spillFilePrefix, spillRunMemory, spillCompression) {
+
+			@Override
+			protected void mates(Entry first, Entry second) throws IOException {
+				write(first.record, 0, first.record.length, first.templateIndex);
+				write(second.record, 0, second.record.length, second.templateIndex);
+				FastqCollator.this.counter++;
+			}
+
+			@Override
+			protected void unpaired(Entry entry) throws IOException {
+				writeUnpaired(entry.record, 0, entry.record.length, entry.nameLength);
+				FastqCollator.this.counter++;
+			}
+		};
+	}
+
+	/**
+	 * Replace read names with the prefix and a sequential number.
+	 */
+	public void setPrefix(byte[] prefix) {
+		this.prefix = prefix;
+	}
+
+	/**
+	 * @return the next read number for names replaced with a prefix
+	 */
+	public long getCounter() {
+		return counter;
+	}
+
+	/**
+	 * Change the output streams, for example to collect the output in chunks.
+	 */
+	public void setStreams(OutputStream[] streams) {
+		this.streams = streams;
+	}
+
+	/**
+	 * Write the record if it is not paired or its mate has been seen already,
+	 * otherwise keep it until the mate comes along.
+	 *
+	 * @param nameLength
+	 *            the length of the read name without the segment index
+	 * @param templateIndex
+	 *            0 for unpaired reads, 1 for first and 2 for second in pair
+	 */
+	public void add(byte[] record, int offset, int length, int nameLength, int templateIndex) throws IOException {
+		if (templateIndex == 0) {
+			write(record, offset, length, 0);
+			counter++;
+			return;
+		}
+
+		int matePosition = mates.find(record, offset + 1, nameLength);
+		if (matePosition < 0) {
+			mates.add(record, offset, length, nameLength, templateIndex);
+			return;
+		}
+
+		int mateLength = mates.getRecordLength(matePosition);
+		if (mateRecord.length < mateLength)
+			mateRecord = new byte[mateLength];
+		mates.getRecord(matePosition, mateRecord);
+		int mateTemplateIndex = mates.getTemplateIndex(matePosition);
+		mates.remove(matePosition);
+
+		write(mateRecord, 0, mateLength, mateTemplateIndex);
+		write(record, offset, length, templateIndex);
+		counter++;
+	}
+
+	/**
+	 * Write out the reads still waiting for their mates, pairing up those
+	 * spilled to disk.
+	 */
+	public void finish() throws IOException {
+		// the reads left in memory can only have mates in the spill:
+		evictUnpaired = spill.size() == 0;
+		mates.evictAll();
+		if (spill.size() == 0)
+			return;
+
+		log.info(String.format("Collating %d reads spilled to disk.", spill.size()));
+		spill.merge();
+	}
+
+	private void write(byte[] data, int offset, int length, int templateIndex) throws IOException {
+		OutputStream stream = streams[templateIndex];
+		if (prefix == null) {
+			stream.write(data, offset, length);
+		} else {
+			writeNamePrefix(stream);
+			stream.write(data, offset + 1, length - 1);
+		}
+	}
+
+	/**
+	 * Reads left without mates go to the first stream and lose the segment
+	 * index in their names.
+	 */
+	private void writeUnpaired(byte[] data, int offset, int length, int nameLength) throws IOException {
+		OutputStream stream = streams[0];
+		int from = offset + 1 + nameLength;
+		if (data[from] != '\n')
+			from += 2;
+		if (prefix == null)
+			stream.write('@');
+		else
+			writeNamePrefix(stream);
+		stream.write(data, offset + 1, nameLength);
+		stream.write(data, from, offset + length - from);
+	}
+
+	private void writeNamePrefix(OutputStream stream) throws IOException {
+		stream.write('@');
+		stream.write(prefix);
+		stream.write('.');
+		stream.write(String.valueOf(counter).getBytes());
+		stream.write(' ');
+	}
+}
@@ -29,38 +29,47 @@ public class FastqRead implements IRead {
 
 	public FastqRead(int readLength, byte[] name, boolean appendSegmentIndex, int templateIndex, byte[] bases,
 			byte[] scores) {
-		ByteBuffer buf = null;
-		nameBaseLen = name.length;
-
-		if (appendSegmentIndex) {
-			this.nameLen = name.length + (templateIndex > 0 ? 2 : 0);
-			this.templateIndex = templateIndex;
-
-			data = new byte[nameLen + 2 * readLength + 6];
-
-			buf = ByteBuffer.wrap(data);
-			buf.put((byte) '@');
-			buf.put(name);
-			if (templateIndex > 0) {
-				buf.put((byte) '/');
-				buf.put((byte) (48 + templateIndex));
-			}
-		} else {
-			this.nameLen = name.length;
-			this.templateIndex = templateIndex;
-
-			data = new byte[nameLen + 2 * readLength + 6];
-
-			buf = ByteBuffer.wrap(data);
-			buf.put((byte) '@');
-			buf.put(name);
+		this(readLength, name, name.length, appendSegmentIndex, templateIndex, bases, scores);
+	}
+
+	/**
+	 * Same as above but only the first nameLength bytes of the name are used,
+	 * so that the name buffer can be reused.
+	 */
+	public FastqRead(int readLength, byte[] name, int nameLength, boolean appendSegmentIndex, int templateIndex,
+			byte[] bases, byte[] scores) {
+		this.templateIndex = templateIndex;
+		nameBaseLen = nameLength;
+		nameLen = nameLength + (appendSegmentIndex && templateIndex > 0 ? 2 : 0);
+		data = new byte[nameLen + 2 * readLength + 6];
+		write(ByteBuffer.wrap(data), readLength, name, nameLength, appendSegmentIndex, templateIndex, bases, scores);
+	}
+
+	/**
+	 * @return the size of the fastq record for the read
+	 */
+	public static int length(int readLength, int nameLength, boolean appendSegmentIndex, int templateIndex) {
+		return nameLength + (appendSegmentIndex && templateIndex > 0 ? 2 : 0) + 2 * readLength + 6;
+	}
+
+	/**
+	 * Write the fastq record for the read into the buffer.
+	 */
+	public static void write(ByteBuffer buf, int readLength, byte[] name, int nameLength, boolean appendSegmentIndex,
+			int templateIndex, byte[] bases, byte[] scores) {
+		buf.put((byte) '@');
+		buf.put(name, 0, nameLength);
+		if (appendSegmentIndex && templateIndex > 0) {
+			buf.put((byte) '/');
+			buf.put((byte) (48 + templateIndex));
 		}
 		buf.put((byte) '\n');
 
 		buf.put(bases, 0, readLength);
 		buf.put((byte) '\n');
 
-		buf.put("+\n".getBytes());
+		buf.put((byte) '+');
+		buf.put((byte) '\n');
 
 		if (scores != null)
 			buf.put(scores, 0, readLength);
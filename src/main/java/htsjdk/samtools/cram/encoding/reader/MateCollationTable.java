@@ -0,0 +1,277 @@
+/*
+ * Copyright 2012 - 2018 EMBL - European Bioinformatics Institute
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package htsjdk.samtools.cram.encoding.reader;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A table of reads waiting for their mates, keyed on read name. The reads are
+ * packed into a fixed size off-heap arena used as a ring buffer, so that they
+ * are kept in the order they were added and the oldest ones are evicted first
+ * when the arena is full. The arena is indexed by an open addressing hash
+ * table of arena positions, so there are no per-read objects.
+ * <p>
+ * Each entry in the arena is a header followed by the read record, which must
+ * start with one byte followed by the read name:
+ * <ul>
+ * <li>int: entry length including the header</li>
+ * <li>int: name hash</li>
+ * <li>int: name length</li>
+ * <li>byte: template index</li>
+ * <li>byte: 1 if the entry is live, 0 if it has been removed or is padding</li>
+ * </ul>
+ */
+abstract class MateCollationTable {
+	private static final int HEADER_LENGTH = 14;
+	private static final int HASH_OFFSET = 4;
+	private static final int NAME_LENGTH_OFFSET = 8;
+	private static final int TEMPLATE_INDEX_OFFSET = 12;
+	private static final int LIVE_OFFSET = 13;
+	// the read name follows the first byte of a record:
+	private static final int NAME_OFFSET = HEADER_LENGTH + 1;
+
+	private final ByteBuffer arena;
+	private final ByteBuffer arenaView;
+	private final int capacity;
+	// positions of the oldest entry and of the next entry to be written:
+	private int tail = 0;
+	private int head = 0;
+	// bytes used between tail and head including padding:
+	private int used = 0;
+
+	// arena positions plus one, 0 for empty slots:
+	private int[] slots = new int[1 << 16];
+	private int[] hashes = new int[1 << 16];
+	private int size = 0;
+
+	private byte[] evictionBuffer = new byte[1024];
+
+	/**
+	 * @param memoryBudget
+	 *            the size of the arena in bytes
+	 */
+	MateCollationTable(long memoryBudget) {
+		capacity = (int) Math.min(memoryBudget, Integer.MAX_VALUE - 8);
+		arena = ByteBuffer.allocateDirect(capacity);
+		arenaView = arena.duplicate();
+	}
+
+	/**
+	 * Called for live reads evicted from the arena in the order they were
+	 * added. The record array is only valid until the method returns.
+	 */
+	protected abstract void evicted(byte[] record, int offset, int length, int nameLength, int templateIndex);
+
+	/**
+	 * @return the number of reads in the table
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Find the read with the name found at the offset in the array.
+	 *
+	 * @return the arena position of the read or -1 if not found
+	 */
+	int find(byte[] name, int offset, int nameLength) {
+		int hash = hash(name, offset, nameLength);
+		int mask = slots.length - 1;
+		for (int i = hash & mask; slots[i] != 0; i = (i + 1) & mask) {
+			if (hashes[i] == hash && nameEquals(slots[i] - 1, name, offset, nameLength))
+				return slots[i] - 1;
+		}
+		return -1;
+	}
+
+	int getTemplateIndex(int position) {
+		return arena.get(position + TEMPLATE_INDEX_OFFSET);
+	}
+
+	int getRecordLength(int position) {
+		return arena.getInt(position) - HEADER_LENGTH;
+	}
+
+	/**
+	 * Copy the record of the read at the given position into the array.
+	 */
+	void getRecord(int position, byte[] dest) {
+		arenaView.position(position + HEADER_LENGTH);
+		arenaView.get(dest, 0, getRecordLength(position));
+	}
+
+	/**
+	 * Remove the read at the given position from the table. The arena space
+	 * is reclaimed when the entry becomes the oldest one.
+	 */
+	void remove(int position) {
+		removeFromIndex(position, arena.getInt(position + HASH_OFFSET));
+		arena.put(position + LIVE_OFFSET, (byte) 0);
+	}
+
+	/**
+	 * Add a read to the table, evicting the oldest reads if there is not
+	 * enough space. Reads larger than the whole arena are evicted straight
+	 * away.
+	 */
+	void add(byte[] record, int offset, int length, int nameLength, int templateIndex) {
+		int entryLength = HEADER_LENGTH + length;
+		if (entryLength > capacity) {
+			evicted(record, offset, length, nameLength, templateIndex);
+			return;
+		}
+
+		int hash = hash(record, offset + 1, nameLength);
+		int position = allocate(entryLength);
+		arena.putInt(position, entryLength);
+		arena.putInt(position + HASH_OFFSET, hash);
+		arena.putInt(position + NAME_LENGTH_OFFSET, nameLength);
+		arena.put(position + TEMPLATE_INDEX_OFFSET, (byte) templateIndex);
+		arena.put(position + LIVE_OFFSET, (byte) 1);
+		arenaView.position(position + HEADER_LENGTH);
+		arenaView.put(record, offset, length);
+
+		if (size + 1 > slots.length / 2)
+			resizeIndex(slots.length * 2);
+		int mask = slots.length - 1;
+		int i = hash & mask;
+		while (slots[i] != 0)
+			i = (i + 1) & mask;
+		slots[i] = position + 1;
+		hashes[i] = hash;
+		size++;
+	}
+
+	/**
+	 * Evict all reads in the order they were added and empty the table.
+	 */
+	void evictAll() {
+		while (used > 0)
+			evictOldest();
+	}
+
+	/**
+	 * Reserve a contiguous arena region, evicting the oldest entries as
+	 * needed.
+	 *
+	 * @return the position of the region
+	 */
+	private int allocate(int entryLength) {
+		while (true) {
+			if (used == 0) {
+				head = tail = 0;
+			}
+
+			if (head > tail || used == 0) {
+				if (capacity - head >= entryLength)
+					break;
+				// pad to the end of the arena and wrap around:
+				int padding = capacity - head;
+				if (padding >= HEADER_LENGTH) {
+					arena.putInt(head, padding);
+					arena.put(head + LIVE_OFFSET, (byte) 0);
+				}
+				used += padding;
+				head = 0;
+				continue;
+			}
+
+			if (tail - head >= entryLength)
+				break;
+			evictOldest();
+		}
+
+		int position = head;
+		head += entryLength;
+		used += entryLength;
+		return position;
+	}
+
+	private void evictOldest() {
+		int entryLength = capacity - tail;
+		// entries never start closer to the end than the header length:
+		if (entryLength >= HEADER_LENGTH) {
+			entryLength = arena.getInt(tail);
+			if (arena.get(tail + LIVE_OFFSET) != 0) {
+				int length = entryLength - HEADER_LENGTH;
+				if (evictionBuffer.length < length)
+					evictionBuffer = new byte[length];
+				getRecord(tail, evictionBuffer);
+				remove(tail);
+				evicted(evictionBuffer, 0, length, arena.getInt(tail + NAME_LENGTH_OFFSET), getTemplateIndex(tail));
+			}
+		}
+
+		used -= entryLength;
+		tail += entryLength;
+		if (tail == capacity)
+			tail = 0;
+	}
+
+	private void removeFromIndex(int position, int hash) {
+		int mask = slots.length - 1;
+		int i = hash & mask;
+		while (slots[i] != position + 1)
+			i = (i + 1) & mask;
+
+		// shift back the following entries of the probe sequence:
+		int j = i;
+		while (true) {
+			j = (j + 1) & mask;
+			if (slots[j] == 0)
+				break;
+			int home = hashes[j] & mask;
+			if (((j - home) & mask) >= ((j - i) & mask)) {
+				slots[i] = slots[j];
+				hashes[i] = hashes[j];
+				i = j;
+			}
+		}
+		slots[i] = 0;
+		size--;
+	}
+
+	private void resizeIndex(int newLength) {
+		int[] oldSlots = slots;
+		int[] oldHashes = hashes;
+		slots = new int[newLength];
+		hashes = new int[newLength];
+		int mask = newLength - 1;
+		for (int s = 0; s < oldSlots.length; s++) {
+			if (oldSlots[s] == 0)
+				continue;
+			int i = oldHashes[s] & mask;
+			while (slots[i] != 0)
+				i = (i + 1) & mask;
+			slots[i] = oldSlots[s];
+			hashes[i] = oldHashes[s];
+		}
+	}
+
+	private boolean nameEquals(int position, byte[] name, int offset, int nameLength) {
+		if (arena.getInt(position + NAME_LENGTH_OFFSET) != nameLength)
+			return false;
+		for (int i = 0; i < nameLength; i++)
+			if (arena.get(position + NAME_OFFSET + i) != name[offset + i])
+				return false;
+		return true;
+	}
+
+	static int hash(byte[] bytes, int offset, int length) {
+		int hash = 0;
+		for (int i = offset; i < offset + length; i++)
+			hash = 31 * hash + bytes[i];
+		// spread the low bits used by the index:
+		hash *= 0x9E3779B9;
+		return hash ^ (hash >>> 16);
+	}
+}
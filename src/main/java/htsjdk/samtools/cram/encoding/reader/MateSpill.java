@@ -0,0 +1,316 @@
+/*
+ * Copyright 2012 - 2018 EMBL - European Bioinformatics Institute
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package htsjdk.samtools.cram.encoding.reader;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import htsjdk.samtools.util.Log;
+
+/**
+ * External merge of reads evicted from a {@link MateCollationTable}. Reads are
+ * collected in memory and written to temporary files as runs sorted by name
+ * hash. Once all reads have been added the runs are merged, so that reads with
+ * the same name come out together, and handed over as pairs or unpaired reads.
+ * <p>
+ * Each entry in a run is:
+ * <ul>
+ * <li>int: name hash</li>
+ * <li>int: record length</li>
+ * <li>int: name length</li>
+ * <li>byte: template index</li>
+ * <li>the read record, which must start with one byte followed by the name</li>
+ * </ul>
+ */
+abstract class MateSpill {
+	private static final Log log = Log.getInstance(MateSpill.class);
+	private static final int HEADER_LENGTH = 13;
+
+	private final String filePrefix;
+	private final int maxRunLength;
+	private final int compressionLevel;
+
+	private byte[] run = new byte[64 * 1024];
+	private int runLength = 0;
+	// name hash in the high and entry offset in the low 32 bits:
+	private long[] keys = new long[1024];
+	private int runSize = 0;
+	private List<File> runFiles = new ArrayList<File>();
+	private long size = 0;
+
+	static class Entry {
+		byte[] record;
+		int nameLength;
+		int templateIndex;
+
+		boolean sameName(Entry other) {
+			if (nameLength != other.nameLength)
+				return false;
+			for (int i = 1; i <= nameLength; i++)
+				if (record[i] != other.record[i])
+					return false;
+			return true;
+		}
+	}
+
+	/**
+	 * @param filePrefix
+	 *            prefix for the names of the temporary run files
+	 * @param maxRunLength
+	 *            bytes of reads to be sorted in memory for each run
+	 * @param compressionLevel
+	 *            deflate level for the run files or 0 for no compression
+	 */
+	MateSpill(String filePrefix, int maxRunLength, int compressionLevel) {
+		this.filePrefix = filePrefix;
+		this.maxRunLength = maxRunLength;
+		this.compressionLevel = compressionLevel;
+	}
+
+	/**
+	 * Called for the reads with the same name, the one with the lower template
+	 * index first.
+	 */
+	protected abstract void mates(Entry first, Entry second) throws IOException;
+
+	/**
+	 * Called for the reads whose mates were not found.
+	 */
+	protected abstract void unpaired(Entry entry) throws IOException;
+
+	/**
+	 * @return the number of reads added
+	 */
+	long size() {
+		return size;
+	}
+
+	void add(byte[] record, int offset, int length, int nameLength, int templateIndex) throws IOException {
+		int entryLength = HEADER_LENGTH + length;
+		if (runLength + entryLength > run.length) {
+			if (runLength > 0 && runLength + entryLength > maxRunLength)
+				writeRun();
+			if (runLength + entryLength > run.length)
+				run = Arrays.copyOf(run, Math.max(runLength + entryLength, Math.min(2 * run.length, maxRunLength)));
+		}
+		if (runSize == keys.length)
+			keys = Arrays.copyOf(keys, 2 * keys.length);
+
+		int hash = MateCollationTable.hash(record, offset + 1, nameLength);
+		keys[runSize++] = ((long) hash << 32) | runLength;
+		putInt(hash, run, runLength);
+		putInt(length, run, runLength + 4);
+		putInt(nameLength, run, runLength + 8);
+		run[runLength + 12] = (byte) templateIndex;
+		System.arraycopy(record, offset, run, runLength + HEADER_LENGTH, length);
+		runLength += entryLength;
+		size++;
+	}
+
+	/**
+	 * Merge the runs and report all reads as pairs or unpaired reads. The run
+	 * files are deleted afterwards.
+	 */
+	void merge() throws IOException {
+		Arrays.sort(keys, 0, runSize);
+		PriorityQueue<Run> queue = new PriorityQueue<Run>(runFiles.size() + 1);
+		List<Run> runs = new ArrayList<Run>(runFiles.size() + 1);
+		try {
+			// the last run is merged straight from memory:
+			runs.add(new MemoryRun());
+			for (File file : runFiles)
+				runs.add(new FileRun(file));
+			log.debug(String.format("Merging %d spilled reads from %d runs.", size, runs.size()));
+
+			for (Run run : runs)
+				if (run.advance())
+					queue.add(run);
+
+			List<Entry> group = new ArrayList<Entry>();
+			while (!queue.isEmpty()) {
+				int hash = queue.peek().hash;
+				group.clear();
+				while (!queue.isEmpty() && queue.peek().hash == hash) {
+					Run run = queue.poll();
+					group.add(run.entry);
+					if (run.advance())
+						queue.add(run);
+				}
+				report(group);
+			}
+		} finally {
+			for (Run run : runs)
+				run.close();
+			for (File file : runFiles)
+				file.delete();
+			runFiles.clear();
+			runLength = 0;
+			runSize = 0;
+			size = 0;
+		}
+	}
+
+	/**
+	 * Pair up the reads with the same name hash, different names may share
+	 * the same hash.
+	 */
+	private void report(List<Entry> group) throws IOException {
+		for (int i = 0; i < group.size(); i++) {
+			Entry entry = group.get(i);
+			if (entry == null)
+				continue;
+
+			Entry mate = null;
+			for (int j = i + 1; j < group.size() && mate == null; j++) {
+				if (group.get(j) != null && entry.sameName(group.get(j))) {
+					mate = group.get(j);
+					group.set(j, null);
+				}
+			}
+
+			if (mate == null)
+				unpaired(entry);
+			else if (entry.templateIndex <= mate.templateIndex)
+				mates(entry, mate);
+			else
+				mates(mate, entry);
+		}
+	}
+
+	private void writeRun() throws IOException {
+		Arrays.sort(keys, 0, runSize);
+		File file = File.createTempFile(filePrefix, ".run");
+		file.deleteOnExit();
+		runFiles.add(file);
+
+		Deflater deflater = compressionLevel > 0 ? new Deflater(compressionLevel) : null;
+		OutputStream os = new BufferedOutputStream(new FileOutputStream(file), 64 * 1024);
+		if (deflater != null)
+			os = new DeflaterOutputStream(os, deflater, 64 * 1024);
+		try {
+			for (int i = 0; i < runSize; i++) {
+				int offset = (int) keys[i];
+				os.write(run, offset, HEADER_LENGTH + getInt(run, offset + 4));
+			}
+		} finally {
+			os.close();
+			if (deflater != null)
+				deflater.end();
+		}
+		log.debug(String.format("Spilled %d reads to %s", runSize, file.getName()));
+		runLength = 0;
+		runSize = 0;
+	}
+
+	private static abstract class Run implements Comparable<Run> {
+		int hash;
+		Entry entry;
+
+		/**
+		 * Read the next entry.
+		 *
+		 * @return false if the run has ended
+		 */
+		abstract boolean advance() throws IOException;
+
+		void close() throws IOException {
+		}
+
+		@Override
+		public int compareTo(Run o) {
+			return Integer.compare(hash, o.hash);
+		}
+	}
+
+	private class MemoryRun extends Run {
+		private int index = 0;
+
+		@Override
+		boolean advance() {
+			if (index == runSize)
+				return false;
+			int offset = (int) keys[index++];
+			entry = new Entry();
+			hash = getInt(run, offset);
+			entry.nameLength = getInt(run, offset + 8);
+			entry.templateIndex = run[offset + 12];
+			entry.record = Arrays.copyOfRange(run, offset + HEADER_LENGTH, offset + HEADER_LENGTH
+					+ getInt(run, offset + 4));
+			return true;
+		}
+	}
+
+	private class FileRun extends Run {
+		private DataInputStream is;
+		private Inflater inflater;
+		private byte[] header = new byte[HEADER_LENGTH];
+
+		FileRun(File file) throws IOException {
+			InputStream stream = new FileInputStream(file);
+			if (compressionLevel > 0) {
+				inflater = new Inflater();
+				stream = new InflaterInputStream(stream, inflater, 64 * 1024);
+			}
+			is = new DataInputStream(new BufferedInputStream(stream, 64 * 1024));
+		}
+
+		@Override
+		boolean advance() throws IOException {
+			int first = is.read();
+			if (first < 0)
+				return false;
+			header[0] = (byte) first;
+			is.readFully(header, 1, HEADER_LENGTH - 1);
+			entry = new Entry();
+			hash = getInt(header, 0);
+			entry.nameLength = getInt(header, 8);
+			entry.templateIndex = header[12];
+			entry.record = new byte[getInt(header, 4)];
+			is.readFully(entry.record);
+			return true;
+		}
+
+		@Override
+		void close() throws IOException {
+			is.close();
+			if (inflater != null)
+				inflater.end();
+		}
+	}
+
+	private static void putInt(int value, byte[] buf, int offset) {
+		buf[offset] = (byte) (value >>> 24);
+		buf[offset + 1] = (byte) (value >>> 16);
+		buf[offset + 2] = (byte) (value >>> 8);
+		buf[offset + 3] = (byte) value;
+	}
+
+	private static int getInt(byte[] buf, int offset) {
+		return ((buf[offset] & 0xFF) << 24) | ((buf[offset + 1] & 0xFF) << 16) | ((buf[offset + 2] & 0xFF) << 8)
+				| (buf[offset + 3] & 0xFF);
+	}
+}
@@ -37,9 +37,40 @@ import java.util.List;
 class ReadFeatureBuffer {
 	private ByteBuffer readFeatureBuffer = ByteBuffer.allocate(1024 * 1024);
 	private int readFeatureSize;
+	// reference bases minus read bases of the features read:
+	private int referenceLengthDelta;
+
+	/**
+	 * Make sure the buffer can take another feature with the given number of
+	 * variable length bytes, growing it if needed.
+	 */
+	private void ensureRemaining(int length) {
+		// operator, position, length and a base/score pair at most:
+		int needed = length + 11;
+		if (readFeatureBuffer.remaining() >= needed)
+			return;
+		int capacity = Math.max(readFeatureBuffer.capacity() * 2, readFeatureBuffer.position() + needed);
+		ByteBuffer newBuffer = ByteBuffer.allocate(capacity);
+		readFeatureBuffer.flip();
+		newBuffer.put(readFeatureBuffer);
+		readFeatureBuffer = newBuffer;
+	}
+
+	private int putBytes(byte[] data) {
+		ensureRemaining(data.length);
+		readFeatureBuffer.putInt(data.length);
+		readFeatureBuffer.put(data);
+		return data.length;
+	}
+
+	private int putLength(int length) {
+		readFeatureBuffer.putInt(length);
+		return length;
+	}
 
 	public final void readReadFeatures(AbstractReader reader) throws IOException {
 		readFeatureBuffer.clear();
+		referenceLengthDelta = 0;
 		readFeatureSize = reader.numberOfReadFeaturesCodec.readData();
 		int prevPos = 0;
 		for (int i = 0; i < readFeatureSize; i++) {
@@ -47,6 +78,7 @@ class ReadFeatureBuffer {
 			int pos = prevPos + reader.readFeaturePositionCodec.readData();
 			prevPos = pos;
 
+			ensureRemaining(0);
 			readFeatureBuffer.put(operator);
 			readFeatureBuffer.putInt(pos);
 
@@ -59,14 +91,10 @@ class ReadFeatureBuffer {
 				readFeatureBuffer.put(reader.baseSubstitutionCodec.readData());
 				break;
 			case Insertion.operator:
-				byte[] ins = reader.insertionCodec.readData();
-				readFeatureBuffer.putInt(ins.length);
-				readFeatureBuffer.put(ins);
+				referenceLengthDelta -= putBytes(reader.insertionCodec.readData());
 				break;
 			case SoftClip.operator:
-				byte[] softClip = reader.softClipCodec.readData();
-				readFeatureBuffer.putInt(softClip.length);
-				readFeatureBuffer.put(softClip);
+				referenceLengthDelta -= putBytes(reader.softClipCodec.readData());
 				break;
 			case HardClip.operator:
 				readFeatureBuffer.putInt(reader.hardClipCodec.readData());
@@ -75,22 +103,23 @@ class ReadFeatureBuffer {
 				readFeatureBuffer.putInt(reader.paddingCodec.readData());
 				break;
 			case Deletion.operator:
-				readFeatureBuffer.putInt(reader.deletionLengthCodec.readData());
+				referenceLengthDelta += putLength(reader.deletionLengthCodec.readData());
 				break;
 			case RefSkip.operator:
-				readFeatureBuffer.putInt(reader.refSkipCodec.readData());
+				referenceLengthDelta += putLength(reader.refSkipCodec.readData());
 				break;
 			case InsertBase.operator:
 				readFeatureBuffer.put(reader.baseCodec.readData());
+				referenceLengthDelta--;
 				break;
 			case BaseQualityScore.operator:
 				readFeatureBuffer.put(reader.qualityScoreCodec.readData());
 				break;
 			case Bases.operator:
-				readFeatureBuffer.put(reader.basesCodec.readData());
+				putBytes(reader.basesCodec.readData());
 				break;
 			case Scores.operator:
-				readFeatureBuffer.put(reader.scoresCodec.readData());
+				putBytes(reader.scoresCodec.readData());
 				break;
 			default:
 				throw new RuntimeException("Unknown read feature operator: " + operator);
@@ -99,6 +128,35 @@ class ReadFeatureBuffer {
 		readFeatureBuffer.flip();
 	}
 
+	/**
+	 * @return the number of reference bases covered by the read whose
+	 *         features were read last
+	 */
+	public final int getReferenceLength(int readLength) {
+		return readLength + referenceLengthDelta;
+	}
+
+	/**
+	 * Upper case one of ACGT or turn anything else into N, the same way bases
+	 * are normalized when restoring reads through CramCompressionRecord.
+	 */
+	static byte normalizeBase(byte base) {
+		return NORMALIZED_BASES[base & 0xFF];
+	}
+
+	private static final byte[] NORMALIZED_BASES = new byte[256];
+	static {
+		Arrays.fill(NORMALIZED_BASES, (byte) 'N');
+		for (byte base : "ACGT".getBytes()) {
+			NORMALIZED_BASES[base] = base;
+			NORMALIZED_BASES[Character.toLowerCase(base)] = base;
+		}
+	}
+
+	private static byte refBase(byte[] ref, int pos) {
+		return pos < ref.length ? ref[pos] : (byte) 'N';
+	}
+
 	public final void restoreReadBases(int readLength, int prevAlStart, byte[] ref,
 			SubstitutionMatrix substitutionMatrix, byte[] bases) {
 		readFeatureBuffer.rewind();
@@ -108,27 +166,25 @@ class ReadFeatureBuffer {
 
 		int posInSeq = 0;
 		if (!readFeatureBuffer.hasRemaining()) {
-			if (ref.length < alignmentStart + readLength) {
-				Arrays.fill(bases, 0, readLength, (byte) 'N');
-				System.arraycopy(ref, alignmentStart, bases, 0, Math.min(readLength, ref.length - alignmentStart));
-			} else
-				System.arraycopy(ref, alignmentStart, bases, 0, readLength);
-
+			int available = Math.max(0, Math.min(readLength, ref.length - alignmentStart));
+			if (available > 0)
+				System.arraycopy(ref, alignmentStart, bases, 0, available);
+			Arrays.fill(bases, available, readLength, (byte) 'N');
+			return;
 		}
 
 		for (int r = 0; r < readFeatureSize; r++) {
 			byte op = readFeatureBuffer.get();
 			int rfPos = readFeatureBuffer.getInt();
 
-			// TODO: bases mapped beyond the reference:
 			for (; posInRead < rfPos; posInRead++) {
-				bases[posInRead - 1] = ref[alignmentStart + posInSeq++];
+				bases[posInRead - 1] = refBase(ref, alignmentStart + posInSeq++);
 			}
 
 			int len = 0;
 			switch (op) {
 			case Substitution.operator:
-				byte refBase = ref[alignmentStart + posInSeq];
+				byte refBase = normalizeBase(refBase(ref, alignmentStart + posInSeq));
 				byte base = substitutionMatrix.base(refBase, readFeatureBuffer.get());
 				bases[posInRead - 1] = base;
 				posInRead++;
@@ -144,6 +200,16 @@ class ReadFeatureBuffer {
 				readFeatureBuffer.get(bases, posInRead - 1, len);
 				posInRead += len;
 				break;
+			case Bases.operator:
+				len = readFeatureBuffer.getInt();
+				readFeatureBuffer.get(bases, posInRead - 1, len);
+				posInRead += len;
+				posInSeq += len;
+				break;
+			case Scores.operator:
+				len = readFeatureBuffer.getInt();
+				readFeatureBuffer.position(readFeatureBuffer.position() + len);
+				break;
 			case HardClip.operator:
 				readFeatureBuffer.getInt();
 				break;
@@ -172,8 +238,8 @@ class ReadFeatureBuffer {
 				throw new RuntimeException("Unkown operator: " + op);
 			}
 		}
-		for (; posInRead <= readLength && alignmentStart + posInSeq < ref.length; posInRead++)
-			bases[posInRead - 1] = ref[alignmentStart + posInSeq++];
+		for (; posInRead <= readLength; posInRead++)
+			bases[posInRead - 1] = refBase(ref, alignmentStart + posInSeq++);
 
 	}
 
@@ -243,12 +309,24 @@ class ReadFeatureBuffer {
 				rfLen = readFeatureBuffer.getInt();
 				break;
 			case Substitution.operator:
+				co = CigarOperator.MATCH_OR_MISMATCH;
+				rfLen = 1;
+				readFeatureBuffer.get();
+				break;
 			case ReadBase.operator:
 				co = CigarOperator.MATCH_OR_MISMATCH;
 				rfLen = 1;
 				readFeatureBuffer.get();
 				readFeatureBuffer.get();
 				break;
+			case Bases.operator:
+				co = CigarOperator.MATCH_OR_MISMATCH;
+				rfLen = readFeatureBuffer.getInt();
+				readFeatureBuffer.position(readFeatureBuffer.position() + rfLen);
+				break;
+			case Scores.operator:
+				readFeatureBuffer.position(readFeatureBuffer.position() + readFeatureBuffer.getInt());
+				continue;
 			case BaseQualityScore.operator:
 				readFeatureBuffer.get();
 				continue;
@@ -293,10 +371,16 @@ class ReadFeatureBuffer {
 		return new Cigar(list);
 	}
 
-	public void restoreQualityScores(int readLength, int prevAlStart, byte[] scores) {
+	/**
+	 * Copy the quality scores carried by the read features into the array.
+	 * 
+	 * @return true if any of the features had a quality score
+	 */
+	public boolean restoreQualityScores(int readLength, int prevAlStart, byte[] scores) {
 		readFeatureBuffer.rewind();
 
 		int posInRead = 1;
+		boolean restored = false;
 
 		for (int r = 0; r < readFeatureSize; r++) {
 			byte op = readFeatureBuffer.get();
@@ -332,16 +416,28 @@ class ReadFeatureBuffer {
 			case InsertBase.operator:
 				readFeatureBuffer.get();
 				break;
+			case Bases.operator:
+				len = readFeatureBuffer.getInt();
+				readFeatureBuffer.position(readFeatureBuffer.position() + len);
+				break;
+			case Scores.operator:
+				len = readFeatureBuffer.getInt();
+				readFeatureBuffer.get(scores, posInRead - 1, len);
+				restored = true;
+				break;
 			case ReadBase.operator:
 				readFeatureBuffer.get();
 				scores[posInRead - 1] = readFeatureBuffer.get();
+				restored = true;
 				break;
 			case BaseQualityScore.operator:
 				scores[posInRead - 1] = readFeatureBuffer.get();
+				restored = true;
 				break;
 			default:
 				throw new RuntimeException("Unkown operator: " + op);
 			}
 		}
+		return restored;
 	}
 }
@@ -16,164 +16,345 @@
 package htsjdk.samtools.cram.encoding.reader;
 
 import htsjdk.samtools.Cigar;
+import htsjdk.samtools.GenomicIndexUtil;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMReadGroupRecord;
 import htsjdk.samtools.SAMRecord;
-import htsjdk.samtools.TextCigarCodec;
-import htsjdk.samtools.cram.structure.CramCompressionRecord;
-import htsjdk.samtools.cram.structure.ReadTag;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.cram.io.DefaultBitInputStream;
+import htsjdk.samtools.cram.structure.CompressionHeader;
+import htsjdk.samtools.cram.structure.EncodingKey;
+import htsjdk.samtools.cram.structure.Slice;
 import htsjdk.samtools.cram.structure.SubstitutionMatrix;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
-
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.sf.cram.ref.ReferenceRegion;
+import net.sf.cram.ref.ReferenceSource;
+
+/**
+ * Decodes CRAM slices straight into BAM records, without creating
+ * {@link htsjdk.samtools.cram.structure.CramCompressionRecord} or
+ * {@link SAMRecord} objects. The records are restored the same way as
+ * {@link htsjdk.samtools.cram.build.CramNormalizer} and
+ * {@link htsjdk.samtools.cram.build.Cram2SamRecordFactory} do: mate
+ * information and template size for mates in the same slice, generated names
+ * for reads without names, default quality scores and normalized bases.
+ * <p>
+ * Records from consecutive calls to {@link #readSlice(Slice, CompressionHeader)}
+ * are collected in one buffer, see {@link #getBuffer()} and {@link #size()}.
+ * Call {@link #clear()} to start over, for example for the next container.
+ */
 public class ReaderToBAM extends AbstractReader {
-	protected static int detachedCount = 0;
-	protected int recordCounter = 0;
-	protected CramCompressionRecord prevRecord;
+	/**
+	 * BAM flags kept in CRAM bit flags, mate flags are restored separately.
+	 */
+	private static final int CRAM_BAM_FLAGS = BamFlags.READ_PAIRED_FLAG | BamFlags.PROPER_PAIR_FLAG
+			| BamFlags.READ_UNMAPPED_FLAG | BamFlags.READ_STRAND_FLAG | BamFlags.FIRST_OF_PAIR_FLAG
+			| BamFlags.SECOND_OF_PAIR_FLAG | BamFlags.NOT_PRIMARY_ALIGNMENT_FLAG
+			| BamFlags.READ_FAILS_VENDOR_QUALITY_CHECK_FLAG | BamFlags.DUPLICATE_READ_FLAG
+			| BamFlags.SUPPLEMENTARY_FLAG;
+	private static final byte DEFAULT_QUALITY_SCORE = '?' - '!';
+	// fixed size part of a BAM record including the block size:
+	private static final int FIXED_RECORD_LENGTH = BAMRecordView.READ_NAME;
+	private static final int READ_GROUP_TAG_KEY = 'R' | 'G' << 8;
+
+	private final SAMFileHeader header;
+	private final ReferenceSource referenceSource;
+	private final byte[][] readGroups;
 
-	public int refId;
 	public SubstitutionMatrix substitutionMatrix;
-	public boolean AP_delta = true;
+	public int prevAlStart;
+	// added to the index of a record in the slice to name reads without names:
+	public long counterOffset = 0;
 
-	public byte[] buf = new byte[1024 * 1024 * 100];
-	public int[] index = new int[4 * 100000];
-	public int[] distances = new int[4 * 100000];
-	private int[] names = new int[4 * 100000];
-	private int[] next = new int[distances.length];
-	private int[] prev = new int[distances.length];
+	private static final Cigar NO_CIGAR = new Cigar();
 
+	private byte[] buf = new byte[1024 * 1024];
+	// the record being written and any record already in the buffer:
 	private BAMRecordView view = new BAMRecordView(buf);
+	private BAMRecordView recordView = new BAMRecordView(buf);
+
+	// records in the buffer and the first record of the current slice:
+	private int recordCounter = 0;
+	private int sliceStart = 0;
+	private int[] offsets = new int[1024];
+	private int[] next = new int[1024];
+	private int[] prev = new int[1024];
+	private int[] chainHead = new int[1024];
+
+	private SliceReference sliceReference = new SliceReference();
+	private int multiRefSeqId = SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX;
+	private byte[] multiRefBases;
 
 	private int flags;
 	private int compressionFlags;
 	private int readLength;
-	public int prevAlStart = 1;
 	private int readGroupID;
-	private byte mateFlags;
+	private int mateFlags;
+	private int mateSeqId;
+	private int mateAlStart;
+	private int templateSize;
+	private int mappingQuality;
+
+	private byte[] readName;
+	private byte[] generatedName = new byte[20];
+	private int tagDataLength;
+	private byte[] tagData = new byte[1024];
+	private byte[][] tagValues = new byte[16][];
+	private int[] tagOrder = new int[16];
+	private byte[] bases = new byte[1024];
+	private byte[] scores = new byte[1024];
 
-	private int tagDataLen;
-	private byte[] tagData = new byte[1024 * 1024];
+	private ReadFeatureBuffer rfBuf = new ReadFeatureBuffer();
+	private ByteSeriesReader baseReader;
+	private ByteSeriesReader qualityScoreReader;
+	// tag value readers for each entry of the tag id dictionary:
+	private DataReader<byte[]>[][] tagValueReaders;
+
+	public ReaderToBAM(SAMFileHeader header, ReferenceSource referenceSource) {
+		this.header = header;
+		this.referenceSource = referenceSource;
+		List<SAMReadGroupRecord> readGroupRecords = header.getReadGroups();
+		readGroups = new byte[readGroupRecords.size()][];
+		for (int i = 0; i < readGroups.length; i++)
+			readGroups[i] = readGroupRecords.get(i).getId().getBytes();
+		Arrays.fill(prev, -1);
+	}
 
-	public byte[] ref;
-	public static final int maxReadBufferLength = 1024 * 1024;
-	public byte[] bases = new byte[maxReadBufferLength];
-	public byte[] scores = new byte[maxReadBufferLength];
+	/**
+	 * Decode all records of the slice and append them to the buffer.
+	 * 
+	 * @param slice
+	 *            the slice to decode
+	 * @param compressionHeader
+	 *            the compression header of the container holding the slice
+	 * @throws IOException
+	 *             as per java IO contract
+	 */
+	public void readSlice(Slice slice, CompressionHeader compressionHeader) throws IOException {
+		if (slice.sequenceId >= 0)
+			sliceReference.reset(header.getSequence(slice.sequenceId), slice.alignmentStart, slice.alignmentStart
+					+ slice.alignmentSpan - 1);
+
+		Map<Integer, InputStream> inputMap = new HashMap<Integer, InputStream>();
+		for (Integer exId : slice.external.keySet())
+			inputMap.put(exId, new ByteArrayInputStream(slice.external.get(exId).getRawContent()));
+		new DataReaderFactory().buildReader(this,
+				new DefaultBitInputStream(new ByteArrayInputStream(slice.coreBlock.getRawContent())), inputMap,
+				compressionHeader, slice.sequenceId);
+		baseReader = new ByteSeriesReader(baseCodec, compressionHeader, EncodingKey.BA_Base, inputMap);
+		qualityScoreReader = new ByteSeriesReader(qualityScoreCodec, compressionHeader,
+				EncodingKey.QS_QualityScore, inputMap);
+		tagValueReaders = TagValueReaders.build(this);
+
+		substitutionMatrix = compressionHeader.substitutionMatrix;
+		prevAlStart = slice.alignmentStart;
+		counterOffset = slice.globalRecordCounter;
+		sliceStart = recordCounter;
+		for (int i = 0; i < slice.nofRecords; i++)
+			read();
+		fixMateInfo();
+	}
 
-	private ReadFeatureBuffer rfBuf = new ReadFeatureBuffer();
+	/**
+	 * Forget all records in the buffer.
+	 */
+	public void clear() {
+		Arrays.fill(prev, -1);
+		recordCounter = 0;
+		sliceStart = 0;
+		view.reset();
+	}
 
-	private byte[][] readGroups = null;
+	/**
+	 * @return the buffer holding the BAM records, valid until the next call
+	 *         to {@link #readSlice(Slice, CompressionHeader)}
+	 */
+	public byte[] getBuffer() {
+		return buf;
+	}
 
-	public void read() throws IOException {
-		index[recordCounter] = view.position();
+	/**
+	 * @return number of bytes of BAM records in the buffer
+	 */
+	public int size() {
+		return view.position();
+	}
+
+	/**
+	 * @return number of BAM records in the buffer
+	 */
+	public int getRecordCount() {
+		return recordCounter;
+	}
+
+	/**
+	 * @return position of the record in the buffer
+	 */
+	public int getRecordOffset(int record) {
+		return offsets[record];
+	}
+
+	public int getReferenceIndex(int record) {
+		recordView.position(offsets[record]);
+		return recordView.getRefID();
+	}
 
+	/**
+	 * @return 1-based alignment start of the record
+	 */
+	public int getAlignmentStart(int record) {
+		recordView.position(offsets[record]);
+		return recordView.getAlignmentStart() + 1;
+	}
+
+	/**
+	 * @return 1-based inclusive alignment end of the record or
+	 *         {@link SAMRecord#NO_ALIGNMENT_START} if the record is unmapped,
+	 *         same as {@link SAMRecord#getAlignmentEnd()}
+	 */
+	public int getAlignmentEnd(int record) {
+		recordView.position(offsets[record]);
+		if ((recordView.getFlags() & BamFlags.READ_UNMAPPED_FLAG) != 0)
+			return SAMRecord.NO_ALIGNMENT_START;
+		return recordView.calculateAlignmentEnd() + 1;
+	}
+
+	public int getFlags(int record) {
+		recordView.position(offsets[record]);
+		return recordView.getFlags();
+	}
+
+	public void read() throws IOException {
+		int record = recordCounter;
+		ensureRecordCapacity(record);
+		int seqId = refId;
+		readName = null;
 		try {
 			flags = bitFlagsCodec.readData();
 
 			compressionFlags = compressionBitFlagsCodec.readData();
-			if (refId == -2)
-				view.setRefID(refIdCodec.readData());
-			else
-				view.setRefID(refId);
+			if (refId == Slice.MULTI_REFERENCE)
+				seqId = refIdCodec.readData();
 
 			readLength = readLengthCodec.readData();
-			if (AP_delta)
+			if (APDelta)
 				prevAlStart += alignmentStartCodec.readData();
 			else
 				prevAlStart = alignmentStartCodec.readData();
 
-			view.setAlignmentStart(prevAlStart);
-
 			readGroupID = readGroupCodec.readData();
 
 			if (captureReadNames)
-				view.setReadName(readNameCodec.readData());
-
+				readName = readNameCodec.readData();
+
+			boolean paired = (flags & CramFlags.MULTI_FRAGMENT_FLAG) != 0;
+			mateFlags = 0;
+			mateSeqId = SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX;
+			mateAlStart = SAMRecord.NO_ALIGNMENT_START;
+			templateSize = 0;
+			next[record] = -1;
 			// mate record:
 			if ((compressionFlags & CramFlags.DETACHED_FLAG) != 0) {
 				mateFlags = mateBitFlagCodec.readData();
 				if (!captureReadNames)
-					view.setReadName(readNameCodec.readData());
-
-				view.setMateRefID(mateReferenceIdCodec.readData());
-				view.setMateAlStart(mateAlignmentStartCodec.readData());
-				view.setInsertSize(insertSizeCodec.readData());
-				detachedCount++;
-				distances[recordCounter] = 0;
-				next[recordCounter] = -1;
-				prev[recordCounter] = -1;
-				flags |= (mateFlags & CramFlags.MATE_NEG_STRAND_FLAG) != 0 ? BamFlags.MATE_STRAND_FLAG : 0;
-				flags |= (mateFlags & CramFlags.MATE_UNMAPPED_FLAG) != 0 ? BamFlags.MATE_UNMAPPED_FLAG : 0;
-			} else if ((compressionFlags & CramFlags.HAS_MATE_DOWNSTREAM_FLAG) != 0) {
-				mateFlags = 0;
-				distances[recordCounter] = distanceToNextFragmentCodec.readData();
-				next[recordCounter] = recordCounter + distances[recordCounter] + 1;
-				prev[next[recordCounter]] = recordCounter;
-				names[recordCounter + distances[recordCounter]] = recordCounter;
-			}
-			view.setFlags(flags);
+					readName = readNameCodec.readData();
 
-			if (!view.isReadNameSet()) {
-				if (names[recordCounter] == 0)
-					view.setReadName(String.valueOf(recordCounter).getBytes());
-				else
-					view.setReadName(String.valueOf(names[recordCounter]).getBytes());
+				mateSeqId = mateReferenceIdCodec.readData();
+				mateAlStart = mateAlignmentStartCodec.readData();
+				templateSize = insertSizeCodec.readData();
+				unlinkFromUpstream(record);
+			} else if ((compressionFlags & CramFlags.HAS_MATE_DOWNSTREAM_FLAG) != 0) {
+				int mate = record + distanceToNextFragmentCodec.readData() + 1;
+				if (paired) {
+					ensureRecordCapacity(mate);
+					next[record] = mate;
+					prev[mate] = record;
+				}
 			}
+			if (!paired)
+				unlinkFromUpstream(record);
+			chainHead[record] = prev[record] < 0 ? record : chainHead[prev[record]];
+
+			int nameLength;
+			if (readName == null) {
+				readName = generatedName;
+				nameLength = AbstractFastqReader.formatNumber(counterOffset + chainHead[record] - sliceStart + 1,
+						generatedName);
+			} else
+				nameLength = readName.length;
 
-			tagDataLen = 0;
-			if (readGroupID >= 0) {
-				tagData[tagDataLen++] = (byte) 'R';
-				tagData[tagDataLen++] = (byte) 'G';
-				tagData[tagDataLen++] = (byte) 'Z';
-
-				System.arraycopy(readGroups[readGroupID], 0, tagData, tagDataLen, readGroups[readGroupID].length);
-				tagDataLen += readGroups[readGroupID].length;
+			readTags();
 
-				tagData[tagDataLen++] = (byte) 0;
-			}
-			Integer tagIdList = tagIdListCodec.readData();
-			byte[][] ids = tagIdDictionary[tagIdList];
-			if (ids.length > 0) {
-				for (int i = 0; i < ids.length; i++) {
-					int id = ReadTag.name3BytesToInt(ids[i]);
-					DataReader<byte[]> dataReader = tagValueCodecs.get(id);
-					byte[] data = dataReader.readData();
-
-					tagData[tagDataLen++] = (byte) ((id >> 16) & 0xFF);
-					tagData[tagDataLen++] = (byte) ((id >> 8) & 0xFF);
-					tagData[tagDataLen++] = (byte) (id & 0xFF);
-					System.arraycopy(data, 0, tagData, tagDataLen, data.length);
-					tagDataLen += data.length;
+			boolean mapped = (flags & CramFlags.SEGMENT_UNMAPPED_FLAG) == 0;
+			boolean unknownBases = (compressionFlags & CramFlags.UNKNOWN_BASES) != 0;
+			boolean preserveScores = (compressionFlags & CramFlags.FORCE_PRESERVE_QS_FLAG) != 0;
+			ensureReadCapacity(readLength);
+			boolean scoresRestored = false;
+			Cigar cigar = null;
+			if (mapped) {
+				rfBuf.readReadFeatures(this);
+				cigar = rfBuf.getCigar(readLength);
+				if (!unknownBases)
+					restoreBases(seqId, prevAlStart + cigar.getReferenceLength() - 1);
+
+				mappingQuality = mappingScoreCodec.readData();
+				if (!preserveScores) {
+					Arrays.fill(scores, 0, readLength, DEFAULT_QUALITY_SCORE);
+					scoresRestored = rfBuf.restoreQualityScores(readLength, prevAlStart, scores);
 				}
+			} else {
+				mappingQuality = SAMRecord.NO_MAPPING_QUALITY;
+				if (!unknownBases)
+					baseReader.readInto(bases, 0, readLength);
 			}
-
-			if ((flags & CramFlags.SEGMENT_UNMAPPED_FLAG) == 0) {
-				rfBuf.readReadFeatures(this);
-				rfBuf.restoreReadBases(readLength, prevAlStart, ref, substitutionMatrix, bases);
-
-				// mapping quality:
-				view.setMappingScore(mappingScoreCodec.readData());
-				if ((compressionFlags & CramFlags.FORCE_PRESERVE_QS_FLAG) != 0)
-					for (int i=0; i<readLength; i++)
-					scores[i]=qualityScoreCodec.readData();
+			if (preserveScores && (mapped || !unknownBases))
+				scoresRestored = readQualityScores();
+
+			int alignmentStart = prevAlStart;
+			if (seqId == SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX)
+				alignmentStart = SAMRecord.NO_ALIGNMENT_START;
+
+			int bamFlags = flags & CRAM_BAM_FLAGS;
+			if (paired) {
+				if ((mateFlags & CramFlags.MATE_NEG_STRAND_FLAG) != 0)
+					bamFlags |= BamFlags.MATE_STRAND_FLAG;
+				if ((mateFlags & CramFlags.MATE_UNMAPPED_FLAG) != 0)
+					bamFlags |= BamFlags.MATE_UNMAPPED_FLAG;
 			} else {
-				view.setMappingScore(SAMRecord.NO_MAPPING_QUALITY);
-				for (int i = 0; i < readLength; i++)
-					bases[i] = baseCodec.readData();
-
-				if ((compressionFlags & CramFlags.FORCE_PRESERVE_QS_FLAG) != 0)
-					for (int i=0; i<readLength; i++)
-						scores[i]=qualityScoreCodec.readData();
+				mateSeqId = SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX;
+				mateAlStart = SAMRecord.NO_ALIGNMENT_START;
 			}
 
-			if ((flags & CramFlags.SEGMENT_UNMAPPED_FLAG) != 0) {
-				Cigar noCigar = TextCigarCodec.decode(SAMRecord.NO_ALIGNMENT_CIGAR);
-				view.setCigar(noCigar);
-			} else
-				view.setCigar(rfBuf.getCigar(readLength));
-
-			view.setBases(bases, 0, readLength);
-			view.setQualityScores(scores, 0, readLength);
-
-			view.setTagData(tagData, 0, tagDataLen);
-
+			int readLengthInBAM = unknownBases ? 0 : readLength;
+			int cigarLength = cigar == null ? 0 : cigar.numCigarElements();
+			int start = view.position();
+			ensureBufferCapacity(start + FIXED_RECORD_LENGTH + nameLength + 1 + 4 * cigarLength
+					+ (readLengthInBAM + 1) / 2 + readLengthInBAM + tagDataLength);
+
+			view.setRefID(seqId);
+			view.setAlignmentStart(alignmentStart);
+			view.setReadName(readName, 0, nameLength);
+			view.setMappingScore(mappingQuality);
+			view.setIndexBin(seqId < 0 ? 0 : computeIndexingBin(alignmentStart, cigar));
+			view.setCigar(cigar == null ? NO_CIGAR : cigar);
+			view.setFlags(bamFlags);
+			view.setMateRefID(mateSeqId);
+			view.setMateAlStart(mateAlStart);
+			view.setInsertSize(templateSize);
+			view.setBases(bases, 0, readLengthInBAM);
+			view.setQualityScores(scores, 0, scoresRestored ? readLengthInBAM : 0);
+			view.setTagData(tagData, 0, tagDataLength);
+			view.finish();
+
+			offsets[record] = start;
 			recordCounter++;
 		} catch (Exception e) {
 			System.err.printf("Failed at record %d, read len=%d\n.", recordCounter, readLength);
@@ -181,213 +362,245 @@ public class ReaderToBAM extends AbstractReader {
 		}
 	}
 
-	private int getFlagsForRecord(int record) {
-		view.start = index[record];
-		return view.getFlags();
-	}
+	/**
+	 * Read tags into the tag buffer in BAM format. The read group is added
+	 * unless there is an explicit RG tag. Tags are written in the order
+	 * {@link SAMRecord} keeps them, so the output is the same as when
+	 * converting through SAMRecord.
+	 */
+	private void readTags() throws IOException {
+		tagDataLength = 0;
+		int tagIdList = tagIdListCodec.readData();
+		byte[][] ids = tagIdDictionary[tagIdList];
+		DataReader<byte[]>[] readers = tagValueReaders[tagIdList];
+		if (ids.length > tagValues.length) {
+			tagValues = new byte[ids.length][];
+			tagOrder = new int[ids.length];
+		}
 
-	private void setFlagsForRecord(int record, int flags) {
-		view.start = index[record];
-		view.setFlags(flags);
-	}
+		boolean hasReadGroupTag = false;
+		for (int i = 0; i < ids.length; i++) {
+			tagValues[i] = readers[i].readData();
+			hasReadGroupTag |= tagKey(ids[i]) == READ_GROUP_TAG_KEY;
 
-	private int getAlignmentStartForRecord(int record) {
-		view.start = index[record];
-		return view.getAlignmentStart();
-	}
+			int j = i;
+			for (; j > 0 && tagKey(ids[tagOrder[j - 1]]) > tagKey(ids[i]); j--)
+				tagOrder[j] = tagOrder[j - 1];
+			tagOrder[j] = i;
+		}
 
-	/**
-	 * @param record
-	 * @return inclusive 0-based coordinate of the last base alignment
-	 */
-	private int getAlignmentEndForRecord(int record) {
-		view.start = index[record];
-		return view.calculateAlignmentEnd();
+		boolean addReadGroup = readGroupID >= 0 && !hasReadGroupTag;
+		for (int j = 0; j < ids.length; j++) {
+			byte[] id = ids[tagOrder[j]];
+			if (addReadGroup && tagKey(id) > READ_GROUP_TAG_KEY) {
+				writeReadGroupTag();
+				addReadGroup = false;
+			}
+			byte[] data = tagValues[tagOrder[j]];
+			ensureTagCapacity(3 + data.length);
+			tagData[tagDataLength++] = id[0];
+			tagData[tagDataLength++] = id[1];
+			tagData[tagDataLength++] = id[2];
+			System.arraycopy(data, 0, tagData, tagDataLength, data.length);
+			tagDataLength += data.length;
+		}
+		if (addReadGroup)
+			writeReadGroupTag();
 	}
 
-	private int getRefIDForRecord(int record) {
-		view.start = index[record];
-		return view.getRefID();
+	private void writeReadGroupTag() {
+		byte[] readGroup = readGroups[readGroupID];
+		ensureTagCapacity(4 + readGroup.length);
+		tagData[tagDataLength++] = (byte) 'R';
+		tagData[tagDataLength++] = (byte) 'G';
+		tagData[tagDataLength++] = (byte) 'Z';
+		System.arraycopy(readGroup, 0, tagData, tagDataLength, readGroup.length);
+		tagDataLength += readGroup.length;
+		tagData[tagDataLength++] = 0;
 	}
 
-	private void setInsertSizeForRecord(int record, int insertSize) {
-		view.start = index[record];
-		view.setInsertSize(insertSize);
+	/**
+	 * @return the binary tag key as in {@link htsjdk.samtools.SAMTagUtil}
+	 */
+	private static int tagKey(byte[] id) {
+		return (id[0] & 0xFF) | (id[1] & 0xFF) << 8;
 	}
 
-	private void setMateRefIDForRecord(int record, int refId) {
-		view.start = index[record];
-		view.setMateRefID(refId);
+	private void restoreBases(int seqId, int alignmentEnd) throws IOException {
+		byte[] refBases;
+		int refAlStart;
+		if (seqId == refId) {
+			ReferenceRegion region = sliceReference.getRegion(referenceSource, alignmentEnd);
+			refBases = region.array;
+			refAlStart = prevAlStart - (int) region.alignmentStart + 1;
+		} else {
+			refBases = getReferenceBases(seqId);
+			refAlStart = prevAlStart;
+		}
+		rfBuf.restoreReadBases(readLength, refAlStart, refBases, substitutionMatrix, bases);
+		for (int i = 0; i < readLength; i++)
+			bases[i] = ReadFeatureBuffer.normalizeBase(bases[i]);
 	}
 
-	private void setMateAlignmentStartForRecord(int record, int astart) {
-		view.start = index[record];
-		view.setMateAlStart(astart);
+	/**
+	 * Read preserved quality scores, replacing missing ones with the default.
+	 * 
+	 * @return false if all scores are missing
+	 */
+	private boolean readQualityScores() throws IOException {
+		qualityScoreReader.readInto(scores, 0, readLength);
+		int missing = 0;
+		for (int i = 0; i < readLength; i++) {
+			if (scores[i] == -1) {
+				scores[i] = DEFAULT_QUALITY_SCORE;
+				missing++;
+			}
+		}
+		return missing < readLength;
 	}
 
-	private boolean recordHasMoreMates(int record) {
-		return next[record] > 0;
+	/**
+	 * Whole reference sequences for reads in multi-reference slices.
+	 */
+	private byte[] getReferenceBases(int seqId) {
+		if (seqId != multiRefSeqId) {
+			SAMSequenceRecord sequence = header.getSequence(seqId);
+			multiRefBases = referenceSource.getReferenceBases(sequence, true);
+			if (multiRefBases == null)
+				throw new RuntimeException("Reference sequence required but not found: "
+						+ sequence.getSequenceName() + ", md5=" + sequence.getMd5());
+			multiRefSeqId = seqId;
+		}
+		return multiRefBases;
 	}
 
-	private int nextRecord(int record) {
-		if (next[record] > 0)
-			return next[record];
-
-		return -1;
+	/**
+	 * Same as {@link SAMRecord#computeIndexingBin()}. Like BAMRecordCodec the
+	 * caller writes bin 0 for records without a reference.
+	 */
+	private static int computeIndexingBin(int alignmentStart, Cigar cigar) {
+		int start = alignmentStart - 1;
+		int end = cigar == null ? 0 : alignmentStart + cigar.getReferenceLength() - 1;
+		if (end <= 0)
+			end = start + 1;
+		return GenomicIndexUtil.regionToBin(start, end);
 	}
 
-	private boolean isFirstInPairBitOnForRecord(int record) {
-		return (getFlagsForRecord(record) & CramFlags.FIRST_SEGMENT_FLAG) != 0;
+	/**
+	 * Detached and unpaired reads do not belong to a mate chain even if a
+	 * record upstream points at them.
+	 */
+	private void unlinkFromUpstream(int record) {
+		if (prev[record] >= 0) {
+			next[prev[record]] = -1;
+			prev[record] = -1;
+		}
 	}
 
-	public void fixMateInfo() {
-		int fixes = 0;
-		for (int record = 0; record < recordCounter; record++) {
-			if (prev[record] >= 0)
-				// skip non-first reads
+	/**
+	 * Restore mate information and template size of the reads in the current
+	 * slice whose mates are in the slice too.
+	 */
+	private void fixMateInfo() {
+		for (int record = sliceStart; record < recordCounter; record++) {
+			if (prev[record] >= 0 || !hasNextMate(record))
 				continue;
 
-			if (recordHasMoreMates(record)) {
-				int id1 = record;
-				int id2 = record;
-				int refid = getRefIDForRecord(record);
-				do {
-					id1 = id2;
-					id2 = nextRecord(id1);
-
-					int flags1 = getFlagsForRecord(id1);
-					int flags2 = getFlagsForRecord(id2);
-
-					if (refid != getRefIDForRecord(id2))
-						refid = SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX;
-
-					if ((flags2 & BamFlags.READ_UNMAPPED_FLAG) != 0) {
-						flags1 |= BamFlags.MATE_UNMAPPED_FLAG;
-						refid = SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX;
-					}
-					if ((flags1 & BamFlags.READ_UNMAPPED_FLAG) != 0) {
-						flags2 |= BamFlags.MATE_UNMAPPED_FLAG;
-						refid = SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX;
-					}
-
-					if ((flags2 & BamFlags.READ_STRAND_FLAG) != 0)
-						flags1 |= BamFlags.MATE_STRAND_FLAG;
-					if ((flags1 & BamFlags.READ_STRAND_FLAG) != 0)
-						flags2 |= BamFlags.MATE_STRAND_FLAG;
-
-					setFlagsForRecord(id1, flags1);
-					setFlagsForRecord(id2, flags2);
-
-					setMateRefIDForRecord(id1, getRefIDForRecord(id2));
-					setMateAlignmentStartForRecord(id1, 1 + getAlignmentStartForRecord(id2));
-					fixes++;
-				} while (recordHasMoreMates(id2));
-
-				id1 = record;
-				int flags1 = getFlagsForRecord(id1);
-				int flags2 = getFlagsForRecord(id2);
-
-				if (refid != getRefIDForRecord(id1))
-					refid = SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX;
-
-				if ((flags2 & BamFlags.READ_UNMAPPED_FLAG) != 0) {
-					flags1 |= BamFlags.MATE_UNMAPPED_FLAG;
-					refid = SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX;
-				}
-				if ((flags1 & BamFlags.READ_UNMAPPED_FLAG) != 0) {
-					flags2 |= BamFlags.MATE_UNMAPPED_FLAG;
-					refid = SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX;
-				}
-
-				if ((flags2 & BamFlags.READ_STRAND_FLAG) != 0)
-					flags1 |= BamFlags.MATE_STRAND_FLAG;
-				if ((flags1 & BamFlags.READ_STRAND_FLAG) != 0)
-					flags2 |= BamFlags.MATE_STRAND_FLAG;
-
-				setFlagsForRecord(id1, flags1);
-				setFlagsForRecord(id2, flags2);
-
-				setMateRefIDForRecord(id2, getRefIDForRecord(record));
-				setMateAlignmentStartForRecord(id2, 1 + getAlignmentStartForRecord(record));
-				fixes++;
-
-				if (refid == SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX) {
-					id1 = record;
-					id2 = record;
-					do {
-						id1 = id2;
-						id2 = nextRecord(id1);
-
-						setInsertSizeForRecord(id1, 0);
-						setInsertSizeForRecord(id2, 0);
-
-						fixes++;
-					} while (recordHasMoreMates(id2));
-				} else
-					calculateTemplateSize(record);
+			int last = record;
+			while (hasNextMate(last)) {
+				setNextMate(last, next[last]);
+				last = next[last];
 			}
+			setNextMate(last, record);
+
+			int templateLength = computeInsertSize(record, last);
+			setInsertSizeForRecord(record, templateLength);
+			setInsertSizeForRecord(last, -templateLength);
 		}
 	}
 
-	private int calculateTemplateSize(int record) {
-		int aleft = getAlignmentStartForRecord(record);
-		int aright = getAlignmentEndForRecord(record);
+	private boolean hasNextMate(int record) {
+		return next[record] >= 0 && next[record] < recordCounter;
+	}
 
-		int id1 = record, id2 = record;
-		int tlen = 0;
-		int ref = getRefIDForRecord(id1);
-		// System.out.println("Calculating template size for record " + record);
+	private void setNextMate(int record, int mate) {
+		recordView.position(offsets[mate]);
+		int mateFlags = recordView.getFlags();
+		int mateRefId = recordView.getRefID();
+		int mateStart = recordView.getAlignmentStart() + 1;
+
+		recordView.position(offsets[record]);
+		int flags = recordView.getFlags() & ~(BamFlags.MATE_UNMAPPED_FLAG | BamFlags.MATE_STRAND_FLAG);
+		if ((mateFlags & BamFlags.READ_UNMAPPED_FLAG) != 0)
+			flags |= BamFlags.MATE_UNMAPPED_FLAG;
+		if ((mateFlags & BamFlags.READ_STRAND_FLAG) != 0)
+			flags |= BamFlags.MATE_STRAND_FLAG;
+		recordView.setFlags(flags);
+		recordView.setMateRefID(mateRefId);
+		recordView.setMateAlStart(mateRefId == SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX ? SAMRecord.NO_ALIGNMENT_START
+				: mateStart);
+	}
+
+	/**
+	 * Same as
+	 * {@link htsjdk.samtools.cram.build.CramNormalizer#computeInsertSize(htsjdk.samtools.cram.structure.CramCompressionRecord, htsjdk.samtools.cram.structure.CramCompressionRecord)}
+	 * for records in the buffer.
+	 */
+	private int computeInsertSize(int firstEnd, int secondEnd) {
+		int firstFlags = getFlags(firstEnd);
+		int secondFlags = getFlags(secondEnd);
+		if (((firstFlags | secondFlags) & BamFlags.READ_UNMAPPED_FLAG) != 0)
+			return 0;
+		if (getReferenceIndex(firstEnd) != getReferenceIndex(secondEnd))
+			return 0;
+
+		int firstEnd5PrimePosition = (firstFlags & BamFlags.READ_STRAND_FLAG) != 0 ? getAlignmentEnd(firstEnd)
+				: getAlignmentStart(firstEnd);
+		int secondEnd5PrimePosition = (secondFlags & BamFlags.READ_STRAND_FLAG) != 0 ? getAlignmentEnd(secondEnd)
+				: getAlignmentStart(secondEnd);
+
+		int adjustment = (secondEnd5PrimePosition >= firstEnd5PrimePosition) ? +1 : -1;
+		return secondEnd5PrimePosition - firstEnd5PrimePosition + adjustment;
+	}
 
-		while (recordHasMoreMates(id2)) {
-			id2 = nextRecord(id2);
-			// System.out.println("\tnext=" + id2);
-			if (aleft > getAlignmentStartForRecord(id2))
-				aleft = getAlignmentStartForRecord(id2);
+	private void setInsertSizeForRecord(int record, int insertSize) {
+		recordView.position(offsets[record]);
+		recordView.setInsertSize(insertSize);
+	}
 
-			if (aright < getAlignmentEndForRecord(id2))
-				aright = getAlignmentEndForRecord(id2);
+	/**
+	 * Make room for the record and for a mate pointed at by an earlier
+	 * record.
+	 */
+	private void ensureRecordCapacity(int record) {
+		if (record < offsets.length)
+			return;
+		int capacity = Math.max(offsets.length * 2, record + 1);
+		int oldCapacity = prev.length;
+		offsets = Arrays.copyOf(offsets, capacity);
+		next = Arrays.copyOf(next, capacity);
+		chainHead = Arrays.copyOf(chainHead, capacity);
+		prev = Arrays.copyOf(prev, capacity);
+		Arrays.fill(prev, oldCapacity, capacity, -1);
+	}
 
-			if (ref != getRefIDForRecord(id2))
-				ref = -1;
-		}
+	private void ensureBufferCapacity(int capacity) {
+		if (capacity <= buf.length)
+			return;
+		buf = Arrays.copyOf(buf, Math.max(buf.length * 2, capacity));
+		view.buf = buf;
+		recordView.buf = buf;
+	}
 
-		if (ref == -1) {
-			tlen = 0;
-			id1 = id2 = record;
-			setInsertSizeForRecord(id1, tlen);
+	private void ensureTagCapacity(int length) {
+		if (tagDataLength + length > tagData.length)
+			tagData = Arrays.copyOf(tagData, Math.max(tagData.length * 2, tagDataLength + length));
+	}
 
-			while (recordHasMoreMates(id1)) {
-				id1 = nextRecord(id1);
-				setInsertSizeForRecord(id1, tlen);
-			}
-		} else {
-			tlen = aright - aleft + 1;
-			id1 = id2 = record;
-
-			if (getAlignmentStartForRecord(id2) == aleft) {
-				if (getAlignmentEndForRecord(id2) != aright)
-					setInsertSizeForRecord(id2, tlen);
-				else if (isFirstInPairBitOnForRecord(id2))
-					setInsertSizeForRecord(id2, tlen);
-				else
-					setInsertSizeForRecord(id2, -tlen);
-			} else
-				setInsertSizeForRecord(id2, -tlen);
-
-			while (recordHasMoreMates(id2)) {
-				id2 = nextRecord(id2);
-				if (getAlignmentStartForRecord(id2) == aleft) {
-					if (getAlignmentEndForRecord(id2) != aright)
-						setInsertSizeForRecord(id2, tlen);
-					else if (isFirstInPairBitOnForRecord(id2))
-						setInsertSizeForRecord(id2, tlen);
-					else
-						setInsertSizeForRecord(id2, -tlen);
-				} else
-					setInsertSizeForRecord(id2, -tlen);
-			}
+	private void ensureReadCapacity(int length) {
+		if (length > bases.length) {
+			bases = new byte[Math.max(bases.length * 2, length)];
+			scores = new byte[bases.length];
 		}
-
-		return tlen;
 	}
 }
@@ -39,7 +39,7 @@ public class ReaderToFastq extends AbstractFastqReader {
 		ByteBuffer buf = bufs[indexInTemplate];
 
 		buf.put((byte) '@');
-		buf.put(readName);
+		buf.put(readName, 0, readNameLength);
 		if (appendSegmentIndexToReadNames && indexInTemplate > 0) {
 			buf.put((byte) '/');
 			byte segmentIndex = (byte) (48 + indexInTemplate);
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2012 - 2018 EMBL - European Bioinformatics Institute
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package htsjdk.samtools.cram.encoding.reader;
+
+import htsjdk.samtools.SAMSequenceRecord;
+
+import java.io.IOException;
+
+import net.sf.cram.ref.ReferenceRegion;
+import net.sf.cram.ref.ReferenceSource;
+
+/**
+ * The part of a reference sequence spanned by a slice, loaded when first
+ * asked for. Slice spans written by htsjdk ignore reference skips, so a read
+ * may end past the slice: the region is extended up to the end of the read in
+ * that case.
+ */
+class SliceReference {
+	private SAMSequenceRecord sequence;
+	// one-based start and end of the region requested for the slice:
+	private int start;
+	private int end;
+	private ReferenceRegion region;
+
+	/**
+	 * Forget the region of the previous slice.
+	 */
+	void reset(SAMSequenceRecord sequence, int start, int end) {
+		this.sequence = sequence;
+		this.start = start;
+		this.end = end;
+		region = null;
+	}
+
+	/**
+	 * @param alignmentEnd
+	 *            one-based end of the read the bases are needed for
+	 * @return the region covering the slice and the read
+	 */
+	ReferenceRegion getRegion(ReferenceSource referenceSource, int alignmentEnd) throws IOException {
+		if (region == null || alignmentEnd > end) {
+			end = Math.max(end, alignmentEnd);
+			region = referenceSource.getRegion(sequence, start, Math.min(end, sequence.getSequenceLength()));
+			if (region == null)
+				throw new RuntimeException("Reference sequence required but not found: "
+						+ sequence.getSequenceName() + ", md5=" + sequence.getMd5());
+		}
+		return region;
+	}
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright 2012 - 2018 EMBL - European Bioinformatics Institute
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package htsjdk.samtools.cram.encoding.reader;
+
+import htsjdk.samtools.cram.structure.ReadTag;
+
+/**
+ * Tag value readers looked up once per slice instead of once per tag of each
+ * record.
+ */
+class TagValueReaders {
+
+	private TagValueReaders() {
+	}
+
+	/**
+	 * @param reader
+	 *            a reader already built for the slice by
+	 *            {@link DataReaderFactory}
+	 * @return the tag value readers for each entry of the tag id dictionary, in
+	 *         the order of the tag ids
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	static DataReader<byte[]>[][] build(AbstractReader reader) {
+		DataReader<byte[]>[][] readers = new DataReader[reader.tagIdDictionary.length][];
+		for (int i = 0; i < readers.length; i++) {
+			byte[][] ids = reader.tagIdDictionary[i];
+			readers[i] = new DataReader[ids.length];
+			for (int j = 0; j < ids.length; j++)
+				readers[i][j] = reader.tagValueCodecs.get(ReadTag.name3BytesToInt(ids[j]));
+		}
+		return readers;
+	}
+}
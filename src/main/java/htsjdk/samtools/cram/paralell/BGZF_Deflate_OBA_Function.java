@@ -0,0 +1,113 @@
+/*
+ * Copyright 2012 - 2018 EMBL - European Bioinformatics Institute
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package htsjdk.samtools.cram.paralell;
+
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
+
+import java.util.function.Function;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses uncompressed data into BGZF blocks of
+ * {@link BlockCompressedStreamConstants#DEFAULT_UNCOMPRESSED_BLOCK_SIZE} bytes
+ * each, the same way {@link htsjdk.samtools.util.BlockCompressedOutputStream}
+ * does, so that the concatenated output of consecutive stripes is identical
+ * to a single stream. Not thread safe: each job should have its own instance.
+ */
+class BGZF_Deflate_OBA_Function implements Function<OrderedByteArray, OrderedByteArray> {
+	private static final int MAX_DEFLATED_SIZE = BlockCompressedStreamConstants.MAX_COMPRESSED_BLOCK_SIZE
+			- BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH;
+	private Deflater deflater;
+	private Deflater noCompressionDeflater = new Deflater(Deflater.NO_COMPRESSION, true);
+	private CRC32 crc32 = new CRC32();
+	private byte[] buf = new byte[BlockCompressedStreamConstants.MAX_COMPRESSED_BLOCK_SIZE];
+	private ByteArrayPool pool;
+
+	BGZF_Deflate_OBA_Function(int compressionLevel, ByteArrayPool pool) {
+		deflater = new Deflater(compressionLevel, true);
+		this.pool = pool;
+	}
+
+	@Override
+	public OrderedByteArray apply(OrderedByteArray object) {
+		int blockSize = BlockCompressedStreamConstants.DEFAULT_UNCOMPRESSED_BLOCK_SIZE;
+		int nofBlocks = (object.length + blockSize - 1) / blockSize;
+		OrderedByteArray result = pool.allocate(object.order, nofBlocks
+				* BlockCompressedStreamConstants.MAX_COMPRESSED_BLOCK_SIZE);
+		int end = object.offset + object.length;
+		for (int pos = object.offset; pos < end; pos += blockSize)
+			result.length += deflateBlock(object.bytes, pos, Math.min(blockSize, end - pos), result.bytes,
+					result.length);
+
+		object.release();
+		return result;
+	}
+
+	/**
+	 * Write one BGZF block holding the given uncompressed data.
+	 *
+	 * @return the size of the block written
+	 */
+	private int deflateBlock(byte[] data, int offset, int length, byte[] out, int outOffset) {
+		deflater.reset();
+		deflater.setInput(data, offset, length);
+		deflater.finish();
+		int deflatedSize = deflater.deflate(buf, 0, MAX_DEFLATED_SIZE);
+		if (!deflater.finished()) {
+			noCompressionDeflater.reset();
+			noCompressionDeflater.setInput(data, offset, length);
+			noCompressionDeflater.finish();
+			deflatedSize = noCompressionDeflater.deflate(buf, 0, MAX_DEFLATED_SIZE);
+			if (!noCompressionDeflater.finished())
+				throw new IllegalStateException("Uncompressed data does not fit into a BGZF block");
+		}
+
+		crc32.reset();
+		crc32.update(data, offset, length);
+
+		int blockSize = BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH + deflatedSize
+				+ BlockCompressedStreamConstants.BLOCK_FOOTER_LENGTH;
+		int pos = outOffset;
+		out[pos++] = BlockCompressedStreamConstants.GZIP_ID1;
+		out[pos++] = (byte) BlockCompressedStreamConstants.GZIP_ID2;
+		out[pos++] = BlockCompressedStreamConstants.GZIP_CM_DEFLATE;
+		out[pos++] = BlockCompressedStreamConstants.GZIP_FLG;
+		pos = packInt(0, out, pos);
+		out[pos++] = BlockCompressedStreamConstants.GZIP_XFL;
+		out[pos++] = (byte) BlockCompressedStreamConstants.GZIP_OS_UNKNOWN;
+		pos = packShort(BlockCompressedStreamConstants.GZIP_XLEN, out, pos);
+		out[pos++] = BlockCompressedStreamConstants.BGZF_ID1;
+		out[pos++] = BlockCompressedStreamConstants.BGZF_ID2;
+		pos = packShort(BlockCompressedStreamConstants.BGZF_LEN, out, pos);
+		pos = packShort(blockSize - 1, out, pos);
+		System.arraycopy(buf, 0, out, pos, deflatedSize);
+		pos += deflatedSize;
+		pos = packInt((int) crc32.getValue(), out, pos);
+		pos = packInt(length, out, pos);
+		return blockSize;
+	}
+
+	private static int packShort(int value, byte[] out, int pos) {
+		out[pos++] = (byte) value;
+		out[pos++] = (byte) (value >> 8);
+		return pos;
+	}
+
+	private static int packInt(int value, byte[] out, int pos) {
+		out[pos++] = (byte) value;
+		out[pos++] = (byte) (value >> 8);
+		out[pos++] = (byte) (value >> 16);
+		out[pos++] = (byte) (value >> 24);
+		return pos;
+	}
+}
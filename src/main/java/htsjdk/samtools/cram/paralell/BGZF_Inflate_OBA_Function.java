@@ -0,0 +1,88 @@
+/*
+ * Copyright 2012 - 2018 EMBL - European Bioinformatics Institute
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package htsjdk.samtools.cram.paralell;
+
+import htsjdk.samtools.SAMFormatException;
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
+
+import java.util.function.Function;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Inflates a run of whole BGZF blocks into a single array of uncompressed
+ * bytes. The output size is known upfront from the ISIZE field of each block
+ * footer, so the data is inflated straight into its final place. Not thread
+ * safe: each job should have its own instance.
+ */
+class BGZF_Inflate_OBA_Function implements Function<OrderedByteArray, OrderedByteArray> {
+	private Inflater inflater = new Inflater(true);
+	private ByteArrayPool pool;
+
+	BGZF_Inflate_OBA_Function(ByteArrayPool pool) {
+		this.pool = pool;
+	}
+
+	@Override
+	public OrderedByteArray apply(OrderedByteArray object) {
+		OrderedByteArray result = pool.allocate(object.order, uncompressedSize(object.bytes, object.offset,
+				object.length));
+		result.length = inflate(object.bytes, object.offset, object.length, result.bytes);
+		object.release();
+		return result;
+	}
+
+	byte[] inflate(byte[] blocks, int offset, int length) {
+		byte[] data = new byte[uncompressedSize(blocks, offset, length)];
+		inflate(blocks, offset, length, data);
+		return data;
+	}
+
+	private static int uncompressedSize(byte[] blocks, int offset, int length) {
+		int uncompressedSize = 0;
+		for (int pos = offset; pos < offset + length; pos += blockSize(blocks, pos))
+			uncompressedSize += BGZF_OBA_Supplier.unpackInt(blocks, pos + blockSize(blocks, pos) - 4);
+		return uncompressedSize;
+	}
+
+	/**
+	 * Inflate the blocks into the data array, which must be large enough.
+	 *
+	 * @return number of uncompressed bytes
+	 */
+	private int inflate(byte[] blocks, int offset, int length, byte[] data) {
+		int dataPos = 0;
+		for (int pos = offset; pos < offset + length; pos += blockSize(blocks, pos)) {
+			int blockSize = blockSize(blocks, pos);
+			int deflatedSize = blockSize - BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH
+					- BlockCompressedStreamConstants.BLOCK_FOOTER_LENGTH;
+			int inflatedSize = BGZF_OBA_Supplier.unpackInt(blocks, pos + blockSize - 4);
+
+			inflater.reset();
+			inflater.setInput(blocks, pos + BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH, deflatedSize);
+			try {
+				int len = inflater.inflate(data, dataPos, inflatedSize);
+				if (len != inflatedSize)
+					throw new SAMFormatException("Did not inflate expected amount of BGZF data: " + len + " vs "
+							+ inflatedSize);
+			} catch (DataFormatException e) {
+				throw new SAMFormatException("Corrupt BGZF block: " + e.getMessage());
+			}
+			dataPos += inflatedSize;
+		}
+		return dataPos;
+	}
+
+	private static int blockSize(byte[] blocks, int pos) {
+		return BGZF_OBA_Supplier.unpackShort(blocks, pos + BlockCompressedStreamConstants.BLOCK_LENGTH_OFFSET) + 1;
+	}
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2012 - 2018 EMBL - European Bioinformatics Institute
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package htsjdk.samtools.cram.paralell;
+
+import htsjdk.samtools.SAMFormatException;
+import htsjdk.samtools.cram.io.InputStreamUtils;
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
+import htsjdk.samtools.util.Log;
+import htsjdk.samtools.util.RuntimeIOException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.function.Supplier;
+
+/**
+ * Splits a BGZF stream at block boundaries without uncompressing it. Each
+ * {@link OrderedByteArray} returned holds a run of whole compressed blocks,
+ * which can then be inflated independently by {@link BGZF_Inflate_OBA_Function}.
+ * The get() method is synchronized so that several inflating jobs can share
+ * one supplier and still receive consecutive orders.
+ */
+class BGZF_OBA_Supplier implements Supplier<OrderedByteArray> {
+	private static final Log log = Log.getInstance(BGZF_OBA_Supplier.class);
+	private InputStream is;
+	private int blocksPerStripe;
+	private long order = 0;
+	private ByteArrayPool pool;
+
+	public BGZF_OBA_Supplier(InputStream is, int blocksPerStripe, ByteArrayPool pool) {
+		this.is = is;
+		this.blocksPerStripe = blocksPerStripe;
+		this.pool = pool;
+	}
+
+	@Override
+	public synchronized OrderedByteArray get() {
+		OrderedByteArray stripe = pool.allocate(order, blocksPerStripe
+				* BlockCompressedStreamConstants.MAX_COMPRESSED_BLOCK_SIZE);
+		try {
+			for (int i = 0; i < blocksPerStripe; i++) {
+				int blockSize = readBlock(is, stripe.bytes, stripe.length);
+				if (blockSize < 0)
+					break;
+				stripe.length += blockSize;
+			}
+		} catch (IOException e) {
+			throw new RuntimeIOException(e);
+		}
+		if (stripe.length == 0) {
+			stripe.release();
+			return null;
+		}
+
+		order++;
+		log.debug(String.format("compressed stripe: order=%d, bytes=%d", stripe.order, stripe.length));
+		return stripe;
+	}
+
+	/**
+	 * Read the next whole BGZF block from the stream.
+	 *
+	 * @return a new array holding the block or null if the stream has ended
+	 * @throws IOException
+	 *             as per java IO contract
+	 */
+	synchronized byte[] nextBlock() throws IOException {
+		byte[] buf = new byte[BlockCompressedStreamConstants.MAX_COMPRESSED_BLOCK_SIZE];
+		int blockSize = readBlock(is, buf, 0);
+		if (blockSize < 0)
+			return null;
+		return Arrays.copyOf(buf, blockSize);
+	}
+
+	/**
+	 * Read one BGZF block into the buffer at the given offset. The buffer must
+	 * have at least {@link BlockCompressedStreamConstants#MAX_COMPRESSED_BLOCK_SIZE}
+	 * bytes available from the offset.
+	 *
+	 * @return the size of the block in bytes or -1 if the stream has ended
+	 *         cleanly before the block
+	 * @throws IOException
+	 *             as per java IO contract
+	 */
+	static int readBlock(InputStream is, byte[] buf, int offset) throws IOException {
+		int headerLength = BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH;
+		int read = 0;
+		while (read < headerLength) {
+			int len = is.read(buf, offset + read, headerLength - read);
+			if (len < 0) {
+				if (read == 0)
+					return -1;
+				throw new SAMFormatException("Incomplete BGZF block header");
+			}
+			read += len;
+		}
+
+		if (buf[offset] != BlockCompressedStreamConstants.GZIP_ID1
+				|| (buf[offset + 1] & 0xFF) != BlockCompressedStreamConstants.GZIP_ID2
+				|| buf[offset + 12] != BlockCompressedStreamConstants.BGZF_ID1
+				|| buf[offset + 13] != BlockCompressedStreamConstants.BGZF_ID2)
+			throw new SAMFormatException("Invalid BGZF block header");
+
+		int blockSize = unpackShort(buf, offset + BlockCompressedStreamConstants.BLOCK_LENGTH_OFFSET) + 1;
+		if (blockSize < headerLength + BlockCompressedStreamConstants.BLOCK_FOOTER_LENGTH)
+			throw new SAMFormatException("Invalid BGZF block size: " + blockSize);
+
+		InputStreamUtils.readFully(is, buf, offset + headerLength, blockSize - headerLength);
+		return blockSize;
+	}
+
+	static int unpackShort(byte[] buf, int offset) {
+		return (buf[offset] & 0xFF) | ((buf[offset + 1] & 0xFF) << 8);
+	}
+
+	static int unpackInt(byte[] buf, int offset) {
+		return (buf[offset] & 0xFF) | ((buf[offset + 1] & 0xFF) << 8) | ((buf[offset + 2] & 0xFF) << 16)
+				| ((buf[offset + 3] & 0xFF) << 24);
+	}
+}
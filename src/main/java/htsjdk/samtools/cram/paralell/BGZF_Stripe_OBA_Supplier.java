@@ -0,0 +1,83 @@
+/*
+ * Copyright 2012 - 2018 EMBL - European Bioinformatics Institute
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package htsjdk.samtools.cram.paralell;
+
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
+
+import java.util.function.Supplier;
+
+/**
+ * Re-cuts ordered chunks of uncompressed data into stripes of whole BGZF
+ * blocks worth of data, so that blocks fill up across chunk boundaries. Only
+ * the very last stripe may end with a partial block. The get() method is
+ * synchronized so that several deflating jobs can share one supplier and
+ * still receive consecutive orders.
+ */
+class BGZF_Stripe_OBA_Supplier implements Supplier<OrderedByteArray> {
+	private Conveyer<OrderedByteArray> chunks;
+	private int stripeSize;
+	private OrderedByteArray chunk;
+	private int chunkPos;
+	private long order = 0;
+	private ByteArrayPool pool;
+	private BaiOBAIndexer indexer;
+	// position of the current chunk in the uncompressed data:
+	private long chunkStart = 0;
+
+	public BGZF_Stripe_OBA_Supplier(Conveyer<OrderedByteArray> chunks, int blocksPerStripe, ByteArrayPool pool) {
+		this.chunks = chunks;
+		this.pool = pool;
+		stripeSize = blocksPerStripe * BlockCompressedStreamConstants.DEFAULT_UNCOMPRESSED_BLOCK_SIZE;
+	}
+
+	/**
+	 * Pass the index data of each chunk to the indexer, in stream order.
+	 */
+	void setIndexer(BaiOBAIndexer indexer) {
+		this.indexer = indexer;
+	}
+
+	@Override
+	public synchronized OrderedByteArray get() {
+		OrderedByteArray stripe = pool.allocate(order, stripeSize);
+		try {
+			while (stripe.length < stripeSize) {
+				if (chunk == null || chunkPos == chunk.length) {
+					if (chunk != null) {
+						chunkStart += chunk.length;
+						chunk.release();
+					}
+					chunk = chunks.tryAdvance();
+					if (chunk == null)
+						break;
+					if (indexer != null && chunk.baiRecords != null)
+						indexer.addRecords(chunk.baiRecords, chunkStart);
+					chunkPos = 0;
+					continue;
+				}
+				int len = Math.min(stripeSize - stripe.length, chunk.length - chunkPos);
+				System.arraycopy(chunk.bytes, chunk.offset + chunkPos, stripe.bytes, stripe.length, len);
+				chunkPos += len;
+				stripe.length += len;
+			}
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+		if (stripe.length == 0) {
+			stripe.release();
+			return null;
+		}
+
+		order++;
+		return stripe;
+	}
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2012 - 2018 EMBL - European Bioinformatics Institute
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package htsjdk.samtools.cram.paralell;
+
+import htsjdk.samtools.BAMFileSpan;
+import htsjdk.samtools.BAMIndexer;
+import htsjdk.samtools.Chunk;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileSource;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * Builds a BAI index while BGZF blocks are written. Record positions in the
+ * uncompressed data come in order from {@link BGZF_Stripe_OBA_Supplier}, the
+ * BGZF blocks come in order from the writer. A record is indexed once the
+ * blocks holding it have been written, which is when its virtual file
+ * pointers are known.
+ */
+class BaiOBAIndexer implements OBAIndexer {
+	private final SAMFileHeader header;
+	private final BAMIndexer indexer;
+	// {uncompressed start, file offset} of written blocks still needed:
+	private final ArrayDeque<long[]> blocks = new ArrayDeque<long[]>();
+	private final ArrayDeque<PendingRecords> pending = new ArrayDeque<PendingRecords>();
+	private long writtenBytes = 0;
+	private long endOffset = -1;
+
+	BaiOBAIndexer(OutputStream os, SAMFileHeader header) {
+		this.header = header;
+		indexer = new BAMIndexer(os, header);
+	}
+
+	/**
+	 * Add records to be indexed.
+	 * 
+	 * @param records
+	 *            the records of a chunk
+	 * @param base
+	 *            position of the chunk in the uncompressed data
+	 */
+	synchronized void addRecords(BaiRecords records, long base) {
+		pending.add(new PendingRecords(records, base));
+		resolve();
+	}
+
+	@Override
+	public synchronized void index(OrderedByteArray oba, long offset) {
+		int pos = oba.offset;
+		int end = oba.offset + oba.length;
+		while (pos < end) {
+			int blockSize = BGZF_OBA_Supplier.unpackShort(oba.bytes, pos
+					+ BlockCompressedStreamConstants.BLOCK_LENGTH_OFFSET) + 1;
+			int uncompressedSize = BGZF_OBA_Supplier.unpackInt(oba.bytes, pos + blockSize - 4);
+			blocks.add(new long[] { writtenBytes, offset + pos - oba.offset });
+			writtenBytes += uncompressedSize;
+			pos += blockSize;
+		}
+		resolve();
+	}
+
+	@Override
+	public synchronized void finish(long offset) throws IOException {
+		endOffset = offset;
+		resolve();
+		if (!pending.isEmpty())
+			throw new IllegalStateException("Records not written: " + pending.size() + " chunks.");
+		indexer.finish();
+	}
+
+	/**
+	 * Index all records whose blocks are known.
+	 */
+	private void resolve() {
+		while (!pending.isEmpty()) {
+			PendingRecords chunk = pending.peek();
+			BaiRecords records = chunk.records;
+			while (chunk.next < records.size) {
+				int i = chunk.next;
+				long start = chunk.base + records.offsets[i];
+				long end = chunk.base + records.offsets[i + 1];
+				// the end pointer points into the next block, unless the data
+				// has ended:
+				if (end >= writtenBytes && endOffset < 0)
+					return;
+
+				Chunk span = new Chunk(virtualOffset(start), virtualOffset(end));
+				indexer.processAlignment(new IndexingRecord(header, records.referenceIndexes[i],
+						records.alignmentStarts[i], records.alignmentEnds[i], records.flags[i], span));
+				chunk.next++;
+				pruneBlocks(end);
+			}
+			pending.poll();
+		}
+	}
+
+	private long virtualOffset(long position) {
+		if (position == writtenBytes && endOffset >= 0)
+			return makeFilePointer(endOffset, 0);
+
+		long[] found = null;
+		for (Iterator<long[]> iterator = blocks.iterator(); iterator.hasNext();) {
+			long[] block = iterator.next();
+			if (block[0] > position)
+				break;
+			found = block;
+		}
+		if (found == null)
+			throw new IllegalStateException("No block for position " + position);
+		return makeFilePointer(found[1], (int) (position - found[0]));
+	}
+
+	/**
+	 * Same as BlockCompressedFilePointerUtil.makeFilePointer(), which is not
+	 * public.
+	 */
+	private static long makeFilePointer(long blockAddress, int blockOffset) {
+		return blockAddress << 16 | blockOffset;
+	}
+
+	private void pruneBlocks(long position) {
+		while (blocks.size() > 1) {
+			Iterator<long[]> iterator = blocks.iterator();
+			iterator.next();
+			if (iterator.next()[0] > position)
+				break;
+			blocks.poll();
+		}
+	}
+
+	private static class PendingRecords {
+		final BaiRecords records;
+		final long base;
+		int next = 0;
+
+		PendingRecords(BaiRecords records, long base) {
+			this.records = records;
+			this.base = base;
+		}
+	}
+
+	/**
+	 * Just enough of a record for {@link BAMIndexer}.
+	 */
+	private static class IndexingRecord extends SAMRecord {
+		private static final long serialVersionUID = 1L;
+		private final int alignmentEnd;
+
+		IndexingRecord(SAMFileHeader header, int referenceIndex, int alignmentStart, int alignmentEnd, int flags,
+				Chunk chunk) {
+			super(header);
+			setReferenceIndex(referenceIndex);
+			setAlignmentStart(alignmentStart);
+			setFlags(flags);
+			this.alignmentEnd = alignmentEnd;
+			setFileSource(new SAMFileSource(null, new BAMFileSpan(chunk)));
+		}
+
+		@Override
+		public int getAlignmentEnd() {
+			return alignmentEnd;
+		}
+	}
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2012 - 2018 EMBL - European Bioinformatics Institute
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package htsjdk.samtools.cram.paralell;
+
+import htsjdk.samtools.SAMRecord;
+
+import java.util.Arrays;
+
+/**
+ * The fields of BAM records needed for a BAI index, along with the position
+ * of each record in the uncompressed BAM data of a chunk. Record i occupies
+ * bytes from offsets[i] to offsets[i + 1].
+ */
+class BaiRecords {
+	int size = 0;
+	int[] referenceIndexes = new int[1024];
+	int[] alignmentStarts = new int[1024];
+	int[] alignmentEnds = new int[1024];
+	int[] flags = new int[1024];
+	int[] offsets = new int[1025];
+
+	/**
+	 * Add a record about to be encoded.
+	 * 
+	 * @param record
+	 *            the record
+	 * @param offset
+	 *            position of the record in the uncompressed data
+	 */
+	void add(SAMRecord record, int offset) {
+		add(record.getReferenceIndex(), record.getAlignmentStart(), record.getAlignmentEnd(), record.getFlags(),
+				offset);
+	}
+
+	/**
+	 * Add a record by its fields, see {@link SAMRecord} for their meaning.
+	 */
+	void add(int referenceIndex, int alignmentStart, int alignmentEnd, int flags, int offset) {
+		if (size == referenceIndexes.length) {
+			int capacity = size * 2;
+			referenceIndexes = Arrays.copyOf(referenceIndexes, capacity);
+			alignmentStarts = Arrays.copyOf(alignmentStarts, capacity);
+			alignmentEnds = Arrays.copyOf(alignmentEnds, capacity);
+			this.flags = Arrays.copyOf(this.flags, capacity);
+			offsets = Arrays.copyOf(offsets, capacity + 1);
+		}
+		referenceIndexes[size] = referenceIndex;
+		alignmentStarts[size] = alignmentStart;
+		alignmentEnds[size] = alignmentEnd;
+		this.flags[size] = flags;
+		offsets[size] = offset;
+		size++;
+	}
+
+	/**
+	 * Set the end of the last record.
+	 * 
+	 * @param offset
+	 *            position after the last record in the uncompressed data
+	 */
+	void finish(int offset) {
+		offsets[size] = offset;
+	}
+}
@@ -12,35 +12,36 @@
 package htsjdk.samtools.cram.paralell;
 
 import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFormatException;
 import htsjdk.samtools.ValidationStringency;
+import htsjdk.samtools.cram.ContainerSizePolicy;
 import htsjdk.samtools.cram.CramLossyOptions;
 import htsjdk.samtools.cram.build.CramIO;
 import htsjdk.samtools.cram.common.CramVersions;
+import htsjdk.samtools.cram.io.CountingInputStream;
 import htsjdk.samtools.cram.structure.CramHeader;
 import htsjdk.samtools.util.BinaryCodec;
-import htsjdk.samtools.util.BlockCompressedInputStream;
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
 import htsjdk.samtools.util.Log;
 import htsjdk.samtools.util.Log.LogLevel;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
 import java.lang.Thread.UncaughtExceptionHandler;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.ThreadPoolExecutor.CallerRunsPolicy;
 import java.util.concurrent.TimeUnit;
 
 import net.sf.cram.Bam2Cram;
 import net.sf.cram.CramTools;
+import net.sf.cram.ref.PackedReferenceStore;
 import net.sf.cram.ref.ReferenceSource;
 
 import com.beust.jcommander.JCommander;
@@ -50,6 +51,7 @@ import com.beust.jcommander.converters.FileConverter;
 
 public class BamToCram {
 	static Log log = Log.getInstance(BamToCram.class);
+	private static final int BGZF_BLOCKS_PER_STRIPE = 64;
 
 	private static void printUsage(JCommander jc) {
 		StringBuilder sb = new StringBuilder();
@@ -83,6 +85,13 @@ public class BamToCram {
 		if (params.referenceFasta == null)
 			log.warn("No reference file specified, remote access over internet may be used to download public sequences. ");
 		ReferenceSource referenceSource = new ReferenceSource(params.referenceFasta);
+		if (params.refCacheMB > 0)
+			referenceSource.setMaxCacheBytes(params.refCacheMB * 1024L * 1024L);
+		if (params.referenceImage != null)
+			referenceSource.setPackedStore(PackedReferenceStore.openOrCreate(params.referenceImage,
+					params.referenceFasta));
+		CramLossyOptions lossyOptions = createLossyOptions(params);
+		log.info("Lossiness: " + lossyOptions);
 
 		Thread.setDefaultUncaughtExceptionHandler(new UncaughtExceptionHandler() {
 
@@ -94,89 +103,147 @@ public class BamToCram {
 			}
 		});
 		Log.setGlobalLogLevel(LogLevel.INFO);
-		InputStream bamInputStream = new BufferedInputStream(params.bamFile == null ? System.in : new FileInputStream(
-				params.bamFile));
+		CountingInputStream bamInputStream = new CountingInputStream(new BufferedInputStream(
+				params.bamFile == null ? System.in : new FileInputStream(params.bamFile)));
 		OutputStream cramOutputStream = params.outputCramFile == null ? System.out : new FileOutputStream(
 				params.outputCramFile);
 
-		if (params.threads == 0) {
-			params.threads = Math.max(5, Runtime.getRuntime().availableProcessors());
-		} else if (params.threads < 5) {
-			System.err.println("Too few threads: minimum 4 threads required. ");
-			System.exit(1);
-		}
+		if (params.threads < 1)
+			params.threads = Runtime.getRuntime().availableProcessors();
 
-		final int threadsInThePool = params.threads - 1;
-		final int bgzfUncompressionThreads = 1;
-		final int cramWritingThreads = 1;
-		final int bamSlicingThreads = 1;
-		final int conversionThreads = threadsInThePool - bgzfUncompressionThreads - cramWritingThreads
-				- bamSlicingThreads;
+		// jobs are not threads: with the work stealing executor any idle
+		// thread helps whichever stage has work:
+		final int bgzfInflatingThreads = params.inflateThreads > 0 ? params.inflateThreads : Math.max(1,
+				params.threads / 4);
+		final int conversionThreads = params.threads;
 		final int queuesCapacity = conversionThreads * 2;
 
-		log.info(String.format("thread pool size=%d, converion threads=%d, queues capacity=%d", threadsInThePool,
-				conversionThreads, queuesCapacity));
-		log.info("Creating thread pool with size " + threadsInThePool);
-		ThreadPoolExecutor executor = new ThreadPoolExecutor(threadsInThePool, threadsInThePool, 60L,
-				TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(threadsInThePool * 2), new CallerRunsPolicy());
-
-		int bufSize = 1024 * 1024;
-		PipedOutputStream uncompressedBamOutputStream = new PipedOutputStream();
-		PipedInputStream uncompressedBamInputStream = new PipedInputStream(uncompressedBamOutputStream, bufSize);
-
-		StreamPump BGZF_uncompressionPump = new StreamPump(new BlockCompressedInputStream(bamInputStream),
-				uncompressedBamOutputStream);
-		BGZF_uncompressionPump.setName("BGZF_UNC_PUMP");
-		executor.execute(BGZF_uncompressionPump);
+		log.info(String.format("threads=%d, executor=%s, converion jobs=%d, inflating jobs=%d, queues capacity=%d",
+				params.threads, params.executor, conversionThreads, bgzfInflatingThreads, queuesCapacity));
+		JobExecutor executor = JobExecutor.create(params.executor, params.threads);
+
+		ByteArrayPool pool = new ByteArrayPool(Runtime.getRuntime().maxMemory() / 4);
+		BGZF_OBA_Supplier bgzfSupplier = new BGZF_OBA_Supplier(bamInputStream, BGZF_BLOCKS_PER_STRIPE, pool);
+
+		// read the BAM header in this thread, the rest of the last header
+		// block is passed on to the slicer:
+		byte[] head = new byte[BlockCompressedStreamConstants.DEFAULT_UNCOMPRESSED_BLOCK_SIZE];
+		int headSize = 0;
+		int headerLength;
+		BGZF_Inflate_OBA_Function headerInflater = new BGZF_Inflate_OBA_Function(pool);
+		while ((headerLength = SAMFileHeader_Utils.headerLength(head, headSize)) < 0) {
+			byte[] block = bgzfSupplier.nextBlock();
+			if (block == null)
+				throw new SAMFormatException("Unexpected end of BAM file while reading header");
+			byte[] data = headerInflater.inflate(block, 0, block.length);
+			if (head.length < headSize + data.length)
+				head = Arrays.copyOf(head, Math.max(head.length * 2, headSize + data.length));
+			System.arraycopy(data, 0, head, headSize, data.length);
+			headSize += data.length;
+		}
+		head = Arrays.copyOf(head, headSize);
 
-		SAMFileHeader samFileHeader = SAMFileHeader_Utils.readHeader(new BinaryCodec(uncompressedBamInputStream),
-				ValidationStringency.SILENT, null);
+		SAMFileHeader samFileHeader = SAMFileHeader_Utils.readHeader(new BinaryCodec(new ByteArrayInputStream(head,
+				0, headerLength)), ValidationStringency.SILENT, null);
 		CramHeader cramHeader = new CramHeader(CramVersions.CRAM_v3, new File(args[0]).getName(), samFileHeader);
-		CramIO.writeCramHeader(cramHeader, cramOutputStream);
+		// the header size is needed for the index:
+		ByteArrayOutputStream headerOS = new ByteArrayOutputStream();
+		CramIO.writeCramHeader(cramHeader, headerOS);
+		headerOS.writeTo(cramOutputStream);
+
+		final long reorderBufferBytes = params.reorderBufferMB * 1024L * 1024L;
+		OrderingConveyer<OrderedByteArray> inflated_OBA_conveyer = OrderingConveyer.createBounded(
+				params.reorderWindow > 0 ? params.reorderWindow : bgzfInflatingThreads * 4, reorderBufferBytes);
+		List<Job> inflatingJobs = new ArrayList<Job>();
+		for (int i = 0; i < bgzfInflatingThreads; i++) {
+			BGZF_Inflate_OBA_Function inflateFunction = new BGZF_Inflate_OBA_Function(pool);
+			Job job = new SupplierJob<OrderedByteArray>(inflated_OBA_conveyer, () -> {
+				OrderedByteArray blocks = bgzfSupplier.get();
+				return blocks == null ? null : inflateFunction.apply(blocks);
+			});
+			job.setName("BGZF_INFLATER_" + i);
+			inflatingJobs.add(job);
+		}
 
 		Conveyer<OrderedByteArray> bam_OBA_conveyer = Conveyer.createWithQueueCapacity(queuesCapacity);
+		ContainerSizePolicy sizePolicy = ContainerSizePolicy.defaults().setMaxRecords(params.containerRecords)
+				.setMaxBytes(params.containerMB * 1024L * 1024L).setMaxBases(params.containerBases)
+				.setTargetNanos(params.containerTargetMillis * 1000000L);
+		log.info("Container size policy: " + sizePolicy);
+		Bam_OBA_Supplier bamSlicer = new Bam_OBA_Supplier(inflated_OBA_conveyer, head, headerLength, pool,
+				sizePolicy);
 		SupplierJob<OrderedByteArray> bam_OBA_supplier = new SupplierJob<OrderedByteArray>(bam_OBA_conveyer,
-				new Bam_OBA_Supplier(new BufferedInputStream(uncompressedBamInputStream)));
+				bamSlicer);
 		bam_OBA_supplier.setName("BAM_SLICER_SUPPLIER");
+		bam_OBA_supplier.dependsOn(inflated_OBA_conveyer);
 
-		Conveyer<OrderedByteArray> cram_OBA_conveyer = new OrderingConveyer<OrderedByteArray>();
+		OrderingConveyer<OrderedByteArray> cram_OBA_conveyer = OrderingConveyer.createBounded(
+				params.reorderWindow > 0 ? params.reorderWindow : conversionThreads * 2, reorderBufferBytes);
 
 		List<Job> converterJobs = new ArrayList<Job>();
-		CramLossyOptions lossyOptions = CramLossyOptions.lossless();
 		for (int i = 0; i < conversionThreads; i++) {
 			BamToCram_OBA_Function convertFunction = new BamToCram_OBA_Function(cramHeader, referenceSource,
-					lossyOptions);
-			convertFunction.setCaptureTags(params.captureTags);
-			convertFunction.setIgnoreTags(params.ignoreTags);
+					lossyOptions, pool, sizePolicy);
+			convertFunction.setIndexing(params.indexFile != null);
 			Job job = new TransformerJob<OrderedByteArray, OrderedByteArray>(bam_OBA_conveyer, cram_OBA_conveyer,
 					convertFunction);
 			job.setName("BC_CONVERTER_" + i);
 			converterJobs.add(job);
 		}
 
-		executor.execute(bam_OBA_supplier);
-		for (Job job : converterJobs) {
-			executor.execute(job);
-		}
-
+		OBAIndexer indexer = null;
+		if (params.indexFile != null)
+			indexer = new CraiOBAIndexer(new FileOutputStream(params.indexFile));
+		OBAWriteConsumer cram_OBA_writeConsumer = new OBAWriteConsumer(cramOutputStream, headerOS.size(), indexer);
 		ConsumerJob<OrderedByteArray> cram_OBA_writeJob = new ConsumerJob<OrderedByteArray>(cram_OBA_conveyer,
-				new OBAWriteConsumer(cramOutputStream));
+				cram_OBA_writeConsumer);
 		cram_OBA_writeJob.setName("CRAM_BYTE_WRITE_JOB");
-		executor.execute(cram_OBA_writeJob);
-
-		long time = System.currentTimeMillis();
-		while (!cram_OBA_writeJob.isDone()) {
-			Thread.sleep(100);
-			if (System.currentTimeMillis() - time > 1000) {
-				log.info(String.format("BAM_OBA %s; CRAM_OBA %s", bam_OBA_conveyer.toString(),
-						cram_OBA_conveyer.toString()));
-				time = System.currentTimeMillis();
-			}
+
+		List<Job> jobs = new ArrayList<Job>(inflatingJobs);
+		jobs.add(bam_OBA_supplier);
+		jobs.addAll(converterJobs);
+		jobs.add(cram_OBA_writeJob);
+
+		Metrics metrics = null;
+		if (params.metricsFile != null) {
+			metrics = new Metrics("BamToCram", Metrics.open(params.metricsFile));
+			metrics.counter("records", bamSlicer::getRecordCount);
+			metrics.counter("bytes_in", bamInputStream::getCount);
+			metrics.counter("bytes_out", cram_OBA_writeConsumer::getBytesWritten);
+			metrics.counter("pooled_bytes", pool::getPooledBytes);
+			metrics.jobs(jobs);
+			metrics.conveyer("INFLATED_OBA", inflated_OBA_conveyer);
+			metrics.conveyer("BAM_OBA", bam_OBA_conveyer);
+			metrics.conveyer("CRAM_OBA", cram_OBA_conveyer);
+		}
+
+		executor.execute(jobs);
+
+		while (!cram_OBA_writeJob.awaitDone(params.metricsIntervalMillis, TimeUnit.MILLISECONDS)) {
+			log.info(String.format("INFLATED_OBA %s; BAM_OBA %s; CRAM_OBA %s; pool %s",
+					inflated_OBA_conveyer.toString(), bam_OBA_conveyer.toString(), cram_OBA_conveyer.toString(),
+					pool.toString()));
+			if (metrics != null)
+				metrics.report();
 		}
+		if (metrics != null)
+			metrics.report();
 
 		executor.shutdown();
 		CramIO.issueEOF(cramHeader.getVersion(), cramOutputStream);
 		cramOutputStream.close();
+		cram_OBA_writeConsumer.finishIndex();
+	}
+
+	/**
+	 * Lossy options as in {@link Bam2Cram}: the same arguments give the same
+	 * records.
+	 */
+	static CramLossyOptions createLossyOptions(Params params) {
+		return new CramLossyOptions().setCaptureAllTags(params.captureAllTags).setCaptureTags(params.captureTags)
+				.setIgnoreTags(params.ignoreTags)
+				.setPreserveReadNames(params.preserveReadNames || !params.dropReadNames)
+				.setPreservation(CramLossyOptions.qualityScorePreservation(params.losslessQS, params.qsSpec));
 	}
 
 	@Parameters(commandDescription = "BAM to CRAM multithreaded converter. ")
@@ -190,12 +257,30 @@ public class BamToCram {
 		@Parameter(names = { "--reference-fasta-file", "-R" }, converter = FileConverter.class, description = "The reference fasta file, uncompressed and indexed (.fai file, use 'samtools faidx'). ")
 		File referenceFasta;
 
+		@Parameter(names = { "--reference-image" }, converter = FileConverter.class, description = "A packed reference image to memory map and share between processes, created from the reference fasta file if it does not exist.")
+		File referenceImage;
+
 		@Parameter(names = { "--output-cram-file", "-O" }, converter = FileConverter.class, description = "The path for the output CRAM file. Omit if standard output (pipe).")
 		File outputCramFile = null;
 
+		@Parameter(names = { "--index-file" }, converter = FileConverter.class, description = "Write a CRAM index (crai) to this file while converting.")
+		File indexFile = null;
+
 		@Parameter(names = { "-h", "--help" }, description = "Print help and quit")
 		boolean help = false;
 
+		@Parameter(names = { "--preserve-read-names", "-n" }, description = "Preserve all read names. This is the default unless '--drop-read-names' is given.")
+		boolean preserveReadNames = false;
+
+		@Parameter(names = { "--drop-read-names" }, description = "Do not preserve read names, names are generated when reading.")
+		boolean dropReadNames = false;
+
+		@Parameter(names = { "--lossless-quality-score", "-Q" }, description = "Preserve all quality scores. Overrides '--lossy-quality-score-spec'.")
+		boolean losslessQS = false;
+
+		@Parameter(names = { "--lossy-quality-score-spec", "-L" }, description = "A string specifying what quality scores should be preserved.")
+		String qsSpec = "";
+
 		@Parameter(names = { "--ignore-tags" }, description = "Ignore the tags listed, for example 'OQ:XA:XB'")
 		String ignoreTags = "";
 
@@ -205,7 +290,40 @@ public class BamToCram {
 		@Parameter(names = { "--capture-all-tags" }, description = "Capture all tags.")
 		boolean captureAllTags = false;
 
-		@Parameter(names = { "--threads" }, description = "Number of threads to use (minimum 5; use 0 for number of available cores.")
-		public int threads = 5;
+		@Parameter(names = { "--threads" }, description = "Number of threads to use, 0 for number of available cores.")
+		public int threads = 0;
+
+		@Parameter(names = { "--executor" }, description = "How jobs are run: 'work-stealing' shares the threads between all stages, 'thread-per-job' gives each job its own thread.")
+		public String executor = JobExecutor.WORK_STEALING;
+
+		@Parameter(names = { "--container-records" }, description = "Maximum number of records per container, 0 for no limit.")
+		public int containerRecords = ContainerSizePolicy.DEFAULT_MAX_RECORDS;
+
+		@Parameter(names = { "--container-mb" }, description = "Maximum size of BAM data per container in megabytes, 0 for no limit.")
+		public long containerMB = ContainerSizePolicy.DEFAULT_MAX_BYTES >> 20;
+
+		@Parameter(names = { "--container-bases" }, description = "Maximum number of read bases per container, 0 for no limit.")
+		public long containerBases = ContainerSizePolicy.DEFAULT_MAX_BASES;
+
+		@Parameter(names = { "--container-target-ms" }, description = "Auto-tune container size so that converting a container takes about this many milliseconds, 0 to turn off. Overrides --container-records.")
+		public long containerTargetMillis = 0;
+
+		@Parameter(names = { "--metrics-file" }, description = "Write progress and throughput metrics as JSON lines to this file, '-' for standard error.")
+		public String metricsFile = null;
+
+		@Parameter(names = { "--metrics-interval-ms" }, description = "Interval between metrics lines in milliseconds.")
+		public long metricsIntervalMillis = 1000;
+
+		@Parameter(names = { "--inflate-threads" }, description = "Number of jobs uncompressing the input BAM, 0 to derive from the number of threads.")
+		public int inflateThreads = 0;
+
+		@Parameter(names = { "--reorder-window" }, description = "Maximum number of chunks a stage can run ahead of the next one in order, 0 to derive from the number of threads.")
+		public int reorderWindow = 0;
+
+		@Parameter(names = { "--reorder-buffer-mb" }, description = "Maximum number of megabytes held for reordering by each stage.")
+		public int reorderBufferMB = 256;
+
+		@Parameter(names = { "--ref-cache-mb" }, description = "Maximum number of megabytes of reference bases kept in memory, 0 for half of the maximum heap size.")
+		public int refCacheMB = 0;
 	}
 }
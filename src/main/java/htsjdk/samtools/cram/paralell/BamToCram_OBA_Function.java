@@ -13,8 +13,13 @@ package htsjdk.samtools.cram.paralell;
 
 import htsjdk.samtools.BAMRecordCodec;
 import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.cram.ContainerSizePolicy;
+import htsjdk.samtools.cram.CramContext;
 import htsjdk.samtools.cram.CramLossyOptions;
 import htsjdk.samtools.cram.CramSerilization;
+import htsjdk.samtools.cram.ref.ReferenceTracks;
+import htsjdk.samtools.cram.structure.AlignmentSpan;
 import htsjdk.samtools.cram.structure.Container;
 import htsjdk.samtools.cram.structure.ContainerIO;
 import htsjdk.samtools.cram.structure.CramHeader;
@@ -22,28 +27,31 @@ import htsjdk.samtools.util.Log;
 import htsjdk.samtools.util.RuntimeIOException;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
 import java.util.function.Function;
 
+import net.sf.cram.index.CramIndex;
 import net.sf.cram.ref.ReferenceSource;
 
 class BamToCram_OBA_Function implements Function<OrderedByteArray, OrderedByteArray> {
 	private static Log log = Log.getInstance(BamToCram_OBA_Function.class);
 	private CramHeader header;
 	private ReferenceSource referenceSource;
-	private String captureTags;
-	private String ignoreTags;
 	private CramLossyOptions lossyOptions;
+	private ByteArrayPool pool;
+	private ContainerSizePolicy sizePolicy;
+	private boolean indexing = false;
 
-	BamToCram_OBA_Function(CramHeader header, ReferenceSource referenceSource, CramLossyOptions lossyOptions) {
+	BamToCram_OBA_Function(CramHeader header, ReferenceSource referenceSource, CramLossyOptions lossyOptions,
+			ByteArrayPool pool, ContainerSizePolicy sizePolicy) {
 		this.header = header;
 		this.referenceSource = referenceSource;
 		this.lossyOptions = lossyOptions;
+		this.pool = pool;
+		this.sizePolicy = sizePolicy;
 		log.info("converter created");
 	}
 
@@ -52,52 +60,85 @@ class BamToCram_OBA_Function implements Function<OrderedByteArray, OrderedByteAr
 		if (object == null)
 			throw new NullPointerException();
 
+		long time = System.nanoTime();
+		int stripeSize = object.length;
 		BAMRecordCodec codec = new BAMRecordCodec(header.getSamFileHeader());
-		Set<Integer> refSet = new HashSet<Integer>();
 
 		if (object.bytes == null || object.order < 0) {
 			log.error("Empty stripe: " + object);
 			throw new IllegalArgumentException();
 		}
-		codec.setInputStream(new ByteArrayInputStream(object.bytes));
+		codec.setInputStream(new ByteArrayInputStream(object.bytes, object.offset, object.length));
 		SAMRecord samRecord = null;
 		List<SAMRecord> records = new ArrayList<SAMRecord>();
 		while ((samRecord = codec.decode()) != null) {
 			records.add(samRecord);
-			refSet.add(samRecord.getReferenceIndex());
 		}
+		object.release();
 
-		OrderedByteArray result = new OrderedByteArray();
 		if (records.isEmpty()) {
 			log.error("No records in stripe: " + object);
+			OrderedByteArray result = new OrderedByteArray();
 			result.bytes = new byte[0];
+			result.order = object.order;
 			return result;
 		}
 
 		Container container = null;
 		try {
-			container = CramSerilization.convert(records, header.getSamFileHeader(), referenceSource, lossyOptions);
+			// a new context for each stripe, so that the container does not
+			// depend on which stripes the worker has converted before:
+			CramContext context = new CramContext(header.getSamFileHeader(), referenceSource, lossyOptions);
+			Map<Integer, AlignmentSpan> spans = CramSerilization.getSpans(records);
+			if (lossyOptions.areReferenceTracksRequired())
+				createTracks(context, spans);
+			container = CramSerilization.convert(records, context, spans);
 		} catch (IllegalArgumentException | IllegalAccessException | IOException e) {
 			throw new RuntimeException(e);
 		}
 
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		OBAOutputStream os = new OBAOutputStream(pool, object.length / 2);
 		try {
-			ContainerIO.writeContainer(header.getVersion(), container, baos);
+			ContainerIO.writeContainer(header.getVersion(), container, os);
 		} catch (IOException e) {
 			throw new RuntimeIOException();
 		}
-		result.bytes = baos.toByteArray();
-		result.order = object.order;
+		OrderedByteArray result = os.toOBA(object.order);
+		if (indexing) {
+			// offsets are relative to the container, the writer shifts them:
+			container.offset = 0;
+			try {
+				result.craiEntries = CramIndex.getContainerEntries(container);
+			} catch (IllegalArgumentException | IllegalAccessException | IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		sizePolicy.recordTask(stripeSize, System.nanoTime() - time);
 		log.debug(String.format("Converted OBA %d, records %d", object.order, records.size()));
 		return result;
 	}
 
-	public void setCaptureTags(String captureTags) {
-		this.captureTags = captureTags;
+	/**
+	 * Attach CRAI entries to the output for indexing.
+	 */
+	void setIndexing(boolean indexing) {
+		this.indexing = indexing;
 	}
 
-	public void setIgnoreTags(String ignoreTags) {
-		this.ignoreTags = ignoreTags;
+	/**
+	 * Create fresh reference tracks for the sequences in the stripe. Stripes
+	 * are converted out of order and by different workers, so coverage and
+	 * mismatches are only collected from the records of the stripe itself.
+	 * This keeps lossy quality scores independent of the number of workers.
+	 * The reference bases are shared through the reference source.
+	 */
+	private void createTracks(CramContext context, Map<Integer, AlignmentSpan> spans) {
+		for (int refId : spans.keySet()) {
+			if (refId == SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX)
+				continue;
+			SAMSequenceRecord sequence = header.getSamFileHeader().getSequence(refId);
+			byte[] bases = CramSerilization.getRefBasesOfFail(context, refId);
+			context.tracks.put(refId, new ReferenceTracks(refId, sequence.getSequenceName(), bases));
+		}
 	}
 }
\ No newline at end of file
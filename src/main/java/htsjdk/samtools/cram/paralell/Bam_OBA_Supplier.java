@@ -12,83 +12,158 @@
 package htsjdk.samtools.cram.paralell;
 
 import htsjdk.samtools.SAMFormatException;
-import htsjdk.samtools.cram.io.InputStreamUtils;
-import htsjdk.samtools.util.BinaryCodec;
+import htsjdk.samtools.cram.ContainerSizePolicy;
 import htsjdk.samtools.util.Log;
-import htsjdk.samtools.util.RuntimeEOFException;
-import htsjdk.samtools.util.RuntimeIOException;
 
-import java.io.BufferedInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
 import java.util.function.Supplier;
 
+/**
+ * Cuts uncompressed BAM data into stripes of whole records. The data comes as
+ * a sequence of ordered chunks of inflated BGZF blocks, records may span
+ * chunks. Only the record lengths, reference ids and read lengths are looked
+ * at, the record bytes are copied once into the stripe. A stripe ends when the
+ * reference changes or when the {@link ContainerSizePolicy} says it is full.
+ */
 class Bam_OBA_Supplier implements Supplier<OrderedByteArray> {
+	// offset of l_seq from the start of a record, including block_size:
+	private static final int READ_LENGTH_OFFSET = 20;
 	private Log log = Log.getInstance(Bam_OBA_Supplier.class);
-	private BufferedInputStream is;
+	private Conveyer<OrderedByteArray> chunks;
+	private OrderedByteArray chunk;
+	private int chunkPos;
 	private long order = 0;
-	private BinaryCodec codec;
-	private ByteArrayOutputStream baos;
+	private byte[] stripe;
+	private int stripeSize;
+	private int pending;
 	private int refId;
 	private int recordCounter;
+	private long stripeBases;
+	private ContainerSizePolicy sizePolicy;
+	private volatile long records = 0;
+	private ByteArrayPool pool;
 
-	public Bam_OBA_Supplier(BufferedInputStream is) {
-		this.is = is;
-		codec = new BinaryCodec();
-		codec.setInputStream(is);
-		baos = new ByteArrayOutputStream();
+	/**
+	 * @param chunks
+	 *            a conveyer of inflated BAM data in stream order
+	 * @param head
+	 *            data preceding the first chunk, for example left over after
+	 *            the BAM header
+	 * @param headOffset
+	 *            position of the first record byte in the head array
+	 * @param pool
+	 *            a pool for stripe buffers
+	 * @param sizePolicy
+	 *            decides when a stripe is complete
+	 */
+	public Bam_OBA_Supplier(Conveyer<OrderedByteArray> chunks, byte[] head, int headOffset, ByteArrayPool pool,
+			ContainerSizePolicy sizePolicy) {
+		this.chunks = chunks;
+		this.pool = pool;
+		this.sizePolicy = sizePolicy;
+		chunk = new OrderedByteArray();
+		chunk.bytes = head;
+		chunk.offset = headOffset;
+		chunk.length = head.length - headOffset;
+		chunkPos = 0;
+		stripe = pool.acquire(1024 * 1024);
+		stripeSize = 0;
+		pending = 0;
 		refId = Integer.MIN_VALUE;
 		recordCounter = 0;
+		stripeBases = 0;
 	}
 
 	@Override
 	public OrderedByteArray get() {
-		while (true) {
-			try {
-				is.mark(8);
-				int recordLength = 0;
-				try {
-					recordLength = codec.readInt();
-				} catch (RuntimeEOFException e) {
-					// seems legit:
+		try {
+			while (true) {
+				if (!fill(8)) {
+					if (pending > 0)
+						throw new SAMFormatException("Truncated BAM record");
 					if (recordCounter == 0)
 						return null;
-					return flushStripe(baos);
+					return flushStripe();
 				}
 
-				if (recordLength < 8 * 4) {
-					Thread.dumpStack();
+				final int recordLength = SAMFileHeader_Utils.readInt(stripe, stripeSize);
+				if (recordLength < 8 * 4)
 					throw new SAMFormatException("Invalid record length: " + recordLength);
-				}
 
-				final int referenceID = codec.readInt();
-				is.reset();
-				if (refId != referenceID && refId != Integer.MIN_VALUE && baos.size() > 0) {
-					return flushStripe(baos);
+				final int referenceID = SAMFileHeader_Utils.readInt(stripe, stripeSize + 4);
+				if (refId != referenceID && refId != Integer.MIN_VALUE && recordCounter > 0) {
+					OrderedByteArray result = flushStripe();
+					refId = referenceID;
+					return result;
 				}
 
 				refId = referenceID;
-				byte[] recordData = InputStreamUtils.readFully(is, recordLength + 4);
-				baos.write(recordData);
-				if (recordCounter++ >= 10000 - 1) {
-					return flushStripe(baos);
-				}
-			} catch (IOException e) {
-				throw new RuntimeIOException(e);
-			} catch (InterruptedException e) {
-				throw new RuntimeException(e);
+				if (!fill(recordLength + 4))
+					throw new SAMFormatException("Truncated BAM record");
+				stripeBases += SAMFileHeader_Utils.readInt(stripe, stripeSize + READ_LENGTH_OFFSET);
+				stripeSize += pending;
+				pending = 0;
+				records++;
+				recordCounter++;
+				if (sizePolicy.isFull(recordCounter, stripeSize, stripeBases))
+					return flushStripe();
+			}
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * @return number of records read so far
+	 */
+	long getRecordCount() {
+		return records;
+	}
+
+	/**
+	 * Copy bytes from the chunks to the end of the stripe until there are the
+	 * requested number of pending bytes past the stripe size.
+	 * 
+	 * @return false if the data has ended before enough bytes have been copied
+	 */
+	private boolean fill(int length) throws InterruptedException {
+		if (stripe.length < stripeSize + length) {
+			byte[] newStripe = pool.acquire(Math.max(stripe.length * 2, stripeSize + length));
+			System.arraycopy(stripe, 0, newStripe, 0, stripeSize + pending);
+			pool.release(stripe);
+			stripe = newStripe;
+		}
+
+		while (pending < length) {
+			if (chunk == null || chunkPos == chunk.length) {
+				if (chunk != null)
+					chunk.release();
+				chunk = chunks.tryAdvance();
+				if (chunk == null)
+					return false;
+				chunkPos = 0;
+				continue;
 			}
+			int len = Math.min(length - pending, chunk.length - chunkPos);
+			System.arraycopy(chunk.bytes, chunk.offset + chunkPos, stripe, stripeSize + pending, len);
+			chunkPos += len;
+			pending += len;
 		}
+		return true;
 	}
 
-	private OrderedByteArray flushStripe(ByteArrayOutputStream baos) throws InterruptedException, IOException {
-		OrderedByteArray stripe = new OrderedByteArray();
-		stripe.bytes = baos.toByteArray();
-		log.debug(String.format("adding stripe: order=%d, ref=%d, records=%d, bytes=%d", order, refId, recordCounter,
-				stripe.bytes.length));
-		stripe.order = order++;
-		baos.reset();
+	private OrderedByteArray flushStripe() {
+		OrderedByteArray result = new OrderedByteArray();
+		result.bytes = stripe;
+		result.length = stripeSize;
+		result.pool = pool;
+		log.debug(String.format("adding stripe: order=%d, ref=%d, records=%d, bytes=%d, bases=%d", order, refId,
+				recordCounter, result.length, stripeBases));
+		result.order = order++;
+		stripe = pool.acquire(Math.max(stripeSize, pending));
+		System.arraycopy(result.bytes, stripeSize, stripe, 0, pending);
+		stripeSize = 0;
 		recordCounter = 0;
-		return stripe;
+		stripeBases = 0;
+		return result;
 	}
-}
\ No newline at end of file
+}
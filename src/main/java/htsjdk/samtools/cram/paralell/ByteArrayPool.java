@@ -0,0 +1,95 @@
+/*
+ * Copyright 2012 - 2018 EMBL - European Bioinformatics Institute
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package htsjdk.samtools.cram.paralell;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded pool of byte arrays for recycling {@link OrderedByteArray} buffers
+ * between pipeline stages. Arrays are handed out in power of two size classes,
+ * so a released array can be reused for any request up to its size. At most
+ * maxPooledBytes are kept idle in the pool, arrays released beyond that are
+ * left to the garbage collector.
+ */
+class ByteArrayPool {
+	private static final int MIN_SIZE_CLASS = 16;
+	private static final int MAX_SIZE_CLASS = 30;
+	private final ConcurrentLinkedQueue<byte[]>[] classes;
+	private final long maxPooledBytes;
+	private final AtomicLong pooledBytes = new AtomicLong(0);
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	ByteArrayPool(long maxPooledBytes) {
+		this.maxPooledBytes = maxPooledBytes;
+		classes = new ConcurrentLinkedQueue[MAX_SIZE_CLASS + 1];
+		for (int i = MIN_SIZE_CLASS; i <= MAX_SIZE_CLASS; i++)
+			classes[i] = new ConcurrentLinkedQueue<byte[]>();
+	}
+
+	private static int sizeClass(int size) {
+		int sizeClass = 32 - Integer.numberOfLeadingZeros(Math.max(size, 1) - 1);
+		return Math.max(sizeClass, MIN_SIZE_CLASS);
+	}
+
+	/**
+	 * Get an array of at least the given size, reusing a pooled one if
+	 * possible.
+	 */
+	byte[] acquire(int minSize) {
+		int sizeClass = sizeClass(minSize);
+		if (sizeClass > MAX_SIZE_CLASS)
+			return new byte[minSize];
+
+		byte[] array = classes[sizeClass].poll();
+		if (array == null)
+			return new byte[1 << sizeClass];
+		pooledBytes.addAndGet(-array.length);
+		return array;
+	}
+
+	/**
+	 * Return an array to the pool. The caller must not use the array
+	 * afterwards.
+	 */
+	void release(byte[] array) {
+		int sizeClass = sizeClass(array.length);
+		if (sizeClass > MAX_SIZE_CLASS || array.length != 1 << sizeClass)
+			return;
+		if (pooledBytes.addAndGet(array.length) > maxPooledBytes) {
+			pooledBytes.addAndGet(-array.length);
+			return;
+		}
+		classes[sizeClass].offer(array);
+	}
+
+	/**
+	 * Create an empty {@link OrderedByteArray} backed by a pooled array of at
+	 * least the given size.
+	 */
+	OrderedByteArray allocate(long order, int minSize) {
+		OrderedByteArray object = new OrderedByteArray();
+		object.bytes = acquire(minSize);
+		object.order = order;
+		object.pool = this;
+		return object;
+	}
+
+	long getPooledBytes() {
+		return pooledBytes.get();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("[pooled=%dMB, max=%dMB]", pooledBytes.get() >> 20, maxPooledBytes >> 20);
+	}
+}
@@ -20,17 +20,15 @@ class ConsumerJob<I> extends Job {
 	public ConsumerJob(Conveyer<I> input, Consumer<I> consumer) {
 		this.input = input;
 		this.consumer = consumer;
+		dependsOn(input);
 	}
 
 	@Override
 	protected void doRun() throws Exception {
-		if (input.hasCompleted()) {
-			stop();
-			return;
-		}
-
-		I object = input.tryAdvance();
+		I object = blocking ? input.tryAdvance() : input.poll();
 		if (object == null) {
+			if (blocking || input.hasCompleted())
+				stop();
 			return;
 		}
 		consumer.accept(object);
@@ -13,16 +13,31 @@ package htsjdk.samtools.cram.paralell;
 
 import htsjdk.samtools.util.Log;
 
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * A class similar to a blocking queue that can be closed. Conveyer is closed
  * when all registered suppliers have called close() method and the underlying
  * queue is empty. Effectively this should guarantee that no new objects will
  * appear on the conveyer and all consumers should shutdown normally.
+ * <p>
+ * Consumers calling {@link #tryAdvance()} are parked until either an object
+ * arrives or the last supplier closes the conveyer, so idle consumers do not
+ * consume CPU. Jobs that run as short tasks use the non-blocking
+ * {@link #poll()} together with {@link #isAvailable()}, {@link #canAccept()}
+ * and listeners, which are notified of every change of the conveyer. Waits
+ * inside a {@link ForkJoinPool} are managed, so that the pool can compensate
+ * for a blocked worker.
  * 
  * @author vadim
  *
@@ -33,6 +48,12 @@ class Conveyer<T> {
 	protected BlockingQueue<T> queue;
 	private AtomicInteger countDownToClose = new AtomicInteger(0);
 	protected AtomicInteger counter = new AtomicInteger(0);
+	protected final ReentrantLock lock = new ReentrantLock();
+	protected final Condition available = lock.newCondition();
+	protected final Condition spaceAvailable = lock.newCondition();
+	private final List<Runnable> listeners = new CopyOnWriteArrayList<Runnable>();
+	private final AtomicLong putWaitNanos = new AtomicLong(0);
+	private final AtomicLong takeWaitNanos = new AtomicLong(0);
 
 	/**
 	 * Create a new conveyer with the given number of suppliers.
@@ -56,20 +77,67 @@ class Conveyer<T> {
 	}
 
 	void close() {
-		log.info("close: " + countDownToClose.decrementAndGet());
+		lock.lock();
+		try {
+			log.info("close: " + countDownToClose.decrementAndGet());
+			available.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		fireListeners();
 	}
 
 	void addSupplier() {
 		countDownToClose.incrementAndGet();
 	}
 
+	/**
+	 * Register a listener to be called after an object has been put on or
+	 * taken from the conveyer, or after the conveyer has been closed by a
+	 * supplier. Listeners are called outside of the conveyer lock and must not
+	 * block.
+	 */
+	void addListener(Runnable listener) {
+		listeners.add(listener);
+	}
+
+	protected void fireListeners() {
+		for (Runnable listener : listeners)
+			listener.run();
+	}
+
+	/**
+	 * Check if all suppliers have closed the conveyer. Objects may still be
+	 * queued.
+	 * 
+	 * @return true if no new objects can be put on the conveyer
+	 */
+	boolean isClosed() {
+		return countDownToClose.get() <= 0;
+	}
+
 	/**
 	 * Check if the conveyer has processed everything.
 	 * 
 	 * @return true if there nothing else to process, false otherwise
 	 */
 	boolean hasCompleted() {
-		return countDownToClose.get() <= 0 && queue.isEmpty();
+		return isClosed() && queue.isEmpty();
+	}
+
+	/**
+	 * @return true if an object can be taken from the conveyer right now
+	 */
+	boolean isAvailable() {
+		return !queue.isEmpty();
+	}
+
+	/**
+	 * @return true if an object is likely to be accepted by
+	 *         {@link #put(Object)} without blocking
+	 */
+	boolean canAccept() {
+		return queue.remainingCapacity() > 0;
 	}
 
 	int size() {
@@ -80,10 +148,77 @@ class Conveyer<T> {
 		return queue.isEmpty();
 	}
 
+	/**
+	 * Put an object on the conveyer, blocking if the underlying queue is full,
+	 * and wake up a waiting consumer.
+	 * 
+	 * @param object
+	 *            the object to put
+	 * @throws InterruptedException
+	 *             if interrupted while waiting for space in the queue
+	 */
 	void put(T object) throws InterruptedException {
 		if (hasCompleted())
 			throw new IllegalStateException();
-		queue.put(object);
+		lock.lockInterruptibly();
+		try {
+			while (!queue.offer(object))
+				awaitSpace(spaceAvailable);
+			signal(object);
+		} finally {
+			lock.unlock();
+		}
+		fireListeners();
+	}
+
+	/**
+	 * Wake up consumers after the object has been queued. Called with the lock
+	 * held.
+	 * 
+	 * @param object
+	 *            the object just added to the queue
+	 */
+	protected void signal(T object) {
+		available.signal();
+	}
+
+	/**
+	 * Wait on a condition of this conveyer with the lock held. Inside a
+	 * {@link ForkJoinPool} the wait is managed, so that the pool can start a
+	 * spare worker while this one is blocked.
+	 */
+	protected void await(Condition condition) throws InterruptedException {
+		if (!ForkJoinTask.inForkJoinPool()) {
+			condition.await();
+			return;
+		}
+
+		ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+			private boolean released = false;
+
+			@Override
+			public boolean block() throws InterruptedException {
+				condition.await();
+				released = true;
+				return true;
+			}
+
+			@Override
+			public boolean isReleasable() {
+				return released;
+			}
+		});
+	}
+
+	/**
+	 * Wait for space on the conveyer and account the time as supplier wait.
+	 */
+	protected void awaitSpace(Condition condition) throws InterruptedException {
+		long time = System.nanoTime();
+		await(condition);
+		time = System.nanoTime() - time;
+		putWaitNanos.addAndGet(time);
+		Job.waited(time);
 	}
 
 	T peek() {
@@ -95,26 +230,93 @@ class Conveyer<T> {
 	}
 
 	/**
-	 * Try to pop an object from the conveyer. This is a semi-blocking
-	 * implementation: it repeatedly blocks and checks if the conveyer has
-	 * completed.
+	 * Take the next object if it can be released now. Called with the lock
+	 * held.
+	 * 
+	 * @return the next object or null if none can be released
+	 */
+	protected T take() {
+		T object = queue.poll();
+		if (object != null)
+			spaceAvailable.signal();
+		return object;
+	}
+
+	/**
+	 * Called with the lock held once the conveyer is closed and nothing can be
+	 * taken from it.
+	 */
+	protected void checkDrained() {
+	}
+
+	/**
+	 * Pop an object from the conveyer, blocking until either an object is
+	 * available or the conveyer has completed.
 	 * 
 	 * @return an object to process or null if everything has been processed
 	 * @throws InterruptedException
-	 *             as per Java IO contract due to blocking queue polling.
+	 *             if interrupted while waiting
 	 */
 	T tryAdvance() throws InterruptedException {
-		if (hasCompleted())
-			return null;
+		T object;
+		lock.lockInterruptibly();
+		try {
+			while ((object = take()) == null) {
+				if (isClosed()) {
+					// wake up other consumers so that they can exit too:
+					available.signalAll();
+					checkDrained();
+					return null;
+				}
+				long time = System.nanoTime();
+				await(available);
+				time = System.nanoTime() - time;
+				takeWaitNanos.addAndGet(time);
+				Job.waited(time);
+			}
+			counter.incrementAndGet();
+		} finally {
+			lock.unlock();
+		}
+		fireListeners();
+		return object;
+	}
 
-		T poll = null;
-		while (!hasCompleted() && (poll = queue.poll(100, TimeUnit.MILLISECONDS)) == null)
-			;
-		if (poll == null)
-			return null;
+	/**
+	 * Pop an object from the conveyer without blocking.
+	 * 
+	 * @return an object to process or null if none is available right now or
+	 *         everything has been processed, see {@link #hasCompleted()}
+	 */
+	T poll() {
+		T object;
+		lock.lock();
+		try {
+			object = take();
+			if (object == null) {
+				if (isClosed())
+					checkDrained();
+				return null;
+			}
+			counter.incrementAndGet();
+		} finally {
+			lock.unlock();
+		}
+		fireListeners();
+		return object;
+	}
 
-		counter.incrementAndGet();
-		return poll;
+	/**
+	 * Add the conveyer metrics. Time suppliers spent blocked on a full
+	 * conveyer points at a slow consumer, time consumers spent waiting points
+	 * at slow suppliers.
+	 */
+	void describe(Map<String, Object> values) {
+		values.put("closed", isClosed());
+		values.put("depth", queue.size());
+		values.put("processed", counter.get());
+		values.put("put_wait_ns", putWaitNanos.get());
+		values.put("take_wait_ns", takeWaitNanos.get());
 	}
 
 	@Override
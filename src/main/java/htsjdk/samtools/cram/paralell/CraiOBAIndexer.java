@@ -0,0 +1,48 @@
+/*
+ * Copyright 2012 - 2018 EMBL - European Bioinformatics Institute
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package htsjdk.samtools.cram.paralell;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import net.sf.cram.index.CramIndex;
+
+/**
+ * Collects CRAI entries attached to containers by the converters, shifting
+ * them to the container offsets in the output.
+ */
+class CraiOBAIndexer implements OBAIndexer {
+	private CramIndex index = new CramIndex();
+	private OutputStream os;
+
+	CraiOBAIndexer(OutputStream os) {
+		this.os = os;
+	}
+
+	@Override
+	public void index(OrderedByteArray oba, long offset) {
+		if (oba.craiEntries == null)
+			return;
+		for (CramIndex.Entry entry : oba.craiEntries)
+			entry.containerStartOffset += offset;
+		index.addEntries(oba.craiEntries);
+	}
+
+	@Override
+	public void finish(long offset) throws IOException {
+		GZIPOutputStream gos = new GZIPOutputStream(new BufferedOutputStream(os));
+		index.writeTo(gos);
+		gos.close();
+	}
+}
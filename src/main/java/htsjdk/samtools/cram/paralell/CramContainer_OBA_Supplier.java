@@ -11,15 +11,15 @@
 
 package htsjdk.samtools.cram.paralell;
 
-import htsjdk.samtools.cram.io.InputStreamUtils;
 import htsjdk.samtools.cram.structure.Container;
 import htsjdk.samtools.cram.structure.ContainerIO;
 import htsjdk.samtools.cram.structure.CramHeader;
 import htsjdk.samtools.util.Log;
 import htsjdk.samtools.util.RuntimeIOException;
 
+import net.sf.cram.ref.ReferencePrefetcher;
+
 import java.io.BufferedInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -31,8 +31,13 @@ class CramContainer_OBA_Supplier implements Supplier<OrderedByteArray> {
 	private DataInputStream is;
 	private long order = 0;
 	private CramHeader cramHeader;
+	private ByteArrayPool pool;
+	private ReferencePrefetcher prefetcher;
+	// the decoding jobs keep asking after the EOF container:
+	private boolean eof = false;
 
-	public CramContainer_OBA_Supplier(InputStream is, CramHeader cramHeader) {
+	public CramContainer_OBA_Supplier(InputStream is, CramHeader cramHeader, ByteArrayPool pool) {
+		this.pool = pool;
 		if (is.markSupported())
 			this.is = new DataInputStream(is);
 		else
@@ -40,27 +45,36 @@ class CramContainer_OBA_Supplier implements Supplier<OrderedByteArray> {
 		this.cramHeader = cramHeader;
 	}
 
+	/**
+	 * Start loading the reference for each container as soon as its header
+	 * has been read, while the decoding jobs are busy with earlier ones.
+	 */
+	public void setPrefetcher(ReferencePrefetcher prefetcher) {
+		this.prefetcher = prefetcher;
+	}
+
 	@Override
-	public OrderedByteArray get() {
-		OrderedByteArray cb = new OrderedByteArray();
+	public synchronized OrderedByteArray get() {
+		if (eof)
+			return null;
 		Container containerHeader;
 		try {
 			containerHeader = ContainerIO.readContainerHeader(cramHeader.getVersion().major, is);
 			log.debug("Read container: " + containerHeader.toString());
 			if (containerHeader.isEOF()) {
 				log.info("EOF container");
+				eof = true;
 				return null;
 			}
+			if (prefetcher != null)
+				prefetcher.prefetch(containerHeader);
 
-			ByteArrayOutputStream baos = new ByteArrayOutputStream(containerHeader.containerByteSize + 1024 * 10);
-
-			ContainerIO.writeContainerHeader(cramHeader.getVersion().major, containerHeader, baos);
-			byte[] blocks = InputStreamUtils.readFully(is, containerHeader.containerByteSize);
-			baos.write(blocks);
+			OBAOutputStream os = new OBAOutputStream(pool, containerHeader.containerByteSize
+					+ MAX_CONTAINER_HEADER_BYTESIZE);
+			ContainerIO.writeContainerHeader(cramHeader.getVersion().major, containerHeader, os);
+			os.readFully(is, containerHeader.containerByteSize);
 
-			cb.bytes = baos.toByteArray();
-			cb.order = order++;
-			return cb;
+			return os.toOBA(order++);
 		} catch (IOException e) {
 			throw new RuntimeIOException(e);
 		}
@@ -11,7 +11,10 @@
 
 package htsjdk.samtools.cram.paralell;
 
+import htsjdk.samtools.Defaults;
+import htsjdk.samtools.SAMFileHeader;
 import htsjdk.samtools.cram.build.CramIO;
+import htsjdk.samtools.cram.io.CountingInputStream;
 import htsjdk.samtools.cram.structure.CramHeader;
 import htsjdk.samtools.util.BinaryCodec;
 import htsjdk.samtools.util.BlockCompressedOutputStream;
@@ -20,22 +23,21 @@ import htsjdk.samtools.util.Log;
 import htsjdk.samtools.util.Log.LogLevel;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
 import java.lang.Thread.UncaughtExceptionHandler;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.ThreadPoolExecutor.CallerRunsPolicy;
 import java.util.concurrent.TimeUnit;
 
 import net.sf.cram.Bam2Cram;
 import net.sf.cram.CramTools;
+import net.sf.cram.ref.PackedReferenceStore;
+import net.sf.cram.ref.ReferencePrefetcher;
 import net.sf.cram.ref.ReferenceSource;
 
 import com.beust.jcommander.JCommander;
@@ -45,6 +47,7 @@ import com.beust.jcommander.converters.FileConverter;
 
 public class CramToBam {
 	static Log log = Log.getInstance(CramToBam.class);
+	private static final int BGZF_BLOCKS_PER_STRIPE = 16;
 
 	private static void printUsage(JCommander jc) {
 		StringBuilder sb = new StringBuilder();
@@ -78,6 +81,11 @@ public class CramToBam {
 		if (params.referenceFasta == null)
 			log.warn("No reference file specified, remote access over internet may be used to download public sequences. ");
 		ReferenceSource referenceSource = new ReferenceSource(params.referenceFasta);
+		if (params.refCacheMB > 0)
+			referenceSource.setMaxCacheBytes(params.refCacheMB * 1024L * 1024L);
+		if (params.referenceImage != null)
+			referenceSource.setPackedStore(PackedReferenceStore.openOrCreate(params.referenceImage,
+					params.referenceFasta));
 
 		Thread.setDefaultUncaughtExceptionHandler(new UncaughtExceptionHandler() {
 
@@ -89,74 +97,127 @@ public class CramToBam {
 			}
 		});
 		Log.setGlobalLogLevel(LogLevel.INFO);
-		InputStream cramInputStream = new BufferedInputStream(params.cramFile == null ? System.in
-				: new FileInputStream(params.cramFile));
+		CountingInputStream cramInputStream = new CountingInputStream(new BufferedInputStream(
+				params.cramFile == null ? System.in : new FileInputStream(params.cramFile)));
 		OutputStream bamOutputStream = params.outputBamFile == null ? System.out : new FileOutputStream(
 				params.outputBamFile);
 
-		if (params.threads == 0) {
-			params.threads = Math.max(4, Runtime.getRuntime().availableProcessors());
-		} else if (params.threads < 4) {
-			System.err.println("Too few threads: minimum 4 threads required. ");
-			System.exit(1);
-		}
+		if (params.threads < 1)
+			params.threads = Runtime.getRuntime().availableProcessors();
 
-		final int threadsInThePool = params.threads - 1;
-		final int cramContainerSupplierThreads = 1;
-		final int bamObaConsumerThreads = 1;
-		final int conversionThreads = threadsInThePool - cramContainerSupplierThreads - bamObaConsumerThreads;
-		final int queuesCapacity = conversionThreads * 2;
+		// jobs are not threads: with the work stealing executor any idle
+		// thread helps whichever stage has work:
+		final int deflatingThreads = params.deflateThreads > 0 ? params.deflateThreads : Math.max(1,
+				params.threads / 2);
+		final int conversionThreads = params.decodeThreads > 0 ? params.decodeThreads : params.threads;
 
-		log.info(String.format("thread pool size=%d, converion threads=%d, queues capacity=%d", threadsInThePool,
-				conversionThreads, queuesCapacity));
+		log.info(String.format("threads=%d, executor=%s, converion jobs=%d, deflating jobs=%d", params.threads,
+				params.executor, conversionThreads, deflatingThreads));
 
 		CramHeader cramHeader = CramIO.readCramHeader(cramInputStream);
-		CramContainer_OBA_Supplier container_OBA_Supplier = new CramContainer_OBA_Supplier(cramInputStream, cramHeader);
-		Conveyer<OrderedByteArray> cramContainer_OBA_conveyer = Conveyer.createWithQueueCapacity(queuesCapacity);
-		SupplierJob<OrderedByteArray> cramContainer_OBA_SupplierJob = new SupplierJob<OrderedByteArray>(
-				cramContainer_OBA_conveyer, container_OBA_Supplier);
+		ByteArrayPool pool = new ByteArrayPool(Runtime.getRuntime().maxMemory() / 4);
+		CramContainer_OBA_Supplier container_OBA_Supplier = new CramContainer_OBA_Supplier(cramInputStream,
+				cramHeader, pool);
+		ReferencePrefetcher prefetcher = null;
+		if (params.prefetchThreads > 0) {
+			prefetcher = new ReferencePrefetcher(referenceSource, cramHeader.getSamFileHeader(),
+					params.prefetchThreads);
+			container_OBA_Supplier.setPrefetcher(prefetcher);
+		}
 
-		Conveyer<OrderedByteArray> bam_OBA_conveyer = new OrderingConveyer<OrderedByteArray>();
+		BaiOBAIndexer indexer = null;
+		if (params.indexFile != null) {
+			if (cramHeader.getSamFileHeader().getSortOrder() == SAMFileHeader.SortOrder.coordinate)
+				indexer = new BaiOBAIndexer(new FileOutputStream(params.indexFile), cramHeader.getSamFileHeader());
+			else
+				log.warn("Not creating an index because the input is not coordinate sorted.");
+		}
 
+		final long reorderBufferBytes = params.reorderBufferMB * 1024L * 1024L;
+		OrderingConveyer<OrderedByteArray> bam_OBA_conveyer = OrderingConveyer.createBounded(
+				params.reorderWindow > 0 ? params.reorderWindow : conversionThreads * 2, reorderBufferBytes);
 		List<Job> converterJobs = new ArrayList<Job>();
+		List<CramToBam_OBA_Function> converters = new ArrayList<CramToBam_OBA_Function>();
 		for (int i = 0; i < conversionThreads; i++) {
-			CramToBam_OBA_Function f = new CramToBam_OBA_Function(cramHeader, referenceSource);
-			TransformerJob<OrderedByteArray, OrderedByteArray> job = new TransformerJob<OrderedByteArray, OrderedByteArray>(
-					cramContainer_OBA_conveyer, bam_OBA_conveyer, f);
+			CramToBam_OBA_Function f = new CramToBam_OBA_Function(cramHeader, referenceSource, pool);
+			f.setIndexing(indexer != null);
+			f.setDecodeViaSAMRecord(params.decodeViaSAMRecord);
+			converters.add(f);
+			SupplierJob<OrderedByteArray> job = new SupplierJob<OrderedByteArray>(bam_OBA_conveyer, () -> {
+				OrderedByteArray container = container_OBA_Supplier.get();
+				return container == null ? null : f.apply(container);
+			});
+			job.setName("CB_CONVERTER_" + i);
 			converterJobs.add(job);
 		}
 
-		BlockCompressedOutputStream blockOS = new BlockCompressedOutputStream(bamOutputStream, null);
+		BGZF_Stripe_OBA_Supplier bgzfStripeSupplier = new BGZF_Stripe_OBA_Supplier(bam_OBA_conveyer,
+				BGZF_BLOCKS_PER_STRIPE, pool);
+		bgzfStripeSupplier.setIndexer(indexer);
+		OrderingConveyer<OrderedByteArray> bgzf_OBA_conveyer = OrderingConveyer.createBounded(
+				params.reorderWindow > 0 ? params.reorderWindow : deflatingThreads * 4, reorderBufferBytes);
+		List<Job> deflatingJobs = new ArrayList<Job>();
+		for (int i = 0; i < deflatingThreads; i++) {
+			BGZF_Deflate_OBA_Function deflateFunction = new BGZF_Deflate_OBA_Function(params.compressionLevel,
+					pool);
+			SupplierJob<OrderedByteArray> job = new SupplierJob<OrderedByteArray>(bgzf_OBA_conveyer, () -> {
+				OrderedByteArray stripe = bgzfStripeSupplier.get();
+				return stripe == null ? null : deflateFunction.apply(stripe);
+			});
+			job.setName("BGZF_DEFLATER_" + i);
+			job.dependsOn(bam_OBA_conveyer);
+			deflatingJobs.add(job);
+		}
+
+		// the header size is needed for the index:
+		ByteArrayOutputStream headerOS = new ByteArrayOutputStream();
+		BlockCompressedOutputStream blockOS = new BlockCompressedOutputStream(headerOS, null,
+				params.compressionLevel);
 		BinaryCodec outputBinaryCodec = new BinaryCodec();
 		outputBinaryCodec.setOutputStream(blockOS);
 		SAMFileHeader_Utils.writeHeader(outputBinaryCodec, cramHeader.getSamFileHeader());
 		blockOS.flush();
+		headerOS.writeTo(bamOutputStream);
 
-		OBAWriteConsumer bam_OBA_writeConsumer = new OBAWriteConsumer(bamOutputStream);
-		ConsumerJob<OrderedByteArray> bam_OBA_writeJob = new ConsumerJob<OrderedByteArray>(bam_OBA_conveyer,
+		OBAWriteConsumer bam_OBA_writeConsumer = new OBAWriteConsumer(bamOutputStream, headerOS.size(), indexer);
+		ConsumerJob<OrderedByteArray> bam_OBA_writeJob = new ConsumerJob<OrderedByteArray>(bgzf_OBA_conveyer,
 				bam_OBA_writeConsumer);
+		bam_OBA_writeJob.setName("BAM_BYTE_WRITE_JOB");
 
-		log.info("Creating thread pool with size " + threadsInThePool);
-		ThreadPoolExecutor executor = new ThreadPoolExecutor(threadsInThePool, threadsInThePool, 60L,
-				TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(threadsInThePool * 2), new CallerRunsPolicy());
-		executor.execute(cramContainer_OBA_SupplierJob);
-		for (Job job : converterJobs)
-			executor.execute(job);
-		executor.execute(bam_OBA_writeJob);
-
-		long time = System.currentTimeMillis();
-		while (!bam_OBA_writeJob.isDone()) {
-			Thread.sleep(100);
-			if (System.currentTimeMillis() - time > 1000) {
-				log.info(String.format("CRAM_OBA %s; BAM_OBA %s", cramContainer_OBA_conveyer.toString(),
-						bam_OBA_conveyer.toString()));
-				time = System.currentTimeMillis();
-			}
+		JobExecutor executor = JobExecutor.create(params.executor, params.threads);
+		List<Job> jobs = new ArrayList<Job>(converterJobs);
+		jobs.addAll(deflatingJobs);
+		jobs.add(bam_OBA_writeJob);
+
+		Metrics metrics = null;
+		if (params.metricsFile != null) {
+			metrics = new Metrics("CramToBam", Metrics.open(params.metricsFile));
+			metrics.counter("records", () -> converters.stream().mapToLong(f -> f.getRecordCount()).sum());
+			metrics.counter("bytes_in", cramInputStream::getCount);
+			metrics.counter("bytes_out", bam_OBA_writeConsumer::getBytesWritten);
+			metrics.counter("pooled_bytes", pool::getPooledBytes);
+			metrics.jobs(jobs);
+			metrics.conveyer("BAM_OBA", bam_OBA_conveyer);
+			metrics.conveyer("BGZF_OBA", bgzf_OBA_conveyer);
+		}
+
+		executor.execute(jobs);
+
+		while (!bam_OBA_writeJob.awaitDone(params.metricsIntervalMillis, TimeUnit.MILLISECONDS)) {
+			log.info(String.format("BAM_OBA %s; BGZF_OBA %s; pool %s", bam_OBA_conveyer.toString(),
+					bgzf_OBA_conveyer.toString(), pool.toString()));
+			if (metrics != null)
+				metrics.report();
 		}
+		if (metrics != null)
+			metrics.report();
 
 		executor.shutdown();
+		if (prefetcher != null)
+			prefetcher.close();
 		bamOutputStream.write(BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK);
 		bamOutputStream.close();
+		bam_OBA_writeConsumer.finishIndex();
 	}
 
 	@Parameters(commandDescription = "BAM to CRAM multithreaded converter. ")
@@ -170,13 +231,52 @@ public class CramToBam {
 		@Parameter(names = { "--reference-fasta-file", "-R" }, converter = FileConverter.class, description = "The reference fasta file, uncompressed and indexed (.fai file, use 'samtools faidx'). ")
 		File referenceFasta;
 
+		@Parameter(names = { "--reference-image" }, converter = FileConverter.class, description = "A packed reference image to memory map and share between processes, created from the reference fasta file if it does not exist.")
+		File referenceImage;
+
 		@Parameter(names = { "--output-bam-file", "-O" }, converter = FileConverter.class, description = "The path for the output CRAM file. Omit if standard output (pipe).")
 		File outputBamFile = null;
 
+		@Parameter(names = { "--index-file" }, converter = FileConverter.class, description = "Write a BAM index (bai) to this file while converting, for coordinate sorted data only.")
+		File indexFile = null;
+
 		@Parameter(names = { "-h", "--help" }, description = "Print help and quit")
 		boolean help = false;
 
-		@Parameter(names = { "--threads" }, description = "Number of threads to use (minimum 4; use 0 for number of available cores.")
-		public int threads = 4;
+		@Parameter(names = { "--threads" }, description = "Number of threads to use, 0 for number of available cores.")
+		public int threads = 0;
+
+		@Parameter(names = { "--executor" }, description = "How jobs are run: 'work-stealing' shares the threads between all stages, 'thread-per-job' gives each job its own thread.")
+		public String executor = JobExecutor.WORK_STEALING;
+
+		@Parameter(names = { "--metrics-file" }, description = "Write progress and throughput metrics as JSON lines to this file, '-' for standard error.")
+		public String metricsFile = null;
+
+		@Parameter(names = { "--metrics-interval-ms" }, description = "Interval between metrics lines in milliseconds.")
+		public long metricsIntervalMillis = 1000;
+
+		@Parameter(names = { "--decode-threads" }, description = "Number of jobs decoding CRAM containers, 0 to derive from the number of threads.")
+		public int decodeThreads = 0;
+
+		@Parameter(names = { "--deflate-threads" }, description = "Number of jobs compressing the output BAM, 0 to derive from the number of threads.")
+		public int deflateThreads = 0;
+
+		@Parameter(names = { "--compression-level" }, description = "Compression level for the output BAM, 0-9.")
+		public int compressionLevel = Defaults.COMPRESSION_LEVEL;
+
+		@Parameter(names = { "--reorder-window" }, description = "Maximum number of chunks a stage can run ahead of the next one in order, 0 to derive from the number of threads.")
+		public int reorderWindow = 0;
+
+		@Parameter(names = { "--reorder-buffer-mb" }, description = "Maximum number of megabytes held for reordering by each stage.")
+		public int reorderBufferMB = 256;
+
+		@Parameter(names = { "--prefetch-threads" }, description = "Number of threads loading the reference ahead of decoding, 0 to disable.")
+		public int prefetchThreads = 1;
+
+		@Parameter(names = { "--ref-cache-mb" }, description = "Maximum number of megabytes of reference bases kept in memory, 0 for half of the maximum heap size.")
+		public int refCacheMB = 0;
+
+		@Parameter(names = { "--decode-via-samrecord" }, description = "Decode records into SAMRecord objects before encoding them as BAM instead of decoding straight into BAM.", hidden = true)
+		public boolean decodeViaSAMRecord = false;
 	}
 }
@@ -17,15 +17,15 @@ import htsjdk.samtools.ValidationStringency;
 import htsjdk.samtools.cram.build.ContainerParser;
 import htsjdk.samtools.cram.build.Cram2SamRecordFactory;
 import htsjdk.samtools.cram.build.CramNormalizer;
+import htsjdk.samtools.cram.encoding.reader.ReaderToBAM;
 import htsjdk.samtools.cram.structure.Container;
 import htsjdk.samtools.cram.structure.ContainerIO;
 import htsjdk.samtools.cram.structure.CramCompressionRecord;
 import htsjdk.samtools.cram.structure.CramHeader;
-import htsjdk.samtools.util.BlockCompressedOutputStream;
+import htsjdk.samtools.cram.structure.Slice;
 import htsjdk.samtools.util.Log;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.function.Function;
@@ -39,16 +39,47 @@ class CramToBam_OBA_Function implements Function<OrderedByteArray, OrderedByteAr
 	private Cram2SamRecordFactory f;
 	private BAMRecordCodec codec;
 	private CramNormalizer n;
+	private ReferenceSource referenceSource;
+	private ByteArrayPool pool;
+	private volatile long records = 0;
+	private boolean indexing = false;
+	private ReaderToBAM reader;
+	private boolean decodeViaSAMRecord = false;
 
-	CramToBam_OBA_Function(CramHeader header, ReferenceSource referenceSource) {
+	CramToBam_OBA_Function(CramHeader header, ReferenceSource referenceSource, ByteArrayPool pool) {
 		this.header = header;
+		this.pool = pool;
+		this.referenceSource = referenceSource;
 		parser = new ContainerParser(header.getSamFileHeader());
 		f = new Cram2SamRecordFactory(header.getSamFileHeader());
 		codec = new BAMRecordCodec(header.getSamFileHeader());
 		n = new CramNormalizer(header.getSamFileHeader(), referenceSource);
+		reader = new ReaderToBAM(header.getSamFileHeader(), referenceSource);
 		log.info("converter created");
 	}
 
+	/**
+	 * Decode records into {@link SAMRecord} objects and encode them back into
+	 * BAM instead of decoding straight into BAM with {@link ReaderToBAM}.
+	 */
+	void setDecodeViaSAMRecord(boolean decodeViaSAMRecord) {
+		this.decodeViaSAMRecord = decodeViaSAMRecord;
+	}
+
+	/**
+	 * Attach {@link BaiRecords} to the output for indexing.
+	 */
+	void setIndexing(boolean indexing) {
+		this.indexing = indexing;
+	}
+
+	/**
+	 * @return number of records converted by this function so far
+	 */
+	long getRecordCount() {
+		return records;
+	}
+
 	@Override
 	public OrderedByteArray apply(OrderedByteArray object) {
 		if (object == null)
@@ -57,29 +88,60 @@ class CramToBam_OBA_Function implements Function<OrderedByteArray, OrderedByteAr
 		log.debug("processing container " + object.order);
 		Container container;
 		try {
-			container = ContainerIO.readContainer(header.getVersion(), new ByteArrayInputStream(object.bytes));
+			container = ContainerIO.readContainer(header.getVersion(), new ByteArrayInputStream(object.bytes,
+					object.offset, object.length));
+			object.release();
 			if (container.isEOF())
 				return null;
 
+			if (!decodeViaSAMRecord)
+				return decode(container, object.order);
+
 			ArrayList<CramCompressionRecord> records = new ArrayList<CramCompressionRecord>(container.nofRecords);
 			parser.getRecords(container, records, ValidationStringency.SILENT);
-			n.normalize(records, null, 0, container.header.substitutionMatrix);
+			// only the reference region spanned by the container is needed:
+			n.normalizeRecordsForReferenceSource(records, referenceSource, container.header.substitutionMatrix);
 
-			ByteArrayOutputStream bamBAOS = new ByteArrayOutputStream();
-			BlockCompressedOutputStream os = new BlockCompressedOutputStream(bamBAOS, null);
-			codec.setOutputStream(os);
+			OBAOutputStream bamOS = new OBAOutputStream(pool, container.containerByteSize * 4);
+			codec.setOutputStream(bamOS);
+			BaiRecords baiRecords = indexing ? new BaiRecords() : null;
 			for (CramCompressionRecord record : records) {
 				SAMRecord samRecord = f.create(record);
+				if (baiRecords != null)
+					baiRecords.add(samRecord, bamOS.size());
 				codec.encode(samRecord);
 			}
-			os.flush();
-			OrderedByteArray bb = new OrderedByteArray();
-			bb.bytes = bamBAOS.toByteArray();
-			bb.order = object.order;
+			if (baiRecords != null)
+				baiRecords.finish(bamOS.size());
+			OrderedByteArray bb = bamOS.toOBA(object.order);
+			bb.baiRecords = baiRecords;
+			this.records += records.size();
 			log.debug(String.format("Converted OBA %d, records %d", object.order, records.size()));
 			return bb;
 		} catch (IOException | IllegalArgumentException | IllegalAccessException e) {
 			throw new RuntimeException(e);
 		}
 	}
+
+	private OrderedByteArray decode(Container container, long order) throws IOException {
+		reader.clear();
+		for (Slice slice : container.slices)
+			reader.readSlice(slice, container.header);
+
+		OBAOutputStream bamOS = new OBAOutputStream(pool, reader.size());
+		bamOS.write(reader.getBuffer(), 0, reader.size());
+		BaiRecords baiRecords = null;
+		if (indexing) {
+			baiRecords = new BaiRecords();
+			for (int i = 0; i < reader.getRecordCount(); i++)
+				baiRecords.add(reader.getReferenceIndex(i), reader.getAlignmentStart(i), reader.getAlignmentEnd(i),
+						reader.getFlags(i), reader.getRecordOffset(i));
+			baiRecords.finish(reader.size());
+		}
+		OrderedByteArray bb = bamOS.toOBA(order);
+		bb.baiRecords = baiRecords;
+		this.records += reader.getRecordCount();
+		log.debug(String.format("Converted OBA %d, records %d", order, reader.getRecordCount()));
+		return bb;
+	}
 }
\ No newline at end of file
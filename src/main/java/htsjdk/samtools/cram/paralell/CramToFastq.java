@@ -0,0 +1,340 @@
+/*
+ * Copyright 2012 - 2018 EMBL - European Bioinformatics Institute
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package htsjdk.samtools.cram.paralell;
+
+import htsjdk.samtools.Defaults;
+import htsjdk.samtools.cram.build.CramIO;
+import htsjdk.samtools.cram.io.CountingInputStream;
+import htsjdk.samtools.cram.structure.CramHeader;
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
+import htsjdk.samtools.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.Thread.UncaughtExceptionHandler;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import net.sf.cram.Bam2Cram;
+import net.sf.cram.CramTools;
+import net.sf.cram.FixBAMFileHeader;
+import net.sf.cram.ref.PackedReferenceStore;
+import net.sf.cram.ref.ReferencePrefetcher;
+import net.sf.cram.ref.ReferenceSource;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.Parameters;
+import com.beust.jcommander.converters.FileConverter;
+
+/**
+ * Multithreaded CRAM to fastq dump producing the same output as the serial
+ * fastq command. Containers are decoded into fastq records by several jobs,
+ * mates are collated by a single job in container order and each output
+ * stream is optionally compressed as BGZF by its own deflating jobs.
+ */
+public class CramToFastq {
+	static Log log = Log.getInstance(CramToFastq.class);
+	private static final int BGZF_BLOCKS_PER_STRIPE = 16;
+
+	private static void printUsage(JCommander jc) {
+		StringBuilder sb = new StringBuilder();
+		sb.append("\n");
+		jc.usage(sb);
+
+		System.out.println("Version " + Bam2Cram.class.getPackage().getImplementationVersion());
+		System.out.println(sb.toString());
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		Params params = new Params();
+		JCommander jc = new JCommander(params);
+		try {
+			jc.parse(args);
+		} catch (Exception e) {
+			System.out.println("Failed to parse parameteres, detailed message below: ");
+			System.out.println(e.getMessage());
+			System.out.println();
+			System.out.println("See usage: -h");
+			System.exit(1);
+		}
+
+		if (args.length == 0 || params.help) {
+			printUsage(jc);
+			System.exit(1);
+		}
+
+		Log.setGlobalLogLevel(params.logLevel);
+
+		if (params.referenceFasta == null)
+			log.warn("No reference file specified, remote access over internet may be used to download public sequences. ");
+		ReferenceSource referenceSource = new ReferenceSource(params.referenceFasta);
+		if (params.refCacheMB > 0)
+			referenceSource.setMaxCacheBytes(params.refCacheMB * 1024L * 1024L);
+		if (params.referenceImage != null)
+			referenceSource.setPackedStore(PackedReferenceStore.openOrCreate(params.referenceImage,
+					params.referenceFasta));
+
+		Thread.setDefaultUncaughtExceptionHandler(new UncaughtExceptionHandler() {
+
+			@Override
+			public void uncaughtException(Thread t, Throwable e) {
+				System.err.println("Exception in thread " + t);
+				e.printStackTrace();
+				System.exit(1);
+			}
+		});
+		CountingInputStream cramInputStream = new CountingInputStream(new BufferedInputStream(
+				params.cramFile == null ? System.in : new FileInputStream(params.cramFile)));
+
+		if (params.threads < 1)
+			params.threads = Runtime.getRuntime().availableProcessors();
+
+		final int deflatingThreads = params.deflateThreads > 0 ? params.deflateThreads : Math.max(1,
+				params.threads / 2);
+		final int conversionThreads = params.decodeThreads > 0 ? params.decodeThreads : params.threads;
+
+		log.info(String.format("threads=%d, executor=%s, converion jobs=%d, deflating jobs=%d", params.threads,
+				params.executor, conversionThreads, deflatingThreads));
+
+		CramHeader cramHeader = CramIO.readCramHeader(cramInputStream);
+		FixBAMFileHeader fix = new FixBAMFileHeader(referenceSource);
+		fix.setConfirmMD5(!params.skipMD5Checks);
+		fix.setIgnoreMD5Mismatch(params.ignoreMD5Mismatch);
+		fix.fixSequences(cramHeader.getSamFileHeader().getSequenceDictionary().getSequences());
+
+		ByteArrayPool pool = new ByteArrayPool(Runtime.getRuntime().maxMemory() / 4);
+		CramContainer_OBA_Supplier container_OBA_Supplier = new CramContainer_OBA_Supplier(cramInputStream,
+				cramHeader, pool);
+		ReferencePrefetcher prefetcher = null;
+		if (params.prefetchThreads > 0) {
+			prefetcher = new ReferencePrefetcher(referenceSource, cramHeader.getSamFileHeader(),
+					params.prefetchThreads);
+			container_OBA_Supplier.setPrefetcher(prefetcher);
+		}
+
+		final long reorderBufferBytes = params.reorderBufferMB * 1024L * 1024L;
+		OrderingConveyer<OrderedByteArray> fastq_OBA_conveyer = OrderingConveyer.createBounded(
+				params.reorderWindow > 0 ? params.reorderWindow : conversionThreads * 2, reorderBufferBytes);
+		List<Job> converterJobs = new ArrayList<Job>();
+		List<CramToFastq_OBA_Function> converters = new ArrayList<CramToFastq_OBA_Function>();
+		for (int i = 0; i < conversionThreads; i++) {
+			CramToFastq_OBA_Function f = new CramToFastq_OBA_Function(cramHeader, referenceSource, pool);
+			f.setReverseNegativeReads(params.reverse);
+			f.setDefaultQualityScore(params.defaultQS);
+			converters.add(f);
+			SupplierJob<OrderedByteArray> job = new SupplierJob<OrderedByteArray>(fastq_OBA_conveyer, () -> {
+				OrderedByteArray container = container_OBA_Supplier.get();
+				return container == null ? null : f.apply(container);
+			});
+			job.setName("CF_CONVERTER_" + i);
+			converterJobs.add(job);
+		}
+
+		// all reads go to standard output or to a file for each template
+		// index:
+		int nofStreams = params.fastqBaseName == null ? 1 : 3;
+		File[] files = new File[nofStreams];
+		OutputStream[] outputStreams = new OutputStream[nofStreams];
+		for (int i = 0; i < nofStreams; i++) {
+			if (params.fastqBaseName == null) {
+				outputStreams[i] = System.out;
+				continue;
+			}
+			String extension = ".fastq" + (params.gzip ? ".gz" : "");
+			files[i] = new File(i == 0 ? params.fastqBaseName + extension : params.fastqBaseName + "_" + i
+					+ extension);
+			outputStreams[i] = new FileOutputStream(files[i]);
+		}
+
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		Conveyer<OrderedByteArray>[] collated_OBA_conveyers = new Conveyer[nofStreams];
+		for (int i = 0; i < nofStreams; i++)
+			collated_OBA_conveyers[i] = OrderingConveyer.createBounded(
+					params.reorderWindow > 0 ? params.reorderWindow : conversionThreads * 2, reorderBufferBytes);
+		String spillFilePrefix = params.fastqBaseName == null ? "fastq.spill" : new File(params.fastqBaseName)
+				.getName() + ".spill";
+		final FastqCollate_OBA_Consumer collateConsumer = new FastqCollate_OBA_Consumer(collated_OBA_conveyers,
+				pool, spillFilePrefix, 1);
+		if (params.prefix != null)
+			collateConsumer.setPrefix(params.prefix.getBytes());
+		ConsumerJob<OrderedByteArray> collateJob = new ConsumerJob<OrderedByteArray>(fastq_OBA_conveyer,
+				collateConsumer) {
+
+			@Override
+			protected void doFinish() throws Exception {
+				collateConsumer.finish();
+			}
+		};
+		collateJob.setName("FASTQ_COLLATE_JOB");
+
+		List<Job> deflatingJobs = new ArrayList<Job>();
+		List<ConsumerJob<OrderedByteArray>> writeJobs = new ArrayList<ConsumerJob<OrderedByteArray>>();
+		List<OBAWriteConsumer> writeConsumers = new ArrayList<OBAWriteConsumer>();
+		List<Conveyer<OrderedByteArray>> bgzf_OBA_conveyers = new ArrayList<Conveyer<OrderedByteArray>>();
+		for (int i = 0; i < nofStreams; i++) {
+			Conveyer<OrderedByteArray> write_OBA_conveyer = collated_OBA_conveyers[i];
+			if (params.gzip) {
+				BGZF_Stripe_OBA_Supplier bgzfStripeSupplier = new BGZF_Stripe_OBA_Supplier(
+						collated_OBA_conveyers[i], BGZF_BLOCKS_PER_STRIPE, pool);
+				OrderingConveyer<OrderedByteArray> bgzf_OBA_conveyer = OrderingConveyer.createBounded(
+						params.reorderWindow > 0 ? params.reorderWindow : deflatingThreads * 4, reorderBufferBytes);
+				for (int j = 0; j < deflatingThreads; j++) {
+					BGZF_Deflate_OBA_Function deflateFunction = new BGZF_Deflate_OBA_Function(
+							params.compressionLevel, pool);
+					SupplierJob<OrderedByteArray> job = new SupplierJob<OrderedByteArray>(bgzf_OBA_conveyer, () -> {
+						OrderedByteArray stripe = bgzfStripeSupplier.get();
+						return stripe == null ? null : deflateFunction.apply(stripe);
+					});
+					job.setName("BGZF_DEFLATER_" + i + "_" + j);
+					job.dependsOn(collated_OBA_conveyers[i]);
+					deflatingJobs.add(job);
+				}
+				bgzf_OBA_conveyers.add(bgzf_OBA_conveyer);
+				write_OBA_conveyer = bgzf_OBA_conveyer;
+			}
+
+			OBAWriteConsumer writeConsumer = new OBAWriteConsumer(outputStreams[i]);
+			ConsumerJob<OrderedByteArray> writeJob = new ConsumerJob<OrderedByteArray>(write_OBA_conveyer,
+					writeConsumer);
+			writeJob.setName("FASTQ_BYTE_WRITE_JOB_" + i);
+			writeConsumers.add(writeConsumer);
+			writeJobs.add(writeJob);
+		}
+
+		JobExecutor executor = JobExecutor.create(params.executor, params.threads);
+		List<Job> jobs = new ArrayList<Job>(converterJobs);
+		jobs.add(collateJob);
+		jobs.addAll(deflatingJobs);
+		jobs.addAll(writeJobs);
+
+		Metrics metrics = null;
+		if (params.metricsFile != null) {
+			metrics = new Metrics("CramToFastq", Metrics.open(params.metricsFile));
+			metrics.counter("records", () -> converters.stream().mapToLong(f -> f.getRecordCount()).sum());
+			metrics.counter("bytes_in", cramInputStream::getCount);
+			metrics.counter("bytes_out", () -> writeConsumers.stream().mapToLong(c -> c.getBytesWritten()).sum());
+			metrics.counter("pooled_bytes", pool::getPooledBytes);
+			metrics.jobs(jobs);
+			metrics.conveyer("FASTQ_OBA", fastq_OBA_conveyer);
+			for (int i = 0; i < nofStreams; i++)
+				metrics.conveyer("COLLATED_OBA_" + i, collated_OBA_conveyers[i]);
+			for (int i = 0; i < bgzf_OBA_conveyers.size(); i++)
+				metrics.conveyer("BGZF_OBA_" + i, bgzf_OBA_conveyers.get(i));
+		}
+
+		executor.execute(jobs);
+
+		for (ConsumerJob<OrderedByteArray> writeJob : writeJobs) {
+			while (!writeJob.awaitDone(params.metricsIntervalMillis, TimeUnit.MILLISECONDS)) {
+				log.info(String.format("FASTQ_OBA %s; pool %s", fastq_OBA_conveyer.toString(), pool.toString()));
+				if (metrics != null)
+					metrics.report();
+			}
+		}
+		if (metrics != null)
+			metrics.report();
+
+		executor.shutdown();
+		if (prefetcher != null)
+			prefetcher.close();
+		for (int i = 0; i < nofStreams; i++) {
+			if (params.gzip)
+				outputStreams[i].write(BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK);
+			if (outputStreams[i] == System.out) {
+				outputStreams[i].flush();
+				continue;
+			}
+			outputStreams[i].close();
+			// same as the serial dump, no files for streams without reads:
+			if (collateConsumer.getBytes(i) == 0)
+				files[i].delete();
+		}
+	}
+
+	@Parameters(commandDescription = "CRAM to FastQ multithreaded dump. ")
+	static class Params {
+		@Parameter(names = { "-l", "--log-level" }, description = "Change log level: DEBUG, INFO, WARNING, ERROR.", converter = CramTools.LevelConverter.class)
+		Log.LogLevel logLevel = Log.LogLevel.ERROR;
+
+		@Parameter(names = { "--input-cram-file", "-I" }, converter = FileConverter.class, description = "The path to the CRAM file to uncompress. Omit if standard input (pipe).")
+		File cramFile;
+
+		@Parameter(names = { "--reference-fasta-file", "-R" }, converter = FileConverter.class, description = "The reference fasta file, uncompressed and indexed (.fai file, use 'samtools faidx'). ")
+		File referenceFasta;
+
+		@Parameter(names = { "--reference-image" }, converter = FileConverter.class, description = "A packed reference image to memory map and share between processes, created from the reference fasta file if it does not exist.")
+		File referenceImage;
+
+		@Parameter(names = { "--fastq-base-name", "-F" }, description = "'_number.fastq[.gz] will be appended to this string to obtain output fastq file name. If this parameter is omitted then all reads are printed to standard output.")
+		String fastqBaseName;
+
+		@Parameter(names = { "--gzip", "-z" }, description = "Compress fastq files as BGZF, which any gzip reader can decompress.")
+		boolean gzip;
+
+		@Parameter(names = { "--reverse" }, description = "Re-reverse reads mapped to negative strand.")
+		boolean reverse = false;
+
+		@Parameter(names = { "--read-name-prefix" }, description = "Replace read names with this prefix and a sequential integer.")
+		String prefix = null;
+
+		@Parameter(names = { "--default-quality-score" }, description = "Use this quality score (decimal representation of ASCII symbol) as a default value when the original quality score was lost due to compression. Minimum is 33.")
+		int defaultQS = '?';
+
+		@Parameter(names = { "--ignore-md5-mismatch" }, description = "Issue a warning on sequence MD5 mismatch and continue. This does not garantee the data will be read succesfully. ")
+		public boolean ignoreMD5Mismatch = false;
+
+		@Parameter(names = { "--skip-md5-check" }, description = "Skip MD5 checks when reading the header.")
+		public boolean skipMD5Checks = false;
+
+		@Parameter(names = { "-h", "--help" }, description = "Print help and quit")
+		boolean help = false;
+
+		@Parameter(names = { "--threads" }, description = "Number of threads to use, 0 for number of available cores.")
+		public int threads = 0;
+
+		@Parameter(names = { "--executor" }, description = "How jobs are run: 'work-stealing' shares the threads between all stages, 'thread-per-job' gives each job its own thread.")
+		public String executor = JobExecutor.WORK_STEALING;
+
+		@Parameter(names = { "--metrics-file" }, description = "Write progress and throughput metrics as JSON lines to this file, '-' for standard error.")
+		public String metricsFile = null;
+
+		@Parameter(names = { "--metrics-interval-ms" }, description = "Interval between metrics lines in milliseconds.")
+		public long metricsIntervalMillis = 1000;
+
+		@Parameter(names = { "--decode-threads" }, description = "Number of jobs decoding CRAM containers, 0 to derive from the number of threads.")
+		public int decodeThreads = 0;
+
+		@Parameter(names = { "--deflate-threads" }, description = "Number of jobs compressing each output fastq stream, 0 to derive from the number of threads.")
+		public int deflateThreads = 0;
+
+		@Parameter(names = { "--compression-level" }, description = "Compression level for the output fastq, 0-9.")
+		public int compressionLevel = Defaults.COMPRESSION_LEVEL;
+
+		@Parameter(names = { "--reorder-window" }, description = "Maximum number of chunks a stage can run ahead of the next one in order, 0 to derive from the number of threads.")
+		public int reorderWindow = 0;
+
+		@Parameter(names = { "--reorder-buffer-mb" }, description = "Maximum number of megabytes held for reordering by each stage.")
+		public int reorderBufferMB = 256;
+
+		@Parameter(names = { "--prefetch-threads" }, description = "Number of threads loading the reference ahead of decoding, 0 to disable.")
+		public int prefetchThreads = 1;
+
+		@Parameter(names = { "--ref-cache-mb" }, description = "Maximum number of megabytes of reference bases kept in memory, 0 for half of the maximum heap size.")
+		public int refCacheMB = 0;
+	}
+}
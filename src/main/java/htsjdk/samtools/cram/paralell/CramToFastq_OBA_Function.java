@@ -0,0 +1,136 @@
+/*
+ * Copyright 2012 - 2018 EMBL - European Bioinformatics Institute
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package htsjdk.samtools.cram.paralell;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.cram.encoding.reader.AbstractFastqReader;
+import htsjdk.samtools.cram.encoding.reader.FastqRead;
+import htsjdk.samtools.cram.structure.Container;
+import htsjdk.samtools.cram.structure.ContainerIO;
+import htsjdk.samtools.cram.structure.CramHeader;
+import htsjdk.samtools.cram.structure.Slice;
+import htsjdk.samtools.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.function.Function;
+
+import net.sf.cram.ref.ReferenceSource;
+
+/**
+ * Decodes a CRAM container into fastq records, in the order they are stored.
+ * Each record is framed for {@link FastqCollate_OBA_Consumer} as:
+ * <ul>
+ * <li>byte: template index</li>
+ * <li>int: read name length</li>
+ * <li>int: record length</li>
+ * <li>the fastq record</li>
+ * </ul>
+ */
+class CramToFastq_OBA_Function implements Function<OrderedByteArray, OrderedByteArray> {
+	private static Log log = Log.getInstance(CramToFastq_OBA_Function.class);
+	static final int FRAME_HEADER_LENGTH = 9;
+
+	private CramHeader header;
+	private ByteArrayPool pool;
+	private FramingReader reader;
+	private volatile long records = 0;
+
+	CramToFastq_OBA_Function(CramHeader header, ReferenceSource referenceSource, ByteArrayPool pool) {
+		this.header = header;
+		this.pool = pool;
+		reader = new FramingReader(header.getSamFileHeader(), referenceSource);
+		// same read numbers for reads without names as the serial fastq dump:
+		reader.counterOffset = 1;
+		log.info("converter created");
+	}
+
+	void setReverseNegativeReads(boolean reverse) {
+		reader.reverseNegativeReads = reverse;
+	}
+
+	void setDefaultQualityScore(int defaultQS) {
+		reader.defaultQS = defaultQS;
+	}
+
+	/**
+	 * @return number of records converted by this function so far
+	 */
+	long getRecordCount() {
+		return records;
+	}
+
+	@Override
+	public OrderedByteArray apply(OrderedByteArray object) {
+		if (object == null)
+			throw new NullPointerException();
+
+		log.debug("processing container " + object.order);
+		try {
+			Container container = ContainerIO.readContainer(header.getVersion(), new ByteArrayInputStream(
+					object.bytes, object.offset, object.length));
+			object.release();
+			if (container.isEOF())
+				return null;
+
+			reader.os = new OBAOutputStream(pool, container.containerByteSize * 4);
+			for (Slice slice : container.slices) {
+				reader.startSlice(slice, container.header, header.getSamFileHeader());
+				for (int i = 0; i < slice.nofRecords; i++)
+					reader.read();
+			}
+			records += container.nofRecords;
+			log.debug(String.format("Converted OBA %d, records %d", object.order, container.nofRecords));
+			return reader.os.toOBA(object.order);
+		} catch (IOException | IllegalArgumentException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static class FramingReader extends AbstractFastqReader {
+		private SAMFileHeader samFileHeader;
+		private OBAOutputStream os;
+		private ByteBuffer frame = ByteBuffer.allocate(1024);
+
+		FramingReader(SAMFileHeader samFileHeader, ReferenceSource referenceSource) {
+			this.samFileHeader = samFileHeader;
+			this.referenceSource = referenceSource;
+		}
+
+		@Override
+		protected void writeRead(byte[] name, int flags, byte[] bases, byte[] scores) {
+			int templateIndex = getSegmentIndexInTemplate(flags);
+			int length = FastqRead.length(readLength, readNameLength, appendSegmentIndexToReadNames, templateIndex);
+			if (frame.capacity() < FRAME_HEADER_LENGTH + length)
+				frame = ByteBuffer.allocate(FRAME_HEADER_LENGTH + length);
+			frame.clear();
+			frame.put((byte) templateIndex);
+			frame.putInt(readNameLength);
+			frame.putInt(length);
+			FastqRead.write(frame, readLength, name, readNameLength, appendSegmentIndexToReadNames, templateIndex,
+					bases, scores);
+			os.write(frame.array(), 0, frame.position());
+		}
+
+		@Override
+		protected byte[] refSeqChanged(int seqID) {
+			SAMSequenceRecord sequence = samFileHeader.getSequence(seqID);
+			return referenceSource.getReferenceBases(sequence, true);
+		}
+
+		@Override
+		public void finish() {
+		}
+	}
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2012 - 2018 EMBL - European Bioinformatics Institute
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package htsjdk.samtools.cram.paralell;
+
+import htsjdk.samtools.cram.encoding.reader.FastqCollator;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.function.Consumer;
+
+/**
+ * Collates the fastq records framed by {@link CramToFastq_OBA_Function}, in
+ * container order, and passes the output of each container to the conveyer of
+ * its stream with the same order. Every conveyer receives a chunk for every
+ * container, empty if need be, followed by one more chunk with the reads left
+ * over by {@link #finish()}.
+ */
+class FastqCollate_OBA_Consumer implements Consumer<OrderedByteArray> {
+	private FastqCollator collator;
+	private OBAOutputStream[] streams;
+	private Conveyer<OrderedByteArray>[] conveyers;
+	private long[] bytes;
+	private long order = 0;
+
+	/**
+	 * @param conveyers
+	 *            the output conveyers by template index, or a single conveyer
+	 *            taking all reads
+	 */
+	FastqCollate_OBA_Consumer(Conveyer<OrderedByteArray>[] conveyers, ByteArrayPool pool, String spillFilePrefix,
+			long counter) {
+		this.conveyers = conveyers;
+		streams = new OBAOutputStream[conveyers.length];
+		for (int i = 0; i < streams.length; i++) {
+			streams[i] = new OBAOutputStream(pool, 64 * 1024);
+			conveyers[i].addSupplier();
+		}
+		bytes = new long[conveyers.length];
+
+		OutputStream[] templateStreams = new OutputStream[3];
+		for (int i = 0; i < templateStreams.length; i++)
+			templateStreams[i] = streams[streams.length == 1 ? 0 : i];
+		collator = new FastqCollator(templateStreams, spillFilePrefix, counter);
+	}
+
+	void setPrefix(byte[] prefix) {
+		collator.setPrefix(prefix);
+	}
+
+	/**
+	 * @return number of uncompressed bytes passed to the conveyer so far
+	 */
+	long getBytes(int index) {
+		return bytes[index];
+	}
+
+	@Override
+	public void accept(OrderedByteArray chunk) {
+		try {
+			int pos = chunk.offset;
+			int end = chunk.offset + chunk.length;
+			while (pos < end) {
+				int templateIndex = chunk.bytes[pos];
+				int nameLength = getInt(chunk.bytes, pos + 1);
+				int length = getInt(chunk.bytes, pos + 5);
+				pos += CramToFastq_OBA_Function.FRAME_HEADER_LENGTH;
+				collator.add(chunk.bytes, pos, length, nameLength, templateIndex);
+				pos += length;
+			}
+			chunk.release();
+			flush();
+		} catch (IOException | InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Write out the reads still waiting for their mates and close the output
+	 * conveyers.
+	 */
+	void finish() throws IOException, InterruptedException {
+		collator.finish();
+		flush();
+		for (Conveyer<OrderedByteArray> conveyer : conveyers)
+			conveyer.close();
+	}
+
+	private void flush() throws InterruptedException {
+		for (int i = 0; i < streams.length; i++) {
+			bytes[i] += streams[i].size();
+			conveyers[i].put(streams[i].toOBA(order));
+		}
+		order++;
+	}
+
+	private static int getInt(byte[] buf, int offset) {
+		return ((buf[offset] & 0xFF) << 24) | ((buf[offset + 1] & 0xFF) << 16) | ((buf[offset + 2] & 0xFF) << 8)
+				| (buf[offset + 3] & 0xFF);
+	}
+}
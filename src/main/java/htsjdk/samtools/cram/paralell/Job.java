@@ -13,14 +13,35 @@ package htsjdk.samtools.cram.paralell;
 
 import htsjdk.samtools.util.Log;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * A pipeline stage worker. A job can either run on a dedicated thread through
+ * {@link #run()}, blocking on its conveyers, or be driven step by step by a
+ * {@link JobExecutor} which calls {@link #step()} only while the job is ready.
+ */
 abstract class Job implements Runnable {
 	private static Log log = Log.getInstance(Job.class);
+	private static final ThreadLocal<Job> current = new ThreadLocal<Job>();
 	private AtomicBoolean stop = new AtomicBoolean(false);
 	private AtomicBoolean done = new AtomicBoolean(false);
+	private CountDownLatch finished = new CountDownLatch(1);
 	private Exception exception;
 	private String name;
+	private List<Conveyer<?>> dependencies = new ArrayList<Conveyer<?>>();
+	private List<Conveyer<?>> conveyers = new ArrayList<Conveyer<?>>();
+	protected volatile boolean blocking = true;
+	private volatile long startNanos = 0;
+	private volatile long endNanos = 0;
+	private final AtomicLong runNanos = new AtomicLong(0);
+	private final AtomicLong waitNanos = new AtomicLong(0);
+	private final AtomicLong steps = new AtomicLong(0);
 
 	public String getName() {
 		return name;
@@ -39,32 +60,142 @@ abstract class Job implements Runnable {
 		stop.set(true);
 	}
 
+	public boolean isStopped() {
+		return stop.get();
+	}
+
 	public boolean isDone() {
 		return done.get();
 	}
 
+	/**
+	 * Wait for the job to finish, including {@link #doFinish()}.
+	 * 
+	 * @param timeout
+	 *            the maximum time to wait
+	 * @param unit
+	 *            the time unit of the timeout argument
+	 * @return true if the job has finished, false if the timeout elapsed
+	 * @throws InterruptedException
+	 *             if interrupted while waiting
+	 */
+	public boolean awaitDone(long timeout, TimeUnit unit) throws InterruptedException {
+		return finished.await(timeout, unit);
+	}
+
+	/**
+	 * Declare a conveyer this job reads from indirectly, for example through a
+	 * supplier. The job is not ready until the conveyer has an object
+	 * available or is closed.
+	 */
+	void dependsOn(Conveyer<?> conveyer) {
+		dependencies.add(conveyer);
+		watch(conveyer);
+	}
+
+	/**
+	 * Declare a conveyer whose changes can make this job ready, for example
+	 * an output conveyer that may have no space left.
+	 */
+	protected void watch(Conveyer<?> conveyer) {
+		conveyers.add(conveyer);
+	}
+
+	/**
+	 * @return all conveyers whose changes can make this job ready
+	 */
+	List<Conveyer<?>> getConveyers() {
+		return conveyers;
+	}
+
+	/**
+	 * Check if a call to {@link #step()} is likely to make progress without
+	 * blocking.
+	 */
+	boolean isReady() {
+		for (Conveyer<?> conveyer : dependencies)
+			if (!conveyer.isAvailable() && !conveyer.isClosed())
+				return false;
+		return true;
+	}
+
+	/**
+	 * Use non-blocking conveyer operations where possible, for jobs driven by
+	 * {@link #step()}.
+	 */
+	void setBlocking(boolean blocking) {
+		this.blocking = blocking;
+	}
+
+	/**
+	 * Account time spent waiting on a conveyer to the job running in the
+	 * current thread, if any.
+	 */
+	static void waited(long nanos) {
+		Job job = current.get();
+		if (job != null)
+			job.waitNanos.addAndGet(nanos);
+	}
+
+	/**
+	 * Add the job metrics: busy nanoseconds exclude waits on conveyers, idle
+	 * nanoseconds are the rest of the time since the job was first run.
+	 */
+	void describe(Map<String, Object> values) {
+		long start = startNanos;
+		long end = endNanos == 0 ? System.nanoTime() : endNanos;
+		long busy = runNanos.get() - waitNanos.get();
+		values.put("done", isDone());
+		values.put("steps", steps.get());
+		values.put("busy_ns", busy);
+		values.put("idle_ns", start == 0 ? 0 : Math.max(0, end - start - busy));
+	}
+
 	@Override
 	public void run() {
 		log.info("Starting job: " + getClass().getName() + ", name: " + getName());
-		while (!stop.get()) {
+		while (step())
+			;
+	}
+
+	/**
+	 * Run one iteration of the job and finish the job once it has stopped.
+	 * 
+	 * @return false if the job has finished, true otherwise
+	 */
+	boolean step() {
+		if (!stop.get()) {
+			long time = System.nanoTime();
+			if (startNanos == 0)
+				startNanos = time;
+			current.set(this);
 			try {
 				doRun();
-				Thread.yield();
-
 			} catch (Exception e) {
 				e.printStackTrace();
 				stop();
+			} finally {
+				current.remove();
+				steps.incrementAndGet();
+				runNanos.addAndGet(System.nanoTime() - time);
 			}
 		}
-		done.set(true);
-		log.info("Finished job: " + getClass().getName() + ", name: " + getName());
-		try {
-			doFinish();
-		} catch (Exception exception) {
-			exception.printStackTrace();
-			this.exception = exception;
-			stop();
+		if (!stop.get())
+			return true;
+
+		if (done.compareAndSet(false, true)) {
+			log.info("Finished job: " + getClass().getName() + ", name: " + getName());
+			try {
+				doFinish();
+			} catch (Exception exception) {
+				exception.printStackTrace();
+				this.exception = exception;
+			} finally {
+				endNanos = System.nanoTime();
+				finished.countDown();
+			}
 		}
+		return false;
 	}
 
 	protected abstract void doRun() throws Exception;
@@ -72,4 +203,4 @@ abstract class Job implements Runnable {
 	protected void doFinish() throws Exception {
 
 	}
-}
\ No newline at end of file
+}
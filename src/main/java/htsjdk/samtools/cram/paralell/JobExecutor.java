@@ -0,0 +1,50 @@
+/*
+ * Copyright 2012 - 2018 EMBL - European Bioinformatics Institute
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package htsjdk.samtools.cram.paralell;
+
+import java.util.List;
+
+/**
+ * Runs the jobs of a pipeline. Implementations decide how jobs are mapped to
+ * threads, see {@link ThreadPerJobExecutor} and
+ * {@link WorkStealingJobExecutor}.
+ */
+interface JobExecutor {
+	static final String WORK_STEALING = "work-stealing";
+	static final String THREAD_PER_JOB = "thread-per-job";
+
+	/**
+	 * Start running the jobs. Completion is tracked by the jobs themselves,
+	 * see {@link Job#awaitDone(long, java.util.concurrent.TimeUnit)}.
+	 */
+	void execute(List<Job> jobs);
+
+	void shutdown();
+
+	/**
+	 * Create an executor by name.
+	 * 
+	 * @param name
+	 *            {@value #WORK_STEALING} or {@value #THREAD_PER_JOB}
+	 * @param parallelism
+	 *            the number of threads doing work at the same time, used by
+	 *            the work stealing executor only
+	 * @return a new executor
+	 */
+	static JobExecutor create(String name, int parallelism) {
+		if (WORK_STEALING.equals(name))
+			return new WorkStealingJobExecutor(parallelism);
+		if (THREAD_PER_JOB.equals(name))
+			return new ThreadPerJobExecutor();
+		throw new IllegalArgumentException("Unknown executor: " + name);
+	}
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2012 - 2018 EMBL - European Bioinformatics Institute
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package htsjdk.samtools.cram.paralell;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * A registry of the jobs, conveyers and counters of a pipeline. Each call to
+ * {@link #report()} writes a snapshot of all of them as one line of JSON, for
+ * example:
+ * 
+ * <pre>
+ * {"tool":"BamToCram","time_ms":...,"elapsed_ms":...,"counters":{"records":...},
+ *  "jobs":{"BC_CONVERTER_0":{"done":false,"steps":...,"busy_ns":...,"idle_ns":...}},
+ *  "conveyers":{"CRAM_OBA":{"closed":false,"depth":...,...}}}
+ * </pre>
+ * 
+ * The registry is not thread safe for registration, which is expected to
+ * happen before the pipeline starts. Values are read without locking and are
+ * only approximately consistent with each other.
+ */
+class Metrics {
+	private final String tool;
+	private final PrintStream out;
+	private final long startNanos = System.nanoTime();
+	private final Map<String, LongSupplier> counters = new LinkedHashMap<String, LongSupplier>();
+	private final Map<String, Job> jobs = new LinkedHashMap<String, Job>();
+	private final Map<String, Conveyer<?>> conveyers = new LinkedHashMap<String, Conveyer<?>>();
+
+	/**
+	 * @param tool
+	 *            the name of the tool reported with each line
+	 * @param out
+	 *            a stream to write JSON lines to
+	 */
+	Metrics(String tool, PrintStream out) {
+		this.tool = tool;
+		this.out = out;
+	}
+
+	/**
+	 * Open a metrics destination.
+	 * 
+	 * @param path
+	 *            a file path or "-" for the standard error stream
+	 * @return a print stream to write metrics to
+	 * @throws FileNotFoundException
+	 *             if the file cannot be opened for writing
+	 */
+	static PrintStream open(String path) throws FileNotFoundException {
+		if ("-".equals(path))
+			return System.err;
+		return new PrintStream(new FileOutputStream(new File(path)), true);
+	}
+
+	void counter(String name, LongSupplier value) {
+		counters.put(name, value);
+	}
+
+	void job(Job job) {
+		jobs.put(job.getName(), job);
+	}
+
+	void jobs(Iterable<Job> jobs) {
+		for (Job job : jobs)
+			job(job);
+	}
+
+	void conveyer(String name, Conveyer<?> conveyer) {
+		conveyers.put(name, conveyer);
+	}
+
+	/**
+	 * @return a snapshot of all registered metrics as a single line of JSON
+	 */
+	String toJson() {
+		Map<String, Object> line = new LinkedHashMap<String, Object>();
+		line.put("tool", tool);
+		line.put("time_ms", System.currentTimeMillis());
+		line.put("elapsed_ms", (System.nanoTime() - startNanos) / 1000000);
+
+		Map<String, Object> counterValues = new LinkedHashMap<String, Object>();
+		for (Map.Entry<String, LongSupplier> entry : counters.entrySet())
+			counterValues.put(entry.getKey(), entry.getValue().getAsLong());
+		line.put("counters", counterValues);
+
+		Map<String, Object> jobValues = new LinkedHashMap<String, Object>();
+		for (Map.Entry<String, Job> entry : jobs.entrySet()) {
+			Map<String, Object> values = new LinkedHashMap<String, Object>();
+			entry.getValue().describe(values);
+			jobValues.put(entry.getKey(), values);
+		}
+		line.put("jobs", jobValues);
+
+		Map<String, Object> conveyerValues = new LinkedHashMap<String, Object>();
+		for (Map.Entry<String, Conveyer<?>> entry : conveyers.entrySet()) {
+			Map<String, Object> values = new LinkedHashMap<String, Object>();
+			entry.getValue().describe(values);
+			conveyerValues.put(entry.getKey(), values);
+		}
+		line.put("conveyers", conveyerValues);
+
+		StringBuilder sb = new StringBuilder();
+		appendJson(sb, line);
+		return sb.toString();
+	}
+
+	/**
+	 * Write a snapshot of all metrics as a line of JSON.
+	 */
+	void report() {
+		out.println(toJson());
+		out.flush();
+	}
+
+	@SuppressWarnings("unchecked")
+	private static void appendJson(StringBuilder sb, Object value) {
+		if (value instanceof Map) {
+			sb.append('{');
+			boolean first = true;
+			for (Map.Entry<String, Object> entry : ((Map<String, Object>) value).entrySet()) {
+				if (!first)
+					sb.append(',');
+				first = false;
+				appendJson(sb, entry.getKey());
+				sb.append(':');
+				appendJson(sb, entry.getValue());
+			}
+			sb.append('}');
+		} else if (value instanceof Number || value instanceof Boolean) {
+			sb.append(value);
+		} else {
+			sb.append('"');
+			for (char c : String.valueOf(value).toCharArray()) {
+				if (c == '"' || c == '\\')
+					sb.append('\\').append(c);
+				else if (c < 0x20)
+					sb.append(String.format("\\u%04x", (int) c));
+				else
+					sb.append(c);
+			}
+			sb.append('"');
+		}
+	}
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2012 - 2018 EMBL - European Bioinformatics Institute
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package htsjdk.samtools.cram.paralell;
+
+import java.io.IOException;
+
+/**
+ * Builds an index from the data written by {@link OBAWriteConsumer}, so that
+ * no second pass over the output is needed.
+ */
+interface OBAIndexer {
+
+	/**
+	 * Called by the writer before the data is written.
+	 * 
+	 * @param oba
+	 *            the data about to be written
+	 * @param offset
+	 *            the offset in the output at which the data starts
+	 */
+	void index(OrderedByteArray oba, long offset);
+
+	/**
+	 * Write the index.
+	 * 
+	 * @param offset
+	 *            the offset in the output after all the data
+	 * @throws IOException
+	 *             as per java IO contract
+	 */
+	void finish(long offset) throws IOException;
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2012 - 2018 EMBL - European Bioinformatics Institute
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package htsjdk.samtools.cram.paralell;
+
+import htsjdk.samtools.cram.io.InputStreamUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * An output stream collecting bytes into a pooled array, which is handed over
+ * without copying as an {@link OrderedByteArray} by {@link #toOBA(long)}.
+ */
+class OBAOutputStream extends OutputStream {
+	private ByteArrayPool pool;
+	private byte[] buf;
+	private int size;
+	private int initialCapacity;
+
+	OBAOutputStream(ByteArrayPool pool, int initialCapacity) {
+		this.pool = pool;
+		this.initialCapacity = initialCapacity;
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (buf == null) {
+			buf = pool.acquire(Math.max(capacity, initialCapacity));
+			return;
+		}
+		if (buf.length >= capacity)
+			return;
+		byte[] newBuf = pool.acquire(Math.max(capacity, buf.length * 2));
+		System.arraycopy(buf, 0, newBuf, 0, size);
+		pool.release(buf);
+		buf = newBuf;
+	}
+
+	@Override
+	public void write(int b) {
+		ensureCapacity(size + 1);
+		buf[size++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) {
+		ensureCapacity(size + len);
+		System.arraycopy(b, off, buf, size, len);
+		size += len;
+	}
+
+	/**
+	 * Read exactly len bytes from the input stream straight into the buffer.
+	 */
+	void readFully(InputStream is, int len) throws IOException {
+		ensureCapacity(size + len);
+		InputStreamUtils.readFully(is, buf, size, len);
+		size += len;
+	}
+
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Hand the bytes written so far over to a new {@link OrderedByteArray} and
+	 * reset the stream. The stream will use a new pooled array for any further
+	 * writes.
+	 */
+	OrderedByteArray toOBA(long order) {
+		ensureCapacity(0);
+		OrderedByteArray object = new OrderedByteArray();
+		object.bytes = buf;
+		object.length = size;
+		object.order = order;
+		object.pool = pool;
+		buf = null;
+		size = 0;
+		return object;
+	}
+}
@@ -19,15 +19,51 @@ import java.util.function.Consumer;
 
 class OBAWriteConsumer implements Consumer<OrderedByteArray> {
 	private OutputStream os;
+	private volatile long bytesWritten = 0;
+	private long offset;
+	private OBAIndexer indexer;
 
 	public OBAWriteConsumer(OutputStream os) {
+		this(os, 0, null);
+	}
+
+	/**
+	 * @param os
+	 *            the stream to write to
+	 * @param offset
+	 *            number of bytes already written to the stream
+	 * @param indexer
+	 *            an indexer to pass the data to before writing, or null
+	 */
+	public OBAWriteConsumer(OutputStream os, long offset, OBAIndexer indexer) {
 		this.os = os;
+		this.offset = offset;
+		this.indexer = indexer;
+	}
+
+	long getBytesWritten() {
+		return bytesWritten;
+	}
+
+	/**
+	 * Write the index, if any, once all data has been written.
+	 * 
+	 * @throws IOException
+	 *             as per java IO contract
+	 */
+	void finishIndex() throws IOException {
+		if (indexer != null)
+			indexer.finish(offset + bytesWritten);
 	}
 
 	@Override
 	public void accept(OrderedByteArray t) {
 		try {
-			os.write(t.bytes);
+			if (indexer != null)
+				indexer.index(t, offset + bytesWritten);
+			os.write(t.bytes, t.offset, t.length);
+			bytesWritten += t.length;
+			t.release();
 		} catch (IOException e) {
 			throw new RuntimeIOException(e);
 		}
@@ -11,22 +11,55 @@
 
 package htsjdk.samtools.cram.paralell;
 
+import java.util.List;
+
+import net.sf.cram.index.CramIndex;
+
+/**
+ * A chunk of bytes with its position in the stream. The data occupies length
+ * bytes from offset in the bytes array. If the array came from a
+ * {@link ByteArrayPool} the last stage using the data should call
+ * {@link #release()} to recycle it.
+ */
 class OrderedByteArray implements Comparable<OrderedByteArray>, IOrder {
 	public byte[] bytes;
+	public int offset = 0;
+	public int length = 0;
 	public long order = 0;
+	ByteArrayPool pool;
+	/**
+	 * Index entries for the container in the bytes, with container offsets
+	 * relative to the start of the data. Set by converters when indexing.
+	 */
+	List<CramIndex.Entry> craiEntries;
+	/**
+	 * Index data for the BAM records in the bytes. Set by converters when
+	 * indexing.
+	 */
+	BaiRecords baiRecords;
+
+	/**
+	 * Return the underlying array to its pool, if any. The object must not be
+	 * used afterwards.
+	 */
+	void release() {
+		if (pool != null && bytes != null)
+			pool.release(bytes);
+		bytes = null;
+	}
 
 	@Override
 	public int compareTo(OrderedByteArray o) {
-		return (int) (order - o.order);
+		return Long.compare(order, o.order);
 	}
 
 	@Override
 	public String toString() {
-		return String.format("order=%d, data length=%d", order, bytes == null ? -1 : bytes.length);
+		return String.format("order=%d, data length=%d", order, bytes == null ? -1 : length);
 	}
 
 	@Override
 	public long order() {
 		return order;
 	}
-}
\ No newline at end of file
+}
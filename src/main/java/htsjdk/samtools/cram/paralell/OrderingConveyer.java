@@ -11,29 +11,174 @@
 
 package htsjdk.samtools.cram.paralell;
 
+import java.util.Map;
 import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.function.ToLongFunction;
 
+/**
+ * A conveyer that releases objects strictly in the order given by
+ * {@link IOrder#order()}, starting from 0. Consumers are parked until the next
+ * expected object arrives, and are only woken up when that happens or when the
+ * conveyer is closed.
+ * <p>
+ * The reorder buffer can be bounded both by a window and by a byte budget:
+ * {@link #put(IOrder)} blocks for objects that are window or more orders ahead
+ * of the next expected order, or that would take the buffered bytes over the
+ * budget. The next expected object is always accepted, so that the consumer
+ * can make progress and release the blocked suppliers.
+ * 
+ * @param <O>
+ */
 final class OrderingConveyer<O extends IOrder> extends Conveyer<O> {
-	private long order = 0;
+	private volatile long order = 0;
+	private final int window;
+	private final long maxBufferedBytes;
+	private final ToLongFunction<? super O> sizeOf;
+	private final AtomicLong bufferedBytes = new AtomicLong(0);
+	private final AtomicLong maxOrder = new AtomicLong(-1);
+	private final Condition windowMoved = lock.newCondition();
 
 	public OrderingConveyer() {
+		this(0);
+	}
+
+	/**
+	 * @param window
+	 *            maximum number of orders the suppliers can run ahead of the
+	 *            consumer, 0 for unlimited
+	 */
+	public OrderingConveyer(int window) {
+		this(window, 0, null);
+	}
+
+	/**
+	 * @param window
+	 *            maximum number of orders the suppliers can run ahead of the
+	 *            consumer, 0 for unlimited
+	 * @param maxBufferedBytes
+	 *            maximum number of bytes held in the conveyer, 0 for unlimited
+	 * @param sizeOf
+	 *            a function returning the size of an object in bytes
+	 */
+	public OrderingConveyer(int window, long maxBufferedBytes, ToLongFunction<? super O> sizeOf) {
 		super(new PriorityBlockingQueue<O>(), 0);
+		this.window = window;
+		this.maxBufferedBytes = maxBufferedBytes;
+		this.sizeOf = sizeOf;
+	}
+
+	/**
+	 * Create a conveyer of {@link OrderedByteArray} bounded by both a window
+	 * and a byte budget.
+	 */
+	static OrderingConveyer<OrderedByteArray> createBounded(int window, long maxBufferedBytes) {
+		return new OrderingConveyer<OrderedByteArray>(window, maxBufferedBytes, o -> o.length);
+	}
+
+	private long sizeOf(O object) {
+		return sizeOf == null ? 0 : sizeOf.applyAsLong(object);
+	}
+
+	private boolean mustWait(O object, long size) {
+		if (object.order() == order)
+			return false;
+		if (window > 0 && object.order() >= order + window)
+			return true;
+		return maxBufferedBytes > 0 && bufferedBytes.get() + size > maxBufferedBytes;
+	}
+
+	@Override
+	void put(O object) throws InterruptedException {
+		long size = sizeOf(object);
+		lock.lockInterruptibly();
+		try {
+			while (mustWait(object, size))
+				awaitSpace(windowMoved);
+			bufferedBytes.addAndGet(size);
+		} finally {
+			lock.unlock();
+		}
+		maxOrder.accumulateAndGet(object.order(), Math::max);
+		super.put(object);
+	}
+	@Override
+	protected void signal(O object) {
+		if (object.order() == order)
+			super.signal(object);
+	}
+
+	@Override
+	boolean isAvailable() {
+		O bb = queue.peek();
+		return bb != null && bb.order() == order;
 	}
 
 	@Override
-	public O tryAdvance() throws InterruptedException {
+	boolean canAccept() {
+		return (window == 0 || getWindowOccupancy() < window)
+				&& (maxBufferedBytes == 0 || bufferedBytes.get() < maxBufferedBytes);
+	}
+
+	@Override
+	protected O take() {
 		O bb = queue.peek();
-		if (bb == null || bb.order() > order) {
+		if (bb == null || bb.order() > order)
 			return null;
-		}
 
-		if (bb.order() == order) {
-			queue.take();
-			order++;
-			counter.incrementAndGet();
-			return bb;
-		}
+		if (bb.order() < order)
+			throw new RuntimeException(String.format("Expecting order %d but got %d", order, bb.order()));
+
+		queue.poll();
+		order++;
+		bufferedBytes.addAndGet(-sizeOf(bb));
+		windowMoved.signalAll();
+		return bb;
+	}
+
+	@Override
+	protected void checkDrained() {
+		O bb = queue.peek();
+		if (bb != null)
+			throw new RuntimeException(String.format("Expecting order %d but got %d after close", order, bb.order()));
+	}
 
-		throw new RuntimeException(String.format("Expecting order %d but got ", order, bb.order()));
+	/**
+	 * @return the next order expected by the consumer
+	 */
+	long getNextOrder() {
+		return order;
+	}
+
+	/**
+	 * @return number of orders between the next expected one and the furthest
+	 *         one received so far
+	 */
+	long getWindowOccupancy() {
+		return Math.max(0, maxOrder.get() - order + 1);
+	}
+
+	/**
+	 * @return number of bytes held in the conveyer
+	 */
+	long getBufferedBytes() {
+		return bufferedBytes.get();
+	}
+
+	@Override
+	void describe(Map<String, Object> values) {
+		super.describe(values);
+		values.put("next_order", order);
+		values.put("window_occupancy", getWindowOccupancy());
+		values.put("window", window);
+		values.put("buffered_bytes", bufferedBytes.get());
+		values.put("max_buffered_bytes", maxBufferedBytes);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s[next=%d, window=%d/%d, buffered=%dKB/%dKB]", super.toString(), order,
+				getWindowOccupancy(), window, bufferedBytes.get() >> 10, maxBufferedBytes >> 10);
 	}
 }
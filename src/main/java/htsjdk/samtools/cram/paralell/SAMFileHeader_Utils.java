@@ -31,7 +31,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
-class SAMFileHeader_Utils {
+public class SAMFileHeader_Utils {
 	static SAMFileHeader readHeader(final BinaryCodec stream, final ValidationStringency validationStringency,
 			final String source) throws IOException {
 
@@ -81,6 +81,38 @@ class SAMFileHeader_Utils {
 		return samFileHeader;
 	}
 
+	/**
+	 * Calculate the length of a binary BAM header (magic, text and sequence
+	 * dictionary) at the start of the given uncompressed data.
+	 * 
+	 * @param data
+	 *            uncompressed BAM data
+	 * @param length
+	 *            number of bytes available in the data array
+	 * @return the header length in bytes or -1 if the data does not contain a
+	 *         complete header yet
+	 */
+	static int headerLength(final byte[] data, final int length) {
+		if (length < 8)
+			return -1;
+		long pos = 8 + (readInt(data, 4) & 0xFFFFFFFFL);
+		if (pos + 4 > length)
+			return -1;
+		final int sequenceCount = readInt(data, (int) pos);
+		pos += 4;
+		for (int i = 0; i < sequenceCount; i++) {
+			if (pos + 4 > length)
+				return -1;
+			pos += 4 + (readInt(data, (int) pos) & 0xFFFFFFFFL) + 4;
+		}
+		return pos > length ? -1 : (int) pos;
+	}
+
+	static int readInt(final byte[] data, final int offset) {
+		return (data[offset] & 0xFF) | ((data[offset + 1] & 0xFF) << 8) | ((data[offset + 2] & 0xFF) << 16)
+				| ((data[offset + 3] & 0xFF) << 24);
+	}
+
 	private static SAMSequenceRecord readSequenceRecord(final BinaryCodec stream, final String source) {
 		final int nameLength = stream.readInt();
 		if (nameLength <= 1) {
@@ -114,7 +146,7 @@ class SAMFileHeader_Utils {
 	 * version of the header, if one already has both the samFileHeader and the
 	 * String, use the version of this method which takes both.
 	 */
-	static void writeHeader(final BinaryCodec outputBinaryCodec, final SAMFileHeader samFileHeader) {
+	public static void writeHeader(final BinaryCodec outputBinaryCodec, final SAMFileHeader samFileHeader) {
 		// Do not use SAMFileHeader.getTextHeader() as it is not updated when
 		// changes to the underlying object are made
 		final String headerString;
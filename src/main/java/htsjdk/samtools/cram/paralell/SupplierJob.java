@@ -21,13 +21,16 @@ class SupplierJob<O> extends Job {
 		this.outQueue = outQueue;
 		this.supplier = supplier;
 		outQueue.addSupplier();
+		watch(outQueue);
+	}
+
+	@Override
+	boolean isReady() {
+		return super.isReady() && outQueue.canAccept();
 	}
 
 	@Override
 	protected void doRun() throws Exception {
-		if (outQueue.remainingCapacity() == 0) {
-			Thread.sleep(100);
-		}
 		O object = supplier.get();
 		if (object == null) {
 			stop();
@@ -0,0 +1,37 @@
+/*
+ * Copyright 2012 - 2018 EMBL - European Bioinformatics Institute
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package htsjdk.samtools.cram.paralell;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs each job on its own thread for the whole lifetime of the job, blocking
+ * on the job's conveyers.
+ */
+class ThreadPerJobExecutor implements JobExecutor {
+	private ExecutorService executor;
+
+	@Override
+	public void execute(List<Job> jobs) {
+		executor = Executors.newFixedThreadPool(jobs.size());
+		for (Job job : jobs)
+			executor.execute(job);
+	}
+
+	@Override
+	public void shutdown() {
+		if (executor != null)
+			executor.shutdown();
+	}
+}
@@ -23,17 +23,21 @@ class TransformerJob<I, O> extends Job {
 		this.outQueue = outQueue;
 		this.function = function;
 		outQueue.addSupplier();
+		dependsOn(inQueue);
+		watch(outQueue);
 	}
 
 	@Override
-	protected void doRun() throws Exception {
-		if (inQueue.hasCompleted()) {
-			stop();
-			return;
-		}
+	boolean isReady() {
+		return super.isReady() && outQueue.canAccept();
+	}
 
-		I input = inQueue.tryAdvance();
+	@Override
+	protected void doRun() throws Exception {
+		I input = blocking ? inQueue.tryAdvance() : inQueue.poll();
 		if (input == null) {
+			if (blocking || inQueue.hasCompleted())
+				stop();
 			return;
 		}
 		O output = function.apply(input);
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2012 - 2018 EMBL - European Bioinformatics Institute
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package htsjdk.samtools.cram.paralell;
+
+import htsjdk.samtools.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs jobs as short tasks on a {@link ForkJoinPool}. A job is scheduled when
+ * one of its conveyers changes and runs for a few steps while it is ready, so
+ * that any idle worker can help whichever stage has work. Jobs are switched to
+ * non-blocking mode; the remaining waits inside the conveyers are managed so
+ * that the pool keeps its parallelism.
+ */
+class WorkStealingJobExecutor implements JobExecutor {
+	private static final Log log = Log.getInstance(WorkStealingJobExecutor.class);
+	private static final int STEPS_PER_TASK = 16;
+	private final ForkJoinPool pool;
+
+	WorkStealingJobExecutor(int parallelism) {
+		pool = new ForkJoinPool(parallelism, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+		log.info("Created work stealing pool with parallelism " + parallelism);
+	}
+
+	@Override
+	public void execute(List<Job> jobs) {
+		List<ScheduledJob> scheduledJobs = new ArrayList<ScheduledJob>();
+		for (Job job : jobs) {
+			job.setBlocking(false);
+			ScheduledJob scheduledJob = new ScheduledJob(job);
+			for (Conveyer<?> conveyer : job.getConveyers())
+				conveyer.addListener(scheduledJob::schedule);
+			scheduledJobs.add(scheduledJob);
+		}
+		for (ScheduledJob scheduledJob : scheduledJobs)
+			scheduledJob.schedule();
+	}
+
+	@Override
+	public void shutdown() {
+		pool.shutdown();
+	}
+
+	private class ScheduledJob implements Runnable {
+		private final Job job;
+		private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+		ScheduledJob(Job job) {
+			this.job = job;
+		}
+
+		void schedule() {
+			if (!job.isDone() && scheduled.compareAndSet(false, true))
+				pool.execute(this);
+		}
+
+		@Override
+		public void run() {
+			for (int i = 0; i < STEPS_PER_TASK && (job.isReady() || job.isStopped()); i++) {
+				if (!job.step())
+					return;
+			}
+			scheduled.set(false);
+			// a conveyer may have changed after the last check but before the
+			// flag was cleared:
+			if (job.isReady() || job.isStopped())
+				schedule();
+		}
+	}
+}
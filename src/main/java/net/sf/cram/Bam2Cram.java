@@ -24,7 +24,6 @@ import htsjdk.samtools.SamReader;
 import htsjdk.samtools.SamReaderFactory;
 import htsjdk.samtools.ValidationStringency;
 import htsjdk.samtools.cram.CramLossyOptions;
-import htsjdk.samtools.cram.lossy.QualityScorePreservation;
 import htsjdk.samtools.util.Log;
 
 import java.io.BufferedOutputStream;
@@ -118,20 +117,7 @@ public class Bam2Cram {
 			samReader = f.open(params.bamFile);
 		SAMFileHeader samFileHeader = samReader.getFileHeader().clone();
 
-		CramLossyOptions lossyOptions = new CramLossyOptions();
-		lossyOptions.setCaptureAllTags(params.captureAllTags);
-		lossyOptions.setCaptureTags(params.captureTags);
-		lossyOptions.setIgnoreTags(params.ignoreTags);
-		lossyOptions.setPreserveReadNames(params.preserveReadNames);
-
-		if (params.losslessQS) {
-			lossyOptions.setPreservation(QualityScorePreservation.lossless());
-		} else {
-			if (params.qsSpec == null || params.qsSpec.length() == 0)
-				lossyOptions.setPreservation(QualityScorePreservation.dropAll());
-			else
-				lossyOptions.setPreservation(QualityScorePreservation.lossyFromSpec(params.qsSpec));
-		}
+		CramLossyOptions lossyOptions = createLossyOptions(params);
 		log.info("Lossiness: " + lossyOptions);
 
 		OutputStream os = openOutputStream(params.outputCramFile, params.encrypt, pass);
@@ -191,6 +177,13 @@ public class Bam2Cram {
 		os.close();
 	}
 
+	static CramLossyOptions createLossyOptions(Params params) {
+		return new CramLossyOptions().setCaptureAllTags(params.captureAllTags).setCaptureTags(params.captureTags)
+				.setIgnoreTags(params.ignoreTags)
+				.setPreserveReadNames(params.preserveReadNames || !params.dropReadNames)
+				.setPreservation(CramLossyOptions.qualityScorePreservation(params.losslessQS, params.qsSpec));
+	}
+
 	@Parameters(commandDescription = "BAM to CRAM converter. ")
 	static class Params {
 		@Parameter(names = { "-l", "--log-level" }, description = "Change log level: DEBUG, INFO, WARNING, ERROR.", converter = CramTools.LevelConverter.class)
@@ -214,9 +207,12 @@ public class Bam2Cram {
 		@Parameter(names = { "-h", "--help" }, description = "Print help and quit")
 		boolean help = false;
 
-		@Parameter(names = { "--preserve-read-names", "-n" }, description = "Preserve all read names.")
+		@Parameter(names = { "--preserve-read-names", "-n" }, description = "Preserve all read names. This is the default unless '--drop-read-names' is given.")
 		boolean preserveReadNames = false;
 
+		@Parameter(names = { "--drop-read-names" }, description = "Do not preserve read names, names are generated when reading.")
+		boolean dropReadNames = false;
+
 		@Parameter(names = { "--lossless-quality-score", "-Q" }, description = "Preserve all quality scores. Overwrites '--lossless-quality-score'.")
 		boolean losslessQS = false;
 
@@ -15,6 +15,7 @@
  ******************************************************************************/
 package net.sf.cram;
 
+import htsjdk.samtools.BamFileIoUtils;
 import htsjdk.samtools.Defaults;
 import htsjdk.samtools.IndexAggregate;
 import htsjdk.samtools.SAMFileWriter;
@@ -26,11 +27,14 @@ import htsjdk.samtools.cram.build.ContainerParser;
 import htsjdk.samtools.cram.build.Cram2SamRecordFactory;
 import htsjdk.samtools.cram.build.CramIO;
 import htsjdk.samtools.cram.build.CramNormalizer;
+import htsjdk.samtools.cram.encoding.reader.ReaderToBAM;
+import htsjdk.samtools.cram.paralell.SAMFileHeader_Utils;
 import htsjdk.samtools.cram.structure.ContainerIO;
 import htsjdk.samtools.cram.structure.CramCompressionRecord;
 import htsjdk.samtools.cram.structure.CramHeader;
 import htsjdk.samtools.cram.structure.Slice;
 import htsjdk.samtools.seekablestream.SeekableStream;
+import htsjdk.samtools.util.BinaryCodec;
 import htsjdk.samtools.util.BlockCompressedOutputStream;
 import htsjdk.samtools.util.Log;
 
@@ -48,6 +52,7 @@ import java.util.zip.GZIPOutputStream;
 import net.sf.cram.CramTools.LevelConverter;
 import net.sf.cram.FixBAMFileHeader.MD5MismatchError;
 import net.sf.cram.common.Utils;
+import net.sf.cram.ref.ReferencePrefetcher;
 import net.sf.cram.ref.ReferenceRegion;
 import net.sf.cram.ref.ReferenceSource;
 
@@ -137,7 +142,16 @@ public class Cram2Bam {
 		samFileWriterFactory.setCreateMd5File(false);
 		samFileWriterFactory.setUseAsyncIo(params.syncBamOutput);
 
-		SAMFileWriter writer = createSAMFileWriter(params, cramHeader, samFileWriterFactory);
+		// plain BAM output is written straight from the decoded slices, other
+		// outputs go through SAMRecord:
+		ReaderToBAM reader = null;
+		BlockCompressedOutputStream bamStream = null;
+		SAMFileWriter writer = null;
+		if (canDecodeStraightIntoBAM(params)) {
+			reader = new ReaderToBAM(cramHeader.getSamFileHeader(), referenceSource);
+			bamStream = createBAMStream(params, cramHeader);
+		} else
+			writer = createSAMFileWriter(params, cramHeader, samFileWriterFactory);
 
 		htsjdk.samtools.cram.structure.Container c = null;
 		AlignmentSliceQuery location = null;
@@ -182,14 +196,26 @@ public class Cram2Bam {
 		CramNormalizer n = new CramNormalizer(cramHeader.getSamFileHeader(), referenceSource);
 
 		ContainerParser parser = new ContainerParser(cramHeader.getSamFileHeader());
+		ReferencePrefetcher prefetcher = null;
+		if (params.prefetchThreads > 0 && !params.countOnly)
+			prefetcher = new ReferencePrefetcher(referenceSource, cramHeader.getSamFileHeader(),
+					params.prefetchThreads);
+		htsjdk.samtools.cram.structure.Container next = null;
 		while (true) {
 			if (params.maxContainers-- <= 0)
 				break;
 
 			time = System.nanoTime();
-			c = ContainerIO.readContainer(cramHeader.getVersion(), is);
+			c = next != null ? next : ContainerIO.readContainer(cramHeader.getVersion(), is);
+			next = null;
 			if (c.isEOF())
 				break;
+			// read one container ahead so that its reference is loaded while
+			// this one is decoded:
+			if (prefetcher != null && params.maxContainers > 0) {
+				next = ContainerIO.readContainer(cramHeader.getVersion(), is);
+				prefetcher.prefetch(next);
+			}
 
 			readTime += System.nanoTime() - time;
 
@@ -204,11 +230,6 @@ public class Cram2Bam {
 				continue;
 			}
 
-			time = System.nanoTime();
-			cramRecords.clear();
-			parser.getRecords(c, cramRecords, ValidationStringency.SILENT);
-			parseTime += System.nanoTime() - time;
-
 			for (int i = 0; i < c.slices.length; i++) {
 				Slice s = c.slices[i];
 				if (s.sequenceId < 0)
@@ -221,18 +242,38 @@ public class Cram2Bam {
 					log.error("Can't find reference to validate slice md5: " + sequence.getSequenceIndex() + " "
 							+ sequence.getSequenceName());
 				else {
-					String sliceMD5 = String.format("%032x", new BigInteger(1, s.refMD5));
-					String md5 = ref.md5(s.alignmentStart, s.alignmentSpan);
-					if (!md5.equals(sliceMD5)) {
+					if (!ref.md5Matches(s.refMD5, s.alignmentStart, s.alignmentSpan)) {
 						log.error(String
 								.format("Reference sequence MD5 mismatch for slice: seq id %d, start %d, span %d, expected MD5 %s",
-										s.sequenceId, s.alignmentStart, s.alignmentSpan, sliceMD5));
+										s.sequenceId, s.alignmentStart, s.alignmentSpan,
+										String.format("%032x", new BigInteger(1, s.refMD5))));
 						if (!params.resilient)
 							System.exit(1);
 					}
 				}
 			}
 
+			if (reader != null) {
+				time = System.nanoTime();
+				reader.clear();
+				for (Slice s : c.slices)
+					reader.readSlice(s, c.header);
+				parseTime += System.nanoTime() - time;
+				recordCount += reader.getRecordCount();
+
+				time = System.nanoTime();
+				bamStream.write(reader.getBuffer(), 0, reader.size());
+				writeTime += System.nanoTime() - time;
+				if (params.outputFile == null && System.out.checkError())
+					break;
+				continue;
+			}
+
+			time = System.nanoTime();
+			cramRecords.clear();
+			parser.getRecords(c, cramRecords, ValidationStringency.SILENT);
+			parseTime += System.nanoTime() - time;
+
 			long time1 = System.nanoTime();
 			n.normalizeRecordsForReferenceSource(cramRecords, referenceSource, c.header.substitutionMatrix);
 			long time2 = System.nanoTime();
@@ -301,7 +342,12 @@ public class Cram2Bam {
 			System.out.printf("READS: %d; BASES: %d\n", recordCount, baseCount);
 		}
 
-		writer.close();
+		if (prefetcher != null)
+			prefetcher.close();
+		if (writer != null)
+			writer.close();
+		if (bamStream != null)
+			bamStream.close();
 
 		log.warn(String.format("TIMES: io %ds, parse %ds, norm %ds, convert %ds, BAM write %ds", readTime / 1000000000,
 				parseTime / 1000000000, normTime / 1000000000, samTime / 1000000000, writeTime / 1000000000));
@@ -336,6 +382,32 @@ public class Cram2Bam {
 			r.mateAlignmentStart = SAMRecord.NO_ALIGNMENT_START;
 	}
 
+	private static boolean canDecodeStraightIntoBAM(Params params) {
+		if (params.decodeViaSAMRecord || params.countOnly || !params.locations.isEmpty())
+			return false;
+		if (params.outputFastq || params.outputFastqGz)
+			return false;
+		if (params.requiredFlags != 0 || params.filteringFlags != 0)
+			return false;
+		if (params.calculateMdTag || params.calculateNmTag)
+			return false;
+		if (params.outputFile == null)
+			return params.outputBAM;
+		return params.outputFile.getName().endsWith(BamFileIoUtils.BAM_FILE_EXTENSION);
+	}
+
+	private static BlockCompressedOutputStream createBAMStream(Params params, CramHeader cramHeader) {
+		BlockCompressedOutputStream bamStream;
+		if (params.outputFile == null)
+			bamStream = new BlockCompressedOutputStream(new BufferedOutputStream(System.out), null);
+		else
+			bamStream = new BlockCompressedOutputStream(params.outputFile);
+
+		BinaryCodec codec = new BinaryCodec(bamStream);
+		SAMFileHeader_Utils.writeHeader(codec, cramHeader.getSamFileHeader());
+		return bamStream;
+	}
+
 	private static SAMFileWriter createSAMFileWriter(Params params, CramHeader cramHeader,
 			SAMFileWriterFactory samFileWriterFactory) throws IOException {
 		/*
@@ -458,6 +530,12 @@ public class Cram2Bam {
 
 		@Parameter(names = { "--load-whole-reference-sequence" }, description = "Load all bases for each reference sequence required. ", hidden = true)
 		public boolean loadWholeReferenceSequence = false;
+
+		@Parameter(names = { "--prefetch-threads" }, description = "Number of threads loading the reference for the next container while the current one is decoded, 0 to disable.")
+		public int prefetchThreads = 1;
+
+		@Parameter(names = { "--decode-via-samrecord" }, description = "Convert BAM output through SAMRecord objects instead of decoding it directly.", hidden = true)
+		public boolean decodeViaSAMRecord = false;
 	}
 
 }
@@ -15,17 +15,10 @@
  ******************************************************************************/
 package net.sf.cram;
 
-import htsjdk.samtools.SAMFileReader;
-import htsjdk.samtools.SAMRecord;
-import htsjdk.samtools.SAMRecordIterator;
-import htsjdk.samtools.SAMSequenceRecord;
-import htsjdk.samtools.ValidationStringency;
 import htsjdk.samtools.cram.build.CramIO;
 import htsjdk.samtools.cram.encoding.reader.AbstractFastqReader;
-import htsjdk.samtools.cram.encoding.reader.DataReaderFactory;
 import htsjdk.samtools.cram.encoding.reader.MultiFastqOutputter;
 import htsjdk.samtools.cram.encoding.reader.ReaderToFastq;
-import htsjdk.samtools.cram.io.DefaultBitInputStream;
 import htsjdk.samtools.cram.structure.Container;
 import htsjdk.samtools.cram.structure.ContainerIO;
 import htsjdk.samtools.cram.structure.CramHeader;
@@ -34,19 +27,16 @@ import htsjdk.samtools.seekablestream.SeekableFileStream;
 import htsjdk.samtools.util.Log;
 
 import java.io.BufferedOutputStream;
-import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.math.BigInteger;
 import java.nio.ByteBuffer;
-import java.util.HashMap;
-import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.zip.GZIPOutputStream;
 
+import net.sf.cram.ref.ReferencePrefetcher;
 import net.sf.cram.ref.ReferenceSource;
 
 import com.beust.jcommander.JCommander;
@@ -115,6 +105,7 @@ public class Cram2Fastq {
 		CollatingDumper d = new CollatingDumper(sfs, referenceSource, 3, params.fastqBaseName, params.gzip,
 				params.maxRecords, params.reverse, params.defaultQS, brokenPipe);
 		d.prefix = params.prefix;
+		d.prefetchThreads = params.prefetchThreads;
 		d.run();
 
 		if (d.exception != null)
@@ -123,7 +114,6 @@ public class Cram2Fastq {
 
 	private static abstract class Dumper implements Runnable {
 		protected InputStream cramIS;
-		protected byte[] ref = null;
 		protected ReferenceSource referenceSource;
 		protected FileOutput[] outputs;
 		protected long maxRecords = -1;
@@ -133,6 +123,7 @@ public class Cram2Fastq {
 		protected Exception exception;
 		private boolean reverse = false;
 		protected AtomicBoolean brokenPipe;
+		protected int prefetchThreads = 0;
 
 		public Dumper(InputStream cramIS, ReferenceSource referenceSource, int nofStreams, String fastqBaseName,
 				boolean gzip, long maxRecords, boolean reverse, int defaultQS, AtomicBoolean brokenPipe)
@@ -183,48 +174,34 @@ public class Cram2Fastq {
 
 			reader = newReader();
 			reader.reverseNegativeReads = reverse;
-			MAIN_LOOP: while (!brokenPipe.get()
-					&& (container = ContainerIO.readContainer(cramHeader.getVersion(), cramIS)) != null) {
+			reader.referenceSource = referenceSource;
+			ReferencePrefetcher prefetcher = null;
+			if (prefetchThreads > 0)
+				prefetcher = new ReferencePrefetcher(referenceSource, cramHeader.getSamFileHeader(), prefetchThreads);
+			try {
+				readContainers(prefetcher);
+			} finally {
+				if (prefetcher != null)
+					prefetcher.close();
+			}
+			if (!brokenPipe.get())
+				reader.finish();
+		}
+
+		private void readContainers(ReferencePrefetcher prefetcher) throws IOException {
+			Container next = ContainerIO.readContainer(cramHeader.getVersion(), cramIS);
+			MAIN_LOOP: while (!brokenPipe.get() && (container = next) != null) {
 				if (container.isEOF())
 					break;
-				DataReaderFactory f = new DataReaderFactory();
+				// read one container ahead so that its reference is loaded
+				// while this one is decoded:
+				if (prefetcher != null) {
+					next = ContainerIO.readContainer(cramHeader.getVersion(), cramIS);
+					prefetcher.prefetch(next);
+				}
 
 				for (Slice s : container.slices) {
-					if (s.sequenceId != SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX && s.sequenceId != -2) {
-						SAMSequenceRecord sequence = cramHeader.getSamFileHeader().getSequence(s.sequenceId);
-
-						if (sequence == null)
-							throw new RuntimeException("Null sequence for id: " + s.sequenceId);
-
-						ref = referenceSource.getReferenceBases(sequence, true);
-
-						if (!s.validateRefMD5(ref)) {
-							log.error(String
-									.format("Reference sequence MD5 mismatch for slice: seq id %d, start %d, span %d, expected MD5 %s",
-											s.sequenceId, s.alignmentStart, s.alignmentSpan,
-											String.format("%032x", new BigInteger(1, s.refMD5))));
-							throw new RuntimeException("Reference checksum mismatch.");
-						}
-					} else
-						ref = new byte[0];
-
-					Map<Integer, InputStream> inputMap = new HashMap<Integer, InputStream>();
-					for (Integer exId : s.external.keySet()) {
-						inputMap.put(exId, new ByteArrayInputStream(s.external.get(exId).getRawContent()));
-					}
-
-					reader.referenceSequence = ref;
-					reader.prevAlStart = s.alignmentStart;
-					reader.substitutionMatrix = container.header.substitutionMatrix;
-					reader.recordCounter = 0;
-					try {
-						f.buildReader(reader,
-								new DefaultBitInputStream(new ByteArrayInputStream(s.coreBlock.getRawContent())),
-								inputMap, container.header, s.sequenceId);
-					} catch (IllegalArgumentException e) {
-						throw new RuntimeException(e);
-					}
-
+					reader.startSlice(s, container.header, cramHeader.getSamFileHeader());
 					for (int i = 0; i < s.nofRecords; i++) {
 						reader.read();
 						if (maxRecords > -1) {
@@ -236,9 +213,9 @@ public class Cram2Fastq {
 
 					containerHasBeenRead();
 				}
+				if (prefetcher == null)
+					next = ContainerIO.readContainer(cramHeader.getVersion(), cramIS);
 			}
-			if (!brokenPipe.get())
-				reader.finish();
 		}
 
 		@Override
@@ -284,7 +261,7 @@ public class Cram2Fastq {
 	}
 
 	private static class CollatingDumper extends Dumper {
-		private FileOutput fo = new FileOutput();
+		private String spillFilePrefix;
 		private String prefix;
 		private long counter = 1;
 		private MultiFastqOutputter multiFastqOutputter;
@@ -296,10 +273,7 @@ public class Cram2Fastq {
 			super(cramIS, referenceSource, nofStreams, fastqBaseName, gzip, maxRecords, reverse, defaultQS, brokenPipe);
 			this.defaultQS = defaultQS;
 			this.brokenPipe = brokenPipe;
-			fo.file = File.createTempFile(fastqBaseName == null ? "overflow.bam" : fastqBaseName + ".overflow.bam",
-					".tmp");
-			fo.file.deleteOnExit();
-			fo.outputStream = new BufferedOutputStream(new FileOutputStream(fo.file));
+			spillFilePrefix = fastqBaseName == null ? "fastq.spill" : new File(fastqBaseName).getName() + ".spill";
 		}
 
 		@Override
@@ -307,8 +281,8 @@ public class Cram2Fastq {
 			if (multiFastqOutputter != null) {
 				counter = multiFastqOutputter.getCounter();
 			}
-			multiFastqOutputter = new MultiFastqOutputter(outputs, fo, referenceSource, cramHeader.getSamFileHeader(),
-					counter);
+			multiFastqOutputter = new MultiFastqOutputter(outputs, spillFilePrefix, referenceSource,
+					cramHeader.getSamFileHeader(), counter);
 			if (prefix != null) {
 				multiFastqOutputter.setPrefix(prefix.getBytes());
 				// multiFastqOutputter.setCounter(counter);
@@ -320,83 +294,6 @@ public class Cram2Fastq {
 		@Override
 		protected void containerHasBeenRead() throws IOException {
 		}
-
-		@Override
-		public void doRun() throws IOException {
-			super.doRun();
-
-			fo.close();
-
-			if (fo.empty)
-				return;
-
-			log.info("Sorting overflow BAM: ", fo.file.length());
-			SAMFileReader.setDefaultValidationStringency(ValidationStringency.SILENT);
-			SAMFileReader r = new SAMFileReader(fo.file);
-			SAMRecordIterator iterator = r.iterator();
-			if (!iterator.hasNext()) {
-				r.close();
-				fo.file.delete();
-				return;
-			}
-
-			SAMRecord r1 = iterator.next();
-			SAMRecord r2 = null;
-			counter = multiFastqOutputter.getCounter();
-			log.info("Counter=" + counter);
-			while (!brokenPipe.get() && iterator.hasNext()) {
-				r2 = iterator.next();
-				if (r1.getReadName().equals(r2.getReadName())) {
-					print(r1, r2);
-					counter++;
-					r1 = null;
-					if (!iterator.hasNext())
-						break;
-					r1 = iterator.next();
-					r2 = null;
-				} else {
-					print(r1, 0);
-					r1 = r2;
-					r2 = null;
-					counter++;
-				}
-			}
-			if (r1 != null)
-				print(r1, 0);
-			r.close();
-			fo.file.delete();
-		}
-
-		private void print(SAMRecord r1, SAMRecord r2) throws IOException {
-			if (r1.getFirstOfPairFlag()) {
-				print(r1, 1);
-				print(r2, 2);
-			} else {
-				print(r1, 2);
-				print(r2, 1);
-			}
-		}
-
-		private void print(SAMRecord r, int index) throws IOException {
-			OutputStream os = outputs[index];
-			os.write('@');
-			if (prefix != null) {
-				os.write(prefix.getBytes());
-				os.write('.');
-				os.write(String.valueOf(counter).getBytes());
-				os.write(' ');
-			}
-			os.write(r.getReadName().getBytes());
-			if (index > 0) {
-				os.write('/');
-				os.write(48 + index);
-			}
-			os.write('\n');
-			os.write(r.getReadBases());
-			os.write("\n+\n".getBytes());
-			os.write(r.getBaseQualityString().getBytes());
-			os.write('\n');
-		}
 	}
 
 	private static class FileOutput extends OutputStream {
@@ -478,6 +375,9 @@ public class Cram2Fastq {
 
 		@Parameter(names = { "--skip-md5-check" }, description = "Skip MD5 checks when reading the header.")
 		public boolean skipMD5Checks = false;
+
+		@Parameter(names = { "--prefetch-threads" }, description = "Number of threads loading the reference for the next container while the current one is decoded, 0 to disable.")
+		public int prefetchThreads = 1;
 	}
 
 }
@@ -104,6 +104,7 @@ public class CramTools {
 		addProgram(jc, Cram2Fastq.class);
 		addProgram(jc, CramFixHeader.class);
 		addProgram(jc, DownloadReferences.class);
+		addProgram(jc, PreloadReferences.class);
 		addProgram(jc, QualityScoreStats.class);
 
 		jc.parse(args);
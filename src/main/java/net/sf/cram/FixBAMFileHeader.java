@@ -25,10 +25,12 @@ import htsjdk.samtools.util.Log;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.util.Collections;
 import java.util.List;
 
 import net.sf.cram.common.Utils;
 import net.sf.cram.ref.ReferenceSource;
+import net.sf.cram.ref.SequenceDigest;
 
 public class FixBAMFileHeader {
 	private static Log log = Log.getInstance(FixBAMFileHeader.class);
@@ -44,23 +46,28 @@ public class FixBAMFileHeader {
 	}
 
 	public void fixSequences(List<SAMSequenceRecord> sequenceRecords) throws MD5MismatchError {
-		for (SAMSequenceRecord sequenceRecord : sequenceRecords)
-			fixSequence(sequenceRecord);
+		// digests of all sequences at once, so that they are hashed in parallel:
+		SequenceDigest[] digests = confirmMD5 ? referenceSource.getDigests(sequenceRecords, true) : null;
+		for (int i = 0; i < sequenceRecords.size(); i++)
+			fixSequence(sequenceRecords.get(i), digests == null ? null : digests[i]);
 	}
 
 	public void fixSequence(SAMSequenceRecord sequenceRecord) throws MD5MismatchError {
+		fixSequences(Collections.singletonList(sequenceRecord));
+	}
+
+	private void fixSequence(SAMSequenceRecord sequenceRecord, SequenceDigest digest) throws MD5MismatchError {
 		String found_md5 = sequenceRecord.getAttribute(SAMSequenceRecord.MD5_TAG);
 		if (confirmMD5) {
 			if (found_md5 != null) {
-				byte[] bytes = referenceSource.getReferenceBases(sequenceRecord, true);
-				if (bytes == null) {
+				if (digest == null) {
 					String message = String.format("Reference bases not found: name %s, length %d, md5 %s.",
 							sequenceRecord.getSequenceName(), sequenceRecord.getSequenceLength(), found_md5);
 					log.error(message);
 					throw new RuntimeException(message);
 				}
 				log.info("Confirming reference sequence md5: " + sequenceRecord.getSequenceName());
-				String md5 = Utils.calculateMD5String(bytes);
+				String md5 = digest.md5;
 				if (!md5.equals(found_md5)) {
 					if (ignoreMD5Mismatch) {
 						log.warn(String.format(
@@ -71,23 +78,21 @@ public class FixBAMFileHeader {
 					} else
 						throw new MD5MismatchError(sequenceRecord, md5);
 				}
-				if (sequenceRecord.getSequenceLength() != bytes.length) {
+				if (sequenceRecord.getSequenceLength() != digest.length) {
 					log.warn(String.format("Sequence id=%d, name=%s has incorrect length=%d. Replaced with %d.",
 							sequenceRecord.getSequenceIndex(), sequenceRecord.getSequenceName(),
-							sequenceRecord.getSequenceLength(), bytes.length));
-					sequenceRecord.setSequenceLength(bytes.length);
+							sequenceRecord.getSequenceLength(), digest.length));
+					sequenceRecord.setSequenceLength(digest.length);
 				}
 			} else {
 				log.info("Reference sequence MD5 not found, calculating: " + sequenceRecord.getSequenceName());
-				byte[] bytes = referenceSource.getReferenceBases(sequenceRecord, true);
-				if (bytes == null) {
+				if (digest == null) {
 					String message = String.format("Reference bases not found: name %s, length %d.",
 							sequenceRecord.getSequenceName(), sequenceRecord.getSequenceLength());
 					log.error(message);
 					throw new RuntimeException(message);
 				}
-				String md5 = Utils.calculateMD5String(bytes);
-				sequenceRecord.setAttribute(SAMSequenceRecord.MD5_TAG, md5);
+				sequenceRecord.setAttribute(SAMSequenceRecord.MD5_TAG, digest.md5);
 			}
 		}
 
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2012 - 2018 EMBL - European Bioinformatics Institute
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+
+package net.sf.cram;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.cram.build.CramIO;
+import htsjdk.samtools.reference.ReferenceSequence;
+import htsjdk.samtools.reference.ReferenceSequenceFile;
+import htsjdk.samtools.reference.ReferenceSequenceFileFactory;
+import htsjdk.samtools.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import net.sf.cram.CramTools.LevelConverter;
+import net.sf.cram.common.Utils;
+import net.sf.cram.ref.MD5ReferenceStore;
+import net.sf.cram.ref.ReferenceSource;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.Parameters;
+import com.beust.jcommander.converters.FileConverter;
+
+/**
+ * Fills the local reference store before a batch of jobs starts, from fasta
+ * files and from the sequences listed in CRAM or BAM headers.
+ */
+public class PreloadReferences {
+	private static Log log = Log.getInstance(PreloadReferences.class);
+	public static final String COMMAND = "preload-ref";
+
+	private static void printUsage(JCommander jc) {
+		StringBuilder sb = new StringBuilder();
+		sb.append("\n");
+		jc.usage(sb);
+
+		System.out.println("Version " + PreloadReferences.class.getPackage().getImplementationVersion());
+		System.out.println(sb.toString());
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		Params params = new Params();
+		JCommander jc = new JCommander(params);
+		try {
+			jc.parse(args);
+		} catch (Exception e) {
+			System.out.println("Failed to parse parameteres, detailed message below: ");
+			System.out.println(e.getMessage());
+			System.out.println();
+			System.out.println("See usage: -h");
+			System.exit(1);
+		}
+
+		if (args.length == 0 || params.help) {
+			printUsage(jc);
+			System.exit(1);
+		}
+
+		Log.setGlobalLogLevel(params.logLevel);
+
+		if (params.refCache == null) {
+			log.error("Expecting a reference store location, set REF_CACHE or use --ref-cache.");
+			System.exit(1);
+		}
+		MD5ReferenceStore store = new MD5ReferenceStore(params.refCache);
+
+		int added = 0;
+		for (File fasta : params.fastaFiles)
+			added += addFasta(store, fasta);
+
+		Set<String> md5s = new LinkedHashSet<String>(params.md5List);
+		for (File file : params.inputFiles)
+			for (SAMSequenceRecord s : readHeader(file).getSequenceDictionary().getSequences()) {
+				String md5 = s.getAttribute(SAMSequenceRecord.MD5_TAG);
+				if (md5 == null)
+					log.warn(String.format("No md5 for sequence %s in %s", s.getSequenceName(), file));
+				else
+					md5s.add(md5);
+			}
+
+		int missing = fetch(store, md5s, params.threads);
+		log.info(String.format("Added %d sequences from fasta files, %d of %d sequences by md5 are missing", added,
+				missing, md5s.size()));
+		if (missing > 0 && !params.ignoreNotFound)
+			System.exit(1);
+	}
+
+	private static int addFasta(MD5ReferenceStore store, File fasta) throws IOException {
+		ReferenceSequenceFile rsFile = ReferenceSequenceFileFactory.getReferenceSequenceFile(fasta, true);
+		int added = 0;
+		ReferenceSequence sequence;
+		while ((sequence = rsFile.nextSequence()) != null) {
+			byte[] bases = Utils.upperCase(sequence.getBases());
+			String md5 = Utils.calculateMD5String(bases);
+			if (store.contains(md5))
+				continue;
+			store.put(md5, bases);
+			log.info(String.format("Stored %s from %s, md5=%s", sequence.getName(), fasta.getName(), md5));
+			added++;
+		}
+		return added;
+	}
+
+	/**
+	 * Fetch the missing sequences from REF_PATH into the store. The store
+	 * makes sure each sequence is downloaded once even if other processes are
+	 * fetching the same sequences.
+	 *
+	 * @return number of sequences not found
+	 */
+	private static int fetch(MD5ReferenceStore store, Set<String> md5s, int threads) throws InterruptedException {
+		ReferenceSource referenceSource = new ReferenceSource();
+		referenceSource.setLocalStore(store);
+		// nothing needs to stay in memory:
+		referenceSource.setMaxCacheBytes(0);
+
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+		List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+		for (String md5 : md5s) {
+			if (store.contains(md5))
+				continue;
+			futures.add(executor.submit(() -> {
+				SAMSequenceRecord record = new SAMSequenceRecord(md5, 0);
+				record.setAttribute(SAMSequenceRecord.MD5_TAG, md5);
+				try {
+					return referenceSource.getReferenceBases(record, false) != null;
+				} catch (RuntimeException e) {
+					log.warn(String.format("Failed to fetch sequence for md5 %s: %s", md5, e.getMessage()));
+					return false;
+				}
+			}));
+		}
+		executor.shutdown();
+
+		int missing = 0;
+		for (Future<Boolean> future : futures) {
+			try {
+				if (!future.get())
+					missing++;
+			} catch (ExecutionException e) {
+				missing++;
+			}
+		}
+		return missing;
+	}
+
+	private static SAMFileHeader readHeader(File file) throws IOException {
+		try (InputStream is = new FileInputStream(file)) {
+			return CramIO.readCramHeader(is).getSamFileHeader();
+		} catch (Exception e) {
+			// not a cram file, try other formats:
+			SamReader samReader = SamReaderFactory.make().open(file);
+			SAMFileHeader header = samReader.getFileHeader();
+			samReader.close();
+			return header;
+		}
+	}
+
+	@Parameters(commandDescription = "Add reference sequences to the local reference store (REF_CACHE).")
+	static class Params {
+
+		@Parameter(names = { "-l", "--log-level" }, description = "Change log level: DEBUG, INFO, WARNING, ERROR.", converter = LevelConverter.class)
+		Log.LogLevel logLevel = Log.LogLevel.INFO;
+
+		@Parameter(names = { "-h", "--help" }, description = "Print help and quit")
+		boolean help = false;
+
+		@Parameter(names = { "--ref-cache" }, description = "The store location pattern, for example /cache/%2s/%2s/%s. Defaults to REF_CACHE.")
+		String refCache = System.getenv("REF_CACHE");
+
+		@Parameter(names = { "--reference-fasta-file", "-R" }, converter = FileConverter.class, description = "Add all sequences of this fasta file, can be repeated.")
+		List<File> fastaFiles = new ArrayList<File>();
+
+		@Parameter(names = { "--input-file", "-I" }, converter = FileConverter.class, description = "Fetch the sequences listed in the header of this CRAM or BAM file, can be repeated.")
+		List<File> inputFiles = new ArrayList<File>();
+
+		@Parameter(description = "A list of MD5 checksums of sequences to fetch.")
+		List<String> md5List = new ArrayList<String>();
+
+		@Parameter(names = { "--threads" }, description = "Number of sequences to fetch at the same time.")
+		int threads = 4;
+
+		@Parameter(names = { "--ignore-not-found" }, description = "Don't fail on not found sequences, just issue a warning.")
+		boolean ignoreNotFound = false;
+	}
+}
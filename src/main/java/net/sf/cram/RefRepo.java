@@ -15,10 +15,11 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Scanner;
@@ -32,12 +33,10 @@ import java.util.concurrent.Future;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import htsjdk.samtools.reference.ReferenceSequence;
-import htsjdk.samtools.reference.ReferenceSequenceFile;
-import htsjdk.samtools.reference.ReferenceSequenceFileFactory;
 import htsjdk.samtools.util.Log;
 import net.sf.cram.CramTools.LevelConverter;
-import net.sf.cram.common.Utils;
+import net.sf.cram.fasta.FastaDigester;
+import net.sf.cram.ref.SequenceDigest;
 
 import com.beust.jcommander.JCommander;
 import com.beust.jcommander.Parameter;
@@ -80,55 +79,82 @@ public class RefRepo {
 		if (params.repoFile == null) {
 			System.out.println("Expecting repo file.");
 			printUsage(jc);
-			System.err.println(1);
+			System.exit(1);
 		}
 
 		if (params.repoFile.exists())
 			readRepoFile(params.repoFile);
 
-		Set<String> files = listAllFiles(params.pathsToAdd);
-
-		for (String path : files) {
-			if (byFile.containsKey(path) && !params.refreshPathCollisions)
-				continue;
-
-			for (Entry e : readFile(new File(path)))
-				put(e);
+		// only new and changed files are read unless asked to refresh:
+		List<String> files = new ArrayList<String>();
+		for (String path : listAllFiles(params.pathsToAdd)) {
+			File file = new File(path);
+			String url = toURL(file);
+			FileStamp stamp = stamps.get(url);
+			if (!params.refreshPathCollisions) {
+				if (stamp != null ? stamp.matches(file) : byFile.containsKey(url)) {
+					log.info("Skipping unchanged file: " + path);
+					continue;
+				}
+			}
+			files.add(path);
 		}
 
-		for (Entry e : readFiles(files, params.parallel)) {
-			put(e);
+		for (FileResult result : readFiles(files, params.parallel)) {
+			remove(result.stamp.file);
+			stamps.put(result.stamp.file, result.stamp);
+			for (Entry e : result.entries)
+				put(e);
 		}
 
 		save(params.repoFile);
 	}
 
+	/**
+	 * Write the repo file next to the old one and then replace it, so that the
+	 * repo is never seen half written.
+	 */
 	private static void save(File file) throws IOException {
-		FileWriter w = new FileWriter(file, false);
-		for (Entry e : map.values()) {
-			w.write(e.toString());
-			w.write('\n');
+		File tmpFile = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+		try {
+			FileWriter w = new FileWriter(tmpFile, false);
+			for (FileStamp stamp : stamps.values()) {
+				w.write(stamp.toString());
+				w.write('\n');
+			}
+			for (Entry e : map.values()) {
+				w.write(e.toString());
+				w.write('\n');
+			}
+			w.close();
+			Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			tmpFile.delete();
 		}
-		w.close();
 	}
 
-	private static List<Entry> readFiles(Collection<String> paths, int threads) {
+	private static String toURL(File file) {
+		return "file://" + file.getAbsolutePath();
+	}
+
+	private static List<FileResult> readFiles(Collection<String> paths, int threads) {
 		ExecutorService pool = Executors.newFixedThreadPool(threads);
-		List<Entry> list;
+		List<FileResult> list;
 		try {
-			Set<Future<List<Entry>>> futures = new HashSet<Future<List<Entry>>>();
+			List<Future<FileResult>> futures = new ArrayList<Future<FileResult>>();
 
 			for (String path : paths) {
 				FileJob job = new FileJob(new File(path));
 				log.info("Submitting job: ", path);
-				Future<List<Entry>> future = pool.submit(job);
+				Future<FileResult> future = pool.submit(job);
 				futures.add(future);
 			}
 
-			list = new ArrayList<RefRepo.Entry>();
-			for (Future<List<Entry>> f : futures) {
+			list = new ArrayList<FileResult>();
+			for (Future<FileResult> f : futures) {
 				try {
-					list.addAll(f.get());
+					list.add(f.get());
 				} catch (Exception e) {
 					throw new RuntimeException(e);
 				}
@@ -140,12 +166,12 @@ public class RefRepo {
 		return list;
 	}
 
-	private static List<Entry> readFile(File file) {
+	private static class FileResult {
+		FileStamp stamp;
 		List<Entry> entries = new ArrayList<RefRepo.Entry>();
-		return entries;
 	}
 
-	private static class FileJob implements Callable<List<Entry>> {
+	private static class FileJob implements Callable<FileResult> {
 		private File file;
 
 		public FileJob(File file) {
@@ -153,24 +179,23 @@ public class RefRepo {
 		}
 
 		@Override
-		public List<Entry> call() throws Exception {
-			List<Entry> list = new ArrayList<RefRepo.Entry>();
-
-			ReferenceSequenceFile rsFile = ReferenceSequenceFileFactory.getReferenceSequenceFile(file);
-
-			ReferenceSequence sequence = null;
-			while ((sequence = rsFile.nextSequence()) != null) {
-				sequence.getBases();
-
+		public FileResult call() throws Exception {
+			FileResult result = new FileResult();
+			// stamp before reading, a file changed meanwhile is read again
+			// next time:
+			result.stamp = new FileStamp(toURL(file), file.length(), file.lastModified());
+
+			// sequences are hashed as they stream by, never held whole:
+			for (Map.Entry<String, SequenceDigest> digest : new FastaDigester().digest(file).entrySet()) {
 				Entry e = new Entry();
-				e.md5 = Utils.calculateMD5String(sequence.getBases());
-				e.file = "file://" + file.getAbsolutePath();
-				e.name = sequence.getName();
-				e.length = sequence.length();
+				e.md5 = digest.getValue().md5;
+				e.file = result.stamp.file;
+				e.name = digest.getKey();
+				e.length = digest.getValue().length;
 				log.info(String.format("New entry: %s", e.toString()));
-				list.add(e);
+				result.entries.add(e);
 			}
-			return list;
+			return result;
 		}
 	};
 
@@ -211,10 +236,14 @@ public class RefRepo {
 	private static Map<String, Entry> byFile = new TreeMap<String, RefRepo.Entry>();
 	private static Map<String, Entry> byFileAndName = new TreeMap<String, RefRepo.Entry>();
 	private static Map<String, Entry> map = new HashMap<String, RefRepo.Entry>();
+	private static Map<String, FileStamp> stamps = new TreeMap<String, FileStamp>();
+
+	private static final Pattern ENTRY_PATTERN = Pattern
+			.compile("^@SQ\tSN:(\\S+)\tLN:(\\d+)\tUR:(\\S+)\tM5:([a-z0-9]+)$");
+	private static final Pattern STAMP_PATTERN = Pattern.compile("^@CO\tUR:(\\S+)\tSZ:(\\d+)\tMT:(\\d+)$");
 
 	private static Entry parse(String line) {
-		Pattern pattern = Pattern.compile("^@SQ\tSN:(\\w+)\tLN:(\\d+)\tUR:(\\w+)\tM5:([a-z0-9]+)$");
-		Matcher m = pattern.matcher(line);
+		Matcher m = ENTRY_PATTERN.matcher(line);
 		if (!m.matches())
 			throw new RuntimeException("Improper format: " + line);
 
@@ -230,17 +259,56 @@ public class RefRepo {
 		Scanner scanner = new Scanner(file);
 		while (scanner.hasNextLine()) {
 			String line = scanner.nextLine();
+			Matcher m = STAMP_PATTERN.matcher(line);
+			if (m.matches()) {
+				FileStamp stamp = new FileStamp(m.group(1), Long.valueOf(m.group(2)), Long.valueOf(m.group(3)));
+				stamps.put(stamp.file, stamp);
+				continue;
+			}
 			Entry e = parse(line);
 			put(e);
 		}
 	}
 
+	/**
+	 * Forget the entries of a file before it is read again.
+	 */
+	private static void remove(String file) {
+		map.values().removeIf(e -> e.file.equals(file));
+		byFile.remove(file);
+		byFileAndName.keySet().removeIf(key -> key.startsWith(file + ":"));
+	}
+
 	private static void put(Entry e) {
 		map.put(e.md5, e);
 		byFile.put(e.file, e);
 		byFileAndName.put(String.format("%s:%s", e.file, e.name), e);
 	}
 
+	/**
+	 * Size and modification time of a file when it was read.
+	 */
+	private static class FileStamp {
+		String file;
+		long size;
+		long mtime;
+
+		FileStamp(String file, long size, long mtime) {
+			this.file = file;
+			this.size = size;
+			this.mtime = mtime;
+		}
+
+		boolean matches(File f) {
+			return f.length() == size && f.lastModified() == mtime;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("@CO\tUR:%s\tSZ:%d\tMT:%d", file, size, mtime);
+		}
+	}
+
 	private static class Entry {
 		String md5;
 		int length;
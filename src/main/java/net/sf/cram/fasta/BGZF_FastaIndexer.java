@@ -28,6 +28,7 @@ import htsjdk.samtools.util.Log;
 class BGZF_FastaIndexer {
 	private static Log log = Log.getInstance(BGZF_FastaIndexer.class);
 	private BlockCompressedInputStream is;
+	private GZI_BlockIndex blockIndex;
 	private long start;
 	private int len;
 	private int lineWidthNoNL, lineWidthWithNL;
@@ -36,8 +37,14 @@ class BGZF_FastaIndexer {
 	private int sequenceCounter = 0;
 	private boolean hasNextNameInBuf = false;
 
-	public BGZF_FastaIndexer(BlockCompressedInputStream is) {
+	/**
+	 * @param blockIndex
+	 *            used to write offsets in the uncompressed data like samtools
+	 *            does, instead of virtual file pointers
+	 */
+	public BGZF_FastaIndexer(BlockCompressedInputStream is, GZI_BlockIndex blockIndex) {
 		this.is = is;
+		this.blockIndex = blockIndex;
 	}
 
 	private boolean readLine() throws IOException {
@@ -101,7 +108,7 @@ class BGZF_FastaIndexer {
 		lineWidthNoNL = 0;
 		lineWidthWithNL = 0;
 
-		start = is.getFilePointer();
+		start = blockIndex.toUncompressedOffset(is.getFilePointer());
 		hasNextNameInBuf = false;
 		while (readLine()) {
 			if (lineBuf.get(0) == '>') {
@@ -155,7 +162,9 @@ class BGZF_FastaIndexer {
 			log.info("Indexing file: " + file.getAbsolutePath());
 			BlockCompressedInputStream bcis = new BlockCompressedInputStream(new SeekableFileStream(file));
 			bcis.available();
-			BGZF_FastaIndexer mli = new BGZF_FastaIndexer(bcis);
+			GZI_BlockIndex blockIndex = GZI_BlockIndex.build(file);
+			blockIndex.write(new File(file.getAbsolutePath() + ".gzi"));
+			BGZF_FastaIndexer mli = new BGZF_FastaIndexer(bcis, blockIndex);
 
 			PrintWriter writer = new PrintWriter(file.getAbsolutePath() + ".fai");
 
@@ -11,24 +11,32 @@
 
 package net.sf.cram.fasta;
 
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Scanner;
+import java.util.stream.IntStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 import htsjdk.samtools.SAMSequenceDictionary;
 import htsjdk.samtools.SAMSequenceRecord;
-import htsjdk.samtools.cram.io.InputStreamUtils;
+import htsjdk.samtools.SAMFormatException;
 import htsjdk.samtools.reference.ReferenceSequence;
 import htsjdk.samtools.reference.ReferenceSequenceFile;
-import htsjdk.samtools.seekablestream.SeekableFileStream;
-import htsjdk.samtools.util.BlockCompressedInputStream;
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
 import htsjdk.samtools.util.Log;
 import net.sf.cram.AlignmentSliceQuery;
+import net.sf.cram.ref.ReferenceNameIndex;
 
 import com.beust.jcommander.JCommander;
 import com.beust.jcommander.Parameter;
@@ -39,8 +47,13 @@ public class BGZF_ReferenceSequenceFile implements ReferenceSequenceFile {
 	private static Log log = Log.getInstance(BGZF_ReferenceSequenceFile.class);
 	private LinkedHashMap<String, FAIDX_FastaIndexEntry> index = new LinkedHashMap<String, FAIDX_FastaIndexEntry>();
 	private Iterator<String> iterator;
-	private BlockCompressedInputStream is;
+	private static final int BLOCKS_PER_CHUNK = 256;
+	private FileChannel channel;
+	private GZI_BlockIndex blockIndex;
+	// legacy .fai files without .gzi point to sequences with virtual offsets:
+	private boolean virtualPointers;
 	private SAMSequenceDictionary dictionary;
+	private ReferenceNameIndex nameIndex;
 
 	public BGZF_ReferenceSequenceFile(File file) throws FileNotFoundException {
 		if (!file.canRead())
@@ -63,10 +76,42 @@ public class BGZF_ReferenceSequenceFile implements ReferenceSequenceFile {
 
 		if (index.isEmpty())
 			log.warn("No entries in the index: " + indexFile.getAbsolutePath());
+		nameIndex = ReferenceNameIndex.fromDictionary(dictionary);
 
-		is = new BlockCompressedInputStream(new SeekableFileStream(file));
+		File gziFile = new File(file.getAbsolutePath() + ".gzi");
+		try {
+			if (gziFile.canRead()) {
+				blockIndex = GZI_BlockIndex.read(gziFile);
+				virtualPointers = false;
+			} else {
+				blockIndex = GZI_BlockIndex.build(file);
+				virtualPointers = true;
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		channel = new RandomAccessFile(file, "r").getChannel();
+	}
+
+	/**
+	 * @return the name of the sequence known by the name or one of its aliases,
+	 *         see {@link ReferenceNameIndex}, or null if none
+	 */
+	public String resolveName(String name) {
+		return nameIndex.resolve(name);
+	}
+
+	/**
+	 * @return the sequence names starting with the prefix, sorted
+	 */
+	public List<String> lookUpByPrefix(String prefix) {
+		return new ArrayList<String>(nameIndex.findByPrefix(prefix));
 	}
 
+	/**
+	 * Scans all names, {@link #resolveName(String)} and
+	 * {@link #lookUpByPrefix(String)} find names without a scan.
+	 */
 	public List<String> lookUpByRegex(String regex) {
 		List<String> list = new ArrayList<String>();
 		for (String name : index.keySet())
@@ -127,7 +172,7 @@ public class BGZF_ReferenceSequenceFile implements ReferenceSequenceFile {
 
 	@Override
 	public void close() throws IOException {
-
+		channel.close();
 	}
 
 	private ReferenceSequence findSequence(String name, long start, long stop) throws IOException {
@@ -144,45 +189,109 @@ public class BGZF_ReferenceSequenceFile implements ReferenceSequenceFile {
 		if (stop < start)
 			throw new RuntimeException("Invalid sequence boundaries.");
 
-		int len = (int) (stop - start) + 1;
-
-		len = Math.min(entry.getLen(), len);
+		int len = (int) Math.min(stop - start + 1, entry.getLen() - start + 1);
+		byte[] data = new byte[Math.max(0, len)];
+
+		long sequenceStart = virtualPointers ? blockIndex.toUncompressedOffset(entry.getStartPointer()) : entry
+				.getStartPointer();
+		int basesPerLine = entry.getBasesPerLine();
+		int bytesPerLine = entry.getBytesPerLine();
+		long lastBase = start - 1 + data.length - 1;
+		long end = sequenceStart + (lastBase / basesPerLine) * bytesPerLine + lastBase % basesPerLine + 1;
+
+		Chunk chunk = null;
+		long base = start - 1;
+		int pos = 0;
+		while (pos < data.length) {
+			// copy the rest of the line or of the chunk, whatever ends first:
+			long offset = sequenceStart + (base / basesPerLine) * bytesPerLine + base % basesPerLine;
+			if (chunk == null || offset < chunk.start || offset >= chunk.end)
+				chunk = inflate(offset, end);
+			int n = (int) Math.min(Math.min(basesPerLine - base % basesPerLine, data.length - pos), chunk.end
+					- offset);
+			System.arraycopy(chunk.bytes, (int) (offset - chunk.start), data, pos, n);
+			pos += n;
+			base += n;
+		}
 
-		is.seek(entry.getStartPointer());
+		return new ReferenceSequence(entry.getName(), entry.getIndex(), data);
+	}
 
-		int lineBreakLen = entry.getBytesPerLine() - entry.getBasesPerLine();
-		{ // calculate how many bytes to skip from the beginning of the sequence
-			// in the file:
+	/**
+	 * Uncompressed bytes of consecutive blocks.
+	 */
+	private static class Chunk {
+		long start, end;
+		byte[] bytes;
+	}
 
-			long skip = start + (start / entry.getBasesPerLine()) * lineBreakLen;
-			// System.out.println("skip=" + skip);
-			is.skip(skip - 1);
+	/**
+	 * Read and inflate the blocks holding the uncompressed range, at most
+	 * {@link #BLOCKS_PER_CHUNK} blocks at a time. The blocks are inflated in
+	 * parallel.
+	 */
+	private Chunk inflate(long from, long to) throws IOException {
+		int first = blockIndex.findBlock(from);
+		int last = Math.min(blockIndex.findBlock(to - 1), first + BLOCKS_PER_CHUNK - 1);
+
+		long compressedStart = blockIndex.getCompressedOffset(first);
+		long compressedEnd = last + 1 < blockIndex.size() ? blockIndex.getCompressedOffset(last + 1) : channel.size();
+		ByteBuffer compressed = ByteBuffer.allocate((int) (compressedEnd - compressedStart));
+		while (compressed.hasRemaining())
+			if (channel.read(compressed, compressedStart + compressed.position()) < 0)
+				throw new EOFException("Unexpected end of BGZF file");
+		byte[] blocks = compressed.array();
+
+		int[] blockStarts = new int[last - first + 2];
+		int[] uncompressedStarts = new int[blockStarts.length];
+		for (int i = 0, p = 0, u = 0; i < blockStarts.length; i++) {
+			blockStarts[i] = p;
+			uncompressedStarts[i] = u;
+			if (i < blockStarts.length - 1) {
+				int blockSize = unpackInt16(blocks, p + BlockCompressedStreamConstants.BLOCK_LENGTH_OFFSET) + 1;
+				u += GZI_BlockIndex.unpackInt32(blocks, p + blockSize - 4);
+				p += blockSize;
+			}
 		}
 
-		byte[] data = new byte[len];
-		int bufPos = 0;
-
-		byte b;
-		while ((b = (byte) is.read()) != -1 && bufPos < len && b != '\r' && b != '\n')
-			data[bufPos++] = b;
-
-		// skip the rest of "new line" bytes:
-		for (int i = 1; i < entry.getBytesPerLine() - entry.getBasesPerLine(); i++)
-			is.read();
+		Chunk chunk = new Chunk();
+		chunk.start = blockIndex.getUncompressedOffset(first);
+		chunk.bytes = new byte[uncompressedStarts[uncompressedStarts.length - 1]];
+		chunk.end = chunk.start + chunk.bytes.length;
+		IntStream blockStream = IntStream.range(0, last - first + 1);
+		if (last > first)
+			blockStream = blockStream.parallel();
+		blockStream.forEach(i -> inflateBlock(blocks, blockStarts[i], blockStarts[i + 1] - blockStarts[i],
+				chunk.bytes, uncompressedStarts[i], uncompressedStarts[i + 1] - uncompressedStarts[i]));
+		return chunk;
+	}
 
-		// read complete lines:
-		int completeLinesToRead = (len - bufPos) / entry.getBasesPerLine();
-		for (int line = 0; line < completeLinesToRead; line++) {
-			InputStreamUtils.readFully(is, data, bufPos, entry.getBasesPerLine());
-			bufPos += entry.getBasesPerLine();
-			is.skip(lineBreakLen);
+	private static void inflateBlock(byte[] blocks, int offset, int blockSize, byte[] dest, int destOffset,
+			int uncompressedSize) {
+		Inflater inflater = new Inflater(true);
+		try {
+			int headerLength = BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH;
+			inflater.setInput(blocks, offset + headerLength, blockSize - headerLength
+					- BlockCompressedStreamConstants.BLOCK_FOOTER_LENGTH);
+			int inflated = 0;
+			while (inflated < uncompressedSize) {
+				int n = inflater.inflate(dest, destOffset + inflated, uncompressedSize - inflated);
+				if (n == 0 && (inflater.finished() || inflater.needsInput()))
+					break;
+				inflated += n;
+			}
+			if (inflated != uncompressedSize)
+				throw new SAMFormatException("Corrupt BGZF block: expected " + uncompressedSize + " bytes, got "
+						+ inflated);
+		} catch (DataFormatException e) {
+			throw new SAMFormatException("Corrupt BGZF block: " + e.getMessage());
+		} finally {
+			inflater.end();
 		}
+	}
 
-		// read the rest of the last incomplete line:
-		while ((b = (byte) is.read()) != -1 && bufPos < len && b != '\r' && b != '\n')
-			data[bufPos++] = b;
-
-		return new ReferenceSequence(entry.getName(), entry.getIndex(), data);
+	private static int unpackInt16(byte[] buf, int offset) {
+		return (buf[offset] & 0xFF) | ((buf[offset + 1] & 0xFF) << 8);
 	}
 
 	public static void main(String[] args) throws FileNotFoundException {
@@ -232,7 +341,10 @@ public class BGZF_ReferenceSequenceFile implements ReferenceSequenceFile {
 	}
 
 	private static List<String> lookup(String name, BGZF_ReferenceSequenceFile rsf) {
-		return rsf.lookUpByRegex("\\b" + name + ".*\\b");
+		String resolved = rsf.resolveName(name);
+		if (resolved != null)
+			return Collections.singletonList(resolved);
+		return rsf.lookUpByPrefix(name);
 	}
 
 	private static String chooseOne(String query, List<String> list) {
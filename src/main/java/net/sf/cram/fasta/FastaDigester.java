@@ -0,0 +1,111 @@
+/*
+ * Copyright 2012 - 2018 EMBL - European Bioinformatics Institute
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+
+package net.sf.cram.fasta;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import net.sf.cram.ref.SequenceDigest;
+
+/**
+ * Computes the MD5 and length of every sequence in a fasta stream without
+ * holding whole sequences in memory. The stream is read in large chunks and
+ * each chunk goes to the digest as it is, so memory use does not depend on
+ * the size of the sequences.
+ * <p>
+ * The checksums are those of the @SQ M5 tag: whitespace and other characters
+ * outside of '!'..'~' are skipped and the bases are upper cased. Sequence
+ * names end at the first whitespace of the header line.
+ */
+public class FastaDigester {
+	private static final int CHUNK_SIZE = 4 * 1024 * 1024;
+
+	private final byte[] chunk = new byte[CHUNK_SIZE];
+	private final byte[] bases = new byte[CHUNK_SIZE];
+	private final StringBuilder header = new StringBuilder();
+	private final MessageDigest md5;
+
+	public FastaDigester() {
+		try {
+			md5 = MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	public Map<String, SequenceDigest> digest(File file) throws IOException {
+		try (InputStream is = new FileInputStream(file)) {
+			return digest(is);
+		}
+	}
+
+	/**
+	 * @return the digests by sequence name in the order of the sequences
+	 */
+	public Map<String, SequenceDigest> digest(InputStream is) throws IOException {
+		Map<String, SequenceDigest> digests = new LinkedHashMap<String, SequenceDigest>();
+		String name = null;
+		long length = 0;
+		boolean inHeader = false;
+		md5.reset();
+		header.setLength(0);
+
+		int read;
+		while ((read = is.read(chunk)) > 0) {
+			int count = 0;
+			for (int i = 0; i < read; i++) {
+				byte b = chunk[i];
+				if (inHeader) {
+					if (b == '\n') {
+						inHeader = false;
+						name = header.toString().trim().split("\\s", 2)[0];
+						header.setLength(0);
+					} else
+						header.append((char) b);
+				} else if (b == '>') {
+					md5.update(bases, 0, count);
+					length += count;
+					count = 0;
+					if (name != null)
+						digests.put(name, finish(length));
+					else
+						md5.reset();
+					length = 0;
+					inHeader = true;
+				} else if (b > ' ' && b <= '~') {
+					bases[count++] = b >= 'a' && b <= 'z' ? (byte) (b - 32) : b;
+				}
+			}
+			md5.update(bases, 0, count);
+			length += count;
+		}
+		if (inHeader)
+			name = header.toString().trim().split("\\s", 2)[0];
+		if (name != null)
+			digests.put(name, finish(length));
+		return digests;
+	}
+
+	private SequenceDigest finish(long length) {
+		if (length > Integer.MAX_VALUE)
+			throw new RuntimeException("The reference sequence is too long: " + length);
+		return new SequenceDigest(String.format("%032x", new BigInteger(1, md5.digest())), (int) length);
+	}
+}
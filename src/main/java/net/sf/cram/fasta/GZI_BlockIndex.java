@@ -0,0 +1,177 @@
+/*
+ * Copyright 2012 - 2018 EMBL - European Bioinformatics Institute
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+
+package net.sf.cram.fasta;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import htsjdk.samtools.SAMFormatException;
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
+
+/**
+ * Compressed and uncompressed offsets of the BGZF blocks in a file, the same
+ * as samtools' .gzi index. The file holds the number of entries followed by
+ * pairs of compressed and uncompressed offsets as little endian 64 bit
+ * integers. The first block is implied and not written.
+ */
+class GZI_BlockIndex {
+	private long[] compressed;
+	private long[] uncompressed;
+	private int size;
+
+	private GZI_BlockIndex(int capacity) {
+		compressed = new long[Math.max(1, capacity)];
+		uncompressed = new long[compressed.length];
+		add(0, 0);
+	}
+
+	private void add(long compressedOffset, long uncompressedOffset) {
+		if (size == compressed.length) {
+			compressed = Arrays.copyOf(compressed, size * 2);
+			uncompressed = Arrays.copyOf(uncompressed, size * 2);
+		}
+		compressed[size] = compressedOffset;
+		uncompressed[size] = uncompressedOffset;
+		size++;
+	}
+
+	/**
+	 * Build the index by walking the block headers, nothing is inflated.
+	 */
+	static GZI_BlockIndex build(File file) throws IOException {
+		GZI_BlockIndex index = new GZI_BlockIndex(1024);
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			byte[] header = new byte[BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH];
+			byte[] isize = new byte[4];
+			long length = raf.length();
+			long position = 0;
+			long uncompressedPosition = 0;
+			while (position < length) {
+				raf.seek(position);
+				raf.readFully(header);
+				if (header[0] != BlockCompressedStreamConstants.GZIP_ID1
+						|| (header[1] & 0xFF) != BlockCompressedStreamConstants.GZIP_ID2
+						|| header[12] != BlockCompressedStreamConstants.BGZF_ID1
+						|| header[13] != BlockCompressedStreamConstants.BGZF_ID2)
+					throw new SAMFormatException("Invalid BGZF block header at " + position + " in "
+							+ file.getAbsolutePath());
+				int blockSize = unpackInt16(header, BlockCompressedStreamConstants.BLOCK_LENGTH_OFFSET) + 1;
+				raf.seek(position + blockSize - 4);
+				raf.readFully(isize);
+
+				if (position > 0)
+					index.add(position, uncompressedPosition);
+				position += blockSize;
+				uncompressedPosition += unpackInt32(isize, 0) & 0xFFFFFFFFL;
+			}
+		} finally {
+			raf.close();
+		}
+		return index;
+	}
+
+	static GZI_BlockIndex read(File file) throws IOException {
+		DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			long count = readLong(dis);
+			GZI_BlockIndex index = new GZI_BlockIndex((int) count + 1);
+			for (long i = 0; i < count; i++)
+				index.add(readLong(dis), readLong(dis));
+			return index;
+		} finally {
+			dis.close();
+		}
+	}
+
+	void write(File file) throws IOException {
+		OutputStream os = new BufferedOutputStream(new FileOutputStream(file));
+		try {
+			writeLong(os, size - 1);
+			for (int i = 1; i < size; i++) {
+				writeLong(os, compressed[i]);
+				writeLong(os, uncompressed[i]);
+			}
+		} finally {
+			os.close();
+		}
+	}
+
+	int size() {
+		return size;
+	}
+
+	long getCompressedOffset(int block) {
+		return compressed[block];
+	}
+
+	long getUncompressedOffset(int block) {
+		return uncompressed[block];
+	}
+
+	/**
+	 * @return the block holding the uncompressed offset
+	 */
+	int findBlock(long uncompressedOffset) {
+		int i = Arrays.binarySearch(uncompressed, 0, size, uncompressedOffset);
+		if (i < 0)
+			return -i - 2;
+		// skip empty blocks starting at the same offset:
+		while (i + 1 < size && uncompressed[i + 1] == uncompressedOffset)
+			i++;
+		return i;
+	}
+
+	/**
+	 * Convert a BGZF virtual file pointer to an offset in the uncompressed
+	 * data.
+	 */
+	long toUncompressedOffset(long virtualPointer) {
+		long blockAddress = virtualPointer >>> 16;
+		int i = Arrays.binarySearch(compressed, 0, size, blockAddress);
+		if (i < 0)
+			throw new IllegalArgumentException("No block at " + blockAddress);
+		return uncompressed[i] + (virtualPointer & 0xFFFF);
+	}
+
+	private static int unpackInt16(byte[] buf, int offset) {
+		return (buf[offset] & 0xFF) | ((buf[offset + 1] & 0xFF) << 8);
+	}
+
+	static int unpackInt32(byte[] buf, int offset) {
+		return (buf[offset] & 0xFF) | ((buf[offset + 1] & 0xFF) << 8) | ((buf[offset + 2] & 0xFF) << 16)
+				| ((buf[offset + 3] & 0xFF) << 24);
+	}
+
+	private static long readLong(DataInputStream dis) throws IOException {
+		byte[] buf = new byte[8];
+		dis.readFully(buf);
+		long value = 0;
+		for (int i = 7; i >= 0; i--)
+			value = value << 8 | (buf[i] & 0xFF);
+		return value;
+	}
+
+	private static void writeLong(OutputStream os, long value) throws IOException {
+		for (int i = 0; i < 8; i++)
+			os.write((int) (value >>> (8 * i)) & 0xFF);
+	}
+}
@@ -44,12 +44,26 @@ public class CramIndex {
 	private List<Entry> entries = new ArrayList<CramIndex.Entry>();
 
 	public void addContainer(Container c) throws IOException, IllegalArgumentException, IllegalAccessException {
+		entries.addAll(getContainerEntries(c));
+	}
+
+	public void addEntries(Collection<Entry> entries) {
+		this.entries.addAll(entries);
+	}
+
+	/**
+	 * Create index entries for each slice of the container, using
+	 * {@link Container#offset} as the container start offset.
+	 */
+	public static List<Entry> getContainerEntries(Container c) throws IOException, IllegalArgumentException,
+			IllegalAccessException {
+		List<Entry> entries = new ArrayList<CramIndex.Entry>();
 		if (c.isEOF())
-			return;
+			return entries;
 		for (int i = 0; i < c.slices.length; i++) {
 			Slice s = c.slices[i];
 			if (s.sequenceId == -2) {
-				this.entries.addAll(getMutliRefEntries(c.header, s, c.offset, c.landmarks));
+				entries.addAll(getMutliRefEntries(c.header, s, c.offset, c.landmarks));
 			} else {
 				Entry e = new Entry();
 				e.sequenceId = c.sequenceId;
@@ -64,6 +78,7 @@ public class CramIndex {
 				entries.add(e);
 			}
 		}
+		return entries;
 	}
 
 	public void writeTo(OutputStream os) throws IOException {
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2012 - 2018 EMBL - European Bioinformatics Institute
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+
+package net.sf.cram.ref;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import htsjdk.samtools.util.Log;
+import net.sf.cram.common.Utils;
+
+/**
+ * Remembers the digests of the sequences in a fasta file between runs, so that
+ * the MD5s in a header are confirmed without reading and hashing the whole
+ * reference each time. The digests are kept in a small text file named after
+ * the fasta path and are dropped when the fasta file size or modification time
+ * changes. Saving also removes the files of fasta files that have since been
+ * deleted or changed, so the directory does not grow with every reference
+ * ever used.
+ * <p>
+ * The cache directory is ~/.cramtools/md5 unless set with the
+ * cramtools.md5.cache system property.
+ */
+class FastaDigestCache {
+	private static final Log log = Log.getInstance(FastaDigestCache.class);
+
+	private final File cacheDir;
+	private final File cacheFile;
+	private final String key;
+	private final Map<String, SequenceDigest> digests = new ConcurrentHashMap<String, SequenceDigest>();
+	private volatile boolean changed = false;
+
+	FastaDigestCache(File fasta, File cacheDir) {
+		String path = fasta.getAbsolutePath();
+		key = key(fasta);
+		this.cacheDir = cacheDir;
+		cacheFile = new File(cacheDir, Utils.calculateMD5String(path.getBytes()));
+		load();
+	}
+
+	private static String key(File fasta) {
+		return String.format("%s\t%d\t%d", fasta.getAbsolutePath(), fasta.length(), fasta.lastModified());
+	}
+
+	static File getDefaultDirectory() {
+		String dir = System.getProperty("cramtools.md5.cache");
+		if (dir != null)
+			return new File(dir);
+		return new File(System.getProperty("user.home"), ".cramtools/md5");
+	}
+
+	SequenceDigest get(String name) {
+		return digests.get(name);
+	}
+
+	void put(String name, SequenceDigest digest) {
+		digests.put(name, digest);
+		changed = true;
+	}
+
+	private void load() {
+		if (!cacheFile.exists())
+			return;
+		try (BufferedReader reader = new BufferedReader(new FileReader(cacheFile))) {
+			if (!key.equals(reader.readLine())) {
+				log.debug("Stale md5 cache: " + cacheFile);
+				return;
+			}
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] fields = line.split("\t");
+				digests.put(fields[0], new SequenceDigest(fields[1], Integer.parseInt(fields[2])));
+			}
+		} catch (IOException | RuntimeException e) {
+			log.warn(String.format("Ignoring unreadable md5 cache %s: %s", cacheFile, e.getMessage()));
+			digests.clear();
+		}
+	}
+
+	/**
+	 * Write the digests if there are new ones. Failing to write is not an
+	 * error, the digests are computed again next time.
+	 */
+	synchronized void save() {
+		if (!changed)
+			return;
+		try {
+			cacheFile.getParentFile().mkdirs();
+			File tmpFile = File.createTempFile(cacheFile.getName(), ".tmp", cacheFile.getParentFile());
+			try (PrintWriter writer = new PrintWriter(tmpFile)) {
+				writer.println(key);
+				for (Map.Entry<String, SequenceDigest> e : digests.entrySet())
+					writer.printf("%s\t%s\t%d\n", e.getKey(), e.getValue().md5, e.getValue().length);
+			}
+			if (!tmpFile.renameTo(cacheFile)) {
+				tmpFile.delete();
+				throw new IOException("rename failed");
+			}
+			changed = false;
+		} catch (IOException e) {
+			log.warn(String.format("Failed to save md5 cache %s: %s", cacheFile, e.getMessage()));
+		}
+		prune(cacheDir);
+	}
+
+	/**
+	 * Delete the cache files whose fasta file no longer exists or has changed.
+	 * Files that cannot be read are stale too.
+	 */
+	static void prune(File cacheDir) {
+		File[] files = cacheDir.listFiles();
+		if (files == null)
+			return;
+		for (File file : files) {
+			if (!file.getName().matches("[0-9a-f]{32}"))
+				continue;
+			String key = null;
+			try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+				key = reader.readLine();
+			} catch (IOException e) {
+				// unreadable, removed below
+			}
+			if (key != null && isCurrent(key))
+				continue;
+			log.debug("Removing stale md5 cache: " + file);
+			file.delete();
+		}
+	}
+
+	private static boolean isCurrent(String key) {
+		// the path may contain tabs, the length and time do not:
+		int timeTab = key.lastIndexOf('\t');
+		int lengthTab = timeTab > 0 ? key.lastIndexOf('\t', timeTab - 1) : -1;
+		if (lengthTab < 0)
+			return false;
+		File fasta = new File(key.substring(0, lengthTab));
+		return fasta.isFile() && key.equals(key(fasta));
+	}
+}
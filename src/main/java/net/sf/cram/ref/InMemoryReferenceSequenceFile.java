@@ -19,28 +19,106 @@ import htsjdk.samtools.SAMSequenceDictionary;
 import htsjdk.samtools.SAMSequenceRecord;
 import htsjdk.samtools.reference.ReferenceSequence;
 import htsjdk.samtools.reference.ReferenceSequenceFile;
+import htsjdk.samtools.reference.ReferenceSequenceFileFactory;
 
+import java.io.File;
 import java.io.IOException;
-import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Map;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
 
+import net.sf.cram.common.Utils;
+
+/**
+ * Reference sequences held in memory outside of the java heap, so that several
+ * genomes can be kept in a long running process without adding to garbage
+ * collection pauses. The bases are kept in direct or mapped byte buffers and
+ * {@link #getSubsequenceView(String, long, long)} returns regions without
+ * copying them. The {@link ReferenceSequenceFile} methods return copies on the
+ * heap as the interface requires.
+ * <p>
+ * Positions are 1-based and inclusive as in {@link ReferenceSequenceFile}.
+ */
 public class InMemoryReferenceSequenceFile implements ReferenceSequenceFile {
-	private Map<Integer, byte[]> sequences = new HashMap<Integer, byte[]>();
+	private static final int TWO_BIT_SIGNATURE = 0x1A412743;
+	private static final byte[] TWO_BIT_BASES = "TCAG".getBytes();
+
+	private List<ByteBuffer> sequences = new ArrayList<ByteBuffer>();
 	private SAMSequenceDictionary dictionary = new SAMSequenceDictionary();
 	private int currentIndex = 0;
 
+	/**
+	 * Load all sequences of a fasta file, or of a UCSC 2bit file if the name
+	 * ends with ".2bit". The bases are upper cased.
+	 */
+	public static InMemoryReferenceSequenceFile load(File file) throws IOException {
+		InMemoryReferenceSequenceFile rsFile = new InMemoryReferenceSequenceFile();
+		if (file.getName().endsWith(".2bit")) {
+			rsFile.addTwoBit(file);
+			return rsFile;
+		}
+
+		ReferenceSequenceFile fasta = ReferenceSequenceFileFactory.getReferenceSequenceFile(file, true);
+		try {
+			ReferenceSequence sequence;
+			while ((sequence = fasta.nextSequence()) != null)
+				rsFile.addSequence(sequence.getName(), Utils.upperCase(sequence.getBases()));
+		} finally {
+			fasta.close();
+		}
+		return rsFile;
+	}
+
 	public void addSequence(String name, byte[] bases) {
-		SAMSequenceRecord r = new SAMSequenceRecord(name, bases.length);
+		ByteBuffer buf = ByteBuffer.allocateDirect(bases.length);
+		buf.put(bases);
+		buf.flip();
+		addSequence(name, buf);
+	}
+
+	/**
+	 * Add the bases between the position and the limit of the buffer, which is
+	 * used as is.
+	 */
+	public void addSequence(String name, ByteBuffer bases) {
+		SAMSequenceRecord r = new SAMSequenceRecord(name, bases.remaining());
 		dictionary.addSequence(r);
-		int index = getSequenceDictionary().getSequenceIndex(name);
-		sequences.put(index, bases);
+		sequences.add(bases.slice().asReadOnlyBuffer());
+	}
+
+	private ByteBuffer find(String name) {
+		int index = dictionary.getSequenceIndex(name);
+		return index < 0 ? null : sequences.get(index);
+	}
+
+	/**
+	 * @param start
+	 *            1-based inclusive
+	 * @param stop
+	 *            1-based inclusive, trimmed to the end of the sequence
+	 * @return a read only view of the bases or null if there is no such
+	 *         sequence
+	 */
+	public ByteBuffer getSubsequenceView(String name, long start, long stop) {
+		ByteBuffer bases = find(name);
+		if (bases == null)
+			return null;
+		ByteBuffer view = bases.duplicate();
+		int from = (int) Math.min(Math.max(start - 1, 0), view.limit());
+		view.limit((int) Math.max(from, Math.min(stop, view.limit())));
+		view.position(from);
+		return view.slice();
 	}
 
 	@Override
 	public ReferenceSequence getSequence(String name) {
-		int index = getSequenceDictionary().getSequenceIndex(name);
-		return new ReferenceSequence(name, index, sequences.get(index));
+		ByteBuffer bases = find(name);
+		if (bases == null)
+			return null;
+		return new ReferenceSequence(name, dictionary.getSequenceIndex(name), copy(bases.duplicate()));
 	}
 
 	@Override
@@ -50,9 +128,16 @@ public class InMemoryReferenceSequenceFile implements ReferenceSequenceFile {
 
 	@Override
 	public ReferenceSequence getSubsequenceAt(String name, long start, long stop) {
-		int index = getSequenceDictionary().getSequenceIndex(name);
-		byte[] bases = Arrays.copyOfRange(sequences.get(index), (int) start, (int) stop + 1);
-		return new ReferenceSequence(name, index, bases);
+		ByteBuffer view = getSubsequenceView(name, start, stop);
+		if (view == null)
+			return null;
+		return new ReferenceSequence(name, dictionary.getSequenceIndex(name), copy(view));
+	}
+
+	private static byte[] copy(ByteBuffer buf) {
+		byte[] bytes = new byte[buf.remaining()];
+		buf.get(bytes);
+		return bytes;
 	}
 
 	@Override
@@ -69,12 +154,11 @@ public class InMemoryReferenceSequenceFile implements ReferenceSequenceFile {
 	 * @return
 	 */
 	public ReferenceRegion getRegion(String name, long start, long stop) {
-		int index = getSequenceDictionary().getSequenceIndex(name);
-		if (!sequences.containsKey(index))
+		ReferenceSequence sequence = getSubsequenceAt(name, start, stop);
+		if (sequence == null)
 			throw new RuntimeException("Sequence not found: " + name);
 
-		ReferenceRegion region = new ReferenceRegion(sequences.get(index), index, name, start);
-		return region;
+		return new ReferenceRegion(sequence.getBases(), sequence.getContigIndex(), name, start);
 	}
 
 	@Override
@@ -96,4 +180,65 @@ public class InMemoryReferenceSequenceFile implements ReferenceSequenceFile {
 		currentIndex = 0;
 	}
 
+	/**
+	 * Unpack the sequences of a UCSC 2bit file. Lower case (masked) bases are
+	 * upper cased, blocks of Ns are restored.
+	 */
+	private void addTwoBit(File file) throws IOException {
+		ByteBuffer buf;
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			buf = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+		}
+		buf.order(ByteOrder.LITTLE_ENDIAN);
+		if (buf.getInt(0) != TWO_BIT_SIGNATURE) {
+			buf.order(ByteOrder.BIG_ENDIAN);
+			if (buf.getInt(0) != TWO_BIT_SIGNATURE)
+				throw new IOException("Not a 2bit file: " + file);
+		}
+		buf.position(8);
+		int count = buf.getInt();
+		buf.getInt();
+
+		byte[] unpacked = new byte[256 * 4];
+		for (int b = 0; b < 256; b++)
+			for (int i = 0; i < 4; i++)
+				unpacked[b * 4 + i] = TWO_BIT_BASES[(b >> (6 - 2 * i)) & 3];
+
+		for (int s = 0; s < count; s++) {
+			byte[] name = new byte[buf.get() & 0xFF];
+			buf.get(name);
+			int offset = buf.getInt();
+
+			ByteBuffer record = buf.duplicate().order(buf.order());
+			record.position(offset);
+			int length = record.getInt();
+			int[] nBlocks = readBlocks(record);
+			readBlocks(record);
+			record.getInt();
+
+			ByteBuffer bases = ByteBuffer.allocateDirect(length);
+			for (int i = 0; i < length; i += 4) {
+				int b = record.get() & 0xFF;
+				bases.put(unpacked, b * 4, Math.min(4, length - i));
+			}
+			for (int i = 0; i < nBlocks.length; i += 2)
+				for (int p = nBlocks[i]; p < nBlocks[i] + nBlocks[i + 1]; p++)
+					bases.put(p, (byte) 'N');
+			bases.flip();
+			addSequence(new String(name), bases);
+		}
+	}
+
+	/**
+	 * @return starts and sizes of the blocks, interleaved
+	 */
+	private static int[] readBlocks(ByteBuffer record) {
+		int count = record.getInt();
+		int[] blocks = new int[count * 2];
+		for (int i = 0; i < count; i++)
+			blocks[i * 2] = record.getInt();
+		for (int i = 0; i < count; i++)
+			blocks[i * 2 + 1] = record.getInt();
+		return blocks;
+	}
 }
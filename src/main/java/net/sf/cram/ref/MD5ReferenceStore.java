@@ -0,0 +1,225 @@
+/*
+ * Copyright 2012 - 2018 EMBL - European Bioinformatics Institute
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+
+package net.sf.cram.ref;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import htsjdk.samtools.util.Log;
+
+/**
+ * A local store of reference sequences by MD5 laid out as REF_CACHE: one file
+ * of upper case bases per sequence, at a path formatted from the MD5 by a
+ * {@link PathPattern}.
+ * <p>
+ * A sequence is checked against its MD5 once, when it is added, and is trusted
+ * afterwards. Adding takes a file lock next to the sequence file, so when many
+ * processes ask for a missing sequence at once one of them downloads it while
+ * the others wait and then find it in place. Stored files are memory mapped and
+ * the mappings of recently used sequences are kept for the following reads.
+ */
+public class MD5ReferenceStore {
+	private static final Log log = Log.getInstance(MD5ReferenceStore.class);
+	private static final int MAX_MAPPED_FILES = 64;
+	private static final int COPY_BUFFER_SIZE = 1024 * 1024;
+
+	/**
+	 * Opens the stream of bases to add. It is called only when the sequence is
+	 * really missing, under the lock.
+	 */
+	public interface Source {
+		InputStream open() throws IOException;
+	}
+
+	private final PathPattern pattern;
+	// one entry for each MD5 being inserted right now:
+	private final ConcurrentHashMap<String, Object> locks = new ConcurrentHashMap<String, Object>();
+	private final Map<String, MappedByteBuffer> mapped = Collections
+			.synchronizedMap(new LinkedHashMap<String, MappedByteBuffer>(16, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, MappedByteBuffer> eldest) {
+					return size() > MAX_MAPPED_FILES;
+				}
+			});
+
+	/**
+	 * @param pathPattern
+	 *            a REF_CACHE style pattern, for example
+	 *            "/cache/%2s/%2s/%s"
+	 */
+	public MD5ReferenceStore(String pathPattern) {
+		this.pattern = new PathPattern(pathPattern);
+	}
+
+	public File getFile(String md5) {
+		return new File(pattern.format(md5));
+	}
+
+	public boolean contains(String md5) {
+		return mapped.containsKey(md5) || getFile(md5).exists();
+	}
+
+	/**
+	 * @return all bases of the sequence or null if it is not in the store
+	 */
+	public byte[] getBases(String md5) throws IOException {
+		ByteBuffer buf = map(md5);
+		if (buf == null)
+			return null;
+		byte[] bases = new byte[buf.remaining()];
+		buf.get(bases);
+		return bases;
+	}
+
+	/**
+	 * @param offset
+	 *            zero based offset of the first base
+	 * @return the bases, trimmed at the end of the sequence, or null if the
+	 *         sequence is not in the store
+	 */
+	public byte[] getBases(String md5, int offset, int length) throws IOException {
+		ByteBuffer buf = map(md5);
+		if (buf == null)
+			return null;
+		if (offset > buf.limit() || length < 0) {
+			log.warn(String.format("Ref request is out of range: md5=%s, size=%d, offset=%d, len=%d", md5,
+					buf.limit(), offset, length));
+			return new byte[0];
+		}
+		byte[] bases = new byte[Math.min(buf.limit() - offset, length)];
+		buf.position(offset);
+		buf.get(bases);
+		return bases;
+	}
+
+	private ByteBuffer map(String md5) throws IOException {
+		MappedByteBuffer buf = mapped.get(md5);
+		if (buf == null) {
+			File file = getFile(md5);
+			if (!file.exists())
+				return null;
+			if (file.length() > Integer.MAX_VALUE)
+				throw new RuntimeException("The reference sequence is too long: " + md5);
+			// the mapping stays valid after the channel is closed:
+			try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+				buf = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+			}
+			mapped.put(md5, buf);
+		}
+		return buf.duplicate();
+	}
+
+	/**
+	 * Add the bases to the store unless the sequence is there already.
+	 *
+	 * @return true if the sequence is in the store, false if the bases do not
+	 *         match the MD5
+	 */
+	public boolean put(String md5, byte[] bases) throws IOException {
+		return put(md5, () -> new ByteArrayInputStream(bases));
+	}
+
+	/**
+	 * Add the bases read from the source to the store unless the sequence is
+	 * there already. Only one thread or process reads the source for an MD5 at
+	 * a time, the rest wait for it and then find the sequence stored.
+	 *
+	 * @return true if the sequence is in the store, false if the source had
+	 *         nothing or the bases do not match the MD5
+	 */
+	@SuppressWarnings("try")
+	public boolean put(String md5, Source source) throws IOException {
+		File file = getFile(md5);
+		if (file.exists())
+			return true;
+
+		file.getParentFile().mkdirs();
+		File lockFile = new File(file.getPath() + ".lock");
+		// file locks are held by the process, threads are kept apart first:
+		while (true) {
+			Object threadLock = locks.computeIfAbsent(md5, k -> new Object());
+			synchronized (threadLock) {
+				// removed by the thread that has just finished, try again:
+				if (locks.get(md5) != threadLock)
+					continue;
+
+				try (RandomAccessFile raf = new RandomAccessFile(lockFile, "rw");
+						FileLock lock = raf.getChannel().lock()) {
+					if (file.exists())
+						return true;
+
+					if (!write(md5, source, file))
+						return false;
+					// a failed insert leaves the lock file for the next try:
+					lockFile.delete();
+					return true;
+				} finally {
+					locks.remove(md5);
+				}
+			}
+		}
+	}
+
+	private static boolean write(String md5, Source source, File file) throws IOException {
+		InputStream is = source.open();
+		if (is == null)
+			return false;
+
+		File tmpFile = File.createTempFile(md5, ".tmp", file.getParentFile());
+		try {
+			MessageDigest digest = MessageDigest.getInstance("MD5");
+			try (FileOutputStream fos = new FileOutputStream(tmpFile)) {
+				byte[] buf = new byte[COPY_BUFFER_SIZE];
+				int len;
+				while ((len = is.read(buf)) > 0) {
+					digest.update(buf, 0, len);
+					fos.write(buf, 0, len);
+				}
+			} finally {
+				is.close();
+			}
+
+			String actualMD5 = String.format("%032x", new BigInteger(1, digest.digest()));
+			if (!md5.equals(actualMD5)) {
+				log.error(String.format("Not adding to the reference store: requested md5=%s, received md5=%s", md5,
+						actualMD5));
+				return false;
+			}
+			if (!tmpFile.renameTo(file))
+				throw new IOException("Failed to move the sequence into the reference store: " + file);
+			log.info(String.format("Added to the reference store: md5=%s, length=%d", md5, file.length()));
+			return true;
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		} finally {
+			tmpFile.delete();
+		}
+	}
+}
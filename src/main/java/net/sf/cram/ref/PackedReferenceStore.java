@@ -0,0 +1,247 @@
+/*
+ * Copyright 2012 - 2018 EMBL - European Bioinformatics Institute
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+
+package net.sf.cram.ref;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import htsjdk.samtools.reference.ReferenceSequence;
+import htsjdk.samtools.reference.ReferenceSequenceFile;
+import htsjdk.samtools.reference.ReferenceSequenceFileFactory;
+import htsjdk.samtools.util.Log;
+import net.sf.cram.common.Utils;
+
+/**
+ * Read-only reference sequences packed two bases per byte in a file which is
+ * memory mapped, so that all processes on a node share one copy of the bases
+ * in the page cache. The bases are coded with the 4-bit BAM alphabet
+ * "=ACMGRSVTWYHKDBN" which keeps IUPAC codes; sequences with other symbols are
+ * left out of the image.
+ * <p>
+ * The image is the magic bytes, the packed sequences, an index of name, MD5,
+ * length and offset for each sequence, and finally the offset of the index.
+ */
+public class PackedReferenceStore {
+	private static final Log log = Log.getInstance(PackedReferenceStore.class);
+	private static final byte[] MAGIC = "CRAMREF4".getBytes();
+	private static final byte[] CODE_TO_BASE = "=ACMGRSVTWYHKDBN".getBytes();
+	private static final byte[] BASE_TO_CODE = new byte[256];
+
+	static {
+		Arrays.fill(BASE_TO_CODE, (byte) -1);
+		for (int i = 0; i < CODE_TO_BASE.length; i++)
+			BASE_TO_CODE[CODE_TO_BASE[i]] = (byte) i;
+	}
+
+	public static class Sequence {
+		public final String name;
+		public final String md5;
+		public final long length;
+		private final long offset;
+		private MappedByteBuffer buffer;
+
+		private Sequence(String name, String md5, long length, long offset) {
+			this.name = name;
+			this.md5 = md5;
+			this.length = length;
+			this.offset = offset;
+		}
+	}
+
+	private final File file;
+	private final Map<String, Sequence> byName = new LinkedHashMap<String, Sequence>();
+	private final Map<String, Sequence> byMD5 = new HashMap<String, Sequence>();
+	private final ReferenceNameIndex nameIndex = new ReferenceNameIndex();
+
+	private PackedReferenceStore(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Open the image, creating it from the fasta file first if it does not
+	 * exist.
+	 */
+	public static PackedReferenceStore openOrCreate(File image, File fasta) throws IOException {
+		if (!image.exists()) {
+			if (fasta == null)
+				throw new IllegalArgumentException("Reference image not found and no fasta file to create it from: "
+						+ image.getAbsolutePath());
+			create(ReferenceSequenceFileFactory.getReferenceSequenceFile(fasta), image);
+		}
+		return open(image);
+	}
+
+	/**
+	 * Write an image of all sequences in the reference file. The image is
+	 * written to a temporary file and renamed, so that concurrent processes
+	 * either see a complete image or none.
+	 */
+	public static void create(ReferenceSequenceFile rsFile, File image) throws IOException {
+		File parent = image.getAbsoluteFile().getParentFile();
+		File tmpFile = File.createTempFile(image.getName(), ".tmp", parent);
+		try {
+			List<Sequence> sequences = new ArrayList<Sequence>();
+			DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+			dos.write(MAGIC);
+			long offset = MAGIC.length;
+			byte[] packed = new byte[0];
+			rsFile.reset();
+			ReferenceSequence sequence;
+			while ((sequence = rsFile.nextSequence()) != null) {
+				byte[] bases = Utils.upperCase(sequence.getBases());
+				int packedLength = (bases.length + 1) / 2;
+				if (packed.length < packedLength)
+					packed = new byte[packedLength];
+				if (!pack(bases, packed)) {
+					log.warn("Sequence has symbols that can not be packed, leaving it out: " + sequence.getName());
+					continue;
+				}
+				dos.write(packed, 0, packedLength);
+				sequences.add(new Sequence(sequence.getName(), Utils.calculateMD5String(bases), bases.length, offset));
+				offset += packedLength;
+			}
+
+			dos.writeInt(sequences.size());
+			for (Sequence s : sequences) {
+				dos.writeUTF(s.name);
+				dos.writeUTF(s.md5);
+				dos.writeLong(s.length);
+				dos.writeLong(s.offset);
+			}
+			dos.writeLong(offset);
+			dos.close();
+
+			if (!tmpFile.renameTo(image) && !image.exists())
+				throw new IOException("Failed to rename " + tmpFile.getAbsolutePath() + " to " + image.getAbsolutePath());
+			log.info(String.format("Created reference image %s with %d sequences.", image.getAbsolutePath(),
+					sequences.size()));
+		} finally {
+			tmpFile.delete();
+		}
+	}
+
+	public static PackedReferenceStore open(File image) throws IOException {
+		PackedReferenceStore store = new PackedReferenceStore(image);
+		RandomAccessFile raf = new RandomAccessFile(image, "r");
+		try {
+			byte[] magic = new byte[MAGIC.length];
+			raf.readFully(magic);
+			if (!Arrays.equals(MAGIC, magic))
+				throw new IOException("Not a reference image: " + image.getAbsolutePath());
+			raf.seek(raf.length() - 8);
+			raf.seek(raf.readLong());
+
+			FileChannel channel = raf.getChannel();
+			DataInputStream dis = new DataInputStream(Channels.newInputStream(channel));
+			int count = dis.readInt();
+			for (int i = 0; i < count; i++) {
+				Sequence s = new Sequence(dis.readUTF(), dis.readUTF(), dis.readLong(), dis.readLong());
+				s.buffer = channel.map(MapMode.READ_ONLY, s.offset, (s.length + 1) / 2);
+				store.byName.put(s.name, s);
+				store.nameIndex.add(s.name);
+				store.byMD5.put(s.md5, s);
+			}
+		} finally {
+			// mappings stay valid after the file is closed:
+			raf.close();
+		}
+		return store;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public Collection<Sequence> getSequences() {
+		return byName.values();
+	}
+
+	public Sequence findByName(String name) {
+		return byName.get(name);
+	}
+
+	/**
+	 * Find a sequence by one of the aliases of its name, see
+	 * {@link ReferenceNameIndex}.
+	 */
+	public Sequence findByAlias(String name) {
+		String resolved = nameIndex.resolve(name);
+		return resolved == null ? null : byName.get(resolved);
+	}
+
+	public Sequence findByMD5(String md5) {
+		return md5 == null ? null : byMD5.get(md5);
+	}
+
+	/**
+	 * @return all bases of the sequence, upper case
+	 */
+	public byte[] getBases(Sequence sequence) {
+		return getBases(sequence, 1, sequence.length);
+	}
+
+	/**
+	 * Unpack a region of the sequence, trimmed to the sequence length.
+	 * 
+	 * @param start
+	 *            1-based inclusive
+	 * @param end
+	 *            1-based inclusive
+	 * @return the bases or an empty array if the region is outside of the
+	 *         sequence
+	 */
+	public byte[] getBases(Sequence sequence, long start, long end) {
+		if (start < 1)
+			throw new IllegalArgumentException("Invalid region start: " + start);
+		end = Math.min(end, sequence.length);
+		if (start > end)
+			return new byte[0];
+
+		byte[] bases = new byte[(int) (end - start + 1)];
+		ByteBuffer buffer = sequence.buffer;
+		long position = start - 1;
+		for (int i = 0; i < bases.length; i++, position++) {
+			int b = buffer.get((int) (position >> 1));
+			bases[i] = CODE_TO_BASE[(position & 1) == 0 ? (b >> 4) & 0xF : b & 0xF];
+		}
+		return bases;
+	}
+
+	private static boolean pack(byte[] bases, byte[] packed) {
+		for (int i = 0; i < bases.length; i += 2) {
+			int high = BASE_TO_CODE[bases[i] & 0xFF];
+			int low = i + 1 < bases.length ? BASE_TO_CODE[bases[i + 1] & 0xFF] : 0;
+			if (high < 0 || low < 0)
+				return false;
+			packed[i / 2] = (byte) (high << 4 | low);
+		}
+		return true;
+	}
+}
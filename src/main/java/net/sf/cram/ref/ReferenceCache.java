@@ -0,0 +1,211 @@
+/*
+ * Copyright 2012 - 2018 EMBL - European Bioinformatics Institute
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+
+package net.sf.cram.ref;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A memory bounded cache of reference bases. Each sequence can be found by
+ * several keys, usually its name and its MD5, but is accounted for once. Reads
+ * do not lock, and a missing sequence is loaded by one thread while other
+ * threads asking for the same key wait for it. When the cached bases exceed
+ * the byte budget the least recently used sequences are evicted, except the
+ * one just added.
+ */
+class ReferenceCache {
+
+	interface Loader {
+		byte[] load() throws IOException;
+	}
+
+	private static class Entry {
+		final byte[] bases;
+		final Set<String> keys = ConcurrentHashMap.newKeySet();
+		volatile long lastAccess;
+
+		Entry(byte[] bases) {
+			this.bases = bases;
+		}
+	}
+
+	private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+	private final ConcurrentHashMap<String, FutureTask<byte[]>> loading = new ConcurrentHashMap<String, FutureTask<byte[]>>();
+	private final AtomicLong clock = new AtomicLong();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong loads = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private volatile long maxBytes;
+	// guarded by this:
+	private long bytes = 0;
+
+	ReferenceCache(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * @return the cached bases or null if none are cached for the key
+	 */
+	byte[] get(String key) {
+		if (key == null)
+			return null;
+		Entry entry = entries.get(key);
+		if (entry == null)
+			return null;
+		entry.lastAccess = clock.incrementAndGet();
+		hits.incrementAndGet();
+		return entry.bases;
+	}
+
+	/**
+	 * Return the cached bases for the key or load and cache them under the key
+	 * and the aliases. Only one loader runs for a key at a time.
+	 *
+	 * @return the bases or null if the loader could not find them
+	 * @throws IOException
+	 *             as thrown by the loader
+	 */
+	byte[] get(String key, Loader loader, String... aliases) throws IOException {
+		byte[] bases = get(key);
+		if (bases != null)
+			return bases;
+
+		FutureTask<byte[]> task = new FutureTask<byte[]>(() -> {
+			byte[] loaded = get(key);
+			if (loaded != null)
+				return loaded;
+			loaded = loader.load();
+			if (loaded != null) {
+				loads.incrementAndGet();
+				put(loaded, key);
+				for (String alias : aliases)
+					put(loaded, alias);
+			}
+			return loaded;
+		});
+		FutureTask<byte[]> running = loading.putIfAbsent(key, task);
+		if (running == null) {
+			running = task;
+			try {
+				task.run();
+			} finally {
+				loading.remove(key, task);
+			}
+		}
+
+		try {
+			return running.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while loading reference " + key);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			if (cause instanceof Error)
+				throw (Error) cause;
+			throw new RuntimeException(cause);
+		}
+	}
+
+	/**
+	 * Cache the bases under the key. Putting the same array under another key
+	 * adds an alias and does not count the bases again.
+	 */
+	synchronized void put(byte[] bases, String key) {
+		if (key == null)
+			return;
+		Entry entry = entries.get(key);
+		if (entry == null || entry.bases != bases) {
+			entry = findEntry(bases);
+			if (entry == null) {
+				entry = new Entry(bases);
+				bytes += bases.length;
+			}
+		}
+		Entry old = entries.put(key, entry);
+		entry.keys.add(key);
+		if (old != null && old != entry)
+			removeKey(old, key);
+		entry.lastAccess = clock.incrementAndGet();
+		evict(entry);
+	}
+
+	synchronized void clear() {
+		entries.clear();
+		bytes = 0;
+	}
+
+	void setMaxBytes(long maxBytes) {
+		this.maxBytes = maxBytes;
+		synchronized (this) {
+			evict(null);
+		}
+	}
+
+	long getMaxBytes() {
+		return maxBytes;
+	}
+
+	synchronized long getBytes() {
+		return bytes;
+	}
+
+	long getHitCount() {
+		return hits.get();
+	}
+
+	long getLoadCount() {
+		return loads.get();
+	}
+
+	long getEvictionCount() {
+		return evictions.get();
+	}
+
+	private Entry findEntry(byte[] bases) {
+		for (Entry e : entries.values())
+			if (e.bases == bases)
+				return e;
+		return null;
+	}
+
+	private void removeKey(Entry entry, String key) {
+		entry.keys.remove(key);
+		if (entry.keys.isEmpty())
+			bytes -= entry.bases.length;
+	}
+
+	private void evict(Entry keep) {
+		while (bytes > maxBytes) {
+			Entry lru = null;
+			for (Entry e : entries.values())
+				if (e != keep && (lru == null || e.lastAccess < lru.lastAccess))
+					lru = e;
+			if (lru == null)
+				return;
+			for (String key : lru.keys)
+				entries.remove(key, lru);
+			lru.keys.clear();
+			bytes -= lru.bases.length;
+			evictions.incrementAndGet();
+		}
+	}
+}
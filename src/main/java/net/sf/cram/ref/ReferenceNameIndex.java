@@ -0,0 +1,155 @@
+/*
+ * Copyright 2012 - 2018 EMBL - European Bioinformatics Institute
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+
+package net.sf.cram.ref;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
+
+/**
+ * Resolves the names used for a reference sequence in different places to the
+ * name it has in a reference file. Aliases are worked out once when the
+ * sequences are added:
+ * <ul>
+ * <li>the name with the "chr" prefix removed or added,</li>
+ * <li>M, MT, chrM and chrMT for the mitochondrial sequence,</li>
+ * <li>accessions in NCBI style names such as gi|123|ref|NC_000001.11|, with
+ * and without the version,</li>
+ * <li>alternative names from the AN tag of a sequence dictionary.</li>
+ * </ul>
+ * A real sequence name always wins over an alias, otherwise the alias of the
+ * first sequence added is kept.
+ */
+public class ReferenceNameIndex {
+	private static final String[] MITOCHONDRIAL_NAMES = { "MT", "M", "chrM", "chrMT" };
+	private static final String ALTERNATIVE_NAMES_TAG = "AN";
+
+	private final Set<String> names = new HashSet<String>();
+	private final Map<String, String> aliases = new HashMap<String, String>();
+	private TreeSet<String> sortedNames;
+
+	public static ReferenceNameIndex fromDictionary(SAMSequenceDictionary dictionary) {
+		ReferenceNameIndex index = new ReferenceNameIndex();
+		for (SAMSequenceRecord record : dictionary.getSequences()) {
+			String alternatives = record.getAttribute(ALTERNATIVE_NAMES_TAG);
+			index.add(record.getSequenceName(), alternatives == null ? new String[0] : alternatives.split(","));
+		}
+		return index;
+	}
+
+	/**
+	 * Index the names in a samtools .fai file.
+	 */
+	public static ReferenceNameIndex fromFastaIndex(File faiFile) throws IOException {
+		ReferenceNameIndex index = new ReferenceNameIndex();
+		try (BufferedReader reader = new BufferedReader(new FileReader(faiFile))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				int tab = line.indexOf('\t');
+				if (tab > 0)
+					index.add(line.substring(0, tab));
+			}
+		}
+		return index;
+	}
+
+	public synchronized void add(String name, String... alternativeNames) {
+		names.add(name);
+		aliases.remove(name);
+		sortedNames = null;
+
+		for (String alternative : alternativeNames)
+			addAccession(alternative, name);
+
+		if (name.length() > 3 && name.regionMatches(true, 0, "chr", 0, 3))
+			addAlias(name.substring(3), name);
+		else
+			addAlias("chr" + name, name);
+
+		for (String mt : MITOCHONDRIAL_NAMES)
+			if (mt.equals(name)) {
+				for (String alias : MITOCHONDRIAL_NAMES)
+					addAlias(alias, name);
+				break;
+			}
+
+		if (name.indexOf('|') >= 0) {
+			// db|id pairs, the ids are the accessions:
+			String[] tokens = name.split("\\|");
+			for (int i = 1; i < tokens.length; i += 2)
+				addAccession(tokens[i], name);
+		} else
+			addAccession(name, name);
+	}
+
+	private void addAccession(String accession, String name) {
+		addAlias(accession, name);
+		int dot = accession.lastIndexOf('.');
+		if (dot > 0 && dot < accession.length() - 1 && isDigits(accession, dot + 1))
+			addAlias(accession.substring(0, dot), name);
+	}
+
+	private static boolean isDigits(String s, int from) {
+		for (int i = from; i < s.length(); i++)
+			if (!Character.isDigit(s.charAt(i)))
+				return false;
+		return true;
+	}
+
+	private void addAlias(String alias, String name) {
+		if (!alias.isEmpty() && !names.contains(alias))
+			aliases.putIfAbsent(alias, name);
+	}
+
+	/**
+	 * @return true if this is the name of a sequence, aliases are not
+	 *         considered
+	 */
+	public synchronized boolean contains(String name) {
+		return names.contains(name);
+	}
+
+	/**
+	 * @return the name of the sequence known by the name or alias, null if
+	 *         none
+	 */
+	public synchronized String resolve(String name) {
+		if (names.contains(name))
+			return name;
+		return aliases.get(name);
+	}
+
+	/**
+	 * @return the sequence names starting with the prefix, in lexicographic
+	 *         order
+	 */
+	public synchronized SortedSet<String> findByPrefix(String prefix) {
+		if (sortedNames == null)
+			sortedNames = new TreeSet<String>(names);
+		return new TreeSet<String>(sortedNames.subSet(prefix, prefix + Character.MAX_VALUE));
+	}
+
+	public synchronized int size() {
+		return names.size();
+	}
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2012 - 2018 EMBL - European Bioinformatics Institute
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+
+package net.sf.cram.ref;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.cram.structure.Container;
+import htsjdk.samtools.cram.structure.Slice;
+import htsjdk.samtools.util.Log;
+
+/**
+ * Loads the reference regions of containers before they are decoded. Readers
+ * pass the containers they have read ahead, the regions are loaded into the
+ * {@link ReferenceSource} by background threads. Prefetching is best effort:
+ * when the threads fall behind the oldest requests are dropped and failures
+ * are only logged, decoding will load what it needs anyway.
+ */
+public class ReferencePrefetcher {
+	private static final Log log = Log.getInstance(ReferencePrefetcher.class);
+	private static final int MAX_PENDING = 16;
+
+	private final ReferenceSource referenceSource;
+	private final SAMFileHeader header;
+	private final ThreadPoolExecutor executor;
+	private final AtomicLong requests = new AtomicLong();
+
+	public ReferencePrefetcher(ReferenceSource referenceSource, SAMFileHeader header, int threads) {
+		this.referenceSource = referenceSource;
+		this.header = header;
+		executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(MAX_PENDING), r -> {
+					Thread thread = new Thread(r, "reference-prefetch");
+					thread.setDaemon(true);
+					return thread;
+				}, new ThreadPoolExecutor.DiscardOldestPolicy());
+	}
+
+	/**
+	 * Prefetch the reference spanned by the container. Both a container read
+	 * in full and a container header will do. Multi-reference containers are
+	 * prefetched by their slices when these have been read.
+	 */
+	public void prefetch(Container container) {
+		if (container == null || container.isEOF())
+			return;
+		if (container.sequenceId != Slice.MULTI_REFERENCE) {
+			prefetch(container.sequenceId, container.alignmentStart, container.alignmentSpan);
+			return;
+		}
+		if (container.slices != null)
+			for (Slice slice : container.slices)
+				prefetch(slice.sequenceId, slice.alignmentStart, slice.alignmentSpan);
+	}
+
+	public void prefetch(int sequenceId, int alignmentStart, int alignmentSpan) {
+		if (sequenceId < 0 || alignmentStart < 1 || alignmentSpan < 1)
+			return;
+		SAMSequenceRecord sequence = header.getSequence(sequenceId);
+		if (sequence == null)
+			return;
+
+		requests.incrementAndGet();
+		executor.execute(() -> {
+			try {
+				referenceSource.prefetchRegion(sequence, alignmentStart, alignmentStart + alignmentSpan - 1);
+			} catch (Exception e) {
+				log.warn(String.format("Failed to prefetch reference %s:%d-%d: %s", sequence.getSequenceName(),
+						alignmentStart, alignmentStart + alignmentSpan - 1, e.getMessage()));
+			}
+		});
+	}
+
+	/**
+	 * @return number of regions requested so far
+	 */
+	public long getRequestCount() {
+		return requests.get();
+	}
+
+	public void close() {
+		executor.shutdownNow();
+	}
+}
@@ -15,11 +15,20 @@
  ******************************************************************************/
 package net.sf.cram.ref;
 
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 
-import htsjdk.samtools.util.SequenceUtil;
-
 public class ReferenceRegion {
+	private static final ThreadLocal<MessageDigest> MD5 = ThreadLocal.withInitial(() -> {
+		try {
+			return MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	});
+
 	public int index;
 	public String name;
 	// alignment start of the first element in the 'array':
@@ -114,13 +123,30 @@ public class ReferenceRegion {
 	}
 
 	public String md5(int alignmentStart, int alignmentSpan) {
+		return String.format("%032x", new BigInteger(1, md5Digest(alignmentStart, alignmentSpan)));
+	}
+
+	/**
+	 * @return the 16 bytes of MD5 digest of the bases in the region, trimmed
+	 *         at the end of the array
+	 */
+	public byte[] md5Digest(int alignmentStart, int alignmentSpan) {
+		MessageDigest digest = MD5.get();
 		int from = (int) (alignmentStart - this.alignmentStart);
-		if (from >= array.length)
-			return SequenceUtil.calculateMD5String(new byte[0], 0, 0);
-		// allow for hanging end:
-		int to = (int) (alignmentStart + alignmentSpan - this.alignmentStart);
+		if (from < array.length) {
+			// allow for hanging end:
+			int to = (int) (alignmentStart + alignmentSpan - this.alignmentStart);
+			digest.update(array, from, Math.min(to - from, array.length - from));
+		}
+		return digest.digest();
+	}
 
-		return SequenceUtil.calculateMD5String(array, from, Math.min(to - from, array.length - from));
+	/**
+	 * Compare the bases with an MD5 digest, such as that of a slice, without
+	 * formatting either as a string.
+	 */
+	public boolean md5Matches(byte[] md5, int alignmentStart, int alignmentSpan) {
+		return MessageDigest.isEqual(md5, md5Digest(alignmentStart, alignmentSpan));
 	}
 
 	@Override
@@ -18,26 +18,30 @@ package net.sf.cram.ref;
 import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.lang.ref.WeakReference;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.regex.Pattern;
-
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import htsjdk.samtools.SAMSequenceDictionary;
 import htsjdk.samtools.SAMSequenceRecord;
 import htsjdk.samtools.cram.io.InputStreamUtils;
 import htsjdk.samtools.cram.ref.CRAMReferenceSource;
-import htsjdk.samtools.reference.FastaSequenceIndex;
 import htsjdk.samtools.reference.ReferenceSequence;
 import htsjdk.samtools.reference.ReferenceSequenceFile;
 import htsjdk.samtools.reference.ReferenceSequenceFileFactory;
-import htsjdk.samtools.util.IOUtil;
 import htsjdk.samtools.util.Log;
 import net.sf.cram.common.Utils;
 
@@ -45,10 +49,12 @@ import net.sf.cram.common.Utils;
  * A central class for automated discovery of reference sequences. The algorithm
  * is expected similar to that of samtools:
  * <ul>
- * <li>Search in memory cache by sequence name.</li>
+ * <li>Search in memory cache by sequence name or MD5.</li>
+ * <li>Use a packed reference image if supplied.</li>
  * <li>Use local fasta file is supplied as a reference file and cache the found
  * sequence in memory.</li>
- * <li>Try REF_CACHE env variable.</li>
+ * <li>Try the local store of sequences by MD5, REF_CACHE env variable by
+ * default.</li>
  * <li>Try all entries in REF_PATH. The default value is the EBI reference
  * service.</li>
  * <li>Try @SQ:UR as a URL for a fasta file with the fasta index next to
@@ -59,7 +65,8 @@ import net.sf.cram.common.Utils;
  */
 public class ReferenceSource implements CRAMReferenceSource {
 	private static final int REF_BASES_TO_CHECK_FOR_SANITY = 1000;
-	private static final Pattern chrPattern = Pattern.compile("chr.*", Pattern.CASE_INSENSITIVE);
+	private static final int DEFAULT_REGION_WINDOW = 4 * 1024 * 1024;
+	private static final int MAX_WINDOWS = 16;
 	private static String REF_CACHE = System.getenv("REF_CACHE");
 	private static String REF_PATH = System.getenv("REF_PATH");
 	private static List<PathPattern> refPatterns = new ArrayList<PathPattern>();
@@ -68,8 +75,6 @@ public class ReferenceSource implements CRAMReferenceSource {
 		if (REF_PATH == null)
 			REF_PATH = "http://www.ebi.ac.uk/ena/cram/md5/%s";
 
-		if (REF_CACHE != null)
-			refPatterns.add(new PathPattern(REF_CACHE));
 		for (String s : REF_PATH.split("(?i)(?<!(http|ftp)):")) {
 			refPatterns.add(new PathPattern(s));
 		}
@@ -78,14 +83,33 @@ public class ReferenceSource implements CRAMReferenceSource {
 
 	private static Log log = Log.getInstance(ReferenceSource.class);
 	private ReferenceSequenceFile rsFile;
-	private FastaSequenceIndex fastaSequenceIndex;
+	private ReferenceNameIndex nameIndex;
 	private int downloadTriesBeforeFailing = 2;
+	private PackedReferenceStore packedStore;
+	private FastaDigestCache fastaDigests;
+	private MD5ReferenceStore localStore = REF_CACHE == null ? null : new MD5ReferenceStore(REF_CACHE);
+	private int regionWindow = DEFAULT_REGION_WINDOW;
+	private AtomicLong windowLoads = new AtomicLong();
+	private ConcurrentHashMap<String, Object> windowLocks = new ConcurrentHashMap<String, Object>();
+
+	/*
+	 * The last window read for each of a few recently used sequences:
+	 */
+	private Map<String, ReferenceRegion> windows = Collections.synchronizedMap(new LinkedHashMap<String, ReferenceRegion>(
+			16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, ReferenceRegion> eldest) {
+			return size() > MAX_WINDOWS;
+		}
+	});
 
 	/*
-	 * In-memory cache of ref bases by sequence name. Garbage collector will
-	 * automatically clean it if memory is low.
+	 * In-memory cache of ref bases by sequence name and md5, by default
+	 * limited to half of the maximum heap size.
 	 */
-	private Map<String, WeakReference<byte[]>> cacheW = new HashMap<String, WeakReference<byte[]>>();
+	private ReferenceCache cache = new ReferenceCache(Runtime.getRuntime().maxMemory() / 2);
 
 	public ReferenceSource() {
 	}
@@ -95,45 +119,146 @@ public class ReferenceSource implements CRAMReferenceSource {
 			rsFile = ReferenceSequenceFileFactory.getReferenceSequenceFile(file);
 
 			File indexFile = new File(file.getAbsoluteFile() + ".fai");
-			if (indexFile.exists())
-				fastaSequenceIndex = new FastaSequenceIndex(indexFile);
+			if (indexFile.exists()) {
+				nameIndex = createNameIndex(rsFile, indexFile);
+				fastaDigests = new FastaDigestCache(file, FastaDigestCache.getDefaultDirectory());
+			}
 		}
 	}
 
 	public ReferenceSource(ReferenceSequenceFile rsFile) {
 		this.rsFile = rsFile;
+		nameIndex = createNameIndex(rsFile, null);
+	}
+
+	/**
+	 * Index the sequence names and their aliases once, from the sequence
+	 * dictionary if the reference has one, otherwise from the fasta index.
+	 */
+	private static ReferenceNameIndex createNameIndex(ReferenceSequenceFile rsFile, File faiFile) {
+		SAMSequenceDictionary dictionary = rsFile.getSequenceDictionary();
+		if (dictionary != null)
+			return ReferenceNameIndex.fromDictionary(dictionary);
+		if (faiFile == null)
+			return null;
+		try {
+			return ReferenceNameIndex.fromFastaIndex(faiFile);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
 	}
 
 	public void clearCache() {
-		cacheW.clear();
+		cache.clear();
+		windows.clear();
 	}
 
-	private byte[] findInCache(String name) {
-		WeakReference<byte[]> r = cacheW.get(name);
-		if (r != null) {
-			byte[] bytes = r.get();
-			if (bytes != null)
-				return bytes;
+	/**
+	 * Set how many bases are read from the fasta file for a region request
+	 * that is not in memory yet. Regions are extended ahead to this size.
+	 */
+	public void setRegionWindow(int regionWindow) {
+		this.regionWindow = regionWindow;
+	}
+
+	public int getRegionWindow() {
+		return regionWindow;
+	}
+
+	long getWindowLoadCount() {
+		return windowLoads.get();
+	}
+
+	long getCacheBytes() {
+		return cache.getBytes();
+	}
+
+	/**
+	 * Limit the memory used for caching reference bases. The most recently used
+	 * sequence is kept even if it is larger than the limit.
+	 *
+	 * @param maxCacheBytes
+	 *            maximum number of cached bases
+	 */
+	public void setMaxCacheBytes(long maxCacheBytes) {
+		cache.setMaxBytes(maxCacheBytes);
+	}
+
+	public long getMaxCacheBytes() {
+		return cache.getMaxBytes();
+	}
+
+	/**
+	 * Serve reference bases from a memory mapped image before trying the fasta
+	 * file or the MD5 locations. Regions are unpacked from the image without
+	 * loading the whole sequence.
+	 */
+	public void setPackedStore(PackedReferenceStore packedStore) {
+		this.packedStore = packedStore;
+	}
+
+	public PackedReferenceStore getPackedStore() {
+		return packedStore;
+	}
+
+	/**
+	 * Use a local store of sequences by MD5, by default the one at REF_CACHE.
+	 * Sequences found elsewhere are added to it.
+	 */
+	public void setLocalStore(MD5ReferenceStore localStore) {
+		this.localStore = localStore;
+	}
+
+	public MD5ReferenceStore getLocalStore() {
+		return localStore;
+	}
+
+	private void addToLocalStore(String md5, byte[] bases) {
+		if (localStore == null || md5 == null)
+			return;
+		try {
+			if (!localStore.put(md5, bases))
+				log.warn("Reference bases do not match md5, not stored locally: " + md5);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
 		}
-		return null;
 	}
 
-	@Override
-	public synchronized byte[] getReferenceBases(SAMSequenceRecord record, boolean tryNameVariants) {
-		byte[] bases = findBases(record, tryNameVariants);
-		if (bases == null)
+	private PackedReferenceStore.Sequence findPacked(SAMSequenceRecord record, boolean tryNameVariants) {
+		if (packedStore == null)
 			return null;
+		PackedReferenceStore.Sequence sequence = packedStore.findByMD5(record.getAttribute(SAMSequenceRecord.MD5_TAG));
+		if (sequence == null)
+			sequence = packedStore.findByName(record.getSequenceName());
+		if (sequence == null && tryNameVariants)
+			sequence = packedStore.findByAlias(record.getSequenceName());
+		return sequence;
+	}
 
-		cacheW.put(record.getSequenceName(), new WeakReference<byte[]>(bases));
+	private byte[] findInCache(String name) {
+		return cache.get(name);
+	}
 
+	@Override
+	public byte[] getReferenceBases(SAMSequenceRecord record, boolean tryNameVariants) {
+		String name = record.getSequenceName();
 		String md5 = record.getAttribute(SAMSequenceRecord.MD5_TAG);
+		byte[] bases;
+		try {
+			bases = cache.get(name, () -> findBases(record, tryNameVariants), md5);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		if (bases == null)
+			return null;
+
 		if (md5 == null) {
 			md5 = Utils.calculateMD5String(bases);
 			record.setAttribute(SAMSequenceRecord.MD5_TAG, md5);
+			cache.put(bases, md5);
 		}
 
-		if (REF_CACHE != null)
-			addToRefCache(md5, bases);
+		addToLocalStore(md5, bases);
 
 		return bases;
 	}
@@ -154,7 +279,7 @@ public class ReferenceSource implements CRAMReferenceSource {
 		return data;
 	}
 
-	public synchronized ReferenceRegion getRegion(SAMSequenceRecord record, int start_1based, int endInclusive_1based)
+	public ReferenceRegion getRegion(SAMSequenceRecord record, int start_1based, int endInclusive_1based)
 			throws IOException {
 		{ // check cache by sequence name:
 			String name = record.getSequenceName();
@@ -178,30 +303,26 @@ public class ReferenceSource implements CRAMReferenceSource {
 			}
 		}
 
-		byte[] bases = null;
-		if (REF_CACHE != null) {
-			PathPattern pathPattern = new PathPattern(REF_CACHE);
-			File file = new File(pathPattern.format(md5));
-			if (file.exists()) {
-				bases = readBytesFromFile(file, start_1based - 1, endInclusive_1based - start_1based + 1);
-				return new ReferenceRegion(bases, record.getSequenceIndex(), record.getSequenceName(), start_1based);
-			}
+		{ // try the packed image:
+			PackedReferenceStore.Sequence sequence = findPacked(record, false);
+			if (sequence != null)
+				return new ReferenceRegion(packedStore.getBases(sequence, start_1based, endInclusive_1based),
+						record.getSequenceIndex(), record.getSequenceName(), start_1based);
 		}
 
+		{ // try a window from the fasta file or REF_CACHE:
+			ReferenceRegion window = findOrLoadWindow(record, md5, start_1based, endInclusive_1based);
+			if (window != null)
+				return copyFromWindow(window, start_1based, endInclusive_1based);
+		}
+
+		byte[] bases = null;
+
 		{ // try to fetch sequence by md5:
 			if (md5 != null)
-				try {
-					bases = findBasesByMD5(md5);
-				} catch (Exception e) {
-					if (e instanceof RuntimeException)
-						throw (RuntimeException) e;
-					throw new RuntimeException(e);
-				}
+				bases = cache.get(md5, () -> findBasesByMD5(md5), record.getSequenceName());
 			if (bases != null) {
-				cacheW.put(record.getSequenceName(), new WeakReference<byte[]>(bases));
-
-				if (REF_CACHE != null)
-					addToRefCache(md5, bases);
+				addToLocalStore(md5, bases);
 				return ReferenceRegion.copyRegion(bases, record.getSequenceIndex(), record.getSequenceName(),
 						start_1based, endInclusive_1based);
 			}
@@ -210,6 +331,183 @@ public class ReferenceSource implements CRAMReferenceSource {
 		return null;
 	}
 
+	/**
+	 * Load the reference region in the background of decoding, so that a
+	 * following {@link #getRegion(SAMSequenceRecord, int, int)} finds it in
+	 * memory.
+	 */
+	public void prefetchRegion(SAMSequenceRecord record, int start_1based, int endInclusive_1based)
+			throws IOException {
+		String md5 = record.getAttribute(SAMSequenceRecord.MD5_TAG);
+		if (findInCache(record.getSequenceName()) != null || findInCache(md5) != null
+				|| findPacked(record, false) != null)
+			return;
+
+		if (findOrLoadWindow(record, md5, start_1based, endInclusive_1based) == null && md5 != null)
+			cache.get(md5, () -> findBasesByMD5(md5), record.getSequenceName());
+	}
+
+	/**
+	 * Find a window covering the region or load one. Only one window is loaded
+	 * for a sequence at a time, so a region that is being prefetched is not
+	 * read again.
+	 */
+	private ReferenceRegion findOrLoadWindow(SAMSequenceRecord record, String md5, int start, int end)
+			throws IOException {
+		String name = record.getSequenceName();
+		ReferenceRegion window = windows.get(name);
+		if (window != null && covers(window, record, start, end))
+			return window;
+
+		synchronized (windowLocks.computeIfAbsent(name, k -> new Object())) {
+			window = windows.get(name);
+			if (window != null && covers(window, record, start, end))
+				return window;
+			window = loadWindow(record, md5, start, end);
+			if (window != null) {
+				windowLoads.incrementAndGet();
+				windows.put(name, window);
+			}
+			return window;
+		}
+	}
+
+	private static boolean covers(ReferenceRegion window, SAMSequenceRecord record, int start, int end) {
+		long windowEnd = window.alignmentStart + window.array.length - 1;
+		if (record.getSequenceLength() > 0)
+			end = Math.min(end, record.getSequenceLength());
+		return start >= window.alignmentStart && end <= windowEnd;
+	}
+
+	private static ReferenceRegion copyFromWindow(ReferenceRegion window, int start, int end) {
+		byte[] bases = ReferenceRegion.copySafe(window.array, window.alignmentStart, start, end - start + 1);
+		return new ReferenceRegion(bases, window.index, window.name, start);
+	}
+
+	/**
+	 * Read a region of the sequence extended by the read ahead window, so that
+	 * the following slices of sorted data are found in memory.
+	 */
+	private ReferenceRegion loadWindow(SAMSequenceRecord record, String md5, int start, int end) throws IOException {
+		int windowEnd = Math.max(end, start + regionWindow - 1);
+
+		String contig = findIndexedName(record.getSequenceName(), true);
+		if (contig != null) {
+			if (record.getSequenceLength() <= 0) {
+				// can't tell where the sequence ends, read all of it:
+				byte[] bases = cache.get(record.getSequenceName(), () -> findBases(record, true), md5);
+				return bases == null ? null : ReferenceRegion.wrap(bases, record.getSequenceIndex(),
+						record.getSequenceName());
+			}
+			windowEnd = Math.min(windowEnd, record.getSequenceLength());
+			if (start > windowEnd)
+				return new ReferenceRegion(new byte[0], record.getSequenceIndex(), record.getSequenceName(), start);
+			byte[] bases;
+			synchronized (rsFile) {
+				bases = rsFile.getSubsequenceAt(contig, start, windowEnd).getBases();
+			}
+			log.debug(String.format("Reference window loaded from fasta: %s:%d-%d", contig, start, windowEnd));
+			return new ReferenceRegion(Utils.upperCase(bases), record.getSequenceIndex(), record.getSequenceName(),
+					start);
+		}
+
+		if (localStore != null && md5 != null) {
+			byte[] bases = localStore.getBases(md5, start - 1, windowEnd - start + 1);
+			if (bases != null)
+				return new ReferenceRegion(bases, record.getSequenceIndex(), record.getSequenceName(), start);
+		}
+		return null;
+	}
+
+	/**
+	 * @return the name of the sequence in the reference file, possibly found by
+	 *         an alias, or null if the file does not have the sequence
+	 */
+	private String findIndexedName(String name, boolean tryVariants) {
+		if (rsFile == null || !rsFile.isIndexed() || nameIndex == null)
+			return null;
+		if (tryVariants)
+			return nameIndex.resolve(name);
+		return nameIndex.contains(name) ? name : null;
+	}
+
+	/**
+	 * Find the MD5 and length of the bases this source provides for each of
+	 * the sequences. Digests known from the packed image, the local store or an
+	 * earlier run over the same fasta file are used as they are, the other
+	 * sequences are loaded and hashed in parallel. Whole sequences are loaded
+	 * for hashing, so no more bases than the cache limit are loaded at once.
+	 *
+	 * @return the digests in the order of the records, null for sequences not
+	 *         found
+	 */
+	public SequenceDigest[] getDigests(List<SAMSequenceRecord> records, boolean tryNameVariants) {
+		SequenceDigest[] digests = new SequenceDigest[records.size()];
+		// the cache limit in bases, as semaphore permits:
+		int maxLoading = (int) Math.max(1, Math.min(Integer.MAX_VALUE, cache.getMaxBytes()));
+		Semaphore loadingBases = new Semaphore(maxLoading);
+		int threads = Math.min(Runtime.getRuntime().availableProcessors(), records.size());
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+		try {
+			List<Future<?>> futures = new ArrayList<Future<?>>();
+			for (int i = 0; i < digests.length; i++) {
+				int index = i;
+				futures.add(executor.submit(() -> digests[index] = getDigest(records.get(index), tryNameVariants,
+						loadingBases, maxLoading)));
+			}
+			for (Future<?> future : futures)
+				future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw new RuntimeException(e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+		if (fastaDigests != null)
+			fastaDigests.save();
+		return digests;
+	}
+
+	private SequenceDigest getDigest(SAMSequenceRecord record, boolean tryNameVariants, Semaphore loadingBases,
+			int maxLoading) {
+		PackedReferenceStore.Sequence packed = findPacked(record, tryNameVariants);
+		if (packed != null)
+			return new SequenceDigest(packed.md5, (int) packed.length);
+
+		String contig = findIndexedName(record.getSequenceName(), tryNameVariants);
+		if (contig != null && fastaDigests != null) {
+			SequenceDigest digest = fastaDigests.get(contig);
+			if (digest != null)
+				return digest;
+		}
+
+		// sequences in the local store have been checked when added:
+		String md5 = record.getAttribute(SAMSequenceRecord.MD5_TAG);
+		if (contig == null && md5 != null && localStore != null && localStore.contains(md5))
+			return new SequenceDigest(md5, (int) localStore.getFile(md5).length());
+
+		// a sequence of unknown length may be as large as the limit:
+		int length = record.getSequenceLength();
+		int permits = length > 0 ? Math.min(length, maxLoading) : maxLoading;
+		SequenceDigest digest;
+		loadingBases.acquireUninterruptibly(permits);
+		try {
+			byte[] bases = getReferenceBases(record, tryNameVariants);
+			if (bases == null)
+				return null;
+			digest = new SequenceDigest(Utils.calculateMD5String(bases), bases.length);
+		} finally {
+			loadingBases.release(permits);
+		}
+		if (contig != null && fastaDigests != null)
+			fastaDigests.put(contig, digest);
+		return digest;
+	}
+
 	protected byte[] findBases(SAMSequenceRecord record, boolean tryNameVariants) {
 		{ // check cache by sequence name:
 			String name = record.getSequenceName();
@@ -233,6 +531,12 @@ public class ReferenceSource implements CRAMReferenceSource {
 
 		byte[] bases;
 
+		{ // try the packed image:
+			PackedReferenceStore.Sequence sequence = findPacked(record, tryNameVariants);
+			if (sequence != null)
+				return packedStore.getBases(sequence);
+		}
+
 		{ // try to fetch sequence by name:
 			bases = findBasesByName(record.getSequenceName(), tryNameVariants);
 			if (bases != null) {
@@ -271,30 +575,30 @@ public class ReferenceSource implements CRAMReferenceSource {
 		if (rsFile == null || !rsFile.isIndexed())
 			return null;
 
-		ReferenceSequence sequence = null;
-		if (fastaSequenceIndex != null)
-			if (fastaSequenceIndex.hasIndexEntry(name))
-				sequence = rsFile.getSequence(name);
-			else
-				sequence = null;
-
-		if (sequence != null)
-			return sequence.getBases();
+		// different sequences may be loaded concurrently:
+		synchronized (rsFile) {
+			return findBasesByNameInFile(name, tryVariants);
+		}
+	}
 
-		if (tryVariants) {
-			for (String variant : getVariants(name)) {
-				try {
-					sequence = rsFile.getSequence(variant);
-				} catch (Exception e) {
-					log.info("Sequence not found: " + variant);
-				}
-				if (sequence != null) {
-					log.debug("Reference found in memory cache for name %s by variant %s", name, variant);
-					return sequence.getBases();
-				}
+	private byte[] findBasesByNameInFile(String name, boolean tryVariants) {
+		if (nameIndex == null) {
+			// no names to check against, only the exact name can be tried:
+			try {
+				ReferenceSequence sequence = rsFile.getSequence(name);
+				return sequence == null ? null : sequence.getBases();
+			} catch (Exception e) {
+				log.debug("Sequence not found: " + name);
+				return null;
 			}
 		}
-		return null;
+
+		String contig = findIndexedName(name, tryVariants);
+		if (contig == null)
+			return null;
+		if (!contig.equals(name))
+			log.debug(String.format("Reference found for name %s by alias %s", name, contig));
+		return rsFile.getSequence(contig).getBases();
 	}
 
 	/**
@@ -314,18 +618,18 @@ public class ReferenceSource implements CRAMReferenceSource {
 		if (isURL(path)) {
 			URL url = new URL(path);
 			for (int i = 0; i < downloadTriesBeforeFailing; i++) {
+				if (localStore != null) {
+					// the download is verified once and shared with other
+					// processes using the store:
+					if (localStore.put(md5, url::openStream))
+						return localStore.getBases(md5);
+					continue;
+				}
+
 				InputStream is = url.openStream();
 				if (is == null)
 					return null;
 
-				if (REF_CACHE != null) {
-					String localPath = addToRefCache(md5, is);
-					File file = new File(localPath);
-					if (file.length() > Integer.MAX_VALUE)
-						throw new RuntimeException("The reference sequence is too long: " + md5);
-
-					return readBytesFromFile(file, 0, (int) file.length());
-				}
 				byte[] data = InputStreamUtils.readFully(is);
 				is.close();
 
@@ -358,6 +662,14 @@ public class ReferenceSource implements CRAMReferenceSource {
 	}
 
 	protected byte[] findBasesByMD5(String md5) throws MalformedURLException, IOException {
+		if (localStore != null) {
+			byte[] data = localStore.getBases(md5);
+			if (data != null) {
+				log.debug("Reference found in the local store: " + md5);
+				return data;
+			}
+		}
+
 		for (PathPattern p : refPatterns) {
 			String path = p.format(md5);
 			byte[] data = loadFromPath(path, md5);
@@ -370,50 +682,6 @@ public class ReferenceSource implements CRAMReferenceSource {
 		return null;
 	}
 
-	private static void addToRefCache(String md5, byte[] data) {
-		File cachedFile = new File(new PathPattern(REF_CACHE).format(md5));
-		if (!cachedFile.exists()) {
-			log.debug(String.format("Adding to REF_CACHE: md5=%s, length=%d", md5, data.length));
-			cachedFile.getParentFile().mkdirs();
-			File tmpFile;
-			try {
-				tmpFile = File.createTempFile(md5, ".tmp", cachedFile.getParentFile());
-				FileOutputStream fos = new FileOutputStream(tmpFile);
-				fos.write(data);
-				fos.close();
-				if (!cachedFile.exists())
-					tmpFile.renameTo(cachedFile);
-				else
-					tmpFile.delete();
-			} catch (IOException e) {
-				throw new RuntimeException(e);
-			}
-		}
-	}
-
-	private static String addToRefCache(String md5, InputStream stream) {
-		String localPath = new PathPattern(REF_CACHE).format(md5);
-		File cachedFile = new File(localPath);
-		if (!cachedFile.exists()) {
-			log.info(String.format("Adding to REF_CACHE sequence md5=%s", md5));
-			cachedFile.getParentFile().mkdirs();
-			File tmpFile;
-			try {
-				tmpFile = File.createTempFile(md5, ".tmp", cachedFile.getParentFile());
-				FileOutputStream fos = new FileOutputStream(tmpFile);
-				IOUtil.copyStream(stream, fos);
-				fos.close();
-				if (!cachedFile.exists())
-					tmpFile.renameTo(cachedFile);
-				else
-					tmpFile.delete();
-			} catch (IOException e) {
-				throw new RuntimeException(e);
-			}
-		}
-		return localPath;
-	}
-
 	private boolean confirmMD5(String md5, byte[] data) {
 		String downloadedMD5 = null;
 		downloadedMD5 = Utils.calculateMD5String(data);
@@ -427,28 +695,6 @@ public class ReferenceSource implements CRAMReferenceSource {
 		}
 	}
 
-	protected List<String> getVariants(String name) {
-		List<String> variants = new ArrayList<String>();
-
-		if (name.equals("M"))
-			variants.add("MT");
-
-		if (name.equals("MT"))
-			variants.add("M");
-
-		boolean chrPatternMatch = chrPattern.matcher(name).matches();
-		if (chrPatternMatch)
-			variants.add(name.substring(3));
-		else
-			variants.add("chr" + name);
-
-		if ("chrM".equals(name)) {
-			// chrM case:
-			variants.add("MT");
-		}
-		return variants;
-	}
-
 	public int getDownloadTriesBeforeFailing() {
 		return downloadTriesBeforeFailing;
 	}
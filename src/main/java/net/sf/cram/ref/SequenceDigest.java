@@ -0,0 +1,31 @@
+/*
+ * Copyright 2012 - 2018 EMBL - European Bioinformatics Institute
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+
+package net.sf.cram.ref;
+
+/**
+ * The MD5 checksum and the length of a reference sequence.
+ */
+public class SequenceDigest {
+	public final String md5;
+	public final int length;
+
+	public SequenceDigest(String md5, int length) {
+		this.md5 = md5;
+		this.length = length;
+	}
+
+	@Override
+	public String toString() {
+		return "SequenceDigest [md5=" + md5 + ", length=" + length + "]";
+	}
+}
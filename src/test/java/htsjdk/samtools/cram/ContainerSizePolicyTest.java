@@ -0,0 +1,49 @@
+/*
+ * Copyright 2012 - 2018 EMBL - European Bioinformatics Institute
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package htsjdk.samtools.cram;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class ContainerSizePolicyTest {
+
+	@Test
+	public void test_anyBudgetFillsContainer() {
+		ContainerSizePolicy policy = ContainerSizePolicy.defaults().setMaxRecords(10).setMaxBytes(1000)
+				.setMaxBases(100);
+		assertFalse(policy.isFull(9, 999, 99));
+		assertTrue(policy.isFull(10, 0, 0));
+		assertTrue(policy.isFull(1, 1000, 0));
+		assertTrue(policy.isFull(1, 0, 100));
+	}
+
+	@Test
+	public void test_autoTuneFollowsSpeed() {
+		ContainerSizePolicy policy = ContainerSizePolicy.defaults().setMaxRecords(10).setMaxBytes(1 << 30)
+				.setTargetNanos(1000000000L);
+		// record budget does not apply in auto-tune mode:
+		assertFalse(policy.isFull(100, 0, 0));
+
+		// 10ns per byte gives 100MB for a second:
+		policy.recordTask(1000000, 10000000);
+		assertEquals(100000000, policy.getByteBudget());
+		assertTrue(policy.isFull(1, 100000000, 0));
+
+		// capped by the maximum number of bytes:
+		policy.setMaxBytes(1000000);
+		policy.recordTask(1000000, 10000000);
+		assertEquals(1000000, policy.getByteBudget());
+	}
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2012 - 2018 EMBL - European Bioinformatics Institute
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package htsjdk.samtools.cram.encoding.reader;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import htsjdk.samtools.cram.io.ITF8;
+import htsjdk.samtools.cram.structure.CompressionHeader;
+import htsjdk.samtools.cram.structure.EncodingID;
+import htsjdk.samtools.cram.structure.EncodingKey;
+import htsjdk.samtools.cram.structure.EncodingParams;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+public class ByteSeriesReaderTest {
+
+	/**
+	 * Serves the bytes one at a time, as a core block or huffman reader would.
+	 */
+	private static class SequenceReader implements DataReader<Byte> {
+		private final byte[] bytes;
+		int calls = 0;
+
+		SequenceReader(String bytes) {
+			this.bytes = bytes.getBytes();
+		}
+
+		@Override
+		public Byte readData() throws IOException {
+			return bytes[calls++];
+		}
+
+		@Override
+		public Byte readDataArray(int length) throws IOException {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	private static CompressionHeader header() {
+		CompressionHeader header = new CompressionHeader();
+		header.encodingMap = new TreeMap<EncodingKey, EncodingParams>();
+		return header;
+	}
+
+	private static CompressionHeader header(EncodingID id, int contentId) {
+		CompressionHeader header = header();
+		header.encodingMap.put(EncodingKey.BA_Base, new EncodingParams(id, ITF8.writeUnsignedITF8(contentId)));
+		return header;
+	}
+
+	private static Map<Integer, InputStream> inputMap(int contentId, String content) {
+		Map<Integer, InputStream> inputMap = new HashMap<Integer, InputStream>();
+		inputMap.put(contentId, new ByteArrayInputStream(content.getBytes()));
+		return inputMap;
+	}
+
+	@Test
+	public void test_externalSeriesIsCopiedFromTheBlock() throws IOException {
+		SequenceReader reader = new SequenceReader("");
+		ByteSeriesReader seriesReader = new ByteSeriesReader(reader, header(EncodingID.EXTERNAL, 5),
+				EncodingKey.BA_Base, inputMap(5, "ACGTNACG"));
+
+		byte[] dest = "........".getBytes();
+		seriesReader.readInto(dest, 1, 3);
+		seriesReader.readInto(dest, 4, 4);
+		assertArrayEquals(".ACGTNAC".getBytes(), dest);
+		assertEquals(0, reader.calls);
+	}
+
+	@Test
+	public void test_otherEncodingsFallBackToTheReader() throws IOException {
+		SequenceReader reader = new SequenceReader("ACGTN");
+		Map<Integer, InputStream> inputMap = inputMap(5, "TTTTT");
+		ByteSeriesReader seriesReader = new ByteSeriesReader(reader, header(EncodingID.HUFFMAN, 5),
+				EncodingKey.BA_Base, inputMap);
+
+		byte[] dest = new byte[5];
+		seriesReader.readInto(dest, 0, 2);
+		seriesReader.readInto(dest, 2, 3);
+		assertArrayEquals("ACGTN".getBytes(), dest);
+		assertEquals(5, reader.calls);
+		assertEquals(5, inputMap.get(5).available());
+	}
+
+	@Test
+	public void test_seriesWithoutEncodingFallsBackToTheReader() throws IOException {
+		SequenceReader reader = new SequenceReader("AC");
+		ByteSeriesReader seriesReader = new ByteSeriesReader(reader, header(), EncodingKey.BA_Base,
+				inputMap(5, "TT"));
+
+		byte[] dest = new byte[2];
+		seriesReader.readInto(dest, 0, 2);
+		assertArrayEquals("AC".getBytes(), dest);
+		assertEquals(2, reader.calls);
+	}
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2012 - 2018 EMBL - European Bioinformatics Institute
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package htsjdk.samtools.cram.encoding.reader;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class MateCollationTableTest {
+
+	private static class Table extends MateCollationTable {
+		List<String> evicted = new ArrayList<String>();
+
+		Table(long memoryBudget) {
+			super(memoryBudget);
+		}
+
+		@Override
+		protected void evicted(byte[] record, int offset, int length, int nameLength, int templateIndex) {
+			evicted.add(new String(record, offset + 1, nameLength));
+		}
+	}
+
+	private static byte[] record(String name) {
+		return ("@" + name + "\nACGT\n+\n!!!!\n").getBytes();
+	}
+
+	private static void add(Table table, String name) {
+		byte[] record = record(name);
+		table.add(record, 0, record.length, name.length(), 1);
+	}
+
+	private static int find(Table table, String name) {
+		return table.find(name.getBytes(), 0, name.length());
+	}
+
+	@Test
+	public void test_findAndRemove() {
+		Table table = new Table(1024);
+		for (int i = 0; i < 10; i++)
+			add(table, "read" + i);
+		assertEquals(10, table.size());
+		assertEquals(-1, find(table, "read10"));
+
+		int position = find(table, "read3");
+		assertTrue(position >= 0);
+		assertEquals(1, table.getTemplateIndex(position));
+		byte[] record = new byte[table.getRecordLength(position)];
+		table.getRecord(position, record);
+		assertArrayEquals(record("read3"), record);
+
+		table.remove(position);
+		assertEquals(-1, find(table, "read3"));
+		assertEquals(9, table.size());
+		for (int i = 0; i < 10; i++)
+			assertEquals(i != 3, find(table, "read" + i) >= 0);
+		assertTrue(table.evicted.isEmpty());
+	}
+
+	@Test
+	public void test_evictsOldestFirst() {
+		// room for a few reads only, so that the arena wraps around many times:
+		Table table = new Table(100);
+		List<String> expected = new ArrayList<String>();
+		for (int i = 0; i < 1000; i++) {
+			add(table, "r" + i);
+			if (i % 3 == 0)
+				table.remove(find(table, "r" + i));
+			else
+				expected.add("r" + i);
+		}
+		assertTrue(table.size() > 0);
+		for (String name : table.evicted)
+			assertEquals(-1, find(table, name));
+		table.evictAll();
+		assertEquals(0, table.size());
+		assertEquals(expected, table.evicted);
+	}
+
+	@Test
+	public void test_readLargerThanArena() {
+		Table table = new Table(16);
+		add(table, "long_read_name");
+		assertEquals(0, table.size());
+		assertEquals(Arrays.asList("long_read_name"), table.evicted);
+	}
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2012 - 2018 EMBL - European Bioinformatics Institute
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package htsjdk.samtools.cram.encoding.reader;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+public class MateSpillTest {
+
+	private static class Spill extends MateSpill {
+		List<String> pairs = new ArrayList<String>();
+		List<String> unpaired = new ArrayList<String>();
+
+		Spill(int maxRunLength, int compressionLevel) {
+			super("test.spill", maxRunLength, compressionLevel);
+		}
+
+		@Override
+		protected void mates(Entry first, Entry second) throws IOException {
+			pairs.add(new String(first.record) + new String(second.record));
+		}
+
+		@Override
+		protected void unpaired(Entry entry) throws IOException {
+			unpaired.add(new String(entry.record));
+		}
+	}
+
+	private static void add(Spill spill, String name, int templateIndex) throws IOException {
+		byte[] record = ("@" + name + "/" + templateIndex + "\n").getBytes();
+		spill.add(record, 0, record.length, name.length(), templateIndex);
+	}
+
+	private static void test(int maxRunLength, int compressionLevel) throws IOException {
+		Spill spill = new Spill(maxRunLength, compressionLevel);
+		// second mates in reverse order, so that pairs are split across runs:
+		for (int i = 0; i < 1000; i++)
+			add(spill, "read" + i, 1);
+		for (int i = 999; i >= 0; i--)
+			if (i % 10 != 0)
+				add(spill, "read" + i, 2);
+		assertEquals(1900, spill.size());
+		spill.merge();
+
+		List<String> expectedPairs = new ArrayList<String>();
+		List<String> expectedUnpaired = new ArrayList<String>();
+		for (int i = 0; i < 1000; i++) {
+			if (i % 10 != 0)
+				expectedPairs.add("@read" + i + "/1\n@read" + i + "/2\n");
+			else
+				expectedUnpaired.add("@read" + i + "/1\n");
+		}
+		Collections.sort(expectedPairs);
+		Collections.sort(expectedUnpaired);
+		Collections.sort(spill.pairs);
+		Collections.sort(spill.unpaired);
+		assertEquals(expectedPairs, spill.pairs);
+		assertEquals(expectedUnpaired, spill.unpaired);
+		assertEquals(0, spill.size());
+	}
+
+	@Test
+	public void test_inMemory() throws IOException {
+		test(1024 * 1024, 0);
+	}
+
+	@Test
+	public void test_runFiles() throws IOException {
+		test(1000, 0);
+	}
+
+	@Test
+	public void test_compressedRunFiles() throws IOException {
+		test(1000, 1);
+	}
+}
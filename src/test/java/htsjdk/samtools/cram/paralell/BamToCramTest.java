@@ -0,0 +1,106 @@
+/*
+ * Copyright 2012 - 2018 EMBL - European Bioinformatics Institute
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package htsjdk.samtools.cram.paralell;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import htsjdk.samtools.SAMRecord;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+import net.sf.cram.Bam2Cram;
+import net.sf.cram.SyntheticData;
+
+import org.junit.Test;
+
+public class BamToCramTest {
+
+	@Test
+	public void test_readNamesArePreservedByDefault() throws Exception {
+		SyntheticData data = new SyntheticData(2, 2000, 1);
+		try {
+			List<SAMRecord> records = data.pairs(50, 50);
+			File bam = data.writeBam("in.bam", records);
+			File cram = new File(data.dir, "out.cram");
+
+			BamToCram.main(new String[] { "-I", bam.getPath(), "-R", data.fasta.getPath(), "-O", cram.getPath() });
+
+			List<SAMRecord> result = data.readAll(cram);
+			assertEquals(records.size(), result.size());
+			for (int i = 0; i < records.size(); i++)
+				assertEquals(records.get(i).getReadName(), result.get(i).getReadName());
+		} finally {
+			data.delete();
+		}
+	}
+
+	@Test
+	public void test_readNamesAreDroppedOnRequest() throws Exception {
+		SyntheticData data = new SyntheticData(2, 2000, 1);
+		try {
+			List<SAMRecord> records = data.pairs(50, 50);
+			File bam = data.writeBam("in.bam", records);
+			File cram = new File(data.dir, "out.cram");
+
+			BamToCram.main(new String[] { "-I", bam.getPath(), "-R", data.fasta.getPath(), "-O", cram.getPath(),
+					"--drop-read-names" });
+
+			List<SAMRecord> result = data.readAll(cram);
+			assertEquals(records.size(), result.size());
+			for (SAMRecord record : result)
+				assertFalse(record.getReadName().startsWith("read"));
+		} finally {
+			data.delete();
+		}
+	}
+
+	@Test
+	public void test_lossyOptionsGiveSameRecordsAsBam2Cram() throws Exception {
+		String[][] lossyArgs = { {}, { "-Q" }, { "-L", "*8" }, { "-Q", "-n", "--capture-all-tags" },
+				{ "--drop-read-names", "--capture-tags", "XA:Xi:Bf" },
+				{ "-Q", "--capture-all-tags", "--ignore-tags", "XZ:Bc" } };
+
+		SyntheticData data = new SyntheticData(2, 5000, 1);
+		try {
+			List<SAMRecord> records = data.pairs(200, 50);
+			for (SAMRecord record : records)
+				SyntheticData.addAllTagTypes(record);
+			File bam = data.writeBam("in.bam", records);
+
+			for (String[] lossy : lossyArgs) {
+				File serial = new File(data.dir, "serial.cram");
+				File paralell = new File(data.dir, "paralell.cram");
+				Bam2Cram.main(args(lossy, "-I", bam.getPath(), "-R", data.fasta.getPath(), "-O", serial.getPath()));
+				BamToCram.main(args(lossy, "-I", bam.getPath(), "-R", data.fasta.getPath(), "-O", paralell.getPath()));
+
+				List<SAMRecord> expected = data.readAll(serial);
+				List<SAMRecord> result = data.readAll(paralell);
+				String message = String.join(" ", lossy);
+				assertEquals(message, records.size(), expected.size());
+				assertEquals(message, expected.size(), result.size());
+				for (int i = 0; i < expected.size(); i++)
+					assertEquals(message, expected.get(i).getSAMString(), result.get(i).getSAMString());
+			}
+		} finally {
+			data.delete();
+		}
+	}
+
+	private static String[] args(String[] lossy, String... args) {
+		String[] all = Arrays.copyOf(args, args.length + lossy.length);
+		System.arraycopy(lossy, 0, all, args.length, lossy.length);
+		return all;
+	}
+}
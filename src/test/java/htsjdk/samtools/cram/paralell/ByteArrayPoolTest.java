@@ -0,0 +1,69 @@
+/*
+ * Copyright 2012 - 2018 EMBL - European Bioinformatics Institute
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package htsjdk.samtools.cram.paralell;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+public class ByteArrayPoolTest {
+
+	@Test
+	public void test_reuseWithinSizeClass() {
+		ByteArrayPool pool = new ByteArrayPool(1024 * 1024);
+		byte[] array = pool.acquire(100 * 1024);
+		assertEquals(128 * 1024, array.length);
+		pool.release(array);
+		assertEquals(array.length, pool.getPooledBytes());
+
+		assertSame(array, pool.acquire(70 * 1024));
+		assertEquals(0, pool.getPooledBytes());
+	}
+
+	@Test
+	public void test_boundedByPooledBytes() {
+		ByteArrayPool pool = new ByteArrayPool(512 * 1024);
+		byte[] a = pool.acquire(512 * 1024);
+		byte[] b = pool.acquire(512 * 1024);
+		pool.release(a);
+		pool.release(b);
+		assertEquals(512 * 1024, pool.getPooledBytes());
+
+		assertSame(a, pool.acquire(512 * 1024));
+		assertNotSame(b, pool.acquire(512 * 1024));
+	}
+
+	@Test
+	public void test_outputStreamHandsOverBuffer() {
+		ByteArrayPool pool = new ByteArrayPool(1024 * 1024);
+		OBAOutputStream os = new OBAOutputStream(pool, 16);
+		byte[] data = new byte[100 * 1024];
+		for (int i = 0; i < data.length; i++)
+			data[i] = (byte) i;
+		os.write(data, 0, 10);
+		os.write(data, 10, data.length - 10);
+
+		OrderedByteArray oba = os.toOBA(3);
+		assertEquals(3, oba.order);
+		assertEquals(data.length, oba.length);
+		byte[] copy = new byte[oba.length];
+		System.arraycopy(oba.bytes, oba.offset, copy, 0, oba.length);
+		assertArrayEquals(data, copy);
+
+		byte[] bytes = oba.bytes;
+		oba.release();
+		assertSame(bytes, pool.acquire(data.length));
+	}
+}
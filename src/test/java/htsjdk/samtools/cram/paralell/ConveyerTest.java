@@ -0,0 +1,130 @@
+/*
+ * Copyright 2012 - 2018 EMBL - European Bioinformatics Institute
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package htsjdk.samtools.cram.paralell;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class ConveyerTest {
+
+	private static OrderedByteArray oba(long order) {
+		OrderedByteArray oba = new OrderedByteArray();
+		oba.bytes = new byte[0];
+		oba.order = order;
+		return oba;
+	}
+
+	@Test(timeout = 5000)
+	public void test_consumerWakesUpOnClose() throws InterruptedException {
+		Conveyer<OrderedByteArray> conveyer = Conveyer.createWithQueueCapacity(2);
+		conveyer.addSupplier();
+		final List<OrderedByteArray> consumed = new ArrayList<OrderedByteArray>();
+		ConsumerJob<OrderedByteArray> job = new ConsumerJob<OrderedByteArray>(conveyer, o -> consumed.add(o));
+		Thread thread = new Thread(job);
+		thread.start();
+
+		conveyer.put(oba(0));
+		conveyer.put(oba(1));
+		assertTrue(!job.awaitDone(100, TimeUnit.MILLISECONDS));
+		conveyer.close();
+
+		assertTrue(job.awaitDone(1, TimeUnit.SECONDS));
+		assertEquals(2, consumed.size());
+		assertTrue(conveyer.hasCompleted());
+	}
+
+	@Test(timeout = 5000)
+	public void test_orderingConveyerReleasesInOrder() throws InterruptedException {
+		OrderingConveyer<OrderedByteArray> conveyer = new OrderingConveyer<OrderedByteArray>();
+		conveyer.addSupplier();
+		conveyer.put(oba(2));
+		conveyer.put(oba(1));
+
+		Thread supplier = new Thread(() -> {
+			try {
+				Thread.sleep(50);
+				conveyer.put(oba(0));
+				conveyer.close();
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+		});
+		supplier.start();
+
+		for (long order = 0; order < 3; order++)
+			assertEquals(order, conveyer.tryAdvance().order);
+		assertNull(conveyer.tryAdvance());
+	}
+
+	@Test(timeout = 5000)
+	public void test_orderingConveyerBlocksOutsideWindow() throws InterruptedException {
+		OrderingConveyer<OrderedByteArray> conveyer = OrderingConveyer.createBounded(2, 0);
+		conveyer.addSupplier();
+		conveyer.put(oba(1));
+
+		Thread supplier = new Thread(() -> {
+			try {
+				conveyer.put(oba(2));
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+		});
+		supplier.start();
+		supplier.join(100);
+		assertTrue(supplier.isAlive());
+		assertEquals(2, conveyer.getWindowOccupancy());
+
+		conveyer.put(oba(0));
+		assertEquals(0, conveyer.tryAdvance().order);
+		supplier.join();
+		assertEquals(1, conveyer.tryAdvance().order);
+		assertEquals(2, conveyer.tryAdvance().order);
+	}
+
+	@Test(timeout = 5000)
+	public void test_orderingConveyerBlocksOverByteBudget() throws InterruptedException {
+		OrderingConveyer<OrderedByteArray> conveyer = OrderingConveyer.createBounded(0, 10);
+		conveyer.addSupplier();
+		OrderedByteArray big = oba(1);
+		big.length = 8;
+		conveyer.put(big);
+		assertEquals(8, conveyer.getBufferedBytes());
+
+		Thread supplier = new Thread(() -> {
+			try {
+				OrderedByteArray another = oba(2);
+				another.length = 8;
+				conveyer.put(another);
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+		});
+		supplier.start();
+		supplier.join(100);
+		assertTrue(supplier.isAlive());
+
+		OrderedByteArray next = oba(0);
+		next.length = 8;
+		conveyer.put(next);
+		assertEquals(0, conveyer.tryAdvance().order);
+		assertEquals(1, conveyer.tryAdvance().order);
+		supplier.join();
+		assertEquals(8, conveyer.getBufferedBytes());
+	}
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2012 - 2018 EMBL - European Bioinformatics Institute
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package htsjdk.samtools.cram.paralell;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import htsjdk.samtools.BAMIndexer;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.cram.CramLossyOptions;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.sf.cram.SyntheticData;
+
+import org.junit.Test;
+
+public class CramToBamTest {
+
+	@Test
+	public void test_splicedReadEndingPastSliceSpan() throws Exception {
+		SyntheticData data = new SyntheticData(1, 5000, 1);
+		try {
+			List<SAMRecord> records = new ArrayList<SAMRecord>();
+			for (int i = 0; i < 10; i++)
+				records.add(data.read("read" + i, 0, 100 + 10 * i, "50M"));
+			// the skip takes the end of the read far past all other reads:
+			records.add(data.read("spliced", 0, 150, "20M3000N30M"));
+			File cram = data.writeCram("in.cram", records, CramLossyOptions.lossless(), 10000);
+			File bam = new File(data.dir, "out.bam");
+
+			CramToBam.main(new String[] { "-I", cram.getPath(), "-R", data.fasta.getPath(), "-O", bam.getPath() });
+
+			List<SAMRecord> result = data.readAll(bam);
+			assertEquals(records.size(), result.size());
+			for (int i = 0; i < records.size(); i++)
+				assertEquals(records.get(i).getSAMString(), result.get(i).getSAMString());
+		} finally {
+			data.delete();
+		}
+	}
+
+	@Test
+	public void test_indexIsSameAsBAMIndexer() throws Exception {
+		SyntheticData data = new SyntheticData(3, 20000, 1);
+		try {
+			File cram = data.writeCram("in.cram", data.pairs(2000, 100), CramLossyOptions.lossless(), 300);
+			File bam = new File(data.dir, "out.bam");
+			File bai = new File(data.dir, "out.bai");
+
+			CramToBam.main(new String[] { "-I", cram.getPath(), "-R", data.fasta.getPath(), "-O", bam.getPath(),
+					"--index-file", bai.getPath() });
+
+			File expected = new File(data.dir, "expected.bai");
+			try (SamReader reader = SamReaderFactory.makeDefault()
+					.enable(SamReaderFactory.Option.INCLUDE_SOURCE_IN_RECORDS).open(bam)) {
+				BAMIndexer.createIndex(reader, expected);
+			}
+			assertArrayEquals(Files.readAllBytes(expected.toPath()), Files.readAllBytes(bai.toPath()));
+		} finally {
+			data.delete();
+		}
+	}
+
+	@Test
+	public void test_decodingViaSAMRecordGivesSameRecords() throws Exception {
+		assertSameRecordsViaSAMRecord(CramLossyOptions.lossless());
+	}
+
+	@Test
+	public void test_decodingViaSAMRecordGivesSameGeneratedNames() throws Exception {
+		CramLossyOptions lossyOptions = CramLossyOptions.lossless();
+		lossyOptions.setPreserveReadNames(false);
+		assertSameRecordsViaSAMRecord(lossyOptions);
+	}
+
+	/**
+	 * Pairs with mates restored from the slice, few enough records per
+	 * reference for multi-reference slices, spliced reads and tags of every
+	 * type.
+	 */
+	private static void assertSameRecordsViaSAMRecord(CramLossyOptions lossyOptions) throws Exception {
+		SyntheticData data = new SyntheticData(3, 5000, 1);
+		try {
+			List<SAMRecord> records = data.pairs(200, 50);
+			for (int i = 0; i < 20; i++)
+				records.add(data.read("spliced" + i, i % 3, 100 + 200 * i, "10S20M500N20M2I8M"));
+			for (SAMRecord record : records)
+				SyntheticData.addAllTagTypes(record);
+			File cram = data.writeCram("in.cram", records, lossyOptions, 10000);
+			File bam = new File(data.dir, "out.bam");
+			File viaSAMRecordBam = new File(data.dir, "via-samrecord.bam");
+
+			CramToBam.main(new String[] { "-I", cram.getPath(), "-R", data.fasta.getPath(), "-O", bam.getPath() });
+			CramToBam.main(new String[] { "-I", cram.getPath(), "-R", data.fasta.getPath(), "-O",
+					viaSAMRecordBam.getPath(), "--decode-via-samrecord" });
+
+			List<SAMRecord> result = data.readAll(bam);
+			List<SAMRecord> expected = data.readAll(viaSAMRecordBam);
+			assertEquals(records.size(), result.size());
+			assertEquals(expected.size(), result.size());
+			for (int i = 0; i < expected.size(); i++)
+				assertEquals(expected.get(i).getSAMString(), result.get(i).getSAMString());
+		} finally {
+			data.delete();
+		}
+	}
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2012 - 2018 EMBL - European Bioinformatics Institute
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package htsjdk.samtools.cram.paralell;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.cram.CramLossyOptions;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.sf.cram.Cram2Fastq;
+import net.sf.cram.SyntheticData;
+
+import org.junit.Test;
+
+public class CramToFastqTest {
+
+	@Test
+	public void test_splicedReadEndingPastSliceSpan() throws Exception {
+		SyntheticData data = new SyntheticData(1, 5000, 1);
+		try {
+			List<SAMRecord> records = new ArrayList<SAMRecord>();
+			for (int i = 0; i < 10; i++)
+				records.add(data.read("read" + i, 0, 100 + 10 * i, "50M"));
+			// the skip takes the end of the read far past all other reads:
+			records.add(data.read("spliced", 0, 150, "20M3000N30M"));
+			File cram = data.writeCram("in.cram", records, CramLossyOptions.lossless(), 10000);
+			File fastq = new File(data.dir, "out");
+
+			CramToFastq.main(new String[] { "-I", cram.getPath(), "-R", data.fasta.getPath(), "-F",
+					fastq.getPath() });
+
+			StringBuilder expected = new StringBuilder();
+			for (SAMRecord record : records)
+				expected.append('@').append(record.getReadName()).append('\n').append(record.getReadString())
+						.append("\n+\n").append(record.getBaseQualityString()).append('\n');
+			assertEquals(expected.toString(), new String(Files.readAllBytes(new File(data.dir, "out.fastq")
+					.toPath())));
+		} finally {
+			data.delete();
+		}
+	}
+
+	@Test
+	public void test_outputIsSameAsSerialDump() throws Exception {
+		assertSameAsSerialDump(CramLossyOptions.lossless());
+	}
+
+	@Test
+	public void test_generatedNamesAreSameAsSerialDump() throws Exception {
+		CramLossyOptions lossyOptions = CramLossyOptions.lossless();
+		lossyOptions.setPreserveReadNames(false);
+		assertSameAsSerialDump(lossyOptions);
+	}
+
+	/**
+	 * Small containers decoded by several threads, with mates in different
+	 * containers.
+	 */
+	private static void assertSameAsSerialDump(CramLossyOptions lossyOptions) throws Exception {
+		SyntheticData data = new SyntheticData(3, 20000, 1);
+		try {
+			File cram = data.writeCram("in.cram", data.pairs(2000, 100), lossyOptions, 100);
+			File serial = new File(data.dir, "serial");
+			File paralell = new File(data.dir, "paralell");
+
+			Cram2Fastq.main(new String[] { "-I", cram.getPath(), "-R", data.fasta.getPath(), "-F", serial.getPath() });
+			CramToFastq.main(new String[] { "-I", cram.getPath(), "-R", data.fasta.getPath(), "-F",
+					paralell.getPath(), "--threads", "4" });
+
+			// no file for the unpaired reads, there are none:
+			for (String suffix : new String[] { ".fastq", "_1.fastq", "_2.fastq" }) {
+				File expected = new File(serial.getPath() + suffix);
+				File actual = new File(paralell.getPath() + suffix);
+				assertEquals(suffix, expected.exists(), actual.exists());
+				if (expected.exists())
+					assertArrayEquals(suffix, Files.readAllBytes(expected.toPath()),
+							Files.readAllBytes(actual.toPath()));
+			}
+		} finally {
+			data.delete();
+		}
+	}
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2012 - 2018 EMBL - European Bioinformatics Institute
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package htsjdk.samtools.cram.paralell;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class MetricsTest {
+
+	@Test(timeout = 5000)
+	public void test_reportsJobsConveyersAndCounters() throws InterruptedException {
+		OrderingConveyer<OrderedByteArray> conveyer = OrderingConveyer.createBounded(4, 0);
+		conveyer.addSupplier();
+		ConsumerJob<OrderedByteArray> job = new ConsumerJob<OrderedByteArray>(conveyer, o -> {
+		});
+		job.setName("CONSUMER \"1\"");
+
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		Metrics metrics = new Metrics("test", new PrintStream(baos));
+		metrics.counter("records", () -> 42);
+		metrics.job(job);
+		metrics.conveyer("OBA", conveyer);
+
+		new Thread(job).start();
+		OrderedByteArray oba = new OrderedByteArray();
+		oba.bytes = new byte[0];
+		conveyer.put(oba);
+		conveyer.close();
+		assertTrue(job.awaitDone(1, TimeUnit.SECONDS));
+		metrics.report();
+
+		String line = new String(baos.toByteArray()).trim();
+		assertTrue(line, line.startsWith("{\"tool\":\"test\","));
+		assertTrue(line, line.contains("\"counters\":{\"records\":42}"));
+		assertTrue(line, line.contains("\"CONSUMER \\\"1\\\"\":{\"done\":true,\"steps\":"));
+		assertTrue(line, line.contains("\"OBA\":{\"closed\":true,\"depth\":0,\"processed\":1,"));
+		assertTrue(line, line.contains("\"next_order\":1,"));
+		assertTrue(line, line.endsWith("}}}"));
+		assertTrue(line, line.indexOf('\n') < 0);
+	}
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2012 - 2018 EMBL - European Bioinformatics Institute
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package net.sf.cram;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import htsjdk.samtools.SAMRecord;
+
+import java.io.File;
+import java.util.List;
+
+import org.junit.Test;
+
+public class Bam2CramTest {
+
+	@Test
+	public void test_readNamesArePreservedByDefault() throws Exception {
+		SyntheticData data = new SyntheticData(2, 2000, 1);
+		try {
+			List<SAMRecord> records = data.pairs(50, 50);
+			File bam = data.writeBam("in.bam", records);
+			File cram = new File(data.dir, "out.cram");
+
+			Bam2Cram.main(new String[] { "-I", bam.getPath(), "-R", data.fasta.getPath(), "-O", cram.getPath() });
+
+			List<SAMRecord> result = data.readAll(cram);
+			assertEquals(records.size(), result.size());
+			for (int i = 0; i < records.size(); i++)
+				assertEquals(records.get(i).getReadName(), result.get(i).getReadName());
+		} finally {
+			data.delete();
+		}
+	}
+
+	@Test
+	public void test_readNamesAreDroppedOnRequest() throws Exception {
+		SyntheticData data = new SyntheticData(2, 2000, 1);
+		try {
+			List<SAMRecord> records = data.pairs(50, 50);
+			File bam = data.writeBam("in.bam", records);
+			File cram = new File(data.dir, "out.cram");
+
+			Bam2Cram.main(new String[] { "-I", bam.getPath(), "-R", data.fasta.getPath(), "-O", cram.getPath(),
+					"--drop-read-names" });
+
+			List<SAMRecord> result = data.readAll(cram);
+			assertEquals(records.size(), result.size());
+			for (SAMRecord record : result)
+				assertFalse(record.getReadName().startsWith("read"));
+		} finally {
+			data.delete();
+		}
+	}
+
+	@Test
+	public void test_preserveReadNamesIsAFlag() throws Exception {
+		SyntheticData data = new SyntheticData(2, 2000, 1);
+		try {
+			List<SAMRecord> records = data.pairs(10, 50);
+			File bam = data.writeBam("in.bam", records);
+			File cram = new File(data.dir, "out.cram");
+
+			Bam2Cram.main(new String[] { "-n", "-I", bam.getPath(), "-R", data.fasta.getPath(), "-O",
+					cram.getPath() });
+
+			List<SAMRecord> result = data.readAll(cram);
+			assertEquals(records.size(), result.size());
+			for (int i = 0; i < records.size(); i++)
+				assertEquals(records.get(i).getReadName(), result.get(i).getReadName());
+		} finally {
+			data.delete();
+		}
+	}
+}
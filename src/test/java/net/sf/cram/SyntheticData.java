@@ -0,0 +1,282 @@
+/*
+ * Copyright 2012 - 2018 EMBL - European Bioinformatics Institute
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package net.sf.cram;
+
+import htsjdk.samtools.CRAMContainerStreamWriter;
+import htsjdk.samtools.Cigar;
+import htsjdk.samtools.CigarElement;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileWriter;
+import htsjdk.samtools.SAMFileWriterFactory;
+import htsjdk.samtools.SAMReadGroupRecord;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordCoordinateComparator;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.TextCigarCodec;
+import htsjdk.samtools.ValidationStringency;
+import htsjdk.samtools.cram.ContainerSizePolicy;
+import htsjdk.samtools.cram.CramLossyOptions;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import net.sf.cram.common.Utils;
+import net.sf.cram.ref.ReferenceSource;
+
+/**
+ * Random reference sequences and reads aligned to them, written into a
+ * temporary directory for the conversion tests. The md5 cache of the reference
+ * is kept in the same directory until {@link #delete()}.
+ */
+public class SyntheticData {
+	private static final byte[] BASES = "ACGT".getBytes();
+
+	public final File dir;
+	public final File fasta;
+	public final SAMFileHeader header;
+	private final byte[][] sequences;
+	private final Random random;
+	private final String previousMd5Cache;
+	private int templates = 0;
+
+	public SyntheticData(int nofSequences, int sequenceLength, long seed) throws IOException {
+		random = new Random(seed);
+		dir = Files.createTempDirectory("cram-test").toFile();
+		previousMd5Cache = System.getProperty("cramtools.md5.cache");
+		System.setProperty("cramtools.md5.cache", new File(dir, "md5").getAbsolutePath());
+		fasta = new File(dir, "ref.fa");
+		header = new SAMFileHeader();
+		header.setSortOrder(SAMFileHeader.SortOrder.coordinate);
+		sequences = new byte[nofSequences][];
+
+		try (PrintWriter fa = new PrintWriter(fasta); PrintWriter fai = new PrintWriter(fasta.getPath() + ".fai")) {
+			long offset = 0;
+			for (int i = 0; i < nofSequences; i++) {
+				String name = "chr" + (i + 1);
+				byte[] bases = randomBases(sequenceLength);
+				sequences[i] = bases;
+				String line = ">" + name + "\n";
+				fa.print(line);
+				offset += line.length();
+				fai.print(name + "\t" + sequenceLength + "\t" + offset + "\t60\t61\n");
+				for (int from = 0; from < sequenceLength; from += 60) {
+					int to = Math.min(sequenceLength, from + 60);
+					fa.print(new String(bases, from, to - from) + "\n");
+					offset += to - from + 1;
+				}
+
+				SAMSequenceRecord sequence = new SAMSequenceRecord(name, sequenceLength);
+				sequence.setAttribute(SAMSequenceRecord.MD5_TAG, Utils.calculateMD5String(bases));
+				header.addSequence(sequence);
+			}
+		}
+
+		SAMReadGroupRecord readGroup = new SAMReadGroupRecord("rg1");
+		readGroup.setSample("sample1");
+		header.addReadGroup(readGroup);
+	}
+
+	public byte[] randomBases(int length) {
+		byte[] bases = new byte[length];
+		for (int i = 0; i < length; i++)
+			bases[i] = BASES[random.nextInt(BASES.length)];
+		return bases;
+	}
+
+	/**
+	 * A read with the given cigar, its bases copied from the reference with
+	 * one mismatch and random bases for insertions and soft clips.
+	 */
+	public SAMRecord read(String name, int sequenceIndex, int alignmentStart, String cigarString) {
+		Cigar cigar = TextCigarCodec.decode(cigarString);
+		byte[] bases = new byte[cigar.getReadLength()];
+		int readPos = 0, refPos = alignmentStart - 1;
+		for (CigarElement element : cigar.getCigarElements()) {
+			int length = element.getLength();
+			if (element.getOperator().consumesReadBases()) {
+				if (element.getOperator().consumesReferenceBases())
+					System.arraycopy(sequences[sequenceIndex], refPos, bases, readPos, length);
+				else
+					System.arraycopy(randomBases(length), 0, bases, readPos, length);
+				readPos += length;
+			}
+			if (element.getOperator().consumesReferenceBases())
+				refPos += length;
+		}
+		int mismatch = random.nextInt(bases.length);
+		bases[mismatch] = bases[mismatch] == 'A' ? (byte) 'C' : (byte) 'A';
+
+		SAMRecord record = newRecord(name, bases);
+		record.setReferenceIndex(sequenceIndex);
+		record.setAlignmentStart(alignmentStart);
+		record.setCigar(cigar);
+		record.setMappingQuality(30);
+		return record;
+	}
+
+	/**
+	 * A properly paired template, the second read starting distance bases
+	 * after the first one on the reverse strand.
+	 */
+	public List<SAMRecord> pair(int sequenceIndex, int alignmentStart, int readLength, int distance) {
+		String name = "read" + (++templates);
+		SAMRecord first = read(name, sequenceIndex, alignmentStart, readLength + "M");
+		SAMRecord second = read(name, sequenceIndex, alignmentStart + distance, readLength + "M");
+		first.setFlags(0x1 | 0x2 | 0x20 | 0x40);
+		second.setFlags(0x1 | 0x2 | 0x10 | 0x80);
+		setMate(first, second);
+		setMate(second, first);
+		int insertSize = distance + readLength;
+		first.setInferredInsertSize(insertSize);
+		second.setInferredInsertSize(-insertSize);
+		return Arrays.asList(first, second);
+	}
+
+	public List<SAMRecord> unmappedPair(int readLength) {
+		String name = "read" + (++templates);
+		SAMRecord first = newRecord(name, randomBases(readLength));
+		SAMRecord second = newRecord(name, randomBases(readLength));
+		first.setFlags(0x1 | 0x4 | 0x8 | 0x40);
+		second.setFlags(0x1 | 0x4 | 0x8 | 0x80);
+		return Arrays.asList(first, second);
+	}
+
+	/**
+	 * Pairs spread over all reference sequences followed by a few unmapped
+	 * pairs.
+	 */
+	public List<SAMRecord> pairs(int nofPairs, int readLength) {
+		List<SAMRecord> records = new ArrayList<SAMRecord>();
+		for (int i = 0; i < nofPairs; i++) {
+			int sequenceIndex = random.nextInt(sequences.length);
+			int distance = readLength + random.nextInt(200);
+			int start = 1 + random.nextInt(sequences[sequenceIndex].length - distance - readLength);
+			records.addAll(pair(sequenceIndex, start, readLength, distance));
+		}
+		for (int i = 0; i < nofPairs / 10 + 1; i++)
+			records.addAll(unmappedPair(readLength));
+		return records;
+	}
+
+	private SAMRecord newRecord(String name, byte[] bases) {
+		SAMRecord record = new SAMRecord(header);
+		record.setReadName(name);
+		record.setReadBases(bases);
+		byte[] scores = new byte[bases.length];
+		for (int i = 0; i < scores.length; i++)
+			scores[i] = (byte) random.nextInt(41);
+		record.setBaseQualities(scores);
+		record.setAttribute("RG", "rg1");
+		return record;
+	}
+
+	private static void setMate(SAMRecord record, SAMRecord mate) {
+		record.setMateReferenceIndex(mate.getReferenceIndex());
+		record.setMateAlignmentStart(mate.getAlignmentStart());
+	}
+
+	/**
+	 * Attach tags of every type BAM can store.
+	 */
+	public static void addAllTagTypes(SAMRecord record) {
+		record.setAttribute("XA", 'x');
+		record.setAttribute("Xc", -5);
+		record.setAttribute("XC", 200);
+		record.setAttribute("Xs", -300);
+		record.setAttribute("XS", 60000);
+		record.setAttribute("Xi", -70000);
+		record.setAttribute("XI", 3000000000L);
+		record.setAttribute("Xf", 1.5f);
+		record.setAttribute("XZ", "text value");
+		record.setAttribute("Bc", new byte[] { -1, 0, 1 });
+		record.setUnsignedArrayAttribute("BC", new byte[] { 1, 2, (byte) 200 });
+		record.setAttribute("Bs", new short[] { -300, 300 });
+		record.setUnsignedArrayAttribute("BS", new short[] { 1, (short) 60000 });
+		record.setAttribute("Bi", new int[] { -70000, 70000 });
+		record.setUnsignedArrayAttribute("BI", new int[] { 1, 70000 });
+		record.setAttribute("Bf", new float[] { 0.5f, -2f });
+	}
+
+	public static void sort(List<SAMRecord> records) {
+		records.sort(new SAMRecordCoordinateComparator());
+	}
+
+	public File writeBam(String name, List<SAMRecord> records) {
+		File file = new File(dir, name);
+		sort(records);
+		SAMFileWriter writer = new SAMFileWriterFactory().makeBAMWriter(header, true, file);
+		for (SAMRecord record : records)
+			writer.addAlignment(record);
+		writer.close();
+		return file;
+	}
+
+	/**
+	 * Write the records sorted by coordinate into a CRAM file with at most
+	 * containerRecords records per container.
+	 */
+	public File writeCram(String name, List<SAMRecord> records, CramLossyOptions lossyOptions, int containerRecords)
+			throws IOException {
+		File file = new File(dir, name);
+		sort(records);
+		try (OutputStream os = new BufferedOutputStream(new FileOutputStream(file))) {
+			CRAMContainerStreamWriter writer = new CRAMContainerStreamWriter(os, null, new ReferenceSource(fasta),
+					header, name, lossyOptions);
+			writer.setContainerSizePolicy(ContainerSizePolicy.defaults().setMaxRecords(containerRecords));
+			writer.writeHeader(header);
+			for (SAMRecord record : records)
+				writer.writeAlignment(record);
+			writer.finish(true);
+		}
+		return file;
+	}
+
+	/**
+	 * Read all records from a BAM or CRAM file.
+	 */
+	public List<SAMRecord> readAll(File file) throws IOException {
+		List<SAMRecord> records = new ArrayList<SAMRecord>();
+		try (SamReader reader = SamReaderFactory.makeDefault().referenceSequence(fasta)
+				.validationStringency(ValidationStringency.SILENT).open(file)) {
+			for (SAMRecord record : reader)
+				records.add(record);
+		}
+		return records;
+	}
+
+	public void delete() {
+		if (previousMd5Cache == null)
+			System.clearProperty("cramtools.md5.cache");
+		else
+			System.setProperty("cramtools.md5.cache", previousMd5Cache);
+		delete(dir);
+	}
+
+	private static void delete(File file) {
+		File[] files = file.listFiles();
+		if (files != null)
+			for (File child : files)
+				delete(child);
+		file.delete();
+	}
+}
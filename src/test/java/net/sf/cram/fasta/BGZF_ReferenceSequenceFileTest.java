@@ -0,0 +1,117 @@
+/*
+ * Copyright 2012 - 2018 EMBL - European Bioinformatics Institute
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+
+package net.sf.cram.fasta;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import htsjdk.samtools.seekablestream.SeekableFileStream;
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+
+public class BGZF_ReferenceSequenceFileTest {
+	private static final int LINE_WIDTH = 60;
+	private File dir;
+	private File fasta;
+	private byte[][] sequences;
+
+	@Before
+	public void init() throws IOException {
+		dir = File.createTempFile("bgzf", "");
+		dir.delete();
+		dir.mkdirs();
+		fasta = new File(dir, "ref.fa.gz");
+
+		Random random = new Random(1);
+		sequences = new byte[][] { new byte[150000], new byte[7], new byte[100000] };
+		BlockCompressedOutputStream os = new BlockCompressedOutputStream(fasta);
+		for (int s = 0; s < sequences.length; s++) {
+			for (int i = 0; i < sequences[s].length; i++)
+				sequences[s][i] = (byte) "ACGTN".charAt(random.nextInt(5));
+			os.write((">s" + s + " description\n").getBytes());
+			for (int i = 0; i < sequences[s].length; i += LINE_WIDTH) {
+				os.write(sequences[s], i, Math.min(LINE_WIDTH, sequences[s].length - i));
+				os.write('\n');
+			}
+		}
+		os.close();
+	}
+
+	@After
+	public void cleanup() {
+		for (File file : dir.listFiles())
+			file.delete();
+		dir.delete();
+	}
+
+	private void writeIndex(boolean legacy) throws IOException {
+		GZI_BlockIndex blockIndex = GZI_BlockIndex.build(fasta);
+		if (!legacy)
+			blockIndex.write(new File(fasta.getAbsolutePath() + ".gzi"));
+		BGZF_FastaIndexer indexer = new BGZF_FastaIndexer(new BlockCompressedInputStream(new SeekableFileStream(
+				fasta)), blockIndex);
+		PrintWriter writer = new PrintWriter(fasta.getAbsolutePath() + ".fai");
+		FAIDX_FastaIndexEntry e;
+		while ((e = indexer.readNext()) != null) {
+			long start = e.getStartPointer();
+			if (legacy) {
+				// earlier versions wrote virtual file pointers:
+				int block = blockIndex.findBlock(start);
+				start = blockIndex.getCompressedOffset(block) << 16 | (start - blockIndex.getUncompressedOffset(block));
+			}
+			writer.println(new FAIDX_FastaIndexEntry(e.getIndex(), e.getName(), e.getLen(), start, e
+					.getLineWidthNoNL(), e.getLineWidthWithNL()));
+		}
+		writer.close();
+	}
+
+	private void assertRegions() throws IOException {
+		BGZF_ReferenceSequenceFile file = new BGZF_ReferenceSequenceFile(fasta);
+		for (int s = 0; s < sequences.length; s++)
+			assertArrayEquals(sequences[s], file.getSequence("s" + s).getBases());
+
+		Random random = new Random(2);
+		for (int i = 0; i < 200; i++) {
+			int s = random.nextInt(sequences.length);
+			int start = 1 + random.nextInt(sequences[s].length);
+			int stop = start + random.nextInt(70000);
+			byte[] expected = Arrays.copyOfRange(sequences[s], start - 1, Math.min(stop, sequences[s].length));
+			assertArrayEquals(s + ":" + start + "-" + stop, expected, file.getSubsequenceAt("s" + s, start, stop)
+					.getBases());
+		}
+		assertEquals("s0", file.nextSequence().getName());
+		file.close();
+	}
+
+	@Test
+	public void test_withGziIndex() throws IOException {
+		writeIndex(false);
+		assertRegions();
+	}
+
+	@Test
+	public void test_legacyIndex() throws IOException {
+		writeIndex(true);
+		assertRegions();
+	}
+}
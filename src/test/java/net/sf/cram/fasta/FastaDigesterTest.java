@@ -0,0 +1,41 @@
+/*
+ * Copyright 2012 - 2018 EMBL - European Bioinformatics Institute
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+
+package net.sf.cram.fasta;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Map;
+
+import org.junit.Test;
+
+import net.sf.cram.common.Utils;
+import net.sf.cram.ref.SequenceDigest;
+
+public class FastaDigesterTest {
+
+	@Test
+	public void test_digests() throws IOException {
+		String fasta = ">s1 first sequence\nacgt\r\nACG\n\n>s2\nNNNN\n>empty\n>s3\nTT";
+		Map<String, SequenceDigest> digests = new FastaDigester().digest(new ByteArrayInputStream(fasta.getBytes()));
+
+		assertEquals(4, digests.size());
+		assertEquals(Utils.calculateMD5String("ACGTACG".getBytes()), digests.get("s1").md5);
+		assertEquals(7, digests.get("s1").length);
+		assertEquals(Utils.calculateMD5String("NNNN".getBytes()), digests.get("s2").md5);
+		assertEquals(0, digests.get("empty").length);
+		assertEquals(Utils.calculateMD5String(new byte[0]), digests.get("empty").md5);
+		assertEquals(Utils.calculateMD5String("TT".getBytes()), digests.get("s3").md5);
+	}
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2012 - 2018 EMBL - European Bioinformatics Institute
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+
+package net.sf.cram.ref;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import htsjdk.samtools.SAMSequenceRecord;
+import net.sf.cram.common.Utils;
+
+public class FastaDigestCacheTest {
+
+	@Test
+	public void test_digestsAreKeptUntilTheFastaChanges() throws IOException {
+		File dir = Files.createTempDirectory("md5cache").toFile();
+		File fasta = new File(dir, "ref.fa");
+		try {
+			FileOutputStream fos = new FileOutputStream(fasta);
+			fos.write(">s1\nACGT\n".getBytes());
+			fos.close();
+
+			FastaDigestCache cache = new FastaDigestCache(fasta, dir);
+			cache.put("s1", new SequenceDigest("0123", 4));
+			cache.save();
+
+			SequenceDigest digest = new FastaDigestCache(fasta, dir).get("s1");
+			assertEquals("0123", digest.md5);
+			assertEquals(4, digest.length);
+
+			fasta.setLastModified(fasta.lastModified() - 10000);
+			assertNull(new FastaDigestCache(fasta, dir).get("s1"));
+		} finally {
+			for (File file : dir.listFiles())
+				file.delete();
+			dir.delete();
+		}
+	}
+
+	@Test
+	public void test_staleFilesAreRemoved() throws IOException {
+		File dir = Files.createTempDirectory("md5cache").toFile();
+		File kept = new File(dir, "kept.fa");
+		File changed = new File(dir, "changed.fa");
+		File deleted = new File(dir, "deleted.fa");
+		File other = new File(dir, "notes.txt");
+		try {
+			for (File fasta : Arrays.asList(kept, changed, deleted)) {
+				FileOutputStream fos = new FileOutputStream(fasta);
+				fos.write(">s1\nACGT\n".getBytes());
+				fos.close();
+				FastaDigestCache cache = new FastaDigestCache(fasta, dir);
+				cache.put("s1", new SequenceDigest("0123", 4));
+				cache.save();
+			}
+			File garbled = new File(dir, Utils.calculateMD5String("garbled".getBytes()));
+			FileOutputStream fos = new FileOutputStream(garbled);
+			fos.write("no key here\n".getBytes());
+			fos.close();
+			other.createNewFile();
+
+			changed.setLastModified(changed.lastModified() - 10000);
+			deleted.delete();
+			FastaDigestCache.prune(dir);
+
+			assertTrue(cacheFile(dir, kept).exists());
+			assertFalse(cacheFile(dir, changed).exists());
+			assertFalse(cacheFile(dir, deleted).exists());
+			assertFalse(garbled.exists());
+			assertTrue(other.exists());
+			assertEquals("0123", new FastaDigestCache(kept, dir).get("s1").md5);
+		} finally {
+			for (File file : dir.listFiles())
+				file.delete();
+			dir.delete();
+		}
+	}
+
+	private static File cacheFile(File dir, File fasta) {
+		return new File(dir, Utils.calculateMD5String(fasta.getAbsolutePath().getBytes()));
+	}
+
+	@Test
+	public void test_referenceSourceDigests() throws IOException {
+		File dir = Files.createTempDirectory("md5cache").toFile();
+		File fasta = new File(dir, "ref.fa");
+		String previous = System.getProperty("cramtools.md5.cache");
+		System.setProperty("cramtools.md5.cache", dir.getAbsolutePath());
+		try {
+			FileOutputStream fos = new FileOutputStream(fasta);
+			fos.write(">s1\nacgtAC\n>s2\nGG\n".getBytes());
+			fos.close();
+			fos = new FileOutputStream(new File(dir, "ref.fa.fai"));
+			fos.write("s1\t6\t4\t6\t7\ns2\t2\t15\t2\t3\n".getBytes());
+			fos.close();
+
+			SAMSequenceRecord s1 = new SAMSequenceRecord("s1", 6);
+			SAMSequenceRecord s3 = new SAMSequenceRecord("s3", 6);
+			SequenceDigest[] digests = new ReferenceSource(fasta).getDigests(Arrays.asList(s1, s3), false);
+			assertEquals(Utils.calculateMD5String("ACGTAC".getBytes()), digests[0].md5);
+			assertEquals(6, digests[0].length);
+			assertNull(digests[1]);
+
+			// the second source finds the digest without reading the fasta:
+			ReferenceSource source = new ReferenceSource(fasta);
+			assertEquals(digests[0].md5, source.getDigests(Arrays.asList(s1), false)[0].md5);
+			assertEquals(0, source.getCacheBytes());
+		} finally {
+			if (previous == null)
+				System.clearProperty("cramtools.md5.cache");
+			else
+				System.setProperty("cramtools.md5.cache", previous);
+			for (File file : dir.listFiles())
+				file.delete();
+			dir.delete();
+		}
+	}
+}
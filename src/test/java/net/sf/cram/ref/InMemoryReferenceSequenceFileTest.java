@@ -0,0 +1,99 @@
+/*
+ * Copyright 2012 - 2018 EMBL - European Bioinformatics Institute
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+
+package net.sf.cram.ref;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.junit.Test;
+
+import htsjdk.samtools.SAMSequenceRecord;
+
+public class InMemoryReferenceSequenceFileTest {
+
+	private static byte[] bytes(ByteBuffer buf) {
+		byte[] bytes = new byte[buf.remaining()];
+		buf.duplicate().get(bytes);
+		return bytes;
+	}
+
+	@Test
+	public void test_subsequenceViews() {
+		InMemoryReferenceSequenceFile rsFile = new InMemoryReferenceSequenceFile();
+		rsFile.addSequence("s1", "ACGTACGTNN".getBytes());
+		rsFile.addSequence("s2", "GGCC".getBytes());
+
+		ByteBuffer view = rsFile.getSubsequenceView("s1", 2, 4);
+		assertTrue(view.isDirect());
+		assertTrue(view.isReadOnly());
+		assertArrayEquals("CGT".getBytes(), bytes(view));
+		assertArrayEquals("NN".getBytes(), bytes(rsFile.getSubsequenceView("s1", 9, 100)));
+		assertEquals(0, rsFile.getSubsequenceView("s1", 20, 30).remaining());
+		assertNull(rsFile.getSubsequenceView("s3", 1, 2));
+
+		assertArrayEquals("GCC".getBytes(), rsFile.getSubsequenceAt("s2", 2, 4).getBases());
+		assertArrayEquals("GGCC".getBytes(), rsFile.getSequence("s2").getBases());
+		assertEquals(1, rsFile.getSequence("s2").getContigIndex());
+
+		ReferenceRegion region = rsFile.getRegion("s1", 5, 6);
+		assertEquals(5, region.alignmentStart);
+		assertEquals('A', region.base(5));
+	}
+
+	@Test
+	public void test_referenceSourceReadsRegions() throws IOException {
+		InMemoryReferenceSequenceFile rsFile = new InMemoryReferenceSequenceFile();
+		rsFile.addSequence("s1", "ACGTACGTAC".getBytes());
+		ReferenceSource source = new ReferenceSource(rsFile);
+		source.setRegionWindow(4);
+
+		SAMSequenceRecord record = new SAMSequenceRecord("s1", 10);
+		assertArrayEquals("GTA".getBytes(), source.getRegion(record, 3, 5).array);
+		assertEquals(1, source.getWindowLoadCount());
+		assertArrayEquals("ACGTACGTAC".getBytes(), source.getReferenceBases(record, false));
+	}
+
+	@Test
+	public void test_loadTwoBit() throws IOException {
+		File file = File.createTempFile("ref", ".2bit");
+		try {
+			// one sequence "ACGTNNa" with a block of Ns and a masked base:
+			ByteBuffer buf = ByteBuffer.allocate(1024).order(ByteOrder.LITTLE_ENDIAN);
+			buf.putInt(0x1A412743).putInt(0).putInt(1).putInt(0);
+			buf.put((byte) 2).put("s1".getBytes()).putInt(23);
+			buf.putInt(7);
+			buf.putInt(1).putInt(4).putInt(2);
+			buf.putInt(1).putInt(6).putInt(1);
+			buf.putInt(0);
+			// A=10 C=01 G=11 T=00, then T T A padded:
+			buf.put((byte) 0x9C).put((byte) 0x08);
+			FileOutputStream fos = new FileOutputStream(file);
+			fos.write(buf.array(), 0, buf.position());
+			fos.close();
+
+			InMemoryReferenceSequenceFile rsFile = InMemoryReferenceSequenceFile.load(file);
+			assertEquals(1, rsFile.getSequenceDictionary().size());
+			assertArrayEquals("ACGTNNA".getBytes(), rsFile.getSequence("s1").getBases());
+		} finally {
+			file.delete();
+		}
+	}
+}
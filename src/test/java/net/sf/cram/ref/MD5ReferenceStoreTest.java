@@ -0,0 +1,112 @@
+/*
+ * Copyright 2012 - 2018 EMBL - European Bioinformatics Institute
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+
+package net.sf.cram.ref;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import net.sf.cram.common.Utils;
+
+public class MD5ReferenceStoreTest {
+
+	private static void delete(File file) {
+		File[] files = file.listFiles();
+		if (files != null)
+			for (File f : files)
+				delete(f);
+		file.delete();
+	}
+
+	@Test
+	public void test_putAndGetRegions() throws IOException {
+		File dir = Files.createTempDirectory("refstore").toFile();
+		try {
+			MD5ReferenceStore store = new MD5ReferenceStore(dir.getAbsolutePath() + "/%2s/%s");
+			byte[] bases = "ACGTACGTNN".getBytes();
+			String md5 = Utils.calculateMD5String(bases);
+
+			assertFalse(store.contains(md5));
+			assertNull(store.getBases(md5));
+			assertTrue(store.put(md5, bases));
+			assertTrue(store.contains(md5));
+			assertEquals(new File(dir, md5.substring(0, 2) + "/" + md5.substring(2)), store.getFile(md5));
+
+			assertArrayEquals(bases, store.getBases(md5));
+			assertArrayEquals("GTA".getBytes(), store.getBases(md5, 2, 3));
+			assertArrayEquals("NN".getBytes(), store.getBases(md5, 8, 100));
+		} finally {
+			delete(dir);
+		}
+	}
+
+	@Test
+	public void test_mismatchingBasesAreRejected() throws IOException {
+		File dir = Files.createTempDirectory("refstore").toFile();
+		try {
+			MD5ReferenceStore store = new MD5ReferenceStore(dir.getAbsolutePath() + "/%s");
+			String md5 = Utils.calculateMD5String("ACGT".getBytes());
+
+			assertFalse(store.put(md5, "ACGA".getBytes()));
+			assertFalse(store.contains(md5));
+			assertEquals(1, dir.list().length);
+			assertTrue(store.put(md5, "ACGT".getBytes()));
+			assertEquals(1, dir.list().length);
+		} finally {
+			delete(dir);
+		}
+	}
+
+	@Test
+	public void test_sourceIsReadOnce() throws Exception {
+		File dir = Files.createTempDirectory("refstore").toFile();
+		try {
+			MD5ReferenceStore store = new MD5ReferenceStore(dir.getAbsolutePath() + "/%s");
+			byte[] bases = "ACGTACGT".getBytes();
+			String md5 = Utils.calculateMD5String(bases);
+			AtomicInteger opened = new AtomicInteger();
+
+			Thread[] threads = new Thread[4];
+			for (int i = 0; i < threads.length; i++) {
+				threads[i] = new Thread(() -> {
+					try {
+						assertTrue(store.put(md5, () -> {
+							opened.incrementAndGet();
+							return new ByteArrayInputStream(bases);
+						}));
+					} catch (IOException e) {
+						throw new RuntimeException(e);
+					}
+				});
+				threads[i].start();
+			}
+			for (Thread thread : threads)
+				thread.join();
+
+			assertEquals(1, opened.get());
+			assertArrayEquals(bases, store.getBases(md5));
+		} finally {
+			delete(dir);
+		}
+	}
+}
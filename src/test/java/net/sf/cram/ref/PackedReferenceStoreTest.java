@@ -0,0 +1,70 @@
+/*
+ * Copyright 2012 - 2018 EMBL - European Bioinformatics Institute
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+
+package net.sf.cram.ref;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.junit.Test;
+
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.reference.ReferenceSequenceFileFactory;
+import net.sf.cram.common.Utils;
+
+public class PackedReferenceStoreTest {
+
+	@Test
+	public void test_roundTrip() throws IOException {
+		File dir = File.createTempFile("packed", "");
+		dir.delete();
+		dir.mkdirs();
+		File fasta = new File(dir, "ref.fa");
+		FileOutputStream fos = new FileOutputStream(fasta);
+		fos.write(">s1\nACGTNnacgtRYKM\nBDHVSW\n>s2\nACGTUACGT\n>s3\nA\n".getBytes());
+		fos.close();
+		File image = new File(dir, "ref.img");
+
+		PackedReferenceStore store = PackedReferenceStore.openOrCreate(image, fasta);
+		try {
+			assertEquals(2, store.getSequences().size());
+			assertNull("symbols outside of the alphabet", store.findByName("s2"));
+
+			PackedReferenceStore.Sequence s1 = store.findByName("s1");
+			byte[] bases = "ACGTNNACGTRYKMBDHVSW".getBytes();
+			assertEquals(bases.length, s1.length);
+			assertArrayEquals(bases, store.getBases(s1));
+			assertSame(s1, store.findByMD5(Utils.calculateMD5String(bases)));
+
+			assertArrayEquals("GTNN".getBytes(), store.getBases(s1, 3, 6));
+			assertArrayEquals("SW".getBytes(), store.getBases(s1, 19, 100));
+			assertEquals(0, store.getBases(s1, 21, 30).length);
+			assertArrayEquals("A".getBytes(), store.getBases(store.findByName("s3")));
+
+			ReferenceSource source = new ReferenceSource(ReferenceSequenceFileFactory.getReferenceSequenceFile(fasta));
+			source.setPackedStore(PackedReferenceStore.open(image));
+			SAMSequenceRecord record = new SAMSequenceRecord("chrs1", bases.length);
+			assertArrayEquals(bases, source.getReferenceBases(record, true));
+			assertArrayEquals("CG".getBytes(), source.getRegion(record, 2, 3).array);
+		} finally {
+			for (File f : dir.listFiles())
+				f.delete();
+			dir.delete();
+		}
+	}
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2012 - 2018 EMBL - European Bioinformatics Institute
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+
+package net.sf.cram.ref;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class ReferenceCacheTest {
+
+	@Test
+	public void test_evictsLeastRecentlyUsed() {
+		ReferenceCache cache = new ReferenceCache(20);
+		byte[] a = new byte[10];
+		byte[] b = new byte[10];
+		cache.put(a, "a");
+		cache.put(a, "md5a");
+		cache.put(b, "b");
+		assertEquals(20, cache.getBytes());
+
+		cache.get("a");
+		cache.put(new byte[10], "c");
+		assertSame(a, cache.get("md5a"));
+		assertNull(cache.get("b"));
+		assertEquals(20, cache.getBytes());
+		assertEquals(1, cache.getEvictionCount());
+	}
+
+	@Test
+	public void test_keepsSequenceLargerThanLimit() {
+		ReferenceCache cache = new ReferenceCache(5);
+		byte[] a = new byte[10];
+		cache.put(a, "a");
+		assertSame(a, cache.get("a"));
+		cache.put(new byte[10], "b");
+		assertNull(cache.get("a"));
+		assertEquals(10, cache.getBytes());
+	}
+
+	@Test(timeout = 5000)
+	public void test_loadsOncePerKey() throws InterruptedException {
+		ReferenceCache cache = new ReferenceCache(100);
+		AtomicInteger loads = new AtomicInteger();
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		byte[][] results = new byte[4][];
+		Thread[] threads = new Thread[results.length];
+		for (int i = 0; i < threads.length; i++) {
+			final int index = i;
+			threads[i] = new Thread(() -> {
+				try {
+					results[index] = cache.get("a", () -> {
+						loads.incrementAndGet();
+						started.countDown();
+						try {
+							release.await();
+						} catch (InterruptedException e) {
+							throw new IOException(e);
+						}
+						return new byte[10];
+					}, "md5a");
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			});
+			threads[i].start();
+		}
+		started.await();
+		Thread.sleep(50);
+		release.countDown();
+		for (Thread thread : threads)
+			thread.join();
+
+		assertEquals(1, loads.get());
+		for (byte[] result : results)
+			assertSame(results[0], result);
+		assertSame(results[0], cache.get("md5a"));
+		assertEquals(10, cache.getBytes());
+	}
+}
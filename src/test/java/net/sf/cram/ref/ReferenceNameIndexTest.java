@@ -0,0 +1,74 @@
+/*
+ * Copyright 2012 - 2018 EMBL - European Bioinformatics Institute
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+
+package net.sf.cram.ref;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
+
+public class ReferenceNameIndexTest {
+
+	@Test
+	public void test_aliases() {
+		ReferenceNameIndex index = new ReferenceNameIndex();
+		index.add("chr1");
+		index.add("2");
+		index.add("chrM");
+		index.add("gi|568815597|ref|NC_000003.12|");
+
+		assertEquals("chr1", index.resolve("chr1"));
+		assertEquals("chr1", index.resolve("1"));
+		assertEquals("2", index.resolve("chr2"));
+		assertEquals("chrM", index.resolve("MT"));
+		assertEquals("chrM", index.resolve("M"));
+		assertEquals("gi|568815597|ref|NC_000003.12|", index.resolve("NC_000003.12"));
+		assertEquals("gi|568815597|ref|NC_000003.12|", index.resolve("NC_000003"));
+		assertEquals("gi|568815597|ref|NC_000003.12|", index.resolve("568815597"));
+		assertNull(index.resolve("3"));
+
+		assertTrue(index.contains("2"));
+		assertFalse(index.contains("chr2"));
+	}
+
+	@Test
+	public void test_realNamesWinOverAliases() {
+		ReferenceNameIndex index = new ReferenceNameIndex();
+		index.add("chr1");
+		assertEquals("chr1", index.resolve("1"));
+		index.add("1");
+		assertEquals("1", index.resolve("1"));
+		assertEquals("chr1", index.resolve("chr1"));
+	}
+
+	@Test
+	public void test_dictionaryAlternativeNames() {
+		SAMSequenceRecord record = new SAMSequenceRecord("chr1", 100);
+		record.setAttribute("AN", "CM000663.2,NC_000001.11");
+		SAMSequenceDictionary dictionary = new SAMSequenceDictionary(Arrays.asList(record,
+				new SAMSequenceRecord("chr10", 10), new SAMSequenceRecord("chr2", 10)));
+
+		ReferenceNameIndex index = ReferenceNameIndex.fromDictionary(dictionary);
+		assertEquals(3, index.size());
+		assertEquals("chr1", index.resolve("NC_000001.11"));
+		assertEquals("chr1", index.resolve("CM000663"));
+		assertEquals(Arrays.asList("chr1", "chr10"), Arrays.asList(index.findByPrefix("chr1").toArray()));
+	}
+}
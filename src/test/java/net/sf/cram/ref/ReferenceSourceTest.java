@@ -0,0 +1,85 @@
+/*
+ * Copyright 2012 - 2018 EMBL - European Bioinformatics Institute
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+
+package net.sf.cram.ref;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.junit.Test;
+
+import htsjdk.samtools.SAMSequenceRecord;
+
+public class ReferenceSourceTest {
+
+	@Test
+	public void test_regionsAreServedFromWindows() throws IOException {
+		File fasta = File.createTempFile("ref", ".fa");
+		File fai = new File(fasta.getAbsolutePath() + ".fai");
+		try {
+			FileOutputStream fos = new FileOutputStream(fasta);
+			fos.write(">s1\nacgtacgtAC\nGTACGTAC\n".getBytes());
+			fos.close();
+			fos = new FileOutputStream(fai);
+			fos.write("s1\t18\t4\t10\t11\n".getBytes());
+			fos.close();
+
+			ReferenceSource source = new ReferenceSource(fasta);
+			source.setRegionWindow(8);
+			SAMSequenceRecord record = new SAMSequenceRecord("chrs1", 18);
+
+			assertArrayEquals("CGT".getBytes(), source.getRegion(record, 2, 4).array);
+			assertArrayEquals("GTACGTA".getBytes(), source.getRegion(record, 3, 9).array);
+			assertEquals(1, source.getWindowLoadCount());
+
+			ReferenceRegion region = source.getRegion(record, 12, 30);
+			assertEquals(12, region.alignmentStart);
+			assertArrayEquals("TACGTAC".getBytes(), region.array);
+			assertEquals(2, source.getWindowLoadCount());
+			assertArrayEquals("GTAC".getBytes(), source.getRegion(record, 15, 18).array);
+			assertEquals(2, source.getWindowLoadCount());
+		} finally {
+			fasta.delete();
+			fai.delete();
+		}
+	}
+
+	@Test
+	public void test_prefetchedRegionIsNotLoadedAgain() throws IOException {
+		File fasta = File.createTempFile("ref", ".fa");
+		File fai = new File(fasta.getAbsolutePath() + ".fai");
+		try {
+			FileOutputStream fos = new FileOutputStream(fasta);
+			fos.write(">s1\nacgtacgtAC\nGTACGTAC\n".getBytes());
+			fos.close();
+			fos = new FileOutputStream(fai);
+			fos.write("s1\t18\t4\t10\t11\n".getBytes());
+			fos.close();
+
+			ReferenceSource source = new ReferenceSource(fasta);
+			source.setRegionWindow(8);
+			SAMSequenceRecord record = new SAMSequenceRecord("s1", 18);
+
+			source.prefetchRegion(record, 12, 14);
+			assertEquals(1, source.getWindowLoadCount());
+			assertArrayEquals("TAC".getBytes(), source.getRegion(record, 12, 14).array);
+			assertEquals(1, source.getWindowLoadCount());
+		} finally {
+			fasta.delete();
+			fai.delete();
+		}
+	}
+}